@@ -0,0 +1,303 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Support of the http byte range requests (<tt>Range</tt> and <tt>If-Range</tt> headers) for the responses whose body is fully known
+ * before it is written, such as the cached responses and the static files.
+ * </p>
+ * <p>
+ * The ranges of a <tt>Range</tt> header are returned by {@link #parse(String, long)} as an array of <code>(first, last)</code> pairs of
+ * inclusive offsets, sorted and with the overlapping or adjacent ranges merged. A single range is written as a <tt>206 Partial
+ * Content</tt> response with a <tt>Content-Range</tt> header, several ranges as a <tt>multipart/byteranges</tt> body. The body is read
+ * through a {@link Body} so that each range is written as a slice of the stored bytes.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public final class ByteRanges {
+
+    /**
+     * Source of the bytes of a response body.
+     */
+    public static interface Body {
+
+        /**
+         * Write the given slice of the body in the given stream.
+         */
+        void write(OutputStream out, long offset, long length) throws IOException;
+    }
+
+    private static final String BYTES_UNIT = "bytes";
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    /**
+     * Beyond this number of ranges, once merged, the <tt>Range</tt> header is ignored and the whole body is sent.
+     */
+    static final int MAX_RANGE_COUNT = 32;
+
+    private static final long[] NO_RANGES = new long[0];
+
+    private static final Random random = new Random();
+
+    /**
+     * Return the value of a <tt>Content-Range</tt> header.
+     */
+    public static String contentRange(long first, long last, long length) {
+        return BYTES_UNIT + " " + first + "-" + last + "/" + length;
+    }
+
+    private static byte[] getAsciiBytes(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the ranges of the request can be served according to its <tt>If-Range</tt> header.
+     * </p>
+     * <p>
+     * An entity tag only matches a strong <tt>ETag</tt> with the same opaque tag (strong comparison), a date only matches a
+     * <tt>Last-Modified</tt> date of the same second.
+     * </p>
+     *
+     * @param ifRange
+     *            value of the <tt>If-Range</tt> header, <code>null</code> if none
+     * @param etag
+     *            value of the <tt>ETag</tt> header of the response, <code>null</code> if none
+     * @param lastModified
+     *            value of the <tt>Last-Modified</tt> header of the response, <code>-1</code> if none
+     */
+    public static boolean matchesIfRange(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag.trim());
+        }
+        long date = HttpDateFormat.parse(ifRange);
+        return date != -1 && lastModified != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * <p>
+     * Return the ranges of the given <tt>Range</tt> header for a body of the given length as <code>(first, last)</code> pairs of
+     * inclusive offsets.
+     * </p>
+     * <p>
+     * Return an empty array if none of the ranges is satisfiable, the response must then be a <tt>416 Requested Range Not
+     * Satisfiable</tt>, and <code>null</code> if the header must be ignored: absent, malformed, with another unit than <tt>bytes</tt>
+     * or with more than {@link #MAX_RANGE_COUNT} ranges.
+     * </p>
+     */
+    public static long[] parse(String range, long length) {
+        if (range == null) {
+            return null;
+        }
+        range = range.trim();
+        int equals = range.indexOf('=');
+        if (equals == -1 || !BYTES_UNIT.equalsIgnoreCase(range.substring(0, equals).trim())) {
+            return null;
+        }
+        String[] specs = ExpiresFilter.commaDelimitedListToStringArray(range.substring(equals + 1));
+        long[] ranges = new long[2 * specs.length];
+        int count = 0;
+        int specCount = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            specCount++;
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffixLength = Long.parseLong(spec.substring(1).trim());
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffixLength);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash).trim());
+                    String lastSpec = spec.substring(dash + 1).trim();
+                    last = lastSpec.length() == 0 ? Long.MAX_VALUE : Long.parseLong(lastSpec);
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first >= length) {
+                // unsatisfiable, the other ranges may be satisfiable
+                continue;
+            }
+            ranges[2 * count] = first;
+            ranges[2 * count + 1] = last;
+            count++;
+        }
+        if (count == 0) {
+            return specCount == 0 ? null : NO_RANGES;
+        }
+        return merge(ranges, count);
+    }
+
+    /**
+     * Sort the given ranges and merge those that overlap or are adjacent.
+     */
+    private static long[] merge(long[] ranges, int count) {
+        if (count > 1) {
+            // sort the indexes of the pairs on their first offset
+            Long[] indexes = new Long[count];
+            for (int i = 0; i < count; i++) {
+                indexes[i] = Long.valueOf(i);
+            }
+            final long[] unsorted = ranges;
+            Arrays.sort(indexes, new Comparator<Long>() {
+                public int compare(Long i1, Long i2) {
+                    long first1 = unsorted[(int) (2 * i1.longValue())];
+                    long first2 = unsorted[(int) (2 * i2.longValue())];
+                    return first1 < first2 ? -1 : first1 == first2 ? 0 : 1;
+                }
+            });
+            long[] sorted = new long[2 * count];
+            int merged = 0;
+            for (Long index : indexes) {
+                int i = (int) (2 * index.longValue());
+                if (merged > 0 && ranges[i] <= sorted[2 * merged - 1] + 1) {
+                    sorted[2 * merged - 1] = Math.max(sorted[2 * merged - 1], ranges[i + 1]);
+                } else {
+                    sorted[2 * merged] = ranges[i];
+                    sorted[2 * merged + 1] = ranges[i + 1];
+                    merged++;
+                }
+            }
+            ranges = sorted;
+            count = merged;
+        }
+        if (count > MAX_RANGE_COUNT) {
+            return null;
+        }
+        if (ranges.length != 2 * count) {
+            long[] trimmed = new long[2 * count];
+            System.arraycopy(ranges, 0, trimmed, 0, trimmed.length);
+            ranges = trimmed;
+        }
+        return ranges;
+    }
+
+    /**
+     * Write a <tt>416 Requested Range Not Satisfiable</tt> response for a body of the given length.
+     */
+    public static void writeNotSatisfiable(HttpServletResponse response, long length) {
+        response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + length);
+        response.setHeader(HEADER_CONTENT_LENGTH, "0");
+    }
+
+    /**
+     * Write a <tt>206 Partial Content</tt> response with the given non empty ranges of the given body, as a <tt>multipart/byteranges</tt>
+     * body if there are several ranges.
+     *
+     * @param ranges
+     *            ranges returned by {@link #parse(String, long)}
+     * @param contentType
+     *            content type of the whole body, <code>null</code> if unknown
+     * @param body
+     *            whole body, <code>null</code> to only write the headers
+     */
+    public static void writePartialContent(HttpServletResponse response, long[] ranges, long length, String contentType, Body body)
+            throws IOException {
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.length == 2) {
+            long first = ranges[0];
+            long last = ranges[1];
+            response.setHeader(HEADER_CONTENT_RANGE, contentRange(first, last, length));
+            response.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(last - first + 1));
+            if (body != null) {
+                body.write(response.getOutputStream(), first, last - first + 1);
+            }
+            return;
+        }
+
+        String boundary = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+        byte[][] partHeaders = new byte[ranges.length / 2][];
+        long contentLength = 0;
+        for (int i = 0; i < partHeaders.length; i++) {
+            long first = ranges[2 * i];
+            long last = ranges[2 * i + 1];
+            StringBuilder partHeader = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                partHeader.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            partHeader.append(HEADER_CONTENT_RANGE).append(": ").append(contentRange(first, last, length)).append("\r\n\r\n");
+            partHeaders[i] = getAsciiBytes(partHeader.toString());
+            contentLength += partHeaders[i].length + last - first + 1;
+        }
+        byte[] closeDelimiter = getAsciiBytes("\r\n--" + boundary + "--");
+        contentLength += closeDelimiter.length + CRLF.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(contentLength));
+        if (body == null) {
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        for (int i = 0; i < partHeaders.length; i++) {
+            long first = ranges[2 * i];
+            long last = ranges[2 * i + 1];
+            out.write(partHeaders[i]);
+            body.write(out, first, last - first + 1);
+        }
+        out.write(closeDelimiter);
+        out.write(CRLF);
+    }
+
+    private ByteRanges() {
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * {@link Map} with case insensitive <code>String</code> keys designed to hold http headers.
+ * </p>
+ * <p>
+ * Keys are hashed after case folding (without creating a lower case copy of the key) so that lookups cost one hash computation and one
+ * {@link String#equalsIgnoreCase(String)}, whatever the number of entries. The casing of the key used when the entry was created is
+ * preserved and returned by {@link #keySet()} and {@link #entrySet()}; iteration follows insertion order.
+ * </p>
+ * <p>
+ * <code>null</code> keys are not supported. This map is not thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class CaseInsensitiveMap<V> extends AbstractMap<String, V> {
+
+    static final class Entry<V> implements Map.Entry<String, V> {
+
+        /**
+         * Previous and next entries in insertion order
+         */
+        Entry<V> before, after;
+
+        final int hash;
+
+        final String key;
+
+        /**
+         * Next entry in the same bucket
+         */
+        Entry<V> next;
+
+        V value;
+
+        Entry(String key, int hash, V value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return key.equals(other.getKey()) && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Case insensitive hash of the given <code>key</code>. ASCII characters are folded with arithmetic, other characters are folded like
+     * {@link String#equalsIgnoreCase(String)} does.
+     */
+    static int hash(String key) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 128) {
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+            } else {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            h = 31 * h + c;
+        }
+        // spread the high bits as the table index only uses the low bits
+        return h ^ (h >>> 16);
+    }
+
+    private transient Set<Map.Entry<String, V>> entrySet;
+
+    private Entry<V> head;
+
+    private int modCount;
+
+    private int size;
+
+    private Entry<V>[] table;
+
+    private Entry<V> tail;
+
+    public CaseInsensitiveMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CaseInsensitiveMap(int initialCapacity) {
+        int capacity = 4;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.table = (Entry<V>[]) new Entry<?>[capacity];
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = null;
+        }
+        head = null;
+        tail = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getEntry(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, V>>() {
+                @Override
+                public void clear() {
+                    CaseInsensitiveMap.this.clear();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    return new Iterator<Map.Entry<String, V>>() {
+                        private int expectedModCount = modCount;
+
+                        private Entry<V> lastReturned;
+
+                        private Entry<V> nextEntry = head;
+
+                        public boolean hasNext() {
+                            return nextEntry != null;
+                        }
+
+                        public Map.Entry<String, V> next() {
+                            if (modCount != expectedModCount) {
+                                throw new ConcurrentModificationException();
+                            }
+                            if (nextEntry == null) {
+                                throw new NoSuchElementException();
+                            }
+                            lastReturned = nextEntry;
+                            nextEntry = nextEntry.after;
+                            return lastReturned;
+                        }
+
+                        public void remove() {
+                            if (lastReturned == null) {
+                                throw new IllegalStateException();
+                            }
+                            if (modCount != expectedModCount) {
+                                throw new ConcurrentModificationException();
+                            }
+                            CaseInsensitiveMap.this.remove(lastReturned.key);
+                            lastReturned = null;
+                            expectedModCount = modCount;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @Override
+    public V get(Object key) {
+        Entry<V> entry = getEntry(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Return the entry associated with the given case insensitive <code>key</code> or <code>null</code> if none is found.
+     */
+    public Map.Entry<String, V> getEntry(String key) {
+        return getEntry((Object) key);
+    }
+
+    private Entry<V> getEntry(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String name = (String) key;
+        int hash = hash(name);
+        for (Entry<V> entry = table[hash & (table.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && entry.key.equalsIgnoreCase(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associate the given <code>value</code> to the given case insensitive <code>key</code>. If the key is already present, the casing
+     * of the existing key is preserved.
+     */
+    @Override
+    public V put(String key, V value) {
+        if (key == null) {
+            throw new NullPointerException("key can not be null");
+        }
+        Entry<V> entry = getEntry((Object) key);
+        if (entry != null) {
+            return entry.setValue(value);
+        }
+        if (size >= (table.length >> 1) + (table.length >> 2)) {
+            resize();
+        }
+        entry = new Entry<V>(key, hash(key), value);
+        int idx = entry.hash & (table.length - 1);
+        entry.next = table[idx];
+        table[idx] = entry;
+        if (tail == null) {
+            head = entry;
+        } else {
+            tail.after = entry;
+            entry.before = tail;
+        }
+        tail = entry;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String name = (String) key;
+        int hash = hash(name);
+        int idx = hash & (table.length - 1);
+        Entry<V> previous = null;
+        for (Entry<V> entry = table[idx]; entry != null; previous = entry, entry = entry.next) {
+            if (entry.hash == hash && entry.key.equalsIgnoreCase(name)) {
+                if (previous == null) {
+                    table[idx] = entry.next;
+                } else {
+                    previous.next = entry.next;
+                }
+                if (entry.before == null) {
+                    head = entry.after;
+                } else {
+                    entry.before.after = entry.after;
+                }
+                if (entry.after == null) {
+                    tail = entry.before;
+                } else {
+                    entry.after.before = entry.before;
+                }
+                size--;
+                modCount++;
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        Entry<V>[] newTable = (Entry<V>[]) new Entry<?>[table.length << 1];
+        for (Entry<V> entry = head; entry != null; entry = entry.after) {
+            int idx = entry.hash & (newTable.length - 1);
+            entry.next = newTable[idx];
+            newTable[idx] = entry;
+        }
+        table = newTable;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
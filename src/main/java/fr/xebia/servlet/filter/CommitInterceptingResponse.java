@@ -0,0 +1,1122 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>
+ * Wrapping extension of the {@link HttpServletResponse} that traps the "Before Commit" event (first write, flush or close of the writer
+ * or of the output stream, {@link #flushBuffer()}) and notifies the registered {@link ResponseCommitListener}s so that they can still
+ * modify the status and the headers of the response.
+ * </p>
+ * <p>
+ * Several filters can share a single wrapper: {@link #wrap(HttpServletRequest, HttpServletResponse)} reuses the given response if it
+ * already is a {@link CommitInterceptingResponse}. The filter that created the wrapper is in charge of calling {@link #fireBeforeCommit()}
+ * at the end of the filter chain for empty responses, the filters that reused it just register their listener:
+ * </p>
+ *
+ * <code><pre>
+ * CommitInterceptingResponse xResponse = CommitInterceptingResponse.wrap(request, response);
+ * xResponse.addResponseCommitListener(this);
+ * chain.doFilter(request, xResponse);
+ * if (xResponse != response) {
+ *     // empty response, fire the event if no write occurred
+ *     xResponse.fireBeforeCommit();
+ * }
+ * </pre></code>
+ * <p>
+ * For performance optimization, this extended response only holds the status, the {@link #getLastModifiedHeader()}, the
+ * {@link #getCacheControlHeader()} and the {@link #getETagHeader()} instead of holding the full list of headers.
+ * </p>
+ * <p>
+ * Once the "Before Commit" event has been fired, the {@link XPrintWriter} and {@link XServletOutputStream} become pass-through delegates
+ * and {@link #getWriter()} and {@link #getOutputStream()} return the writer and stream of the wrapped response.
+ * </p>
+ * <p>
+ * <code>sendError(...)</code> and <code>sendRedirect(...)</code> do not fire the event, they only record the status.
+ * </p>
+ * <p>
+ * Once {@link #enableBodyHash()} has been called, the bytes and chars written in the body are also consumed by a
+ * {@link StreamingHash}, the writer and the stream then remain wrapped after the "Before Commit" event.
+ * </p>
+ * <p>
+ * Once {@link #enableCompression()} has been called, a listener can decide on the "Before Commit" event to compress the body in the gzip
+ * format with {@link #startCompression(DeflaterPool, int)}. The <tt>Content-Length</tt> header is held until this decision and dropped
+ * if the body is compressed; the writer then encodes the chars itself and {@link #finishBody()} must be called once the response has
+ * been generated.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class CommitInterceptingResponse extends HttpServletResponseWrapper {
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String HEADER_VARY = "Vary";
+
+    private static final ResponseCommitListener[] NO_LISTENERS = new ResponseCommitListener[0];
+
+    /**
+     * {@link ServletOutputStream} writing the bytes as is until {@link #start(Deflater)} is called and in the gzip format (RFC 1952)
+     * afterwards.
+     */
+    private static class GzipServletOutputStream extends ServletOutputStream {
+
+        private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+        private byte[] buffer;
+
+        private final CRC32 crc = new CRC32();
+
+        private Deflater deflater;
+
+        private boolean finished;
+
+        private boolean headerWritten;
+
+        /**
+         * <code>true</code> while the writer encoding the chars is flushed by {@link #flushWithoutCommit(Writer)}.
+         */
+        private boolean ignoreFlush;
+
+        private final ServletOutputStream out;
+
+        private final byte[] singleByte = new byte[1];
+
+        GzipServletOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        private void deflate() throws IOException {
+            int count = deflater.deflate(buffer, 0, buffer.length);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+
+        /**
+         * Write the end of the compressed body, the deflater is no longer used afterwards.
+         */
+        void finish() throws IOException {
+            if (deflater == null || finished) {
+                return;
+            }
+            writeHeader();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            writeInt(crc.getValue());
+            writeInt(deflater.getBytesRead());
+            finished = true;
+            deflater = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!ignoreFlush) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Flush the given writer into this stream without flushing the wrapped stream, which would commit the response.
+         */
+        void flushWithoutCommit(Writer writer) throws IOException {
+            ignoreFlush = true;
+            try {
+                writer.flush();
+            } finally {
+                ignoreFlush = false;
+            }
+        }
+
+        /**
+         * Discard the compressed body written so far, see {@link CommitInterceptingResponse#resetBuffer()}.
+         */
+        void restart() {
+            if (deflater != null) {
+                deflater.reset();
+                crc.reset();
+                headerWritten = false;
+            }
+        }
+
+        void start(Deflater deflater) {
+            this.deflater = deflater;
+            this.buffer = new byte[8192];
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Compressed body already finished");
+            }
+            if (deflater == null) {
+                out.write(b, off, len);
+                return;
+            }
+            if (len == 0) {
+                return;
+            }
+            writeHeader();
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        private void writeHeader() throws IOException {
+            if (!headerWritten) {
+                out.write(GZIP_HEADER);
+                headerWritten = true;
+            }
+        }
+
+        /**
+         * Write the 32 low-order bits of the given value in little-endian order.
+         */
+        private void writeInt(long value) throws IOException {
+            out.write((int) value & 0xFF);
+            out.write((int) (value >>> 8) & 0xFF);
+            out.write((int) (value >>> 16) & 0xFF);
+            out.write((int) (value >>> 24) & 0xFF);
+        }
+    }
+
+    /**
+     * {@link ServletOutputStream} feeding a {@link StreamingHash} with the written bytes.
+     */
+    private static class HashingServletOutputStream extends ServletOutputStream {
+
+        private final StreamingHash hash;
+
+        private final ServletOutputStream out;
+
+        HashingServletOutputStream(ServletOutputStream out, StreamingHash hash) {
+            this.out = out;
+            this.hash = hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            hash.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            hash.update(b);
+            out.write(b);
+        }
+    }
+
+    /**
+     * {@link Writer} feeding a {@link StreamingHash} with the written chars.
+     */
+    private static class HashingWriter extends Writer {
+
+        private final StreamingHash hash;
+
+        private final Writer out;
+
+        HashingWriter(Writer out, StreamingHash hash) {
+            this.out = out;
+            this.hash = hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            hash.update(cbuf, off, len);
+            out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            hash.update((char) c);
+            out.write(c);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            hash.update(str, off, len);
+            out.write(str, off, len);
+        }
+    }
+
+    /**
+     * Return the given response if it already is a {@link CommitInterceptingResponse}, a new {@link CommitInterceptingResponse} wrapping
+     * it otherwise.
+     */
+    public static CommitInterceptingResponse wrap(HttpServletRequest request, HttpServletResponse response) {
+        if (response instanceof CommitInterceptingResponse) {
+            return (CommitInterceptingResponse) response;
+        }
+        return new CommitInterceptingResponse(request, response);
+    }
+
+    /**
+     * Hash of the body, <code>null</code> unless enabled by {@link #enableBodyHash()}.
+     */
+    private StreamingHash bodyHash;
+
+    /**
+     * Value of the <tt>Cache-Control</tt> http response header if it has been set.
+     */
+    private String cacheControlHeader;
+
+    /**
+     * <code>true</code> once {@link #enableCompression()} has been called.
+     */
+    private boolean compressionEnabled;
+
+    /**
+     * Level of the compression of the body, <code>-1</code> if the body is not compressed.
+     */
+    private int compressionLevel = -1;
+
+    /**
+     * Writer encoding the chars in {@link #gzipOutputStream}, <code>null</code> if the writer of the wrapped response is used.
+     */
+    private Writer compressionWriter;
+
+    /**
+     * Value of the <tt>Content-Length</tt> http response header if it has been set, <code>-1</code> otherwise.
+     */
+    private long contentLength = -1;
+
+    /**
+     * <code>true</code> if the <tt>Content-Length</tt> header has been held until the decision to compress the body or not.
+     */
+    private boolean contentLengthHeld;
+
+    /**
+     * Deflater borrowed from {@link #deflaterPool} by {@link #startCompression(DeflaterPool, int)}.
+     */
+    private Deflater deflater;
+
+    private DeflaterPool deflaterPool;
+
+    /**
+     * Value of the <tt>ETag</tt> http response header if it has been set.
+     */
+    private String etagHeader;
+
+    /**
+     * Value of the <tt>Last-Modified</tt> http response header if it has been set.
+     */
+    private long lastModifiedHeader;
+
+    /**
+     * Stream compressing the body, <code>null</code> unless compression has been enabled by {@link #enableCompression()}.
+     */
+    private GzipServletOutputStream gzipOutputStream;
+
+    private ResponseCommitListener[] listeners = NO_LISTENERS;
+
+    private PrintWriter printWriter;
+
+    private HttpServletRequest request;
+
+    private ServletOutputStream servletOutputStream;
+
+    /**
+     * <p>
+     * Response status.
+     * </p>
+     * <p>
+     * We store it because {@link HttpServletResponse} only exposes setters but no getter.
+     * </p>
+     */
+    private int status = HttpServletResponse.SC_OK;
+
+    /**
+     * Indicates whether the "Before Commit" event has been fired or not.
+     */
+    private boolean writeResponseBodyStarted;
+
+    public CommitInterceptingResponse(HttpServletRequest request, HttpServletResponse response) {
+        super(response);
+        this.request = request;
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        super.addDateHeader(name, date);
+        if (!containsHeader(HEADER_LAST_MODIFIED)) {
+            this.lastModifiedHeader = date;
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) && holdContentLength(parseContentLength(value))) {
+            return;
+        }
+        super.addHeader(name, value);
+        if (HEADER_CACHE_CONTROL.equalsIgnoreCase(name) && cacheControlHeader == null) {
+            cacheControlHeader = value;
+        } else if (HEADER_LAST_MODIFIED.equalsIgnoreCase(name) && lastModifiedHeader == 0) {
+            this.lastModifiedHeader = HttpDateFormat.parse(value);
+        } else if (HEADER_ETAG.equalsIgnoreCase(name) && etagHeader == null) {
+            this.etagHeader = value;
+        }
+    }
+
+    /**
+     * Register the given listener. If the "Before Commit" event has already been fired, the listener is immediately invoked.
+     */
+    public void addResponseCommitListener(ResponseCommitListener listener) {
+        if (writeResponseBodyStarted) {
+            listener.onBeforeCommit(request, this);
+            return;
+        }
+        ResponseCommitListener[] newListeners = new ResponseCommitListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Return the deflater to its pool without finishing the body, e.g. when the generation of the response has failed. Does nothing if
+     * the body is not compressed or if {@link #finishBody()} has already returned the deflater.
+     */
+    public void releaseDeflater() {
+        if (deflater != null) {
+            deflaterPool.release(deflater, compressionLevel);
+            deflater = null;
+        }
+    }
+
+    /**
+     * Hash the body written from now on, see {@link #getBodyHash()}.
+     *
+     * @return <code>false</code> if the writer or the stream of this response has already been obtained, the hash would then miss a
+     *         part of the body
+     */
+    public boolean enableBodyHash() {
+        if (bodyHash != null) {
+            return true;
+        }
+        if (printWriter != null || servletOutputStream != null) {
+            return false;
+        }
+        bodyHash = new StreamingHash();
+        return true;
+    }
+
+    /**
+     * Allow a listener to compress the body with {@link #startCompression(DeflaterPool, int)} on the "Before Commit" event. The
+     * <tt>Content-Length</tt> header is held until then.
+     *
+     * @return <code>false</code> if the writer or the stream of this response has already been obtained
+     */
+    public boolean enableCompression() {
+        if (compressionEnabled) {
+            return true;
+        }
+        if (printWriter != null || servletOutputStream != null || writeResponseBodyStarted) {
+            return false;
+        }
+        compressionEnabled = true;
+        return true;
+    }
+
+    /**
+     * Write the chars buffered by the writer and the end of the compressed body and return the deflater to its pool. Must be called
+     * once the response has been generated if compression has been enabled, does nothing otherwise.
+     */
+    public void finishBody() throws IOException {
+        if (!compressionEnabled) {
+            return;
+        }
+        if (deflater != null && gzipOutputStream == null) {
+            // empty body, write an empty gzip member
+            getGzipOutputStream();
+        }
+        if (gzipOutputStream != null) {
+            if (compressionWriter != null) {
+                gzipOutputStream.flushWithoutCommit(compressionWriter);
+            }
+            gzipOutputStream.finish();
+        }
+        releaseDeflater();
+    }
+
+    /**
+     * Fire the "Before Commit" event to the registered listeners if it has not already been fired.
+     */
+    public void fireBeforeCommit() {
+        if (writeResponseBodyStarted) {
+            return;
+        }
+        writeResponseBodyStarted = true;
+        for (ResponseCommitListener listener : listeners) {
+            listener.onBeforeCommit(request, this);
+        }
+        if (contentLengthHeld) {
+            contentLengthHeld = false;
+            if (compressionLevel == -1) {
+                super.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(contentLength));
+            }
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        fireBeforeCommit();
+        super.flushBuffer();
+    }
+
+    /**
+     * Hash of the body written since {@link #enableBodyHash()}, <code>null</code> if it has not been enabled.
+     */
+    public StreamingHash getBodyHash() {
+        return bodyHash;
+    }
+
+    public String getCacheControlHeader() {
+        return cacheControlHeader;
+    }
+
+    /**
+     * Value of the <tt>Content-Length</tt> header set by the application, <code>-1</code> if none.
+     */
+    public long getContentLengthHint() {
+        return contentLength;
+    }
+
+    public String getETagHeader() {
+        return etagHeader;
+    }
+
+    public long getLastModifiedHeader() {
+        return this.lastModifiedHeader;
+    }
+
+    private GzipServletOutputStream getGzipOutputStream() throws IOException {
+        if (gzipOutputStream == null) {
+            gzipOutputStream = new GzipServletOutputStream(super.getOutputStream());
+            if (deflater != null) {
+                gzipOutputStream.start(deflater);
+            }
+        }
+        return gzipOutputStream;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writeResponseBodyStarted && bodyHash == null && !compressionEnabled) {
+            // the event has been fired, no need to intercept writes
+            return super.getOutputStream();
+        }
+        if (servletOutputStream == null) {
+            ServletOutputStream out = compressionEnabled ? getGzipOutputStream() : super.getOutputStream();
+            servletOutputStream = new XServletOutputStream(bodyHash == null ? out : new HashingServletOutputStream(out, bodyHash), this);
+        }
+        return servletOutputStream;
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writeResponseBodyStarted && bodyHash == null && !compressionEnabled) {
+            // the event has been fired, no need to intercept writes
+            return super.getWriter();
+        }
+        if (printWriter == null) {
+            PrintWriter out;
+            if (compressionEnabled) {
+                // the writer of the wrapped response would bypass the compression
+                compressionWriter = new OutputStreamWriter(getGzipOutputStream(), getCharacterEncoding());
+                out = new PrintWriter(compressionWriter);
+            } else {
+                out = super.getWriter();
+            }
+            printWriter = new XPrintWriter(bodyHash == null ? out : new PrintWriter(new HashingWriter(out, bodyHash)), this);
+        }
+        return printWriter;
+    }
+
+    /**
+     * Hold the given value of the <tt>Content-Length</tt> header until the decision to compress the body or drop it if the body is
+     * compressed.
+     *
+     * @return <code>true</code> if the header must not be set on the wrapped response
+     */
+    private boolean holdContentLength(long contentLength) {
+        this.contentLength = contentLength;
+        if (compressionLevel != -1) {
+            // the length of the compressed body is unknown
+            return true;
+        }
+        if (compressionEnabled && !writeResponseBodyStarted) {
+            contentLengthHeld = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * <code>true</code> if the body is compressed, see {@link #startCompression(DeflaterPool, int)}.
+     */
+    public boolean isBodyCompressed() {
+        return compressionLevel != -1;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public boolean isLastModifiedHeaderSet() {
+        return containsHeader(HEADER_LAST_MODIFIED);
+    }
+
+    public boolean isWriteResponseBodyStarted() {
+        return writeResponseBodyStarted;
+    }
+
+    private static long parseContentLength(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        contentLength = -1;
+        contentLengthHeld = false;
+        if (bodyHash != null) {
+            bodyHash.reset();
+        }
+        if (gzipOutputStream != null) {
+            gzipOutputStream.restart();
+        }
+        if (compressionLevel != -1) {
+            super.setHeader(HEADER_CONTENT_ENCODING, "gzip");
+            super.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (bodyHash != null) {
+            bodyHash.reset();
+        }
+        if (gzipOutputStream != null) {
+            gzipOutputStream.restart();
+        }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        this.status = sc;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        this.status = sc;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        this.status = HttpServletResponse.SC_FOUND;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        if (!holdContentLength(len)) {
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        super.setDateHeader(name, date);
+        if (HEADER_LAST_MODIFIED.equalsIgnoreCase(name)) {
+            this.lastModifiedHeader = date;
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) && holdContentLength(parseContentLength(value))) {
+            return;
+        }
+        super.setHeader(name, value);
+        if (HEADER_CACHE_CONTROL.equalsIgnoreCase(name)) {
+            this.cacheControlHeader = value;
+        } else if (HEADER_LAST_MODIFIED.equalsIgnoreCase(name)) {
+            this.lastModifiedHeader = HttpDateFormat.parse(value);
+        } else if (HEADER_ETAG.equalsIgnoreCase(name)) {
+            this.etagHeader = value;
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) && holdContentLength(value)) {
+            return;
+        }
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        this.status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void setStatus(int sc, String sm) {
+        this.status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    /**
+     * Compress the body in the gzip format with a deflater of the given level borrowed from the given pool and set the
+     * <tt>Content-Encoding</tt> header. Must be called on the "Before Commit" event of a response whose compression has been enabled.
+     *
+     * @throws IllegalStateException
+     *             if the compression has not been enabled by {@link #enableCompression()}
+     */
+    public void startCompression(DeflaterPool deflaterPool, int level) {
+        if (!compressionEnabled) {
+            throw new IllegalStateException("Compression has not been enabled");
+        }
+        if (compressionLevel != -1) {
+            return;
+        }
+        this.deflaterPool = deflaterPool;
+        this.deflater = deflaterPool.borrow(level);
+        this.compressionLevel = level;
+        super.setHeader(HEADER_CONTENT_ENCODING, "gzip");
+        if (gzipOutputStream != null) {
+            gzipOutputStream.start(deflater);
+        }
+    }
+
+    /**
+     * Mark the "Before Commit" event as fired (or not) without notifying the listeners.
+     */
+    public void setWriteResponseBodyStarted(boolean writeResponseBodyStarted) {
+        this.writeResponseBodyStarted = writeResponseBodyStarted;
+    }
+
+    /**
+     * Wrapping extension of {@link PrintWriter} to trap the
+     * "Before Commit" event.
+     */
+    public static class XPrintWriter extends PrintWriter {
+        /**
+         * <code>true</code> once the "Before Commit" event has been
+         * fired, this writer is then a pass-through to {@link #out}.
+         */
+        private boolean disarmed;
+
+        private PrintWriter out;
+
+        private CommitInterceptingResponse response;
+
+        public XPrintWriter(PrintWriter out, CommitInterceptingResponse response) {
+            super(out);
+            this.out = out;
+            this.response = response;
+        }
+
+        public PrintWriter append(char c) {
+            fireBeforeCommitEvent();
+            return out.append(c);
+        }
+
+        public PrintWriter append(CharSequence csq) {
+            fireBeforeCommitEvent();
+            return out.append(csq);
+        }
+
+        public PrintWriter append(CharSequence csq, int start, int end) {
+            fireBeforeCommitEvent();
+            return out.append(csq, start, end);
+        }
+
+        public void close() {
+            fireBeforeCommitEvent();
+            out.close();
+        }
+
+        /**
+         * Fire the event on the first write. Afterwards, the only cost of the
+         * interception is the test of the {@link #disarmed} field of this
+         * writer.
+         */
+        private void fireBeforeCommitEvent() {
+            if (!disarmed) {
+                disarm();
+            }
+        }
+
+        private void disarm() {
+            disarmed = true;
+            response.fireBeforeCommit();
+        }
+
+        public void flush() {
+            fireBeforeCommitEvent();
+            out.flush();
+        }
+
+        public void print(boolean b) {
+            fireBeforeCommitEvent();
+            out.print(b);
+        }
+
+        public void print(char c) {
+            fireBeforeCommitEvent();
+            out.print(c);
+        }
+
+        public void print(char[] s) {
+            fireBeforeCommitEvent();
+            out.print(s);
+        }
+
+        public void print(double d) {
+            fireBeforeCommitEvent();
+            out.print(d);
+        }
+
+        public void print(float f) {
+            fireBeforeCommitEvent();
+            out.print(f);
+        }
+
+        public void print(int i) {
+            fireBeforeCommitEvent();
+            out.print(i);
+        }
+
+        public void print(long l) {
+            fireBeforeCommitEvent();
+            out.print(l);
+        }
+
+        public void print(Object obj) {
+            fireBeforeCommitEvent();
+            out.print(obj);
+        }
+
+        public void print(String s) {
+            fireBeforeCommitEvent();
+            out.print(s);
+        }
+
+        public PrintWriter printf(Locale l, String format, Object... args) {
+            fireBeforeCommitEvent();
+            return out.printf(l, format, args);
+        }
+
+        public PrintWriter printf(String format, Object... args) {
+            fireBeforeCommitEvent();
+            return out.printf(format, args);
+        }
+
+        public void println() {
+            fireBeforeCommitEvent();
+            out.println();
+        }
+
+        public void println(boolean x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(char x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(char[] x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(double x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(float x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(int x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(long x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(Object x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void println(String x) {
+            fireBeforeCommitEvent();
+            out.println(x);
+        }
+
+        public void write(char[] buf) {
+            fireBeforeCommitEvent();
+            out.write(buf);
+        }
+
+        public void write(char[] buf, int off, int len) {
+            fireBeforeCommitEvent();
+            out.write(buf, off, len);
+        }
+
+        public void write(int c) {
+            fireBeforeCommitEvent();
+            out.write(c);
+        }
+
+        public void write(String s) {
+            fireBeforeCommitEvent();
+            out.write(s);
+        }
+
+        public void write(String s, int off, int len) {
+            fireBeforeCommitEvent();
+            out.write(s, off, len);
+        }
+
+    }
+
+    /**
+     * Wrapping extension of {@link ServletOutputStream} to trap the
+     * "Before Commit" event.
+     */
+    public static class XServletOutputStream extends ServletOutputStream {
+
+        /**
+         * <code>true</code> once the "Before Commit" event has been
+         * fired, this stream is then a pass-through to
+         * {@link #servletOutputStream}.
+         */
+        private boolean disarmed;
+
+        private CommitInterceptingResponse response;
+
+        private ServletOutputStream servletOutputStream;
+
+        public XServletOutputStream(ServletOutputStream servletOutputStream, CommitInterceptingResponse response) {
+            super();
+            this.servletOutputStream = servletOutputStream;
+            this.response = response;
+        }
+
+        public void close() throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.close();
+        }
+
+        /**
+         * Fire the event on the first write. Afterwards, the only cost of the
+         * interception is the test of the {@link #disarmed} field of this
+         * stream.
+         */
+        private void fireBeforeCommitEvent() {
+            if (!disarmed) {
+                disarm();
+            }
+        }
+
+        private void disarm() {
+            disarmed = true;
+            response.fireBeforeCommit();
+        }
+
+        public void flush() throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.flush();
+        }
+
+        public void print(boolean b) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(b);
+        }
+
+        public void print(char c) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(c);
+        }
+
+        public void print(double d) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(d);
+        }
+
+        public void print(float f) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(f);
+        }
+
+        public void print(int i) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(i);
+        }
+
+        public void print(long l) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(l);
+        }
+
+        public void print(String s) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.print(s);
+        }
+
+        public void println() throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println();
+        }
+
+        public void println(boolean b) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(b);
+        }
+
+        public void println(char c) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(c);
+        }
+
+        public void println(double d) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(d);
+        }
+
+        public void println(float f) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(f);
+        }
+
+        public void println(int i) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(i);
+        }
+
+        public void println(long l) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(l);
+        }
+
+        public void println(String s) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.println(s);
+        }
+
+        public void write(byte[] b) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.write(b, off, len);
+        }
+
+        public void write(int b) throws IOException {
+            fireBeforeCommitEvent();
+            servletOutputStream.write(b);
+        }
+
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Watches an external configuration file, in the {@link java.util.Properties} format, and hands its content to a {@link Listener} each
+ * time it changes. The file is checked by a background daemon thread, off the request path, every refresh interval.
+ * </p>
+ * <p>
+ * A change is detected on the modification date and the length of the file. The new content is only read once the file has not changed
+ * during a whole refresh interval, so that a file being written is not loaded half way; replacing the file with an atomic rename remains
+ * the safest way to update it. If the file is missing, can not be read or is rejected by the listener, a warning is logged and the
+ * current configuration stays active until the next change of the file.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class ConfigurationFileWatcher implements Runnable {
+
+    /**
+     * Receiver of the content of the configuration file.
+     */
+    public static interface Listener {
+
+        /**
+         * Validate and apply the given content of the configuration file.
+         *
+         * @throws IllegalArgumentException
+         *             if the content is invalid, the current configuration must then be kept
+         */
+        void configurationFileChanged(String content);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationFileWatcher.class);
+
+    /**
+     * Read the given file. {@link java.util.Properties} files are encoded in ISO-8859-1.
+     */
+    static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toString("ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+
+    private final File file;
+
+    private final Listener listener;
+
+    /**
+     * Length of the last loaded, or rejected, version of the file.
+     */
+    private long loadedLength = -1;
+
+    /**
+     * Modification date of the last loaded, or rejected, version of the file.
+     */
+    private long loadedLastModified = -1;
+
+    private boolean missing;
+
+    /**
+     * Length of a changed version of the file waiting to settle, <code>-1</code> if none.
+     */
+    private long pendingLength = -1;
+
+    /**
+     * Modification date of a changed version of the file waiting to settle, <code>-1</code> if none.
+     */
+    private long pendingLastModified = -1;
+
+    private final long refreshIntervalInMillis;
+
+    private Thread thread;
+
+    /**
+     * @param file
+     *            configuration file
+     * @param refreshIntervalInMillis
+     *            time between two checks of the file
+     * @param listener
+     *            receiver of the content of the file
+     */
+    public ConfigurationFileWatcher(File file, long refreshIntervalInMillis, Listener listener) {
+        if (refreshIntervalInMillis <= 0) {
+            throw new IllegalArgumentException("refreshIntervalInMillis (" + refreshIntervalInMillis + ") must be positive");
+        }
+        this.file = file;
+        this.refreshIntervalInMillis = refreshIntervalInMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Check the file once and hand its content to the listener if it has changed and settled since the previous check.
+     *
+     * @return <code>true</code> if the listener has accepted a new content
+     */
+    synchronized boolean check() {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (lastModified == 0) {
+            if (!missing) {
+                logger.warn("Configuration file '" + file + "' not found, the current configuration is kept");
+                missing = true;
+            }
+            pendingLastModified = -1;
+            return false;
+        }
+        missing = false;
+        if (lastModified == loadedLastModified && length == loadedLength) {
+            pendingLastModified = -1;
+            return false;
+        }
+        if (lastModified != pendingLastModified || length != pendingLength) {
+            // wait for the file to settle
+            pendingLastModified = lastModified;
+            pendingLength = length;
+            return false;
+        }
+        pendingLastModified = -1;
+        // a rejected version is not read again until the file changes
+        loadedLastModified = lastModified;
+        loadedLength = length;
+        try {
+            listener.configurationFileChanged(read(file));
+            logger.info("Configuration file '" + file + "' reloaded");
+            return true;
+        } catch (IOException e) {
+            logger.warn("Exception reading the configuration file '" + file + "', the current configuration is kept", e);
+        } catch (RuntimeException e) {
+            logger.warn("Invalid configuration file '" + file + "', the current configuration is kept", e);
+        }
+        return false;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRefreshIntervalInMillis() {
+        return refreshIntervalInMillis;
+    }
+
+    /**
+     * Read the file and hand its content to the listener immediately, e.g. when the filter is initialized.
+     *
+     * @throws IOException
+     *             if the file can not be read
+     * @throws IllegalArgumentException
+     *             if the listener rejects the content of the file
+     */
+    public synchronized void load() throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        listener.configurationFileChanged(read(file));
+        loadedLastModified = lastModified;
+        loadedLength = length;
+        pendingLastModified = -1;
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(refreshIntervalInMillis);
+                check();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Start the background thread checking the file.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "ConfigurationFileWatcher[" + file.getName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread and wait for its termination.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(refreshIntervalInMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationFileWatcher[file=" + file + ", refreshIntervalInMillis=" + refreshIntervalInMillis + "]";
+    }
+}
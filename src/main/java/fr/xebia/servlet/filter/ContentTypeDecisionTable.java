@@ -0,0 +1,231 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>
+ * Associates values to content type rules and selects the value of the most specific rule matching a given content type.
+ * </p>
+ * <p>
+ * Supported rules, from the most specific to the least specific:
+ * <ol>
+ * <li>exact content type as returned by <code>HttpServletResponse.getContentType()</code> (e.g.
+ * <code>text/html; charset=iso-8859-1</code>),</li>
+ * <li>type, subtype and charset (e.g. <code>text/html;charset=iso-8859-1</code>),</li>
+ * <li>type and subtype (e.g. <code>text/html</code>),</li>
+ * <li>type and structured syntax suffix (e.g. <code>application/*+json</code>),</li>
+ * <li>any type with a structured syntax suffix (e.g. <code>*&#47;*+xml</code>),</li>
+ * <li>type (e.g. <code>image/*</code> or <code>image</code>),</li>
+ * <li>any type with a charset (e.g. <code>*&#47;*;charset=utf-8</code>),</li>
+ * <li>any type (<code>*&#47;*</code>).</li>
+ * </ol>
+ * </p>
+ * <p>
+ * Rules are normalized when they are added (lower case, no whitespaces, unquoted charset) and each precedence level is a key of a single
+ * hash table: whatever the number of rules, {@link #get(String)} costs at most one hash lookup per precedence level. If two rules
+ * normalize to the same key, the first one wins.
+ * </p>
+ * <p>
+ * This class is not thread safe for modifications, it must be fully built before being published to the threads calling
+ * {@link #get(String)}.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class ContentTypeDecisionTable<V> {
+
+    private static final String ANY_TYPE = "*/*";
+
+    /**
+     * Return the lower case and unquoted value of the <code>charset</code> parameter of the given content type parameters (e.g.
+     * <code>; charset="UTF-8"</code>) or <code>null</code>.
+     */
+    static String getCharset(String parameters) {
+        int offset = 0;
+        while (offset < parameters.length()) {
+            int end = parameters.indexOf(';', offset);
+            if (end == -1) {
+                end = parameters.length();
+            }
+            int equals = parameters.indexOf('=', offset);
+            if (equals != -1 && equals < end && "charset".equalsIgnoreCase(parameters.substring(offset, equals).trim())) {
+                String charset = parameters.substring(equals + 1, end).trim();
+                if (charset.length() >= 2 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"') {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+                return charset.length() == 0 ? null : charset.toLowerCase(Locale.ENGLISH);
+            }
+            offset = end + 1;
+        }
+        return null;
+    }
+
+    private static boolean isToken(String str) {
+        return str.length() > 0 && str.indexOf('*') == -1 && str.indexOf('/') == -1 && str.indexOf(' ') == -1;
+    }
+
+    /**
+     * <p>
+     * Return the normalized key of the given rule or <code>null</code> if the rule has parameters other than <code>charset</code> and
+     * can only be matched exactly.
+     * </p>
+     *
+     * @throws IllegalArgumentException
+     *             if the wildcards of the rule are not supported (e.g. <code>*&#47;html</code>)
+     */
+    static String normalize(String rule) {
+        String mediaRange;
+        String charset = null;
+        int semicolon = rule.indexOf(';');
+        if (semicolon == -1) {
+            mediaRange = rule.trim().toLowerCase(Locale.ENGLISH);
+        } else {
+            mediaRange = rule.substring(0, semicolon).trim().toLowerCase(Locale.ENGLISH);
+            String parameters = rule.substring(semicolon + 1);
+            charset = getCharset(parameters);
+            if (charset == null || parameters.indexOf(';') != -1) {
+                return null;
+            }
+        }
+
+        String type;
+        String subtype;
+        int slash = mediaRange.indexOf('/');
+        if (slash == -1) {
+            // major type (e.g. "image")
+            type = mediaRange;
+            subtype = "*";
+        } else {
+            type = mediaRange.substring(0, slash).trim();
+            subtype = mediaRange.substring(slash + 1).trim();
+        }
+
+        boolean wildcardSubtype = subtype.equals("*");
+        boolean suffixSubtype = subtype.startsWith("*+") && isToken(subtype.substring(2));
+        boolean validSubtype = wildcardSubtype || suffixSubtype || isToken(subtype);
+        boolean validType = type.equals("*") ? (wildcardSubtype || suffixSubtype) : isToken(type);
+        if (!validType || !validSubtype) {
+            throw new IllegalArgumentException("Unsupported content type rule '" + rule + "'");
+        }
+        boolean exactType = !type.equals("*") && !wildcardSubtype && !suffixSubtype;
+        boolean anyType = type.equals("*") && wildcardSubtype;
+        if (charset != null && !exactType && !anyType) {
+            throw new IllegalArgumentException("Charset is only supported with an exact type or '*/*' in content type rule '" + rule + "'");
+        }
+
+        String key = type + "/" + subtype;
+        return charset == null ? key : key + ";charset=" + charset;
+    }
+
+    /**
+     * Rules matched exactly, as they were added.
+     */
+    private final Map<String, V> exactRules = new HashMap<String, V>();
+
+    /**
+     * Normalized rules, see {@link #normalize(String)}.
+     */
+    private final Map<String, V> normalizedRules = new HashMap<String, V>();
+
+    /**
+     * <p>
+     * Return the value of the most specific rule matching the given content type or <code>null</code> if no rule matches.
+     * </p>
+     */
+    public V get(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        V value = exactRules.get(contentType);
+        if (value != null || normalizedRules.isEmpty()) {
+            return value;
+        }
+
+        String mediaType;
+        String charset;
+        int semicolon = contentType.indexOf(';');
+        if (semicolon == -1) {
+            mediaType = contentType.trim().toLowerCase(Locale.ENGLISH);
+            charset = null;
+        } else {
+            mediaType = contentType.substring(0, semicolon).trim().toLowerCase(Locale.ENGLISH);
+            charset = getCharset(contentType.substring(semicolon + 1));
+        }
+        int slash = mediaType.indexOf('/');
+        String type = slash == -1 ? mediaType : mediaType.substring(0, slash).trim();
+        String subtype = slash == -1 ? "" : mediaType.substring(slash + 1).trim();
+        int plus = subtype.lastIndexOf('+');
+        String suffix = plus == -1 ? null : subtype.substring(plus + 1);
+
+        if (charset != null && (value = normalizedRules.get(type + "/" + subtype + ";charset=" + charset)) != null) {
+            return value;
+        }
+        if ((value = normalizedRules.get(type + "/" + subtype)) != null) {
+            return value;
+        }
+        if (suffix != null) {
+            if ((value = normalizedRules.get(type + "/*+" + suffix)) != null) {
+                return value;
+            }
+            if ((value = normalizedRules.get("*/*+" + suffix)) != null) {
+                return value;
+            }
+        }
+        if ((value = normalizedRules.get(type + "/*")) != null) {
+            return value;
+        }
+        if (charset != null && (value = normalizedRules.get(ANY_TYPE + ";charset=" + charset)) != null) {
+            return value;
+        }
+        return normalizedRules.get(ANY_TYPE);
+    }
+
+    /**
+     * Add the given rule.
+     *
+     * @return <code>false</code> if an equivalent rule had already been added, the given rule is then ignored
+     * @throws IllegalArgumentException
+     *             if the rule is not supported
+     */
+    public boolean put(String rule, V value) {
+        if (rule == null || value == null) {
+            throw new IllegalArgumentException("rule and value can not be null");
+        }
+        String key = normalize(rule);
+        String exactRule = rule.trim();
+        if (exactRules.containsKey(exactRule) || (key != null && normalizedRules.containsKey(key))) {
+            return false;
+        }
+        exactRules.put(exactRule, value);
+        if (key != null) {
+            normalizedRules.put(key, value);
+        }
+        return true;
+    }
+
+    public int size() {
+        return exactRules.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + normalizedRules;
+    }
+}
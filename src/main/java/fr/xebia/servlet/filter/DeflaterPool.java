@@ -0,0 +1,127 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Pool of raw (<code>nowrap</code>) {@link Deflater}s by compression level.
+ * </p>
+ * <p>
+ * A {@link Deflater} holds native buffers of several hundreds of kB which are only freed by {@link Deflater#end()} or by the
+ * finalizer: reusing them avoids both the allocation and the finalization for each compressed response. Up to <code>maxIdle</code>
+ * idle deflaters are kept for each level, the extra released deflaters are ended.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class DeflaterPool {
+
+    /**
+     * Idle deflaters by compression level.
+     */
+    private final List<List<Deflater>> idleDeflaters;
+
+    private final int maxIdle;
+
+    private long createdCount;
+
+    /**
+     * @param maxIdle
+     *            maximum number of idle deflaters kept for each level
+     */
+    public DeflaterPool(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle (" + maxIdle + ") can not be negative");
+        }
+        this.maxIdle = maxIdle;
+        this.idleDeflaters = new ArrayList<List<Deflater>>(Deflater.BEST_COMPRESSION + 1);
+        for (int i = 0; i <= Deflater.BEST_COMPRESSION; i++) {
+            idleDeflaters.add(new ArrayList<Deflater>());
+        }
+    }
+
+    /**
+     * Return an idle deflater of the given level or a new one.
+     *
+     * @throws IllegalArgumentException
+     *             if the level is not between {@link Deflater#NO_COMPRESSION} and {@link Deflater#BEST_COMPRESSION}
+     */
+    public Deflater borrow(int level) {
+        checkLevel(level);
+        synchronized (this) {
+            List<Deflater> idle = idleDeflaters.get(level);
+            if (!idle.isEmpty()) {
+                return idle.remove(idle.size() - 1);
+            }
+            createdCount++;
+        }
+        return new Deflater(level, true);
+    }
+
+    private void checkLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level (" + level + ") must be between " + Deflater.NO_COMPRESSION + " and "
+                    + Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    /**
+     * Number of deflaters created since the creation of this pool.
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    public synchronized int getIdleCount() {
+        int idleCount = 0;
+        for (List<Deflater> idle : idleDeflaters) {
+            idleCount += idle.size();
+        }
+        return idleCount;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Reset the given deflater, borrowed with the given level, and return it to the pool.
+     */
+    public void release(Deflater deflater, int level) {
+        checkLevel(level);
+        deflater.reset();
+        synchronized (this) {
+            List<Deflater> idle = idleDeflaters.get(level);
+            if (idle.size() < maxIdle) {
+                idle.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    @Override
+    public String toString() {
+        return "DeflaterPool[maxIdle=" + maxIdle + ", idleCount=" + getIdleCount() + ", createdCount=" + getCreatedCount() + "]";
+    }
+}
@@ -15,11 +15,16 @@
  */
 package fr.xebia.servlet.filter;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.GregorianCalendar;
@@ -29,18 +34,22 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -201,6 +210,14 @@ import org.slf4j.LoggerFactory;
  * expiration date set by the <tt>ExpiresDefault</tt> directive.
  * </p>
  * <p>
+ * The content-type can contain wildcards: a whole type (&#x27;
+ * <tt>image/*</tt>&#x27; or &#x27;<tt>image</tt>&#x27;), a structured syntax
+ * suffix (&#x27;<tt>application/*+json</tt>&#x27;, &#x27;<tt>*&#47;*+xml</tt>
+ * &#x27;) or any type (&#x27;<tt>*&#47;*</tt>&#x27;, &#x27;
+ * <tt>*&#47;*;charset=utf-8</tt>&#x27;). See <i>Expiration configuration
+ * selection</i> for the precedence of the rules.
+ * </p>
+ * <p>
  * You can also specify the expiration time calculation using an alternate
  * syntax, described earlier in this document.
  * </p>
@@ -229,6 +246,274 @@ import org.slf4j.LoggerFactory;
  * &lt;/init-param&gt;
  * </pre></code>
  * 
+ * <h3>
+ * <tt>ExpiresByPath &lt;path-pattern&gt;</tt></h3>
+ * <p>
+ * This directive defines the expiration of the requests whose path (request
+ * URI without the context path) matches the given pattern, whatever the
+ * content type of the response. Supported patterns are exact paths (&#x27;
+ * <tt>/favicon.ico</tt>&#x27;), path prefixes (&#x27;<tt>/static/**</tt>
+ * &#x27;) and suffixes (&#x27;<tt>*.woff2</tt>&#x27;). As for servlet
+ * mappings, an exact path wins over the longest matching prefix which wins
+ * over the longest matching suffix. <tt>ExpiresByPath</tt> directives take
+ * precedence over <tt>ExpiresByType</tt> and <tt>ExpiresDefault</tt>.
+ * </p>
+ * <p>
+ * The decision is taken when the request enters the filter: for &#x27;
+ * <tt>access plus ...</tt>&#x27; configurations, the <tt>Expires</tt> and
+ * <tt>Cache-Control</tt> headers are set before invoking the servlet and the
+ * response is not wrapped. The servlet can still override them with
+ * <tt>setHeader(...)</tt>; a <tt>Cache-Control</tt> header added with
+ * <tt>addHeader(...)</tt> is sent next to the <tt>max-age</tt> directive,
+ * which is equivalent to a single merged header. <tt>304 Not Modified</tt>
+ * responses keep these headers as recommended by RFC 7232. If
+ * <tt>ExpiresExcludedResponseStatusCodes</tt> excludes other status codes,
+ * the decision is deferred to the "Start Write Response Body" event like
+ * for the other rules, so that the excluded responses get no expiration
+ * headers.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresByPath /static/**&lt;/param-name&gt;&lt;param-value&gt;access plus 1 year&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresByPath *.woff2&lt;/param-name&gt;&lt;param-value&gt;access plus 1 year&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresExcludedPaths</tt></h3>
+ * <p>
+ * This directive defines a comma separated list of path patterns (same
+ * syntax as <tt>ExpiresByPath</tt>) of the requests that bypass the
+ * <tt>ExpiresFilter</tt>. Exclusions take precedence over
+ * <tt>ExpiresByPath</tt> directives defined with the same pattern.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresExcludedPaths&lt;/param-name&gt;&lt;param-value&gt;/api/**, *.jsp&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresResponseCacheMaxSize</tt> and
+ * <tt>ExpiresResponseCacheMaxEntrySize</tt></h3>
+ * <p>
+ * <tt>ExpiresResponseCacheMaxSize</tt> enables a server side
+ * {@link ResponseCache} of the given size in bytes (disabled by default).
+ * <tt>GET</tt> responses that end up with an <tt>Expires</tt> date in the
+ * future (and without <tt>Set-Cookie</tt> or <tt>Cache-Control</tt>
+ * <tt>private</tt>, <tt>no-cache</tt> or <tt>no-store</tt>) are stored and
+ * subsequent requests are served from memory, without invoking the filter
+ * chain, until this <tt>Expires</tt> date. Entries are selected according to
+ * the <tt>Vary</tt> header of the response and the least recently used
+ * entries are evicted first.
+ * </p>
+ * <p>
+ * <tt>ExpiresResponseCacheMaxEntrySize</tt> defines the maximum size in bytes
+ * of a cached response, larger responses are not cached. Default value is
+ * <tt>1048576</tt> (1 MB).
+ * </p>
+ * <p>
+ * <tt>ExpiresResponseCacheOffHeap</tt> (<tt>On</tt> or <tt>Off</tt>, default
+ * <tt>Off</tt>) stores the cached bodies outside of the java heap, in direct
+ * buffers managed by a {@link SlabAllocator}, to keep large caches away from
+ * the garbage collector. The java heap then only holds the keys, the headers
+ * and the expiration dates. The slabs are allocated on demand up to
+ * <tt>ExpiresResponseCacheMaxSize</tt> which must then be at least 1 MB and
+ * be covered by the <tt>-XX:MaxDirectMemorySize</tt> of the JVM.
+ * </p>
+ * <p>
+ * <tt>ExpiresResponseCacheDirectory</tt> makes the cache persistent: the
+ * cached responses are appended to memory-mapped segment files of the given
+ * directory (see {@link MappedSegmentStore}) and the responses that have not
+ * expired are reloaded when the filter is initialized, a restarted server is
+ * immediately warm. Every <tt>ExpiresResponseCacheCompactionInterval</tt>
+ * seconds (default <tt>60</tt>), a background thread discards the expired
+ * entries and rewrites the segments of which less than the half is still in
+ * use. The directory must not be shared by several filters or JVMs.
+ * </p>
+ * <p>
+ * <tt>ExpiresResponseCacheCoalescingTimeout</tt> (in milliseconds, default
+ * <tt>0</tt> disabled) coalesces the concurrent cache misses on a same
+ * entry: the first request renders the page while the identical requests
+ * wait for it, up to the given timeout, and are then served with the
+ * captured response. It prevents an expired popular page from being rendered
+ * by hundreds of threads at once. Waiting requests are processed normally if
+ * the timeout elapses, if the first request fails or if its response is not
+ * cacheable.
+ * </p>
+ * <p>
+ * The cached responses support the <tt>Range</tt> requests: single ranges
+ * and <tt>multipart/byteranges</tt> are written as slices of the stored
+ * body, provided that the <tt>If-Range</tt> header, if any, matches a strong
+ * <tt>ETag</tt> or the <tt>Last-Modified</tt> date of the cached response.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresResponseCacheMaxSize&lt;/param-name&gt;&lt;param-value&gt;67108864&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresValidatorCacheMaxSize</tt></h3>
+ * <p>
+ * <tt>ExpiresValidatorCacheMaxSize</tt> enables a {@link ValidatorCache}
+ * remembering the <tt>ETag</tt> and <tt>Last-Modified</tt> headers of the
+ * responses of up to the given number of URIs (disabled by default).
+ * Conditional <tt>GET</tt> requests whose <tt>If-None-Match</tt> or
+ * <tt>If-Modified-Since</tt> header matches these validators are answered
+ * with a <tt>304 Not Modified</tt> status and fresh expiration headers
+ * without invoking the filter chain, until the <tt>Expires</tt> date of the
+ * response that carried the validators. Responses with a
+ * <tt>Set-Cookie</tt> or a <tt>Vary</tt> header or a <tt>Cache-Control</tt>
+ * <tt>private</tt>, <tt>no-cache</tt> or <tt>no-store</tt> directive are
+ * ignored.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresValidatorCacheMaxSize&lt;/param-name&gt;&lt;param-value&gt;10000&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresETag</tt></h3>
+ * <p>
+ * <tt>ExpiresETag</tt> (<tt>Off</tt>, <tt>Weak</tt> or <tt>Strong</tt>,
+ * default <tt>Off</tt>) generates an <tt>ETag</tt> for the <tt>200</tt>
+ * responses to <tt>GET</tt> requests that do not already have one. The
+ * <tt>ETag</tt> is a fast 64 bits hash (see {@link StreamingHash}) computed
+ * while the body is written, without buffering it, and is set on the
+ * response if the body is still buffered by the servlet container once the
+ * response is generated.
+ * </p>
+ * <p>
+ * When the response has already been committed, a <tt>Weak</tt>
+ * <tt>ETag</tt> is learned by the {@link ValidatorCache} (see
+ * <tt>ExpiresValidatorCacheMaxSize</tt>) and sent upfront with the next
+ * responses of the same URI until their <tt>Expires</tt> date; if the hash
+ * of such a response no longer matches, the new <tt>ETag</tt> replaces the
+ * learned one. A <tt>Strong</tt> <tt>ETag</tt> is only set on buffered
+ * responses.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresETag&lt;/param-name&gt;&lt;param-value&gt;Weak&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresCompressionByType</tt></h3>
+ * <p>
+ * <tt>ExpiresCompressionByType &lt;content-type&gt;</tt> compresses in the
+ * <tt>gzip</tt> format, with the given level from <tt>1</tt> (fastest) to
+ * <tt>9</tt> (best compression), the <tt>200</tt> responses of the given
+ * content type whose client accepts it (<tt>Accept-Encoding</tt> request
+ * header). Content types are matched as with <tt>ExpiresByType</tt>. The
+ * decision is taken when the response body starts to be written, at the same
+ * time as the generation of the expiration headers: responses that already
+ * have a <tt>Content-Encoding</tt> header or whose <tt>Content-Length</tt>
+ * is below <tt>ExpiresCompressionMinSize</tt> (default <tt>1024</tt> bytes)
+ * are not compressed. Responses of a compressed content type get a
+ * <tt>Vary: Accept-Encoding</tt> header.
+ * </p>
+ * <p>
+ * The compression is performed in the response wrapper of the
+ * {@link ExpiresFilter}, without buffering the body, by {@link java.util.zip.Deflater}s
+ * reused from a {@link DeflaterPool}.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresCompressionByType text/html&lt;/param-name&gt;&lt;param-value&gt;6&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresCompressionByType application/*+json&lt;/param-name&gt;&lt;param-value&gt;1&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresCompressionMinSize&lt;/param-name&gt;&lt;param-value&gt;2048&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresPrecompressedPaths</tt></h3>
+ * <p>
+ * <tt>ExpiresPrecompressedPaths</tt> (comma separated list of path patterns
+ * as <tt>ExpiresExcludedPaths</tt>, disabled by default) serves the
+ * precompressed sibling of a static resource (e.g. <tt>/js/app.js.gz</tt>
+ * for <tt>/js/app.js</tt>) in place of the filter chain, with a
+ * <tt>Content-Encoding: gzip</tt> header and the expiration headers of the
+ * resource, when the client accepts <tt>gzip</tt>. Responses of resources
+ * that have a sibling get a <tt>Vary: Accept-Encoding</tt> header. Siblings
+ * older than their resource are ignored.
+ * </p>
+ * <p>
+ * The existence, size and date of the siblings are held by an in-memory
+ * stat cache (see {@link PrecompressedResources}) and only checked again on
+ * the file system every <tt>ExpiresPrecompressedRefreshInterval</tt>
+ * seconds (default <tt>60</tt>). The web application must be deployed in a
+ * directory.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresPrecompressedPaths&lt;/param-name&gt;&lt;param-value&gt;*.js, *.css&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresPrecompressedRefreshInterval&lt;/param-name&gt;&lt;param-value&gt;300&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
+ * <h3>
+ * <tt>ExpiresConfigurationFile</tt></h3>
+ * <p>
+ * <tt>ExpiresConfigurationFile</tt> (absolute path of a file in the
+ * <tt>java.util.Properties</tt> format, disabled by default) declares rules
+ * (<tt>ExpiresActive</tt>, <tt>ExpiresByType</tt>, <tt>ExpiresDefault</tt>,
+ * etc.) outside of <tt>web.xml</tt>, e.g.
+ * <tt>ExpiresByType\ text/html = access plus 1 hour</tt>. The rules of the
+ * file override the rules of the init parameters with the same name.
+ * </p>
+ * <p>
+ * The file is read when the filter is initialized, an invalid file then
+ * fails the initialization, and is checked by a background thread every
+ * <tt>ExpiresConfigurationFileRefreshInterval</tt> seconds (default
+ * <tt>10</tt>, see {@link ConfigurationFileWatcher}). A modified file is
+ * parsed and validated off the request path and its rules are then swapped
+ * in atomically. If the file becomes invalid or is removed, a warning is
+ * logged and the last valid rules stay active.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ * 
+ * <code><pre>
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresConfigurationFile&lt;/param-name&gt;&lt;param-value&gt;/etc/myapp/expires.properties&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;init-param&gt;
+ *    &lt;param-name&gt;ExpiresConfigurationFileRefreshInterval&lt;/param-name&gt;&lt;param-value&gt;60&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * </pre></code>
  * <h1>Alternate Syntax</h1>
  * <p>
  * The <tt>ExpiresDefault</tt> and <tt>ExpiresByType</tt> directives can also be
@@ -330,16 +615,31 @@ import org.slf4j.LoggerFactory;
  * <li><tt>ExpiresByType</tt> matching the exact content-type returned by
  * <tt>HttpServletResponse.getContentType()</tt> possibly including the charset
  * (e.g. &#x27;<tt>text/xml;charset=UTF-8</tt>&#x27;),</li>
+ * <li><tt>ExpiresByType</tt> matching the content-type and its charset
+ * regardless of case and whitespaces (e.g. &#x27;
+ * <tt>text/xml; charset=utf-8</tt>&#x27;),</li>
  * <li><tt>ExpiresByType</tt> matching the content-type without the charset if
  * <tt>HttpServletResponse.getContentType()</tt> contains a charset (e.g. &#x27;
  * <tt>text/xml;charset=UTF-8</tt>&#x27; -&gt; &#x27;<tt>text/xml</tt>&#x27;),</li>
+ * <li><tt>ExpiresByType</tt> matching the structured syntax suffix of the
+ * content-type (e.g. &#x27;<tt>application/*+json</tt>&#x27; then &#x27;
+ * <tt>*&#47;*+json</tt>&#x27; for &#x27;<tt>application/ld+json</tt>&#x27;),</li>
  * <li><tt>ExpiresByType</tt> matching the major type (e.g. substring before
  * &#x27;<tt>/</tt>&#x27;) of <tt>HttpServletResponse.getContentType()</tt>
  * (e.g. &#x27;<tt>text/xml;charset=UTF-8</tt>&#x27; -&gt; &#x27;<tt>text</tt>
+ * &#x27; or &#x27;<tt>text/*</tt>&#x27;),</li>
+ * <li><tt>ExpiresByType</tt> matching any type with the charset of the
+ * content-type (e.g. &#x27;<tt>*&#47;*;charset=utf-8</tt>&#x27;),</li>
+ * <li><tt>ExpiresByType</tt> matching any type (&#x27;<tt>*&#47;*</tt>
  * &#x27;),</li>
  * <li><tt>ExpiresDefault</tt></li>
  * </ol>
  * </p>
+ * <p>
+ * <tt>ExpiresByType</tt> rules are compiled at startup in a decision table (
+ * {@link ContentTypeDecisionTable}): the cost of the selection does not
+ * depend on the number of rules.
+ * </p>
  * <h1>Install / Download</h1>
  * <p>
  * <strong>1.0.3 is not yet available, please build the snapshot</strong>
@@ -397,6 +697,15 @@ import org.slf4j.LoggerFactory;
  * case, the <tt>ExpiresFilter</tt>, at the end of its <tt>doFilter()</tt>
  * method, manually triggers the <tt>onBeforeWriteResponseBody()</tt> method.
  * </p>
+ * <p>
+ * The wrapping is delegated to a {@link CommitInterceptingResponse} and the
+ * <tt>ExpiresFilter</tt> registers itself as a {@link ResponseCommitListener}.
+ * If an enclosing filter has already wrapped the response in a
+ * {@link CommitInterceptingResponse}, the <tt>ExpiresFilter</tt> shares this
+ * wrapper instead of adding another level of writer and outputStream
+ * delegation; the enclosing filter is then in charge of firing the event for
+ * empty response bodies.
+ * </p>
  * <h2>Configuration syntax</h2>
  * <p>
  * The <tt>ExpiresFilter</tt> supports the same configuration syntax as Apache
@@ -413,6 +722,39 @@ import org.slf4j.LoggerFactory;
  * The workaround has been to declare the content type in the
  * <tt>&lt;param-name&gt;</tt> rather than in the <tt>&lt;param-value&gt;</tt>.
  * </p>
+ * <h2>Runtime reconfiguration</h2>
+ * <p>
+ * The rules of the filter are compiled in an immutable
+ * {@link ConfigurationSnapshot} published through a single volatile
+ * reference: the requests read it without locking and always see a
+ * consistent set of rules. The rules can be retuned without redeploying the
+ * application by building a new snapshot, e.g. with
+ * {@link #parseConfigurationSnapshot(Map)} and the syntax of the init
+ * parameters, and swapping it in with
+ * {@link #setConfigurationSnapshot(ConfigurationSnapshot)}. The cached
+ * responses and validators are then discarded. The caches and the
+ * precompressed resources can only be configured when the filter is
+ * initialized. The rules can also be read from a file watched for changes,
+ * see <tt>ExpiresConfigurationFile</tt>.
+ * </p>
+ * <h2>JMX</h2>
+ * <p>
+ * Each filter instance is registered in the platform <tt>MBeanServer</tt> as
+ * <tt>fr.xebia.servlet.filter:type=ExpiresFilter,context=&lt;context
+ * path&gt;,name=&lt;filter name&gt;</tt> (see {@link ExpiresFilterMBean}). It
+ * exposes the number of requests, of expiration headers generated by content
+ * type and of responses skipped because an expiration header was already
+ * set, because of their status code or because no rule matched. The rules
+ * can be replaced atomically with the <tt>reconfigure</tt> operation, which
+ * takes the init parameters in the <tt>java.util.Properties</tt> format and,
+ * like the <tt>ExpiresConfigurationFile</tt>, applies them on top of the
+ * rules of the init parameters.
+ * </p>
+ * <p>
+ * The counters are striped over several cells (see {@link StripedCounter})
+ * so that the threads of a multi-core server do not contend on a single
+ * cache line.
+ * </p>
  * <h2>Designed for extension : the open/close principle</h2>
  * <p>
  * The <tt>ExpiresFilter</tt> has been designed for extension following the
@@ -422,10 +764,10 @@ import org.slf4j.LoggerFactory;
  * Key methods to override for extension are :
  * <ul>
  * <li>
- * {@link #isEligibleToExpirationHeaderGeneration(HttpServletRequest, XHttpServletResponse)}
+ * {@link #isEligibleToExpirationHeaderGeneration(HttpServletRequest, CommitInterceptingResponse)}
  * </li>
  * <li>
- * {@link #getExpirationDate(HttpServletRequest, XHttpServletResponse)}</li>
+ * {@link #getExpirationDate(HttpServletRequest, CommitInterceptingResponse)}</li>
  * </ul>
  * </p>
  * <h1>Troubleshooting</h1>
@@ -477,7 +819,177 @@ import org.slf4j.LoggerFactory;
  * 
  * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
  */
-public class ExpiresFilter implements Filter {
+public class ExpiresFilter implements Filter, ExpiresFilterMBean, ResponseCommitListener {
+
+    /**
+     * <p>
+     * Immutable snapshot of the rules of the filter (activation, expiration
+     * configurations, exclusions, <tt>ETag</tt> generation and compression)
+     * and of the lookup structures compiled from them.
+     * </p>
+     * <p>
+     * The filter publishes its current snapshot through a single volatile
+     * reference: the requests never take a lock, always see a consistent set
+     * of rules and {@link ExpiresFilter#setConfigurationSnapshot(ConfigurationSnapshot)}
+     * replaces all of them at once. The content type resolutions memoized by
+     * {@link ExpiresFilter#getExpiresConfiguration(HttpServletRequest, CommitInterceptingResponse)}
+     * belong to a snapshot and are discarded with it.
+     * </p>
+     */
+    public static final class ConfigurationSnapshot {
+
+        private final boolean active;
+
+        private final Map<String, Integer> compressionLevelByContentType;
+
+        private final ContentTypeDecisionTable<Integer> compressionLevelDecisionTable;
+
+        private final int compressionMinSize;
+
+        private final ExpiresConfiguration defaultExpiresConfiguration;
+
+        private final ETagMode etagMode;
+
+        private final String[] excludedPaths;
+
+        private final int[] excludedResponseStatusCodes;
+
+        /**
+         * <code>true</code> if the <tt>access plus ...</tt>
+         * <tt>ExpiresByPath</tt> rules can set the expiration headers when the
+         * request enters the filter: no status code other than
+         * <tt>304</tt> is excluded.
+         */
+        private final boolean expirationHeadersOnEntry;
+
+        private final Map<String, ExpiresConfiguration> expiresConfigurationByContentType;
+
+        private final Map<String, ExpiresConfiguration> expiresConfigurationByPath;
+
+        /**
+         * Memo of the Expires configuration resolved for each raw response
+         * content type (e.g. "<tt>text/html; charset=iso-8859-1</tt>"),
+         * {@link ExpiresFilter#NO_EXPIRES_CONFIGURATION} if none matches.
+         * Bounded to {@link ExpiresFilter#CONTENT_TYPE_CACHE_MAX_SIZE} entries.
+         */
+        private final ConcurrentMap<String, ExpiresConfiguration> expiresConfigurationByResponseContentType =
+                new ConcurrentHashMap<String, ExpiresConfiguration>();
+
+        private final ContentTypeDecisionTable<ExpiresConfiguration> expiresConfigurationDecisionTable;
+
+        /**
+         * <tt>ExpiresExcludedPaths</tt> and <tt>ExpiresByPath</tt> patterns.
+         */
+        private final PathPatternTrie<ExpiresConfiguration> expiresConfigurationPathTrie;
+
+        /**
+         * Copy the given rules and compile the <tt>ExpiresByPath</tt> and
+         * <tt>ExpiresExcludedPaths</tt> patterns in a {@link PathPatternTrie}
+         * and the <tt>ExpiresByType</tt> and <tt>ExpiresCompressionByType</tt>
+         * rules in {@link ContentTypeDecisionTable}s.
+         * 
+         * @param etagMode
+         *            <code>null</code> to disable the generation of
+         *            <tt>ETag</tt>s
+         * @throws IllegalArgumentException
+         *             if a path pattern or a content type rule is not
+         *             supported
+         */
+        public ConfigurationSnapshot(boolean active, ExpiresConfiguration defaultExpiresConfiguration,
+                Map<String, ExpiresConfiguration> expiresConfigurationByContentType,
+                Map<String, ExpiresConfiguration> expiresConfigurationByPath, String[] excludedPaths, int[] excludedResponseStatusCodes,
+                ETagMode etagMode, Map<String, Integer> compressionLevelByContentType, int compressionMinSize) {
+            this.active = active;
+            this.defaultExpiresConfiguration = defaultExpiresConfiguration;
+            this.expiresConfigurationByContentType = Collections.unmodifiableMap(new LinkedHashMap<String, ExpiresConfiguration>(
+                    expiresConfigurationByContentType));
+            this.expiresConfigurationByPath = Collections.unmodifiableMap(new LinkedHashMap<String, ExpiresConfiguration>(
+                    expiresConfigurationByPath));
+            this.excludedPaths = excludedPaths.clone();
+            this.excludedResponseStatusCodes = excludedResponseStatusCodes.clone();
+            boolean expirationHeadersOnEntry = true;
+            for (int excludedResponseStatusCode : excludedResponseStatusCodes) {
+                if (excludedResponseStatusCode != HttpServletResponse.SC_NOT_MODIFIED) {
+                    expirationHeadersOnEntry = false;
+                }
+            }
+            this.expirationHeadersOnEntry = expirationHeadersOnEntry;
+            this.etagMode = etagMode;
+            this.compressionLevelByContentType = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(
+                    compressionLevelByContentType));
+            this.compressionMinSize = compressionMinSize;
+
+            this.expiresConfigurationDecisionTable = new ContentTypeDecisionTable<ExpiresConfiguration>();
+            for (Map.Entry<String, ExpiresConfiguration> entry : this.expiresConfigurationByContentType.entrySet()) {
+                if (!expiresConfigurationDecisionTable.put(entry.getKey(), entry.getValue())) {
+                    logger.warn("ExpiresByType '" + entry.getKey()
+                            + "' is ignored, an equivalent content type has already been configured");
+                }
+            }
+            this.compressionLevelDecisionTable = new ContentTypeDecisionTable<Integer>();
+            for (Map.Entry<String, Integer> entry : this.compressionLevelByContentType.entrySet()) {
+                if (!compressionLevelDecisionTable.put(entry.getKey(), entry.getValue())) {
+                    logger.warn("ExpiresCompressionByType '" + entry.getKey()
+                            + "' is ignored, an equivalent content type has already been configured");
+                }
+            }
+            this.expiresConfigurationPathTrie = new PathPatternTrie<ExpiresConfiguration>();
+            for (String excludedPath : this.excludedPaths) {
+                expiresConfigurationPathTrie.put(excludedPath, EXCLUDED_PATH_CONFIGURATION);
+            }
+            for (Map.Entry<String, ExpiresConfiguration> entry : this.expiresConfigurationByPath.entrySet()) {
+                if (!expiresConfigurationPathTrie.put(entry.getKey(), entry.getValue())) {
+                    logger.warn("ExpiresByPath '" + entry.getKey()
+                            + "' is ignored, the same path pattern has already been configured");
+                }
+            }
+        }
+
+        public Map<String, Integer> getCompressionLevelByContentType() {
+            return compressionLevelByContentType;
+        }
+
+        public int getCompressionMinSize() {
+            return compressionMinSize;
+        }
+
+        public ExpiresConfiguration getDefaultExpiresConfiguration() {
+            return defaultExpiresConfiguration;
+        }
+
+        public ETagMode getETagMode() {
+            return etagMode;
+        }
+
+        public String[] getExcludedPaths() {
+            return excludedPaths.clone();
+        }
+
+        public int[] getExcludedResponseStatusCodes() {
+            return excludedResponseStatusCodes.clone();
+        }
+
+        public Map<String, ExpiresConfiguration> getExpiresConfigurationByContentType() {
+            return expiresConfigurationByContentType;
+        }
+
+        public Map<String, ExpiresConfiguration> getExpiresConfigurationByPath() {
+            return expiresConfigurationByPath;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public String toString() {
+            return "ConfigurationSnapshot[active=" + active + ", excludedResponseStatusCode=["
+                    + intsToCommaDelimitedString(excludedResponseStatusCodes) + "], default=" + defaultExpiresConfiguration
+                    + ", byType=" + expiresConfigurationByContentType + ", byPath=" + expiresConfigurationByPath
+                    + ", excludedPaths=" + Arrays.asList(excludedPaths) + ", etagMode=" + etagMode + ", compressionByType="
+                    + compressionLevelByContentType + ", compressionMinSize=" + compressionMinSize + "]";
+        }
+    }
 
     /**
      * Duration composed of an {@link #amount} and a {@link #unit}
@@ -520,12 +1032,16 @@ public class ExpiresFilter implements Filter {
      * Duration unit
      */
     protected enum DurationUnit {
-        DAY(Calendar.DAY_OF_YEAR), HOUR(Calendar.HOUR), MINUTE(Calendar.MINUTE), MONTH(Calendar.MONTH), SECOND(Calendar.SECOND), WEEK(
-                Calendar.WEEK_OF_YEAR), YEAR(Calendar.YEAR);
+        DAY(Calendar.DAY_OF_YEAR, 24L * 60 * 60 * 1000), HOUR(Calendar.HOUR, 60L * 60 * 1000), MINUTE(Calendar.MINUTE, 60L * 1000), MONTH(
+                Calendar.MONTH, -1), SECOND(Calendar.SECOND, 1000), WEEK(Calendar.WEEK_OF_YEAR, 7L * 24 * 60 * 60 * 1000), YEAR(
+                Calendar.YEAR, -1);
         private final int calendarField;
 
-        private DurationUnit(int calendardField) {
+        private final long millis;
+
+        private DurationUnit(int calendardField, long millis) {
             this.calendarField = calendardField;
+            this.millis = millis;
         }
 
         /**
@@ -536,6 +1052,29 @@ public class ExpiresFilter implements Filter {
             return calendarField;
         }
 
+        /**
+         * Length of the unit in milliseconds or <code>-1</code> if it
+         * varies ({@link #MONTH} and {@link #YEAR}).
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * <code>true</code> if the length of the unit does not depend on the
+         * date.
+         */
+        public boolean isFixedLength() {
+            return millis >= 0;
+        }
+    }
+
+    /**
+     * Strength of the <tt>ETag</tt> generated from the hash of the response
+     * body, see <tt>ExpiresETag</tt>.
+     */
+    protected enum ETagMode {
+        STRONG, WEAK
     }
 
     /**
@@ -547,11 +1086,31 @@ public class ExpiresFilter implements Filter {
      * </p>
      */
     protected static class ExpiresConfiguration {
+        /**
+         * Sum of the {@link #durations} in milliseconds, only meaningful if
+         * {@link #fixedDuration}.
+         */
+        private final long durationInMillis;
+
         /**
          * List of duration elements.
          */
         private List<Duration> durations;
 
+        /**
+         * <code>true</code> if none of the {@link #durations} is expressed in
+         * months or years, the expiration date is then computed by adding
+         * {@link #durationInMillis} without calendar arithmetic.
+         */
+        private final boolean fixedDuration;
+
+        /**
+         * Headers of the {@link StartingPoint#ACCESS_TIME} expiration computed
+         * for the current second, see
+         * {@link ExpiresFilter#getExpirationHeaders(ExpiresConfiguration, CommitInterceptingResponse, HttpDateClock.Tick)}
+         */
+        private volatile ExpirationHeaders accessTimeExpirationHeaders;
+
         /**
          * Starting point of the elaspse to set in the response.
          */
@@ -565,12 +1124,40 @@ public class ExpiresFilter implements Filter {
             super();
             this.startingPoint = startingPoint;
             this.durations = durations;
+
+            boolean fixedDuration = true;
+            long durationInMillis = 0;
+            for (Duration duration : durations) {
+                if (duration.getUnit().isFixedLength()) {
+                    durationInMillis += duration.getAmount() * duration.getUnit().getMillis();
+                } else {
+                    fixedDuration = false;
+                }
+            }
+            this.fixedDuration = fixedDuration;
+            this.durationInMillis = durationInMillis;
+        }
+
+        /**
+         * Sum of the durations in milliseconds, only meaningful if
+         * {@link #isFixedDuration()}.
+         */
+        public long getDurationInMillis() {
+            return durationInMillis;
         }
 
         public List<Duration> getDurations() {
             return durations;
         }
 
+        /**
+         * <code>true</code> if none of the durations is expressed in months or
+         * years.
+         */
+        public boolean isFixedDuration() {
+            return fixedDuration;
+        }
+
         public StartingPoint getStartingPoint() {
             return startingPoint;
         }
@@ -581,505 +1168,244 @@ public class ExpiresFilter implements Filter {
         }
     }
 
-    /**
-     * Expiration configuration starting point. Either the time the
-     * html-page/servlet-response was served ({@link StartingPoint#ACCESS_TIME})
-     * or the last time the html-page/servlet-response was modified (
-     * {@link StartingPoint#LAST_MODIFICATION_TIME}).
-     */
-    protected enum StartingPoint {
-        ACCESS_TIME, LAST_MODIFICATION_TIME
-    }
-
     /**
      * <p>
-     * Wrapping extension of the {@link HttpServletResponse} to yrap the
-     * "Start Write Response Body" event.
+     * Immutable pre-formatted values of the '<tt>Expires</tt>' header and of
+     * the '<tt>max-age</tt>' directive of the '<tt>Cache-Control</tt>' header
+     * for a given second.
      * </p>
      * <p>
-     * For performance optimization, this extended response only holds the
-     * {@link #lastModifiedHeader} and {@link #cacheControlHeader} instead of
-     * holding the full list of headers.
+     * For {@link StartingPoint#ACCESS_TIME} configurations, they are shared by
+     * all the responses of the same second.
      * </p>
      */
-    public class XHttpServletResponse extends HttpServletResponseWrapper {
+    protected static final class ExpirationHeaders {
 
-        /**
-         * Value of the <tt>Cache-Control/tt> http response header if it has
-         * been set.
-         */
-        private String cacheControlHeader;
+        private final long expirationTime;
 
-        /**
-         * Value of the <tt>Last-Modified</tt> http response header if it has
-         * been set.
-         */
-        private long lastModifiedHeader;
+        private final String expiresHeader;
+
+        private final String maxAgeDirective;
 
-        private PrintWriter printWriter;
+        private final long second;
 
-        private HttpServletRequest request;
+        public ExpirationHeaders(HttpDateClock.Tick now, long expirationTime) {
+            this.second = now.getSecond();
+            this.expirationTime = expirationTime;
+            this.expiresHeader = HttpDateFormat.format(expirationTime);
+            this.maxAgeDirective = "max-age=" + ((expirationTime - now.getTimeInMillis()) / 1000);
+        }
 
-        private ServletOutputStream servletOutputStream;
+        public long getExpirationTime() {
+            return expirationTime;
+        }
 
         /**
-         * <p>
-         * Response status.
-         * </p>
-         * <p>
-         * We store it because {@link HttpServletResponse} only exposes setters
-         * but no getter.
-         * </p>
+         * Value of the '<tt>Expires</tt>' header.
          */
-        private int status = HttpServletResponse.SC_OK;
+        public String getExpiresHeader() {
+            return expiresHeader;
+        }
 
         /**
-         * Indicates whether calls to write methods (<tt>write(...)</tt>,
-         * <tt>print(...)</tt>, etc) of the response body have been called or
-         * not.
+         * '<tt>max-age=...</tt>' directive of the '<tt>Cache-Control</tt>'
+         * header.
          */
-        private boolean writeResponseBodyStarted;
-
-        public XHttpServletResponse(HttpServletRequest request, HttpServletResponse response) {
-            super(response);
-            this.request = request;
+        public String getMaxAgeDirective() {
+            return maxAgeDirective;
         }
 
-        @Override
-        public void addDateHeader(String name, long date) {
-            super.addDateHeader(name, date);
-            if (!containsHeader(HEADER_LAST_MODIFIED)) {
-                this.lastModifiedHeader = date;
-            }
+        /**
+         * Epoch second for which these headers have been computed.
+         */
+        public long getSecond() {
+            return second;
         }
 
         @Override
-        public void addHeader(String name, String value) {
-            super.addHeader(name, value);
-            if (HEADER_CACHE_CONTROL.equalsIgnoreCase(name) && cacheControlHeader == null) {
-                cacheControlHeader = value;
-            }
-        }
-
-        public String getCacheControlHeader() {
-            return cacheControlHeader;
+        public String toString() {
+            return "ExpirationHeaders[expires=" + expiresHeader + ", " + maxAgeDirective + "]";
         }
+    }
 
-        public boolean isLastModifiedHeaderSet() {
-            return containsHeader(HEADER_LAST_MODIFIED);
-        }
-
-        public long getLastModifiedHeader() {
-            return this.lastModifiedHeader;
-        }
-
-        @Override
-        public ServletOutputStream getOutputStream() throws IOException {
-            if (servletOutputStream == null) {
-                servletOutputStream = new XServletOutputStream(super.getOutputStream(), request, this);
-            }
-            return servletOutputStream;
-        }
-
-        public int getStatus() {
-            return status;
-        }
-
-        @Override
-        public PrintWriter getWriter() throws IOException {
-            if (printWriter == null) {
-                printWriter = new XPrintWriter(super.getWriter(), request, this);
-            }
-            return printWriter;
-        }
-
-        public boolean isWriteResponseBodyStarted() {
-            return writeResponseBodyStarted;
-        }
-
-        @Override
-        public void sendError(int sc) throws IOException {
-            this.status = sc;
-            super.sendError(sc);
-        }
-
-        @Override
-        public void sendError(int sc, String msg) throws IOException {
-            this.status = sc;
-            super.sendError(sc, msg);
-        }
-
-        @Override
-        public void sendRedirect(String location) throws IOException {
-            this.status = HttpServletResponse.SC_FOUND;
-            super.sendRedirect(location);
-        }
-
-        @Override
-        public void setDateHeader(String name, long date) {
-            super.setDateHeader(name, date);
-            if (HEADER_LAST_MODIFIED.equalsIgnoreCase(name)) {
-                this.lastModifiedHeader = date;
-            }
-        }
-
-        @Override
-        public void setHeader(String name, String value) {
-            super.setHeader(name, value);
-            if (HEADER_CACHE_CONTROL.equalsIgnoreCase(name)) {
-                this.cacheControlHeader = value;
-            }
-        }
-
-        @Override
-        public void setStatus(int sc) {
-            this.status = sc;
-            super.setStatus(sc);
-        }
+    /**
+     * Expiration configuration starting point. Either the time the
+     * html-page/servlet-response was served ({@link StartingPoint#ACCESS_TIME})
+     * or the last time the html-page/servlet-response was modified (
+     * {@link StartingPoint#LAST_MODIFICATION_TIME}).
+     */
+    protected enum StartingPoint {
+        ACCESS_TIME, LAST_MODIFICATION_TIME
+    }
 
-        @Override
-        public void setStatus(int sc, String sm) {
-            this.status = sc;
-            super.setStatus(sc, sm);
-        }
+    /**
+     * {@link CommitInterceptingResponse} that notifies this {@link ExpiresFilter}
+     * of the "Start Write Response Body" event.
+     */
+    public class XHttpServletResponse extends CommitInterceptingResponse {
 
-        public void setWriteResponseBodyStarted(boolean writeResponseBodyStarted) {
-            this.writeResponseBodyStarted = writeResponseBodyStarted;
+        public XHttpServletResponse(HttpServletRequest request, HttpServletResponse response) {
+            super(request, response);
+            addResponseCommitListener(ExpiresFilter.this);
         }
     }
 
     /**
-     * Wrapping extension of {@link PrintWriter} to trap the
-     * "Start Write Response Body" event.
+     * Maximum number of distinct content types held by
+     * {@link #expiresConfigurationByResponseContentType}.
      */
-    public class XPrintWriter extends PrintWriter {
-        private PrintWriter out;
-
-        private HttpServletRequest request;
+    private static final int CONTENT_TYPE_CACHE_MAX_SIZE = 512;
 
-        private XHttpServletResponse response;
+    /**
+     * {@link Pattern} for a comma delimited string that support whitespace
+     * characters
+     */
+    private static final Pattern commaSeparatedValuesPattern = Pattern.compile("\\s*,\\s*");
 
-        public XPrintWriter(PrintWriter out, HttpServletRequest request, XHttpServletResponse response) {
-            super(out);
-            this.out = out;
-            this.request = request;
-            this.response = response;
-        }
+    /**
+     * Maximum number of idle {@link Deflater}s kept for each compression
+     * level.
+     */
+    private static final int DEFLATER_POOL_MAX_IDLE = 64;
 
-        public PrintWriter append(char c) {
-            fireBeforeWriteResponseBodyEvent();
-            return out.append(c);
-        }
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
 
-        public PrintWriter append(CharSequence csq) {
-            fireBeforeWriteResponseBodyEvent();
-            return out.append(csq);
-        }
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
 
-        public PrintWriter append(CharSequence csq, int start, int end) {
-            fireBeforeWriteResponseBodyEvent();
-            return out.append(csq, start, end);
-        }
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
 
-        public void close() {
-            fireBeforeWriteResponseBodyEvent();
-            out.close();
-        }
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
 
-        private void fireBeforeWriteResponseBodyEvent() {
-            if (!this.response.isWriteResponseBodyStarted()) {
-                this.response.setWriteResponseBodyStarted(true);
-                onBeforeWriteResponseBody(request, response);
-            }
-        }
+    private static final String HEADER_ETAG = "ETag";
 
-        public void flush() {
-            fireBeforeWriteResponseBodyEvent();
-            out.flush();
-        }
+    private static final String HEADER_EXPIRES = "Expires";
 
-        public void print(boolean b) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(b);
-        }
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
 
-        public void print(char c) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(c);
-        }
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
 
-        public void print(char[] s) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(s);
-        }
+    private static final String HEADER_VARY = "Vary";
 
-        public void print(double d) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(d);
-        }
+    private static final Logger logger = LoggerFactory.getLogger(ExpiresFilter.class);
 
-        public void print(float f) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(f);
-        }
+    /**
+     * Marker of the paths excluded by <tt>ExpiresExcludedPaths</tt> in
+     * {@link #expiresConfigurationPathTrie}.
+     */
+    private static final ExpiresConfiguration EXCLUDED_PATH_CONFIGURATION = new ExpiresConfiguration(StartingPoint.ACCESS_TIME);
 
-        public void print(int i) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(i);
-        }
+    /**
+     * Marker of the content types for which no Expires configuration is
+     * defined in {@link #expiresConfigurationByResponseContentType}.
+     */
+    private static final ExpiresConfiguration NO_EXPIRES_CONFIGURATION = new ExpiresConfiguration(StartingPoint.ACCESS_TIME);
 
-        public void print(long l) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(l);
+    /**
+     * Calendars used for durations expressed in months or years, see
+     * {@link #getExpirationTime(ExpiresConfiguration, CommitInterceptingResponse, long)}
+     */
+    private static final ThreadLocal<Calendar> threadLocalCalendar = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return GregorianCalendar.getInstance();
         }
+    };
 
-        public void print(Object obj) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(obj);
-        }
+    private static final String PARAMETER_EXPIRES_ACTIVE = "ExpiresActive";
 
-        public void print(String s) {
-            fireBeforeWriteResponseBodyEvent();
-            out.print(s);
-        }
+    private static final String PARAMETER_EXPIRES_BY_PATH = "ExpiresByPath";
 
-        public PrintWriter printf(Locale l, String format, Object... args) {
-            fireBeforeWriteResponseBodyEvent();
-            return out.printf(l, format, args);
-        }
+    private static final String PARAMETER_EXPIRES_BY_TYPE = "ExpiresByType";
 
-        public PrintWriter printf(String format, Object... args) {
-            fireBeforeWriteResponseBodyEvent();
-            return out.printf(format, args);
-        }
+    private static final String PARAMETER_EXPIRES_COMPRESSION_BY_TYPE = "ExpiresCompressionByType";
 
-        public void println() {
-            fireBeforeWriteResponseBodyEvent();
-            out.println();
-        }
+    private static final String PARAMETER_EXPIRES_COMPRESSION_MIN_SIZE = "ExpiresCompressionMinSize";
 
-        public void println(boolean x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_CONFIGURATION_FILE = "ExpiresConfigurationFile";
 
-        public void println(char x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_CONFIGURATION_FILE_REFRESH_INTERVAL = "ExpiresConfigurationFileRefreshInterval";
 
-        public void println(char[] x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_DEFAULT = "ExpiresDefault";
 
-        public void println(double x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_ETAG = "ExpiresETag";
 
-        public void println(float x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_EXCLUDED_PATHS = "ExpiresExcludedPaths";
 
-        public void println(int x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_EXCLUDED_RESPONSE_STATUS_CODES = "ExpiresExcludedResponseStatusCodes";
 
-        public void println(long x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_PRECOMPRESSED_PATHS = "ExpiresPrecompressedPaths";
 
-        public void println(Object x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_PRECOMPRESSED_REFRESH_INTERVAL = "ExpiresPrecompressedRefreshInterval";
 
-        public void println(String x) {
-            fireBeforeWriteResponseBodyEvent();
-            out.println(x);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_COALESCING_TIMEOUT = "ExpiresResponseCacheCoalescingTimeout";
 
-        public void write(char[] buf) {
-            fireBeforeWriteResponseBodyEvent();
-            out.write(buf);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_COMPACTION_INTERVAL = "ExpiresResponseCacheCompactionInterval";
 
-        public void write(char[] buf, int off, int len) {
-            fireBeforeWriteResponseBodyEvent();
-            out.write(buf, off, len);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_DIRECTORY = "ExpiresResponseCacheDirectory";
 
-        public void write(int c) {
-            fireBeforeWriteResponseBodyEvent();
-            out.write(c);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_MAX_ENTRY_SIZE = "ExpiresResponseCacheMaxEntrySize";
 
-        public void write(String s) {
-            fireBeforeWriteResponseBodyEvent();
-            out.write(s);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_MAX_SIZE = "ExpiresResponseCacheMaxSize";
 
-        public void write(String s, int off, int len) {
-            fireBeforeWriteResponseBodyEvent();
-            out.write(s, off, len);
-        }
+    private static final String PARAMETER_EXPIRES_RESPONSE_CACHE_OFF_HEAP = "ExpiresResponseCacheOffHeap";
 
-    }
+    private static final String PARAMETER_EXPIRES_VALIDATOR_CACHE_MAX_SIZE = "ExpiresValidatorCacheMaxSize";
 
     /**
-     * Wrapping extension of {@link ServletOutputStream} to trap the
-     * "Start Write Response Body" event.
+     * Key of {@link #expirationHeadersCountByContentType} for the responses
+     * whose content type is not known when the expiration headers are set.
      */
-    public class XServletOutputStream extends ServletOutputStream {
+    private static final String UNKNOWN_CONTENT_TYPE = "unknown";
 
-        private HttpServletRequest request;
-
-        private XHttpServletResponse response;
-
-        private ServletOutputStream servletOutputStream;
+    /**
+     * Maximum number of paths held by the stat cache of the
+     * {@link PrecompressedResources}.
+     */
+    private static final int PRECOMPRESSED_RESOURCES_MAX_SIZE = 10000;
 
-        public XServletOutputStream(ServletOutputStream servletOutputStream, HttpServletRequest request, XHttpServletResponse response) {
-            super();
-            this.servletOutputStream = servletOutputStream;
-            this.response = response;
-            this.request = request;
-        }
+    /**
+     * Default maximum size of a response body stored in the
+     * {@link ResponseCache}: 1 MB.
+     */
+    private static final int RESPONSE_CACHE_DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
 
-        public void close() throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.close();
+    /**
+     * Return <code>true</code> if the given <tt>Accept-Encoding</tt> request
+     * header accepts the <tt>gzip</tt> content coding with a non zero
+     * quality, explicitly or through the <tt>*</tt> wildcard.
+     * 
+     * @param acceptEncoding
+     *            can be <code>null</code>
+     */
+    protected static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
         }
-
-        private void fireOnBeforeWriteResponseBodyEvent() {
-            if (!this.response.isWriteResponseBodyStarted()) {
-                this.response.setWriteResponseBodyStarted(true);
-                onBeforeWriteResponseBody(request, response);
+        float gzipQuality = -1;
+        float wildcardQuality = -1;
+        for (String coding : commaDelimitedListToStringArray(acceptEncoding.trim())) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon == -1 ? coding : coding.substring(0, semicolon)).trim();
+            float quality = 1;
+            if (semicolon != -1) {
+                String parameter = coding.substring(semicolon + 1).trim();
+                if (startsWithIgnoreCase(parameter, "q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzipQuality = quality;
+            } else if ("*".equals(name)) {
+                wildcardQuality = quality;
             }
         }
-
-        public void flush() throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.flush();
-        }
-
-        public void print(boolean b) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(b);
-        }
-
-        public void print(char c) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(c);
-        }
-
-        public void print(double d) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(d);
-        }
-
-        public void print(float f) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(f);
-        }
-
-        public void print(int i) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(i);
-        }
-
-        public void print(long l) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(l);
-        }
-
-        public void print(String s) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.print(s);
-        }
-
-        public void println() throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println();
-        }
-
-        public void println(boolean b) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(b);
-        }
-
-        public void println(char c) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(c);
-        }
-
-        public void println(double d) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(d);
-        }
-
-        public void println(float f) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(f);
-        }
-
-        public void println(int i) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(i);
-        }
-
-        public void println(long l) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(l);
-        }
-
-        public void println(String s) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.println(s);
-        }
-
-        public void write(byte[] b) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.write(b);
-        }
-
-        public void write(byte[] b, int off, int len) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.write(b, off, len);
-        }
-
-        public void write(int b) throws IOException {
-            fireOnBeforeWriteResponseBodyEvent();
-            servletOutputStream.write(b);
-        }
-
+        return gzipQuality == -1 ? wildcardQuality > 0 : gzipQuality > 0;
     }
 
-    /**
-     * {@link Pattern} for a comma delimited string that support whitespace
-     * characters
-     */
-    private static final Pattern commaSeparatedValuesPattern = Pattern.compile("\\s*,\\s*");
-
-    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
-
-    private static final String HEADER_EXPIRES = "Expires";
-
-    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
-
-    private static final Logger logger = LoggerFactory.getLogger(ExpiresFilter.class);
-
-    private static final String PARAMETER_EXPIRES_ACTIVE = "ExpiresActive";
-
-    private static final String PARAMETER_EXPIRES_BY_TYPE = "ExpiresByType";
-
-    private static final String PARAMETER_EXPIRES_DEFAULT = "ExpiresDefault";
-
-    private static final String PARAMETER_EXPIRES_EXCLUDED_RESPONSE_STATUS_CODES = "ExpiresExcludedResponseStatusCodes";
-
     /**
      * Convert a comma delimited list of numbers into an <tt>int[]</tt>.
      * 
@@ -1211,11 +1537,80 @@ public class ExpiresFilter implements Filter {
      */
     private boolean active = true;
 
+    /**
+     * Strength of the <tt>ETag</tt> generated from the hash of the response
+     * body, <code>null</code> if disabled.
+     */
+    private ETagMode etagMode;
+
+    /**
+     * Coarse clock shared by all the responses.
+     */
+    private HttpDateClock clock = new HttpDateClock();
+
+    /**
+     * Compression level by content type.
+     */
+    private Map<String, Integer> compressionLevelByContentType = new LinkedHashMap<String, Integer>();
+
+    /**
+     * Decides the compression of the responses whose expiration headers
+     * have been set on request entry, without setting them again.
+     */
+    private final ResponseCommitListener compressionListener = new ResponseCommitListener() {
+        public void onBeforeCommit(HttpServletRequest request, CommitInterceptingResponse response) {
+            startCompression(request, response);
+        }
+    };
+
+    /**
+     * Minimum <tt>Content-Length</tt> of a compressed response, responses
+     * of unknown length are compressed.
+     */
+    private int compressionMinSize = 1024;
+
+    /**
+     * Optional watcher of the <tt>ExpiresConfigurationFile</tt>,
+     * <code>null</code> if disabled.
+     */
+    private ConfigurationFileWatcher configurationFileWatcher;
+
+    /**
+     * Rules read by the requests, compiled by
+     * {@link #invalidateExpiresConfigurationCache()} or replaced by
+     * {@link #setConfigurationSnapshot(ConfigurationSnapshot)}. The other
+     * rule fields ({@link #active}, {@link #defaultExpiresConfiguration},
+     * etc.) are the editable copy of the configuration, guarded by the lock
+     * on this filter and never read by the requests.
+     */
+    private volatile ConfigurationSnapshot configurationSnapshot;
+
+    /**
+     * Rules of the init parameters, on top of which the
+     * <tt>ExpiresConfigurationFile</tt> and the <tt>reconfigure</tt> operation
+     * are applied, <code>null</code> before {@link #init(FilterConfig)}.
+     */
+    private volatile ConfigurationSnapshot initConfigurationSnapshot;
+
     /**
      * Default Expires configuration.
      */
     private ExpiresConfiguration defaultExpiresConfiguration;
 
+    private final DeflaterPool deflaterPool = new DeflaterPool(DEFLATER_POOL_MAX_IDLE);
+
+    /**
+     * Number of expiration headers set by content type, see
+     * {@link #countExpirationHeaders(String)}.
+     */
+    private final ConcurrentMap<String, StripedCounter> expirationHeadersCountByContentType =
+            new ConcurrentHashMap<String, StripedCounter>();
+
+    /**
+     * Path patterns of the requests that bypass the {@link ExpiresFilter}.
+     */
+    private String[] excludedPaths = new String[0];
+
     /**
      * list of response status code for which the {@link ExpiresFilter} will not
      * generate expiration headers.
@@ -1227,14 +1622,171 @@ public class ExpiresFilter implements Filter {
      */
     private Map<String, ExpiresConfiguration> expiresConfigurationByContentType = new LinkedHashMap<String, ExpiresConfiguration>();
 
-    public void destroy() {
+    /**
+     * Expires configuration by path pattern.
+     */
+    private Map<String, ExpiresConfiguration> expiresConfigurationByPath = new LinkedHashMap<String, ExpiresConfiguration>();
+
+    /**
+     * <code>false</code> if the filter must not register its MBean, e.g.
+     * when it is embedded in another component.
+     */
+    private boolean manageable = true;
+
+    /**
+     * Name of the MBean of this filter, <code>null</code> if not registered.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Optional precompressed siblings of the static resources, <code>null</code>
+     * if disabled.
+     */
+    private volatile PrecompressedResources precompressedResources;
+
+    /**
+     * Optional cache of the responses on which expiration headers have been
+     * set, <code>null</code> if disabled.
+     */
+    private volatile ResponseCache responseCache;
+
+    private final StripedCounter requestCount = new StripedCounter();
+
+    /**
+     * Context of the web application, used to resolve the content type of the
+     * precompressed resources.
+     */
+    private ServletContext servletContext;
+
+    /**
+     * Maximum time in milliseconds a cache miss waits for the response of an
+     * identical request being rendered, <code>0</code> to disable the
+     * coalescing of the cache misses.
+     */
+    private long responseCacheCoalescingTimeoutInMillis;
+
+    private final StripedCounter skippedAlreadySetCount = new StripedCounter();
+
+    private final StripedCounter skippedByStatusCount = new StripedCounter();
+
+    private final StripedCounter skippedNoConfigurationCount = new StripedCounter();
+
+    /**
+     * Optional cache of the validators of the responses on which expiration
+     * headers have been set, <code>null</code> if disabled.
+     */
+    private volatile ValidatorCache validatorCache;
+
+    public ExpiresFilter() {
+        this.configurationSnapshot = compileConfigurationSnapshot();
+    }
+
+    /**
+     * Set or learn the <tt>ETag</tt> computed from the hash of the body of
+     * the given response, unless the application has set its own
+     * <tt>ETag</tt>.
+     * 
+     * @param speculativeETag
+     *            <tt>ETag</tt> learned from a previous response and set
+     *            before the generation of the response, <code>null</code> if
+     *            none
+     */
+    private void applyBodyETag(HttpServletRequest httpRequest, CommitInterceptingResponse xResponse, ETagMode etagMode,
+            String speculativeETag) {
+        StreamingHash bodyHash = xResponse.getBodyHash();
+        if (bodyHash == null || xResponse.getStatus() != HttpServletResponse.SC_OK) {
+            return;
+        }
+        String etag = xResponse.getETagHeader();
+        if (etag != null && !etag.equals(speculativeETag)) {
+            // set by the application
+            return;
+        }
+        // the hash is computed before compression, the ETag must differ
+        // from the one of the uncompressed representation
+        String bodyETag = (etagMode == ETagMode.WEAK ? "W/\"" : "\"") + Long.toHexString(bodyHash.getValue())
+                + (xResponse.isBodyCompressed() ? "-gzip\"" : "\"");
+        if (bodyETag.equals(etag)) {
+            // the learned ETag is still valid
+        } else if (!xResponse.isCommitted()) {
+            xResponse.setHeader(HEADER_ETAG, bodyETag);
+        } else if (etagMode == ETagMode.STRONG) {
+            // a strong ETag can not be sent before the body is known
+            return;
+        } else if (speculativeETag != null) {
+            logger.debug("Request '{}', the learned ETag {} is stale, learn {}", new Object[] { httpRequest.getRequestURI(),
+                    speculativeETag, bodyETag });
+        }
+        ValidatorCache validatorCache = this.validatorCache;
+        if (validatorCache != null) {
+            validatorCache.learnETag(httpRequest, bodyETag);
+        }
+    }
+
+    /**
+     * Discard the cached responses and validators.
+     */
+    private void clearCaches() {
+        ResponseCache responseCache = this.responseCache;
+        if (responseCache != null) {
+            responseCache.clear();
+        }
+        ValidatorCache validatorCache = this.validatorCache;
+        if (validatorCache != null) {
+            validatorCache.clear();
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on <code>this</code>.
+     */
+    private ConfigurationSnapshot compileConfigurationSnapshot() {
+        return new ConfigurationSnapshot(active, defaultExpiresConfiguration, expiresConfigurationByContentType,
+                expiresConfigurationByPath, excludedPaths, excludedResponseStatusCodes, etagMode, compressionLevelByContentType,
+                compressionMinSize);
+    }
+
+    /**
+     * Count the expiration headers set on a response of the given content
+     * type. The number of distinct content types is bounded by
+     * {@link #CONTENT_TYPE_CACHE_MAX_SIZE}, the extra ones are counted as
+     * {@link #UNKNOWN_CONTENT_TYPE}.
+     */
+    private void countExpirationHeaders(String contentType) {
+        String key = contentType == null ? UNKNOWN_CONTENT_TYPE : substringBefore(contentType, ";").trim().toLowerCase(Locale.ENGLISH);
+        StripedCounter counter = expirationHeadersCountByContentType.get(key);
+        if (counter == null) {
+            if (expirationHeadersCountByContentType.size() >= CONTENT_TYPE_CACHE_MAX_SIZE) {
+                key = UNKNOWN_CONTENT_TYPE;
+            }
+            counter = new StripedCounter();
+            StripedCounter existingCounter = expirationHeadersCountByContentType.putIfAbsent(key, counter);
+            if (existingCounter != null) {
+                counter = existingCounter;
+            }
+        }
+        counter.increment();
+    }
 
+    public void destroy() {
+        FilterManagement.unregister(objectName);
+        objectName = null;
+        if (configurationFileWatcher != null) {
+            configurationFileWatcher.stop();
+            configurationFileWatcher = null;
+        }
+        ResponseCache responseCache = this.responseCache;
+        if (responseCache != null) {
+            responseCache.close();
+        }
     }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
             HttpServletRequest httpRequest = (HttpServletRequest) request;
             HttpServletResponse httpResponse = (HttpServletResponse) response;
+            ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+            requestCount.increment();
 
             if (response.isCommitted()) {
                 if (logger.isDebugEnabled()) {
@@ -1242,13 +1794,77 @@ public class ExpiresFilter implements Filter {
                             + "', can not apply ExpiresFilter on already committed response.");
                 }
                 chain.doFilter(request, response);
-            } else if (active) {
-                XHttpServletResponse xResponse = new XHttpServletResponse(httpRequest, httpResponse);
-                chain.doFilter(request, xResponse);
-                if (!xResponse.isWriteResponseBodyStarted()) {
-                    // Empty response, manually trigger
-                    // onBeforeWriteResponseBody()
-                    onBeforeWriteResponseBody(httpRequest, xResponse);
+            } else if (configurationSnapshot.active) {
+                ExpiresConfiguration pathConfiguration = matchPath(configurationSnapshot, httpRequest);
+                if (pathConfiguration == EXCLUDED_PATH_CONFIGURATION) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Request '" + httpRequest.getRequestURL() + "', path is excluded from ExpiresFilter");
+                    }
+                    chain.doFilter(request, response);
+                    return;
+                }
+                ValidatorCache validatorCache = this.validatorCache;
+                if (validatorCache != null) {
+                    ValidatorCache.Validators validators = validatorCache.getNotModifiedValidators(httpRequest, clock
+                            .currentTimeMillis());
+                    if (validators != null) {
+                        writeNotModifiedResponse(httpRequest, httpResponse, validators);
+                        return;
+                    }
+                }
+                PrecompressedResources precompressedResources = this.precompressedResources;
+                if (precompressedResources != null
+                        && ("GET".equals(httpRequest.getMethod()) || "HEAD".equals(httpRequest.getMethod()))) {
+                    String path = getPath(httpRequest);
+                    PrecompressedResources.Resource resource = precompressedResources.get(path, clock.currentTimeMillis());
+                    if (resource != null) {
+                        if (acceptsGzip(httpRequest.getHeader(HEADER_ACCEPT_ENCODING))
+                                && writePrecompressedResource(httpRequest, httpResponse, pathConfiguration, precompressedResources,
+                                        path, resource)) {
+                            return;
+                        }
+                        httpResponse.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+                    }
+                }
+                ResponseCache responseCache = this.responseCache;
+                if (responseCache != null && responseCache.isCacheable(httpRequest)) {
+                    long now = clock.currentTimeMillis();
+                    ResponseCache.CachedResponse cachedResponse = responseCache.get(httpRequest, now);
+                    if (cachedResponse != null) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Request '{}', served from the response cache", httpRequest.getRequestURI());
+                        }
+                        try {
+                            cachedResponse.writeTo(httpRequest, httpResponse, now);
+                        } finally {
+                            cachedResponse.release();
+                        }
+                        return;
+                    }
+                    ResponseCache.Flight flight = null;
+                    if (responseCacheCoalescingTimeoutInMillis > 0) {
+                        flight = responseCache.join(httpRequest);
+                        if (!flight.isLeader()) {
+                            if (writeCoalescedResponse(httpRequest, httpResponse, responseCache, flight)) {
+                                return;
+                            }
+                            // render the response without waiting for other requests
+                            flight = null;
+                        }
+                    }
+                    try {
+                        ResponseCache.CapturingResponse capturingResponse = responseCache.capture(httpResponse);
+                        doFilterWithExpirationHeaders(httpRequest, capturingResponse, pathConfiguration, chain);
+                        if (responseCache.put(httpRequest, capturingResponse, clock.currentTimeMillis()) && logger.isDebugEnabled()) {
+                            logger.debug("Request '{}', response stored in the response cache", httpRequest.getRequestURI());
+                        }
+                    } finally {
+                        if (flight != null) {
+                            responseCache.land(flight);
+                        }
+                    }
+                } else {
+                    doFilterWithExpirationHeaders(httpRequest, httpResponse, pathConfiguration, chain);
                 }
             } else {
                 if (logger.isDebugEnabled()) {
@@ -1261,23 +1877,164 @@ public class ExpiresFilter implements Filter {
         }
     }
 
+    /**
+     * Invoke the given chain with a response on which the expiration headers
+     * will be set, either immediately for '<tt>access plus ...</tt>'
+     * <tt>ExpiresByPath</tt> rules or on the "Start Write Response Body" event.
+     */
+    private void doFilterWithExpirationHeaders(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            ExpiresConfiguration pathConfiguration, FilterChain chain) throws IOException, ServletException {
+        ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+        ETagMode etagMode = configurationSnapshot.etagMode;
+        boolean hashBody = etagMode != null && "GET".equals(httpRequest.getMethod());
+        boolean compressBody = configurationSnapshot.compressionLevelDecisionTable.size() > 0
+                && !"HEAD".equals(httpRequest.getMethod());
+        if (pathConfiguration != null && pathConfiguration.getStartingPoint() == StartingPoint.ACCESS_TIME
+                && configurationSnapshot.expirationHeadersOnEntry) {
+            // the path is enough to decide, no need to wait for the
+            // response content type nor status
+            ExpirationHeaders expirationHeaders = getExpirationHeaders(pathConfiguration, null, clock.tick());
+            countExpirationHeaders(null);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Request '{}', set expiration date {} on request entry", httpRequest.getRequestURI(), expirationHeaders
+                        .getExpiresHeader());
+            }
+            ValidatorCache validatorCache = this.validatorCache;
+            if (validatorCache == null && !hashBody && !compressBody) {
+                httpResponse.setHeader(HEADER_CACHE_CONTROL, expirationHeaders.getMaxAgeDirective());
+                httpResponse.setHeader(HEADER_EXPIRES, expirationHeaders.getExpiresHeader());
+                chain.doFilter(httpRequest, httpResponse);
+                return;
+            }
+            // track the validators set by the servlet
+            CommitInterceptingResponse xResponse = CommitInterceptingResponse.wrap(httpRequest, httpResponse);
+            xResponse.setHeader(HEADER_CACHE_CONTROL, expirationHeaders.getMaxAgeDirective());
+            xResponse.setHeader(HEADER_EXPIRES, expirationHeaders.getExpiresHeader());
+            if (compressBody) {
+                // the expiration headers are already set, only decide the
+                // compression
+                prepareCompression(httpRequest, xResponse);
+                xResponse.addResponseCommitListener(compressionListener);
+            }
+            String speculativeETag = hashBody ? prepareBodyETag(httpRequest, xResponse, etagMode) : null;
+            try {
+                chain.doFilter(httpRequest, xResponse);
+                if (compressBody && xResponse != httpResponse) {
+                    xResponse.fireBeforeCommit();
+                }
+                if (validatorCache != null) {
+                    validatorCache.put(httpRequest, xResponse, pathConfiguration, expirationHeaders.getExpirationTime(), clock
+                            .currentTimeMillis());
+                }
+                if (hashBody) {
+                    applyBodyETag(httpRequest, xResponse, etagMode, speculativeETag);
+                }
+                if (compressBody) {
+                    xResponse.finishBody();
+                }
+            } finally {
+                if (compressBody) {
+                    // the chain may have failed before the end of the body
+                    xResponse.releaseDeflater();
+                }
+            }
+            return;
+        }
+        // share the wrapper of an enclosing filter if any
+        CommitInterceptingResponse xResponse = CommitInterceptingResponse.wrap(httpRequest, httpResponse);
+        xResponse.addResponseCommitListener(this);
+        if (compressBody) {
+            prepareCompression(httpRequest, xResponse);
+        }
+        String speculativeETag = hashBody ? prepareBodyETag(httpRequest, xResponse, etagMode) : null;
+        try {
+            chain.doFilter(httpRequest, xResponse);
+            if (xResponse != httpResponse) {
+                // Empty response, manually trigger
+                // onBeforeWriteResponseBody()
+                xResponse.fireBeforeCommit();
+            }
+            if (hashBody) {
+                applyBodyETag(httpRequest, xResponse, etagMode, speculativeETag);
+            }
+            if (compressBody) {
+                xResponse.finishBody();
+            }
+        } finally {
+            if (compressBody) {
+                // the chain may have failed before the end of the body
+                xResponse.releaseDeflater();
+            }
+        }
+    }
+
+    /**
+     * Editable compression levels by content type, see
+     * {@link #invalidateExpiresConfigurationCache()}.
+     */
+    public Map<String, Integer> getCompressionLevelByContentType() {
+        return compressionLevelByContentType;
+    }
+
+    public int getCompressionMinSize() {
+        return configurationSnapshot.compressionMinSize;
+    }
+
+    /**
+     * Rules currently applied to the requests.
+     */
+    public ConfigurationSnapshot getConfigurationSnapshot() {
+        return configurationSnapshot;
+    }
+
     public ExpiresConfiguration getDefaultExpiresConfiguration() {
-        return defaultExpiresConfiguration;
+        return configurationSnapshot.defaultExpiresConfiguration;
+    }
+
+    /**
+     * Visible for test.
+     */
+    DeflaterPool getDeflaterPool() {
+        return deflaterPool;
+    }
+
+    public ETagMode getETagMode() {
+        return configurationSnapshot.etagMode;
+    }
+
+    public long getExpirationHeadersCount() {
+        long count = 0;
+        for (StripedCounter counter : expirationHeadersCountByContentType.values()) {
+            count += counter.get();
+        }
+        return count;
+    }
+
+    public Map<String, Long> getExpirationHeadersCountByContentType() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StripedCounter> entry : expirationHeadersCountByContentType.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return result;
+    }
+
+    public String[] getExcludedPaths() {
+        return configurationSnapshot.getExcludedPaths();
     }
 
     public String getExcludedResponseStatusCodes() {
-        return intsToCommaDelimitedString(excludedResponseStatusCodes);
+        return intsToCommaDelimitedString(configurationSnapshot.excludedResponseStatusCodes);
     }
 
     public int[] getExcludedResponseStatusCodesAsInts() {
-        return excludedResponseStatusCodes;
+        return configurationSnapshot.getExcludedResponseStatusCodes();
     }
 
     /**
      * <p>
-     * Returns the expiration date of the given {@link XHttpServletResponse} or
-     * <code>null</code> if no expiration date has been configured for the
-     * declared content type.
+     * Returns the expiration date in milliseconds of the given
+     * {@link CommitInterceptingResponse} or <code>-1</code> if no expiration date
+     * has been configured for the declared content type.
      * </p>
      * <p>
      * <code>protected</code> for extension.
@@ -1285,89 +2042,256 @@ public class ExpiresFilter implements Filter {
      * 
      * @see HttpServletResponse#getContentType()
      */
+    protected long getExpirationDate(HttpServletRequest request, CommitInterceptingResponse response) {
+        ExpiresConfiguration configuration = getExpiresConfiguration(request, response);
+        if (configuration == null) {
+            return -1;
+        }
+        return getExpirationTime(configuration, response, clock.tick().getTimeInMillis());
+    }
+
+    /**
+     * @deprecated use
+     *             {@link #getExpirationDate(HttpServletRequest, CommitInterceptingResponse)}
+     */
+    @Deprecated
     protected Date getExpirationDate(HttpServletRequest request, XHttpServletResponse response) {
+        long expirationDate = getExpirationDate(request, (CommitInterceptingResponse) response);
+        return expirationDate == -1 ? null : new Date(expirationDate);
+    }
+
+    /**
+     * <p>
+     * Returns the pre-formatted expiration headers of the given
+     * {@link CommitInterceptingResponse}.
+     * </p>
+     * <p>
+     * Headers of {@link StartingPoint#ACCESS_TIME} configurations only depend
+     * on the current second, they are computed by the first response of each
+     * second and cached in the {@link ExpiresConfiguration}.
+     * </p>
+     * <p>
+     * <code>protected</code> for extension.
+     * </p>
+     */
+    protected ExpirationHeaders getExpirationHeaders(ExpiresConfiguration configuration, CommitInterceptingResponse response,
+            HttpDateClock.Tick now) {
+        if (configuration.getStartingPoint() == StartingPoint.ACCESS_TIME) {
+            ExpirationHeaders expirationHeaders = configuration.accessTimeExpirationHeaders;
+            if (expirationHeaders == null || expirationHeaders.getSecond() != now.getSecond()) {
+                expirationHeaders = new ExpirationHeaders(now, getExpirationTime(configuration, response, now.getTimeInMillis()));
+                configuration.accessTimeExpirationHeaders = expirationHeaders;
+            }
+            return expirationHeaders;
+        }
+        return new ExpirationHeaders(now, getExpirationTime(configuration, response, now.getTimeInMillis()));
+    }
+
+    /**
+     * <p>
+     * Returns the expiration time in milliseconds of the given
+     * {@link CommitInterceptingResponse} according to the given
+     * {@link ExpiresConfiguration}.
+     * </p>
+     * <p>
+     * Durations expressed in seconds, minutes, hours, days and weeks are
+     * added as a fixed number of milliseconds. Calendar arithmetic, with a
+     * {@link Calendar} confined to the current thread, is only used for
+     * durations expressed in months or years.
+     * </p>
+     * <p>
+     * <code>protected</code> for extension.
+     * </p>
+     * 
+     * @param now
+     *            current time in milliseconds, used for
+     *            {@link StartingPoint#ACCESS_TIME} and when the
+     *            <tt>Last-Modified</tt> header is not set
+     */
+    protected long getExpirationTime(ExpiresConfiguration configuration, CommitInterceptingResponse response, long now) {
+        long startingPoint;
+        switch (configuration.getStartingPoint()) {
+        case ACCESS_TIME:
+            startingPoint = now;
+            break;
+        case LAST_MODIFICATION_TIME:
+            if (response.isLastModifiedHeaderSet()) {
+                startingPoint = response.getLastModifiedHeader();
+            } else {
+                // Last-Modified header not found, use now
+                startingPoint = now;
+            }
+            break;
+        default:
+            throw new IllegalStateException("Unsupported startingPoint '" + configuration.getStartingPoint() + "'");
+        }
+
+        if (configuration.isFixedDuration()) {
+            return startingPoint + configuration.getDurationInMillis();
+        }
+
+        Calendar calendar = threadLocalCalendar.get();
+        calendar.setTimeInMillis(startingPoint);
+        for (Duration duration : configuration.getDurations()) {
+            calendar.add(duration.getUnit().getCalendarField(), duration.getAmount());
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * <p>
+     * Returns the {@link ExpiresConfiguration} matching the content type of
+     * the given {@link CommitInterceptingResponse}, the default configuration or
+     * <code>null</code> if none has been configured.
+     * </p>
+     * <p>
+     * <tt>ExpiresByPath</tt> configurations take precedence over the content
+     * type. Once resolved by
+     * {@link #resolveExpiresConfiguration(String)}, the configuration of a
+     * given content type is memoized: the steady state cost is one hash
+     * lookup.
+     * </p>
+     * <p>
+     * <code>protected</code> for extension.
+     * </p>
+     * 
+     * @see HttpServletResponse#getContentType()
+     */
+    protected ExpiresConfiguration getExpiresConfiguration(HttpServletRequest request, CommitInterceptingResponse response) {
+        ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+        ExpiresConfiguration pathConfiguration = matchPath(configurationSnapshot, request);
+        if (pathConfiguration != null && pathConfiguration != EXCLUDED_PATH_CONFIGURATION) {
+            return pathConfiguration;
+        }
+
         String contentType = response.getContentType();
+        if (contentType == null) {
+            return resolveExpiresConfiguration(null);
+        }
+
+        ConcurrentMap<String, ExpiresConfiguration> cache = configurationSnapshot.expiresConfigurationByResponseContentType;
+        ExpiresConfiguration configuration = cache.get(contentType);
+        if (configuration == null) {
+            configuration = resolveExpiresConfiguration(contentType);
+            if (configuration == null) {
+                configuration = NO_EXPIRES_CONFIGURATION;
+            }
+            if (cache.size() < CONTENT_TYPE_CACHE_MAX_SIZE) {
+                cache.putIfAbsent(contentType, configuration);
+            }
+        }
+        return configuration == NO_EXPIRES_CONFIGURATION ? null : configuration;
+    }
+
+    /**
+     * Editable Expires configurations by content type, see
+     * {@link #invalidateExpiresConfigurationCache()}.
+     */
+    public Map<String, ExpiresConfiguration> getExpiresConfigurationByContentType() {
+        return expiresConfigurationByContentType;
+    }
 
-        // lookup exact content-type match (e.g.
-        // "text/html; charset=iso-8859-1")
-        ExpiresConfiguration configuration = expiresConfigurationByContentType.get(contentType);
-        String matchingContentType = contentType;
+    /**
+     * Editable Expires configurations by path pattern, see
+     * {@link #invalidateExpiresConfigurationCache()}.
+     */
+    public Map<String, ExpiresConfiguration> getExpiresConfigurationByPath() {
+        return expiresConfigurationByPath;
+    }
+
+    /**
+     * Return the path of the given request in the web application, without
+     * the context path and decoded.
+     */
+    private String getPath(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (servletPath == null) {
+            return pathInfo;
+        }
+        return pathInfo == null ? servletPath : servletPath + pathInfo;
+    }
 
-        if (configuration == null && contains(contentType, ";")) {
-            // lookup content-type without charset match (e.g. "text/html")
-            String contentTypeWithoutCharset = substringBefore(contentType, ";").trim();
-            configuration = expiresConfigurationByContentType.get(contentTypeWithoutCharset);
-            matchingContentType = contentTypeWithoutCharset;
-        }
+    public PrecompressedResources getPrecompressedResources() {
+        return precompressedResources;
+    }
 
-        if (configuration == null && contains(contentType, "/")) {
-            // lookup content-type without charset match (e.g. "text/html")
-            String majorType = substringBefore(contentType, "/");
-            configuration = expiresConfigurationByContentType.get(majorType);
-            matchingContentType = majorType;
-        }
+    public long getRequestCount() {
+        return requestCount.get();
+    }
 
-        if (configuration == null) {
-            configuration = defaultExpiresConfiguration;
-            matchingContentType = "#DEFAULT#";
-        }
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
 
-        if (configuration == null) {
-            logger.trace("No Expires configuration found for content-type {}", contentType);
-            return null;
-        }
+    public long getResponseCacheCoalescingTimeoutInMillis() {
+        return responseCacheCoalescingTimeoutInMillis;
+    }
 
-        if (logger.isTraceEnabled()) {
-            logger.trace("Use {} matching '{}' for content-type '{}'", new Object[] { configuration, matchingContentType, contentType });
-        }
+    public long getSkippedAlreadySetCount() {
+        return skippedAlreadySetCount.get();
+    }
 
-        Calendar calendar;
-        switch (configuration.getStartingPoint()) {
-        case ACCESS_TIME:
-            calendar = GregorianCalendar.getInstance();
-            break;
-        case LAST_MODIFICATION_TIME:
-            if (response.isLastModifiedHeaderSet()) {
-                long lastModified = response.getLastModifiedHeader();
-                calendar = GregorianCalendar.getInstance();
-                calendar.setTimeInMillis(lastModified);
-            } else {
-                // Last-Modified header not found, use now
-                calendar = GregorianCalendar.getInstance();
-            }
-            break;
-        default:
-            throw new IllegalStateException("Unsupported startingPoint '" + configuration.getStartingPoint() + "'");
-        }
-        for (Duration duration : configuration.getDurations()) {
-            calendar.add(duration.getUnit().getCalendarField(), duration.getAmount());
-        }
+    public long getSkippedByStatusCount() {
+        return skippedByStatusCount.get();
+    }
 
-        return calendar.getTime();
+    public long getSkippedNoConfigurationCount() {
+        return skippedNoConfigurationCount.get();
     }
 
-    public Map<String, ExpiresConfiguration> getExpiresConfigurationByContentType() {
-        return expiresConfigurationByContentType;
+    public ValidatorCache getValidatorCache() {
+        return validatorCache;
     }
 
     @SuppressWarnings("unchecked")
     public void init(FilterConfig filterConfig) throws ServletException {
+        long responseCacheMaxSize = 0;
+        int responseCacheMaxEntrySize = RESPONSE_CACHE_DEFAULT_MAX_ENTRY_SIZE;
+        boolean responseCacheOffHeap = false;
+        String responseCacheDirectory = null;
+        int responseCacheCompactionInterval = 60;
+        int validatorCacheMaxSize = 0;
+        String[] precompressedPaths = null;
+        int precompressedRefreshInterval = 60;
+        String configurationFile = null;
+        String configurationFileRefreshInterval = null;
+        final Map<String, String> configurationParameters = new LinkedHashMap<String, String>();
+        this.servletContext = filterConfig.getServletContext();
         for (Enumeration<String> names = filterConfig.getInitParameterNames(); names.hasMoreElements();) {
             String name = names.nextElement();
             String value = filterConfig.getInitParameter(name);
 
             try {
-                if (name.startsWith(PARAMETER_EXPIRES_BY_TYPE)) {
-                    String contentType = name.substring(PARAMETER_EXPIRES_BY_TYPE.length()).trim();
-                    ExpiresConfiguration expiresConfiguration = parseExpiresConfiguration(value);
-                    this.expiresConfigurationByContentType.put(contentType, expiresConfiguration);
-                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_DEFAULT)) {
-                    ExpiresConfiguration expiresConfiguration = parseExpiresConfiguration(value);
-                    this.defaultExpiresConfiguration = expiresConfiguration;
-                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_ACTIVE)) {
-                    this.active = "On".equalsIgnoreCase(value) || Boolean.valueOf(value);
-                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_EXCLUDED_RESPONSE_STATUS_CODES)) {
-                    this.excludedResponseStatusCodes = commaDelimitedListToIntArray(value);
+                if (isConfigurationSnapshotParameter(name)) {
+                    configurationParameters.put(name, value);
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_CONFIGURATION_FILE)) {
+                    configurationFile = value;
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_CONFIGURATION_FILE_REFRESH_INTERVAL)) {
+                    configurationFileRefreshInterval = value;
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_PRECOMPRESSED_PATHS)) {
+                    precompressedPaths = commaDelimitedListToStringArray(value);
+                    PathPatternTrie<String> trie = new PathPatternTrie<String>();
+                    for (String precompressedPath : precompressedPaths) {
+                        // fail fast on unsupported patterns
+                        trie.put(precompressedPath, precompressedPath);
+                    }
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_PRECOMPRESSED_REFRESH_INTERVAL)) {
+                    precompressedRefreshInterval = Integer.parseInt(value.trim());
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_MAX_SIZE)) {
+                    responseCacheMaxSize = Long.parseLong(value.trim());
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_MAX_ENTRY_SIZE)) {
+                    responseCacheMaxEntrySize = Integer.parseInt(value.trim());
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_DIRECTORY)) {
+                    responseCacheDirectory = value.trim();
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_COALESCING_TIMEOUT)) {
+                    this.responseCacheCoalescingTimeoutInMillis = Long.parseLong(value.trim());
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_COMPACTION_INTERVAL)) {
+                    responseCacheCompactionInterval = Integer.parseInt(value.trim());
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_RESPONSE_CACHE_OFF_HEAP)) {
+                    responseCacheOffHeap = "On".equalsIgnoreCase(value) || Boolean.valueOf(value);
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_VALIDATOR_CACHE_MAX_SIZE)) {
+                    validatorCacheMaxSize = Integer.parseInt(value.trim());
                 } else {
                     logger.warn("Uknown parameter '" + name + "' with value '" + value + "' is ignored !");
                 }
@@ -1376,15 +2300,97 @@ public class ExpiresFilter implements Filter {
             }
         }
 
+        // the init parameters override the rules already configured, e.g.
+        // with the setters
+        try {
+            this.initConfigurationSnapshot = parseConfigurationSnapshot(this.configurationSnapshot, configurationParameters);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e.getMessage(), e.getCause() == null ? e : e.getCause());
+        }
+        if (configurationFile == null) {
+            setConfigurationSnapshot(initConfigurationSnapshot);
+        } else {
+            // the rules of the file override the init parameters
+            this.configurationFileWatcher = FilterManagement.loadConfigurationFile(configurationFile, configurationFileRefreshInterval,
+                    new ConfigurationFileWatcher.Listener() {
+                        public void configurationFileChanged(String content) {
+                            reconfigure(content);
+                        }
+                    });
+        }
+
+        // created after the replacement of the configuration which would
+        // clear a persistent cache
+        if (responseCacheMaxSize > 0) {
+            try {
+                if (responseCacheDirectory == null) {
+                    this.responseCache = new ResponseCache(responseCacheMaxSize, responseCacheMaxEntrySize, responseCacheOffHeap);
+                } else {
+                    this.responseCache = new ResponseCache(responseCacheMaxSize, responseCacheMaxEntrySize, new File(
+                            responseCacheDirectory), responseCacheCompactionInterval);
+                }
+            } catch (IOException e) {
+                throw new ServletException("Exception creating the response cache", e);
+            } catch (RuntimeException e) {
+                throw new ServletException("Exception creating the response cache", e);
+            }
+        }
+        if (validatorCacheMaxSize > 0) {
+            this.validatorCache = new ValidatorCache(validatorCacheMaxSize);
+        }
+        if (precompressedPaths != null && precompressedPaths.length > 0) {
+            String rootDirectory = servletContext == null ? null : servletContext.getRealPath("/");
+            if (rootDirectory == null) {
+                logger.warn("ExpiresPrecompressedPaths is ignored, the web application is not deployed in a directory");
+            } else {
+                this.precompressedResources = new PrecompressedResources(new File(rootDirectory), precompressedPaths,
+                        precompressedRefreshInterval * 1000L, PRECOMPRESSED_RESOURCES_MAX_SIZE);
+            }
+        }
+        if (configurationFileWatcher != null) {
+            configurationFileWatcher.start();
+        }
+        if (manageable) {
+            this.objectName = FilterManagement.register(this, ExpiresFilterMBean.class, filterConfig);
+        }
         logger.info("Filter initialized with configuration " + this.toString());
     }
 
+    /**
+     * Compile the editable configuration of the filter in a new
+     * {@link ConfigurationSnapshot}, publish it atomically and discard the
+     * cached responses and validators, which carry the expiration headers of
+     * the previous configuration. Must be called after modifying the maps
+     * returned by {@link #getExpiresConfigurationByContentType()},
+     * {@link #getExpiresConfigurationByPath()} and
+     * {@link #getCompressionLevelByContentType()}.
+     * 
+     * @throws IllegalArgumentException
+     *             if a path pattern or a content type rule is not supported
+     */
+    public synchronized void invalidateExpiresConfigurationCache() {
+        this.configurationSnapshot = compileConfigurationSnapshot();
+        clearCaches();
+    }
+
     /**
      * Indicates that the filter is active. If <code>false</code>, the filter is
      * pass-through. Default is <code>true</code>.
      */
     public boolean isActive() {
-        return active;
+        return configurationSnapshot.active;
+    }
+
+    /**
+     * Return <code>true</code> if the given init parameter belongs to the
+     * {@link ConfigurationSnapshot}.
+     */
+    private static boolean isConfigurationSnapshotParameter(String name) {
+        return name.startsWith(PARAMETER_EXPIRES_BY_PATH) || name.startsWith(PARAMETER_EXPIRES_COMPRESSION_BY_TYPE)
+                || name.equalsIgnoreCase(PARAMETER_EXPIRES_COMPRESSION_MIN_SIZE) || name.startsWith(PARAMETER_EXPIRES_BY_TYPE)
+                || name.equalsIgnoreCase(PARAMETER_EXPIRES_DEFAULT) || name.equalsIgnoreCase(PARAMETER_EXPIRES_ETAG)
+                || name.equalsIgnoreCase(PARAMETER_EXPIRES_ACTIVE) || name.equalsIgnoreCase(PARAMETER_EXPIRES_EXCLUDED_PATHS)
+                || name.equalsIgnoreCase(PARAMETER_EXPIRES_EXCLUDED_RESPONSE_STATUS_CODES);
     }
 
     /**
@@ -1393,10 +2399,11 @@ public class ExpiresFilter implements Filter {
      * <code>protected</code> for extension.
      * </p>
      */
-    protected boolean isEligibleToExpirationHeaderGeneration(HttpServletRequest request, XHttpServletResponse response) {
+    protected boolean isEligibleToExpirationHeaderGeneration(HttpServletRequest request, CommitInterceptingResponse response) {
         boolean expirationHeaderHasBeenSet = response.containsHeader(HEADER_EXPIRES)
                 || contains(response.getCacheControlHeader(), "max-age");
         if (expirationHeaderHasBeenSet) {
+            skippedAlreadySetCount.increment();
             if (logger.isDebugEnabled()) {
                 logger.debug("Request '{}' with response status '{}' content-type '{}', expiration header already defined", new Object[] {
                         request.getRequestURI(), response.getStatus(), response.getContentType() });
@@ -1404,8 +2411,9 @@ public class ExpiresFilter implements Filter {
             return false;
         }
 
-        for (int skippedStatusCode : this.excludedResponseStatusCodes) {
+        for (int skippedStatusCode : this.configurationSnapshot.excludedResponseStatusCodes) {
             if (response.getStatus() == skippedStatusCode) {
+                skippedByStatusCount.increment();
                 if (logger.isDebugEnabled()) {
                     logger.debug(
                             "Request '{}' with response status '{}' content-type '{}', skip expiration header generation for given status",
@@ -1418,6 +2426,45 @@ public class ExpiresFilter implements Filter {
         return true;
     }
 
+    /**
+     * @deprecated use
+     *             {@link #isEligibleToExpirationHeaderGeneration(HttpServletRequest, CommitInterceptingResponse)}
+     */
+    @Deprecated
+    protected boolean isEligibleToExpirationHeaderGeneration(HttpServletRequest request, XHttpServletResponse response) {
+        return isEligibleToExpirationHeaderGeneration(request, (CommitInterceptingResponse) response);
+    }
+
+    /**
+     * Return the <tt>ExpiresByPath</tt> configuration matching the path of the
+     * given request, {@link #EXCLUDED_PATH_CONFIGURATION} if the path is
+     * excluded or <code>null</code>.
+     */
+    private ExpiresConfiguration matchPath(ConfigurationSnapshot configurationSnapshot, HttpServletRequest request) {
+        PathPatternTrie<ExpiresConfiguration> pathTrie = configurationSnapshot.expiresConfigurationPathTrie;
+        if (pathTrie.isEmpty() || request == null) {
+            return null;
+        }
+        String requestUri = request.getRequestURI();
+        if (requestUri == null) {
+            return null;
+        }
+        String contextPath = request.getContextPath();
+        int start = contextPath == null || !requestUri.startsWith(contextPath) ? 0 : contextPath.length();
+        // ignore path parameters (e.g. ";jsessionid=...")
+        int end = requestUri.indexOf(';', start);
+        return pathTrie.get(requestUri, start, end == -1 ? requestUri.length() : end);
+    }
+
+    /**
+     * Delegates to
+     * {@link #onBeforeWriteResponseBody(HttpServletRequest, CommitInterceptingResponse)}
+     * .
+     */
+    public void onBeforeCommit(HttpServletRequest request, CommitInterceptingResponse response) {
+        onBeforeWriteResponseBody(request, response);
+    }
+
     /**
      * <p>
      * If no expiration header has been set by the servlet and an expiration has
@@ -1429,6 +2476,18 @@ public class ExpiresFilter implements Filter {
      * Must be called on the "Start Write Response Body" event.
      * </p>
      * <p>
+     * The compression of the body is decided at the same time, see
+     * {@link #startCompression(HttpServletRequest, CommitInterceptingResponse)}
+     * .
+     * </p>
+     * <p>
+     * The current time is read from a coarse {@link HttpDateClock} and the
+     * header values of '<tt>access plus ...</tt>' configurations are only
+     * formatted once per second, see
+     * {@link #getExpirationHeaders(ExpiresConfiguration, CommitInterceptingResponse, HttpDateClock.Tick)}
+     * .
+     * </p>
+     * <p>
      * Invocations to <tt>Logger.debug(...)</tt> are guarded by
      * {@link Logger#isDebugEnabled()} because
      * {@link HttpServletRequest#getRequestURI()} and
@@ -1436,32 +2495,168 @@ public class ExpiresFilter implements Filter {
      * objects instantiations (as of Tomcat 7).
      * </p>
      */
-    public void onBeforeWriteResponseBody(HttpServletRequest request, XHttpServletResponse response) {
+    public void onBeforeWriteResponseBody(HttpServletRequest request, CommitInterceptingResponse response) {
+
+        startCompression(request, response);
 
         if (!isEligibleToExpirationHeaderGeneration(request, response)) {
             return;
         }
 
-        Date expirationDate = getExpirationDate(request, response);
-        if (expirationDate == null) {
+        ExpiresConfiguration configuration = getExpiresConfiguration(request, response);
+        if (configuration == null) {
+            skippedNoConfigurationCount.increment();
             if (logger.isDebugEnabled()) {
                 logger.debug("Request '{}' with response status '{}' content-type '{}', no expiration configured", new Object[] {
                         request.getRequestURI(), response.getStatus(), response.getContentType() });
             }
         } else {
+            ExpirationHeaders expirationHeaders = getExpirationHeaders(configuration, response, clock.tick());
+            countExpirationHeaders(response.getContentType());
             if (logger.isDebugEnabled()) {
                 logger.debug("Request '{}' with response status '{}' content-type '{}', set expiration date {}", new Object[] {
-                        request.getRequestURI(), response.getStatus(), response.getContentType(), expirationDate });
+                        request.getRequestURI(), response.getStatus(), response.getContentType(), expirationHeaders.getExpiresHeader() });
             }
 
-            String maxAgeDirective = "max-age=" + ((expirationDate.getTime() - System.currentTimeMillis()) / 1000);
-
             String cacheControlHeader = response.getCacheControlHeader();
-            String newCacheControlHeader = (cacheControlHeader == null) ? maxAgeDirective : cacheControlHeader + ", " + maxAgeDirective;
+            String newCacheControlHeader = (cacheControlHeader == null) ? expirationHeaders.getMaxAgeDirective() : cacheControlHeader
+                    + ", " + expirationHeaders.getMaxAgeDirective();
             response.setHeader(HEADER_CACHE_CONTROL, newCacheControlHeader);
-            response.setDateHeader(HEADER_EXPIRES, expirationDate.getTime());
+            response.setHeader(HEADER_EXPIRES, expirationHeaders.getExpiresHeader());
+
+            ValidatorCache validatorCache = this.validatorCache;
+            if (validatorCache != null) {
+                validatorCache.put(request, response, configuration, expirationHeaders.getExpirationTime(), clock.currentTimeMillis());
+            }
+        }
+
+    }
+
+    /**
+     * @deprecated use
+     *             {@link #onBeforeWriteResponseBody(HttpServletRequest, CommitInterceptingResponse)}
+     */
+    @Deprecated
+    public void onBeforeWriteResponseBody(HttpServletRequest request, XHttpServletResponse response) {
+        onBeforeWriteResponseBody(request, (CommitInterceptingResponse) response);
+    }
+
+    /**
+     * Parse a compression level between <tt>1</tt> (fastest) and <tt>9</tt>
+     * (best compression).
+     */
+    protected int parseCompressionLevel(String value) {
+        int level = Integer.parseInt(value.trim());
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level '" + value + "' must be between " + Deflater.BEST_SPEED + " and "
+                    + Deflater.BEST_COMPRESSION);
         }
+        return level;
+    }
+
+    /**
+     * <p>
+     * Parse the given <tt>ExpiresActive</tt>, <tt>ExpiresDefault</tt>,
+     * <tt>ExpiresByType</tt>, <tt>ExpiresByPath</tt>,
+     * <tt>ExpiresExcludedPaths</tt>,
+     * <tt>ExpiresExcludedResponseStatusCodes</tt>, <tt>ExpiresETag</tt>,
+     * <tt>ExpiresCompressionByType</tt> and
+     * <tt>ExpiresCompressionMinSize</tt> parameters, with the syntax of the
+     * init parameters of the filter, in a {@link ConfigurationSnapshot} to
+     * be applied with
+     * {@link #setConfigurationSnapshot(ConfigurationSnapshot)}.
+     * </p>
+     * <p>
+     * The snapshot is complete: the missing parameters take their default
+     * values. The other parameters (caches, precompressed resources) can
+     * only be set when the filter is initialized and are ignored.
+     * </p>
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is invalid
+     */
+    public ConfigurationSnapshot parseConfigurationSnapshot(Map<String, String> parameters) {
+        ConfigurationSnapshot defaultConfigurationSnapshot = new ConfigurationSnapshot(true, null,
+                Collections.<String, ExpiresConfiguration> emptyMap(), Collections.<String, ExpiresConfiguration> emptyMap(),
+                new String[0], new int[] { HttpServletResponse.SC_NOT_MODIFIED }, null, Collections.<String, Integer> emptyMap(), 1024);
+        return parseConfigurationSnapshot(defaultConfigurationSnapshot, parameters);
+    }
 
+    /**
+     * <p>
+     * Parse the given parameters, with the syntax of the init parameters of
+     * the filter, on top of the given snapshot: the parameters override the
+     * rules of the given snapshot, the <tt>ExpiresByType</tt>,
+     * <tt>ExpiresByPath</tt> and <tt>ExpiresCompressionByType</tt> rules are
+     * added to its rules and the missing parameters keep their value.
+     * </p>
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is invalid
+     * @see #parseConfigurationSnapshot(Map)
+     */
+    public ConfigurationSnapshot parseConfigurationSnapshot(ConfigurationSnapshot base, Map<String, String> parameters) {
+        boolean active = base.active;
+        ExpiresConfiguration defaultExpiresConfiguration = base.defaultExpiresConfiguration;
+        Map<String, ExpiresConfiguration> expiresConfigurationByContentType = new LinkedHashMap<String, ExpiresConfiguration>(
+                base.expiresConfigurationByContentType);
+        Map<String, ExpiresConfiguration> expiresConfigurationByPath = new LinkedHashMap<String, ExpiresConfiguration>(
+                base.expiresConfigurationByPath);
+        String[] excludedPaths = base.excludedPaths;
+        int[] excludedResponseStatusCodes = base.excludedResponseStatusCodes;
+        ETagMode etagMode = base.etagMode;
+        Map<String, Integer> compressionLevelByContentType = new LinkedHashMap<String, Integer>(base.compressionLevelByContentType);
+        int compressionMinSize = base.compressionMinSize;
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            String value = parameter.getValue();
+
+            try {
+                if (name.startsWith(PARAMETER_EXPIRES_BY_PATH)) {
+                    String path = name.substring(PARAMETER_EXPIRES_BY_PATH.length()).trim();
+                    // fail fast on unsupported patterns
+                    new PathPatternTrie<String>().put(path, path);
+                    ExpiresConfiguration expiresConfiguration = parseExpiresConfiguration(value);
+                    expiresConfigurationByPath.put(path, expiresConfiguration);
+                } else if (name.startsWith(PARAMETER_EXPIRES_COMPRESSION_BY_TYPE)) {
+                    String contentType = name.substring(PARAMETER_EXPIRES_COMPRESSION_BY_TYPE.length()).trim();
+                    // fail fast on unsupported wildcards
+                    ContentTypeDecisionTable.normalize(contentType);
+                    compressionLevelByContentType.put(contentType, parseCompressionLevel(value));
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_COMPRESSION_MIN_SIZE)) {
+                    compressionMinSize = Integer.parseInt(value.trim());
+                } else if (name.startsWith(PARAMETER_EXPIRES_BY_TYPE)) {
+                    String contentType = name.substring(PARAMETER_EXPIRES_BY_TYPE.length()).trim();
+                    // fail fast on unsupported wildcards
+                    ContentTypeDecisionTable.normalize(contentType);
+                    ExpiresConfiguration expiresConfiguration = parseExpiresConfiguration(value);
+                    expiresConfigurationByContentType.put(contentType, expiresConfiguration);
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_DEFAULT)) {
+                    ExpiresConfiguration expiresConfiguration = parseExpiresConfiguration(value);
+                    defaultExpiresConfiguration = expiresConfiguration;
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_ETAG)) {
+                    etagMode = "Off".equalsIgnoreCase(value.trim()) ? null : ETagMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_ACTIVE)) {
+                    active = "On".equalsIgnoreCase(value) || Boolean.valueOf(value);
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_EXCLUDED_PATHS)) {
+                    excludedPaths = commaDelimitedListToStringArray(value);
+                    PathPatternTrie<String> trie = new PathPatternTrie<String>();
+                    for (String excludedPath : excludedPaths) {
+                        // fail fast on unsupported patterns
+                        trie.put(excludedPath, excludedPath);
+                    }
+                } else if (name.equalsIgnoreCase(PARAMETER_EXPIRES_EXCLUDED_RESPONSE_STATUS_CODES)) {
+                    excludedResponseStatusCodes = commaDelimitedListToIntArray(value);
+                } else {
+                    logger.warn("Unknown or initialization only parameter '" + name + "' with value '" + value + "' is ignored");
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Exception processing configuration parameter '" + name + "':'" + value + "'", e);
+            }
+        }
+        return new ConfigurationSnapshot(active, defaultExpiresConfiguration, expiresConfigurationByContentType,
+                expiresConfigurationByPath, excludedPaths, excludedResponseStatusCodes, etagMode, compressionLevelByContentType,
+                compressionMinSize);
     }
 
     /**
@@ -1566,26 +2761,360 @@ public class ExpiresFilter implements Filter {
         return new ExpiresConfiguration(startingPoint, durations);
     }
 
-    public void setActive(boolean active) {
+    /**
+     * Enable the hash of the body of the given response and, for weak
+     * <tt>ETag</tt>s, set upfront the <tt>ETag</tt> learned from the previous
+     * responses of the same URI.
+     * 
+     * @return the <tt>ETag</tt> that has been set, <code>null</code> if none
+     */
+    private String prepareBodyETag(HttpServletRequest httpRequest, CommitInterceptingResponse xResponse, ETagMode etagMode) {
+        if (!xResponse.enableBodyHash()) {
+            return null;
+        }
+        ValidatorCache validatorCache = this.validatorCache;
+        if (etagMode != ETagMode.WEAK || validatorCache == null) {
+            return null;
+        }
+        String learnedETag = validatorCache.getLearnedETag(httpRequest, clock.currentTimeMillis());
+        if (learnedETag != null) {
+            xResponse.setHeader(HEADER_ETAG, learnedETag);
+        }
+        return learnedETag;
+    }
+
+    /**
+     * Enable the compression of the body of the given response if the client
+     * accepts the <tt>gzip</tt> content coding, the decision is taken on the
+     * "Start Write Response Body" event.
+     */
+    private void prepareCompression(HttpServletRequest httpRequest, CommitInterceptingResponse xResponse) {
+        if (acceptsGzip(httpRequest.getHeader(HEADER_ACCEPT_ENCODING)) && !xResponse.enableCompression() && logger.isDebugEnabled()) {
+            logger.debug("Request '{}', response body already being written, compression disabled", httpRequest.getRequestURI());
+        }
+    }
+
+    /**
+     * Parse the given init parameters, in the {@link java.util.Properties}
+     * format, on top of the rules of the init parameters of the filter, as for
+     * the <tt>ExpiresConfigurationFile</tt>, and replace the rules of the
+     * filter with {@link #setConfigurationSnapshot(ConfigurationSnapshot)}.
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is invalid, the current rules are then kept
+     */
+    public void reconfigure(String parameters) {
+        ConfigurationSnapshot initConfigurationSnapshot = this.initConfigurationSnapshot;
+        Map<String, String> parsedParameters = FilterManagement.parseParameters(parameters);
+        setConfigurationSnapshot(initConfigurationSnapshot == null ? parseConfigurationSnapshot(parsedParameters)
+                : parseConfigurationSnapshot(initConfigurationSnapshot, parsedParameters));
+    }
+
+    public void resetStatistics() {
+        requestCount.reset();
+        for (StripedCounter counter : expirationHeadersCountByContentType.values()) {
+            counter.reset();
+        }
+        skippedAlreadySetCount.reset();
+        skippedByStatusCount.reset();
+        skippedNoConfigurationCount.reset();
+    }
+
+    /**
+     * <p>
+     * Returns the {@link ExpiresConfiguration} matching the given content
+     * type, the default configuration or <code>null</code> if none has been
+     * configured.
+     * </p>
+     * <p>
+     * <code>protected</code> for extension.
+     * </p>
+     */
+    protected ExpiresConfiguration resolveExpiresConfiguration(String contentType) {
+        ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+        ExpiresConfiguration configuration = configurationSnapshot.expiresConfigurationDecisionTable.get(contentType);
+        if (configuration == null) {
+            configuration = configurationSnapshot.defaultExpiresConfiguration;
+        }
+
+        if (configuration == null) {
+            logger.trace("No Expires configuration found for content-type {}", contentType);
+            return null;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Use {} for content-type '{}'", configuration, contentType);
+        }
+        return configuration;
+    }
+
+    public synchronized void setActive(boolean active) {
         this.active = active;
+        invalidateExpiresConfigurationCache();
+    }
+
+    void setClock(HttpDateClock clock) {
+        this.clock = clock;
     }
 
-    public void setDefaultExpiresConfiguration(ExpiresConfiguration defaultExpiresConfiguration) {
+    public synchronized void setCompressionLevelByContentType(Map<String, Integer> compressionLevelByContentType) {
+        this.compressionLevelByContentType = compressionLevelByContentType;
+        invalidateExpiresConfigurationCache();
+    }
+
+    public synchronized void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+        invalidateExpiresConfigurationCache();
+    }
+
+    /**
+     * Atomically replace all the rules of the filter by the given snapshot,
+     * e.g. built with {@link #parseConfigurationSnapshot(Map)}, and discard
+     * the cached responses and validators. The requests being processed
+     * complete with the previous rules.
+     */
+    public synchronized void setConfigurationSnapshot(ConfigurationSnapshot configurationSnapshot) {
+        this.active = configurationSnapshot.active;
+        this.defaultExpiresConfiguration = configurationSnapshot.defaultExpiresConfiguration;
+        this.expiresConfigurationByContentType = new LinkedHashMap<String, ExpiresConfiguration>(
+                configurationSnapshot.expiresConfigurationByContentType);
+        this.expiresConfigurationByPath = new LinkedHashMap<String, ExpiresConfiguration>(
+                configurationSnapshot.expiresConfigurationByPath);
+        this.excludedPaths = configurationSnapshot.getExcludedPaths();
+        this.excludedResponseStatusCodes = configurationSnapshot.getExcludedResponseStatusCodes();
+        this.etagMode = configurationSnapshot.etagMode;
+        this.compressionLevelByContentType = new LinkedHashMap<String, Integer>(configurationSnapshot.compressionLevelByContentType);
+        this.compressionMinSize = configurationSnapshot.compressionMinSize;
+        this.configurationSnapshot = configurationSnapshot;
+        clearCaches();
+        logger.info("Configuration replaced by " + configurationSnapshot);
+    }
+
+    public synchronized void setDefaultExpiresConfiguration(ExpiresConfiguration defaultExpiresConfiguration) {
         this.defaultExpiresConfiguration = defaultExpiresConfiguration;
+        invalidateExpiresConfigurationCache();
     }
 
-    public void setExcludedResponseStatusCodes(int[] excludedResponseStatusCodes) {
+    public synchronized void setETagMode(ETagMode etagMode) {
+        this.etagMode = etagMode;
+        invalidateExpiresConfigurationCache();
+    }
+
+    public synchronized void setExcludedPaths(String[] excludedPaths) {
+        this.excludedPaths = excludedPaths;
+        invalidateExpiresConfigurationCache();
+    }
+
+    public synchronized void setExcludedResponseStatusCodes(int[] excludedResponseStatusCodes) {
         this.excludedResponseStatusCodes = excludedResponseStatusCodes;
+        invalidateExpiresConfigurationCache();
     }
 
-    public void setExpiresConfigurationByContentType(Map<String, ExpiresConfiguration> expiresConfigurationByContentType) {
+    public synchronized void setExpiresConfigurationByContentType(Map<String, ExpiresConfiguration> expiresConfigurationByContentType) {
         this.expiresConfigurationByContentType = expiresConfigurationByContentType;
+        invalidateExpiresConfigurationCache();
+    }
+
+    public synchronized void setExpiresConfigurationByPath(Map<String, ExpiresConfiguration> expiresConfigurationByPath) {
+        this.expiresConfigurationByPath = expiresConfigurationByPath;
+        invalidateExpiresConfigurationCache();
+    }
+
+    /**
+     * Must be called before {@link #init(FilterConfig)}.
+     */
+    void setManageable(boolean manageable) {
+        this.manageable = manageable;
+    }
+
+    /**
+     * Set the precompressed siblings of the static resources, <code>null</code>
+     * to disable them.
+     */
+    public void setPrecompressedResources(PrecompressedResources precompressedResources) {
+        this.precompressedResources = precompressedResources;
+    }
+
+    /**
+     * Set the cache of the responses on which expiration headers have been
+     * set, <code>null</code> to disable it.
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public void setResponseCacheCoalescingTimeoutInMillis(long responseCacheCoalescingTimeoutInMillis) {
+        this.responseCacheCoalescingTimeoutInMillis = responseCacheCoalescingTimeoutInMillis;
+    }
+
+    public void setValidatorCache(ValidatorCache validatorCache) {
+        this.validatorCache = validatorCache;
+    }
+
+    /**
+     * Compress the body of the given response if its status is <tt>200</tt>,
+     * its content type matches an <tt>ExpiresCompressionByType</tt> rule, its
+     * <tt>Content-Length</tt>, if known, is at least
+     * <tt>ExpiresCompressionMinSize</tt> and the client accepts it. Such
+     * responses vary on the <tt>Accept-Encoding</tt> request header, even if
+     * the client does not accept compression.
+     */
+    private void startCompression(HttpServletRequest request, CommitInterceptingResponse response) {
+        ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+        ContentTypeDecisionTable<Integer> decisionTable = configurationSnapshot.compressionLevelDecisionTable;
+        if (decisionTable.size() == 0 || response.getStatus() != HttpServletResponse.SC_OK
+                || response.containsHeader(HEADER_CONTENT_ENCODING)) {
+            return;
+        }
+        Integer level = decisionTable.get(response.getContentType());
+        long contentLength = response.getContentLengthHint();
+        if (level == null || (contentLength != -1 && contentLength < configurationSnapshot.compressionMinSize)) {
+            return;
+        }
+        response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+        if (response.isCompressionEnabled()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Request '{}' with content-type '{}', compress body with level {}", new Object[] {
+                        request.getRequestURI(), response.getContentType(), level });
+            }
+            response.startCompression(deflaterPool, level);
+        }
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "[active=" + this.active + ", excludedResponseStatusCode=["
-                + intsToCommaDelimitedString(this.excludedResponseStatusCodes) + "], default=" + this.defaultExpiresConfiguration
-                + ", byType=" + this.expiresConfigurationByContentType + "]";
+        ConfigurationSnapshot configurationSnapshot = this.configurationSnapshot;
+        return getClass().getSimpleName() + "[active=" + configurationSnapshot.active + ", excludedResponseStatusCode=["
+                + intsToCommaDelimitedString(configurationSnapshot.excludedResponseStatusCodes) + "], default="
+                + configurationSnapshot.defaultExpiresConfiguration + ", byType="
+                + configurationSnapshot.expiresConfigurationByContentType + ", byPath="
+                + configurationSnapshot.expiresConfigurationByPath + ", excludedPaths="
+                + Arrays.asList(configurationSnapshot.excludedPaths) + ", responseCache=" + this.responseCache
+                + ", responseCacheCoalescingTimeoutInMillis=" + this.responseCacheCoalescingTimeoutInMillis + ", validatorCache="
+                + this.validatorCache + ", etagMode=" + configurationSnapshot.etagMode + ", compressionByType="
+                + configurationSnapshot.compressionLevelByContentType + ", compressionMinSize="
+                + configurationSnapshot.compressionMinSize + ", precompressedResources=" + this.precompressedResources + "]";
+    }
+
+    /**
+     * Wait for the leader of the given flight to render the response and
+     * write it from the response cache.
+     * 
+     * @return <code>false</code> if the response must be rendered by the
+     *         caller because the leader did not land in time, failed or
+     *         produced an uncacheable response
+     */
+    private boolean writeCoalescedResponse(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            ResponseCache responseCache, ResponseCache.Flight flight) throws IOException {
+        try {
+            if (!flight.await(responseCacheCoalescingTimeoutInMillis)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Request '{}', timeout waiting for {}", httpRequest.getRequestURI(), flight);
+                }
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        long now = clock.currentTimeMillis();
+        ResponseCache.CachedResponse cachedResponse = responseCache.get(httpRequest, now);
+        if (cachedResponse == null) {
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Request '{}', served with the response of {}", httpRequest.getRequestURI(), flight);
+        }
+        try {
+            cachedResponse.writeTo(httpRequest, httpResponse, now);
+        } finally {
+            cachedResponse.release();
+        }
+        return true;
+    }
+
+    /**
+     * Write the given precompressed sibling of the resource of the given
+     * path, with expiration headers, in place of the filter chain.
+     * 
+     * @return <code>false</code> if the sibling could not be opened, the
+     *         request must then be handled by the filter chain
+     */
+    private boolean writePrecompressedResource(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            ExpiresConfiguration pathConfiguration, PrecompressedResources precompressedResources, String path,
+            final PrecompressedResources.Resource resource) throws IOException, ServletException {
+        final String contentType = servletContext == null ? null : servletContext.getMimeType(path);
+        long ifModifiedSince = HttpDateFormat.parse(httpRequest.getHeader(HEADER_IF_MODIFIED_SINCE));
+        final boolean notModified = ifModifiedSince != -1 && resource.getLastModified() / 1000 <= ifModifiedSince / 1000;
+        final InputStream in;
+        if (notModified || "HEAD".equals(httpRequest.getMethod())) {
+            in = null;
+        } else {
+            try {
+                in = new FileInputStream(resource.getFile());
+            } catch (FileNotFoundException e) {
+                precompressedResources.invalidate(path);
+                return false;
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Request '{}', served with {}", httpRequest.getRequestURI(), resource);
+        }
+        try {
+            doFilterWithExpirationHeaders(httpRequest, httpResponse, pathConfiguration, new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                    HttpServletResponse httpResponse = (HttpServletResponse) response;
+                    if (contentType != null) {
+                        httpResponse.setContentType(contentType);
+                    }
+                    httpResponse.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+                    httpResponse.setDateHeader(HEADER_LAST_MODIFIED, resource.getLastModified());
+                    if (notModified) {
+                        httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        return;
+                    }
+                    httpResponse.setHeader(HEADER_CONTENT_ENCODING, "gzip");
+                    httpResponse.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(resource.getLength()));
+                    if (in != null) {
+                        OutputStream out = httpResponse.getOutputStream();
+                        byte[] buffer = new byte[8192];
+                        for (int count; (count = in.read(buffer)) != -1;) {
+                            out.write(buffer, 0, count);
+                        }
+                    }
+                }
+            });
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answer the given conditional request with a <tt>304 Not Modified</tt>
+     * status, the given validators and fresh expiration headers.
+     */
+    private void writeNotModifiedResponse(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            ValidatorCache.Validators validators) {
+        // tracks the Last-Modified header for 'modification plus ...'
+        // configurations
+        CommitInterceptingResponse xResponse = new CommitInterceptingResponse(httpRequest, httpResponse);
+        if (validators.getETag() != null) {
+            xResponse.setHeader(HEADER_ETAG, validators.getETag());
+        }
+        if (validators.getLastModified() != -1) {
+            xResponse.setDateHeader(HEADER_LAST_MODIFIED, validators.getLastModified());
+        }
+        ExpirationHeaders expirationHeaders = getExpirationHeaders(validators.getConfiguration(), xResponse, clock.tick());
+        String cacheControlDirectives = validators.getCacheControlDirectives();
+        xResponse.setHeader(HEADER_CACHE_CONTROL, cacheControlDirectives == null ? expirationHeaders.getMaxAgeDirective()
+                : cacheControlDirectives + ", " + expirationHeaders.getMaxAgeDirective());
+        xResponse.setHeader(HEADER_EXPIRES, expirationHeaders.getExpiresHeader());
+        xResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Request '{}', not modified since {}", httpRequest.getRequestURI(), validators);
+        }
     }
 }
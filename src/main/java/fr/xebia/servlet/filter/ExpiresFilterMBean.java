@@ -0,0 +1,84 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of the {@link ExpiresFilter}.
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public interface ExpiresFilterMBean {
+
+    /**
+     * Number of responses on which the filter has set expiration headers.
+     */
+    long getExpirationHeadersCount();
+
+    /**
+     * Number of responses on which the filter has set expiration headers by content type, without parameters. The headers set on
+     * request entry by an '<tt>access plus ...</tt>' <tt>ExpiresByPath</tt> rule, before the content type is known, are counted as
+     * <tt>unknown</tt>.
+     */
+    Map<String, Long> getExpirationHeadersCountByContentType();
+
+    /**
+     * Comma delimited list of the response status codes for which no expiration header is generated.
+     */
+    String getExcludedResponseStatusCodes();
+
+    /**
+     * Number of http requests seen by the filter.
+     */
+    long getRequestCount();
+
+    /**
+     * Number of responses skipped because the application had already set an expiration header.
+     */
+    long getSkippedAlreadySetCount();
+
+    /**
+     * Number of responses skipped because of their status code.
+     */
+    long getSkippedByStatusCount();
+
+    /**
+     * Number of responses skipped because no rule matches their content type.
+     */
+    long getSkippedNoConfigurationCount();
+
+    boolean isActive();
+
+    /**
+     * Atomically replace the rules of the filter by the given init parameters, in the {@link java.util.Properties} format (e.g.
+     * <code>ExpiresByType\ text/html = access plus 1 hour</code>). As for the <code>ExpiresConfigurationFile</code>, the parameters
+     * are applied on top of the init parameters of the filter: the <code>ExpiresByType</code>, <code>ExpiresByPath</code> and
+     * <code>ExpiresCompressionByType</code> rules are added to the ones of the init parameters and the other parameters that are not
+     * given keep their init value.
+     *
+     * @throws IllegalArgumentException
+     *             if a parameter is invalid, the current rules are then kept
+     */
+    void reconfigure(String parameters);
+
+    /**
+     * Reset the counters to zero.
+     */
+    void resetStatistics();
+
+    void setActive(boolean active);
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Registration of the filters in the platform {@link MBeanServer} and parsing of the configurations submitted at runtime, through JMX
+ * or a configuration file watched by a {@link ConfigurationFileWatcher}.
+ * </p>
+ * <p>
+ * A filter is registered as
+ * <code>fr.xebia.servlet.filter:type=&lt;filter class&gt;,context=&lt;context path&gt;,name=&lt;filter name&gt;</code>. A failure to
+ * register, e.g. because a filter with the same name is already registered for the same context path, is logged and does not prevent the
+ * filter from working.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+final class FilterManagement {
+
+    /**
+     * Default time between two checks of a configuration file, in seconds.
+     */
+    static final int DEFAULT_CONFIGURATION_FILE_REFRESH_INTERVAL = 10;
+
+    static final String DOMAIN = "fr.xebia.servlet.filter";
+
+    private static final String KEY_SPECIAL_CHARACTERS = "=:#!";
+
+    private static final Logger logger = LoggerFactory.getLogger(FilterManagement.class);
+
+    /**
+     * Append the given key or value to the given {@link Properties} text, escaping the special characters.
+     */
+    private static void escape(StringBuilder out, String str, boolean key) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '\r') {
+                out.append("\\r");
+            } else if (c == '\t') {
+                out.append("\\t");
+            } else if ((c == ' ' && (key || i == 0)) || (key && KEY_SPECIAL_CHARACTERS.indexOf(c) != -1)) {
+                out.append('\\').append(c);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Return the name of the MBean of the given filter.
+     */
+    static ObjectName getObjectName(String type, FilterConfig filterConfig) throws JMException {
+        ServletContext servletContext = filterConfig.getServletContext();
+        String contextPath = servletContext == null ? null : servletContext.getContextPath();
+        String filterName = filterConfig.getFilterName();
+        return new ObjectName(DOMAIN + ":type=" + type + ",context=" + ObjectName.quote(ExpiresFilter.isEmpty(contextPath) ? "/"
+                : contextPath) + ",name=" + ObjectName.quote(filterName == null ? type : filterName));
+    }
+
+    /**
+     * Create a watcher of the given configuration file and hand the current content of the file to the given listener. The watcher must
+     * then be started.
+     *
+     * @param refreshInterval
+     *            time between two checks of the file in seconds, <code>null</code> for
+     *            {@link #DEFAULT_CONFIGURATION_FILE_REFRESH_INTERVAL}
+     * @throws ServletException
+     *             if the file can not be read or is rejected by the listener
+     */
+    static ConfigurationFileWatcher loadConfigurationFile(String file, String refreshInterval, ConfigurationFileWatcher.Listener listener)
+            throws ServletException {
+        try {
+            long refreshIntervalInMillis = 1000L * (refreshInterval == null ? DEFAULT_CONFIGURATION_FILE_REFRESH_INTERVAL : Integer
+                    .parseInt(refreshInterval.trim()));
+            ConfigurationFileWatcher configurationFileWatcher = new ConfigurationFileWatcher(new File(file.trim()), refreshIntervalInMillis,
+                    listener);
+            configurationFileWatcher.load();
+            return configurationFileWatcher;
+        } catch (IOException e) {
+            throw new ServletException("Exception reading the configuration file '" + file + "'", e);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Exception loading the configuration file '" + file + "'", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Parse the given text in the {@link Properties} format, e.g. <code>trustedProxies = 192.0.2.0/24, 198.51.100.0/24</code>, into
+     * configuration parameters. The spaces and the separators of a name must be escaped with a '<code>\</code>', e.g.
+     * <code>ExpiresByType\ text/html = access plus 1 hour</code>. As the '<code>\</code>' is the escape character, it must be doubled
+     * in the regular expressions.
+     * </p>
+     * <p>
+     * The parameters keep the order in which they are declared.
+     * </p>
+     *
+     * @throws IllegalArgumentException
+     *             if the text is malformed
+     */
+    static Map<String, String> parseParameters(String text) {
+        final Map<String, String> parameters = new LinkedHashMap<String, String>();
+        Properties properties = new Properties() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public synchronized Object put(Object key, Object value) {
+                parameters.put((String) key, (String) value);
+                return super.put(key, value);
+            }
+        };
+        // Properties.load() reads ISO-8859-1, the other characters are
+        // escaped
+        StringBuilder latin1Text = new StringBuilder();
+        if (text != null) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c > 0xFF) {
+                    String hex = Integer.toHexString(c);
+                    latin1Text.append("\\u").append("0000", hex.length(), 4).append(hex);
+                } else {
+                    latin1Text.append(c);
+                }
+            }
+        }
+        try {
+            properties.load(new ByteArrayInputStream(latin1Text.toString().getBytes("ISO-8859-1")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Exception parsing parameters '" + text + "'", e);
+        }
+        return parameters;
+    }
+
+    /**
+     * Register the given filter in the platform {@link MBeanServer}.
+     *
+     * @return the name of the registered MBean, <code>null</code> if the registration failed
+     */
+    static <T> ObjectName register(T filter, Class<T> mbeanInterface, FilterConfig filterConfig) {
+        String type = mbeanInterface.getSimpleName().substring(0, mbeanInterface.getSimpleName().length() - "MBean".length());
+        ObjectName objectName = null;
+        try {
+            objectName = getObjectName(type, filterConfig);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(new StandardMBean(filter, mbeanInterface), objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("Exception registering the MBean '" + objectName + "', the filter is not manageable", e);
+            return null;
+        } catch (SecurityException e) {
+            logger.warn("Exception registering the MBean '" + objectName + "', the filter is not manageable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Return the given configuration parameters in the {@link Properties} format, one per line, the reverse of
+     * {@link #parseParameters(String)}.
+     */
+    static String toParameters(Map<String, String> parameters) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            escape(result, parameter.getKey(), true);
+            result.append(" = ");
+            escape(result, parameter.getValue() == null ? "" : parameter.getValue(), false);
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Unregister the given MBean, if any, from the platform {@link MBeanServer}.
+     */
+    static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Exception unregistering the MBean '" + objectName + "'", e);
+        }
+    }
+
+    private FilterManagement() {
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+/**
+ * <p>
+ * Coarse clock with a one second resolution that publishes an immutable {@link Tick} holding the current epoch second and its http date
+ * representation (e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>).
+ * </p>
+ * <p>
+ * A new {@link Tick} is created (and the date formatted) by the first caller of {@link #tick()} in a given second, all the other
+ * callers of the same second share it. Two threads may concurrently create the tick of a new second, it is harmless as ticks are
+ * immutable and equivalent.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class HttpDateClock {
+
+    /**
+     * Immutable snapshot of the {@link HttpDateClock}.
+     */
+    public static final class Tick {
+
+        private final String httpDate;
+
+        private final long second;
+
+        Tick(long second) {
+            this.second = second;
+            this.httpDate = HttpDateFormat.format(second * 1000);
+        }
+
+        /**
+         * Current time formatted as an IMF-fixdate http date.
+         */
+        public String getHttpDate() {
+            return httpDate;
+        }
+
+        /**
+         * Seconds since the epoch.
+         */
+        public long getSecond() {
+            return second;
+        }
+
+        /**
+         * Milliseconds since the epoch, truncated to the second.
+         */
+        public long getTimeInMillis() {
+            return second * 1000;
+        }
+
+        @Override
+        public String toString() {
+            return httpDate;
+        }
+    }
+
+    private volatile Tick tick;
+
+    /**
+     * Time source, <code>protected</code> for tests.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Return the snapshot of the current second.
+     */
+    public Tick tick() {
+        long now = currentTimeMillis();
+        // floor division, times before the epoch are negative
+        long second = now >= 0 ? now / 1000 : (now - 999) / 1000;
+        Tick current = tick;
+        if (current == null || current.second != second) {
+            current = new Tick(second);
+            tick = current;
+        }
+        return current;
+    }
+}
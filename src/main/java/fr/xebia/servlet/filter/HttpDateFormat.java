@@ -0,0 +1,417 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+/**
+ * <p>
+ * Parser and formatter of the http date formats defined by <a href="http://tools.ietf.org/html/rfc7231#section-7.1.1.1">RFC 7231
+ * section 7.1.1.1</a>.
+ * </p>
+ * <p>
+ * Parsing accepts the three formats a recipient must support:
+ * <ul>
+ * <li>IMF-fixdate: <code>Sun, 06 Nov 1994 08:49:37 GMT</code></li>
+ * <li>obsolete RFC 850 format: <code>Sunday, 06-Nov-94 08:49:37 GMT</code></li>
+ * <li>ANSI C's asctime() format: <code>Sun Nov  6 08:49:37 1994</code></li>
+ * </ul>
+ * Formatting always produces the IMF-fixdate format.
+ * </p>
+ * <p>
+ * Unlike {@link java.text.SimpleDateFormat}, this class is thread safe, does not instantiate any intermediate object (no
+ * <code>Calendar</code>, no <code>ParseException</code>) and reads the given text only once whatever its format. All computations are
+ * done in UTC with the proleptic Gregorian calendar.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public final class HttpDateFormat {
+
+    /**
+     * Length of a date formatted with the IMF-fixdate format (e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>)
+     */
+    public static final int IMF_FIXDATE_LENGTH = 29;
+
+    private static final char[][] DAY_NAMES = { "Sun".toCharArray(), "Mon".toCharArray(), "Tue".toCharArray(), "Wed".toCharArray(),
+            "Thu".toCharArray(), "Fri".toCharArray(), "Sat".toCharArray() };
+
+    private static final char[][] MONTH_NAMES = { "Jan".toCharArray(), "Feb".toCharArray(), "Mar".toCharArray(), "Apr".toCharArray(),
+            "May".toCharArray(), "Jun".toCharArray(), "Jul".toCharArray(), "Aug".toCharArray(), "Sep".toCharArray(), "Oct".toCharArray(),
+            "Nov".toCharArray(), "Dec".toCharArray() };
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Number of days since 1970-01-01 of the given date of the proleptic Gregorian calendar (<code>month</code> in 1..12).
+     */
+    static long daysFromCivil(long year, int month, int dayOfMonth) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(long year, int month) {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * Format the given date with the IMF-fixdate format (e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>).
+     *
+     * @param date
+     *            milliseconds since the epoch
+     */
+    public static String format(long date) {
+        char[] buffer = new char[IMF_FIXDATE_LENGTH];
+        format(date, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * Write the given date formatted with the IMF-fixdate format in the given <code>buffer</code> starting at <code>offset</code>.
+     * Milliseconds are truncated. Years are expected to be in 0..9999.
+     *
+     * @param date
+     *            milliseconds since the epoch
+     * @return the offset following the last written character (<code>offset + {@value #IMF_FIXDATE_LENGTH}</code>)
+     */
+    public static int format(long date, char[] buffer, int offset) {
+        long days = floorDiv(date, MILLIS_PER_DAY);
+        int secondOfDay = (int) ((date - days * MILLIS_PER_DAY) / 1000);
+
+        // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = (int) (dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100));
+        int mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        // 1970-01-01 was a thursday
+        char[] dayName = DAY_NAMES[(int) floorMod(days + 4, 7)];
+        char[] monthName = MONTH_NAMES[month - 1];
+
+        int i = offset;
+        buffer[i++] = dayName[0];
+        buffer[i++] = dayName[1];
+        buffer[i++] = dayName[2];
+        buffer[i++] = ',';
+        buffer[i++] = ' ';
+        i = writeTwoDigits(dayOfMonth, buffer, i);
+        buffer[i++] = ' ';
+        buffer[i++] = monthName[0];
+        buffer[i++] = monthName[1];
+        buffer[i++] = monthName[2];
+        buffer[i++] = ' ';
+        i = writeTwoDigits(year / 100, buffer, i);
+        i = writeTwoDigits(year % 100, buffer, i);
+        buffer[i++] = ' ';
+        i = writeTwoDigits(secondOfDay / 3600, buffer, i);
+        buffer[i++] = ':';
+        i = writeTwoDigits((secondOfDay / 60) % 60, buffer, i);
+        buffer[i++] = ':';
+        i = writeTwoDigits(secondOfDay % 60, buffer, i);
+        buffer[i++] = ' ';
+        buffer[i++] = 'G';
+        buffer[i++] = 'M';
+        buffer[i++] = 'T';
+        return i;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Parse the given http date in one of the IMF-fixdate, RFC 850 or asctime formats.
+     *
+     * @return the date in milliseconds since the epoch or <code>-1</code> if <code>value</code> is <code>null</code> or can not be
+     *         parsed
+     */
+    public static long parse(String value) {
+        return value == null ? -1 : parse(value, 0, value.length());
+    }
+
+    /**
+     * Parse the http date held by the given <code>value</code> between <code>start</code> (inclusive) and <code>end</code> (exclusive).
+     * Leading and trailing whitespaces are ignored, day and month names are case insensitive and the day name is not checked against the
+     * date.
+     *
+     * @return the date in milliseconds since the epoch or <code>-1</code> if the date can not be parsed
+     */
+    public static long parse(String value, int start, int end) {
+        int i = start;
+        while (i < end && value.charAt(i) == ' ') {
+            i++;
+        }
+        while (end > i && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        // day name, ignored: "Sun" or "Sunday"
+        int dayNameStart = i;
+        while (i < end && isLetter(value.charAt(i))) {
+            i++;
+        }
+        if (i - dayNameStart < 3) {
+            return -1;
+        }
+        boolean comma = i < end && value.charAt(i) == ',';
+        if (comma) {
+            i++;
+        }
+        if (i >= end || value.charAt(i) != ' ') {
+            return -1;
+        }
+        i++;
+        if (i >= end) {
+            return -1;
+        }
+
+        long year;
+        int month;
+        int dayOfMonth;
+        int secondOfDay;
+        int offsetInMinutes;
+        if (comma) {
+            // IMF-fixdate "06 Nov 1994 08:49:37 GMT" or RFC 850 "06-Nov-94 08:49:37 GMT"
+            if (i + 2 > end || !isDigit(value.charAt(i)) || !isDigit(value.charAt(i + 1))) {
+                return -1;
+            }
+            dayOfMonth = readTwoDigits(value, i);
+            i += 2;
+            if (i >= end) {
+                return -1;
+            }
+            char separator = value.charAt(i);
+            if (separator != ' ' && separator != '-') {
+                return -1;
+            }
+            i++;
+            month = readMonth(value, i, end);
+            if (month < 0) {
+                return -1;
+            }
+            i += 3;
+            if (i >= end || value.charAt(i) != separator) {
+                return -1;
+            }
+            i++;
+            int yearStart = i;
+            year = 0;
+            while (i < end && isDigit(value.charAt(i))) {
+                year = year * 10 + (value.charAt(i) - '0');
+                i++;
+            }
+            int yearDigits = i - yearStart;
+            if (yearDigits == 2) {
+                year = twoDigitYear((int) year);
+            } else if (yearDigits != 4) {
+                return -1;
+            }
+            if (i >= end || value.charAt(i) != ' ') {
+                return -1;
+            }
+            i++;
+            secondOfDay = readTime(value, i, end);
+            if (secondOfDay < 0) {
+                return -1;
+            }
+            i += 8;
+            if (i >= end || value.charAt(i) != ' ') {
+                return -1;
+            }
+            i++;
+            offsetInMinutes = readZone(value, i, end);
+            if (offsetInMinutes == Integer.MIN_VALUE) {
+                return -1;
+            }
+        } else {
+            // asctime "Nov  6 08:49:37 1994"
+            month = readMonth(value, i, end);
+            if (month < 0) {
+                return -1;
+            }
+            i += 3;
+            if (i >= end || value.charAt(i) != ' ') {
+                return -1;
+            }
+            while (i < end && value.charAt(i) == ' ') {
+                i++;
+            }
+            dayOfMonth = 0;
+            int dayStart = i;
+            while (i < end && isDigit(value.charAt(i)) && i - dayStart < 2) {
+                dayOfMonth = dayOfMonth * 10 + (value.charAt(i) - '0');
+                i++;
+            }
+            if (i == dayStart || i >= end || value.charAt(i) != ' ') {
+                return -1;
+            }
+            i++;
+            secondOfDay = readTime(value, i, end);
+            if (secondOfDay < 0) {
+                return -1;
+            }
+            i += 8;
+            if (i + 5 != end || value.charAt(i) != ' ') {
+                return -1;
+            }
+            i++;
+            year = 0;
+            for (; i < end; i++) {
+                char c = value.charAt(i);
+                if (!isDigit(c)) {
+                    return -1;
+                }
+                year = year * 10 + (c - '0');
+            }
+            offsetInMinutes = 0;
+        }
+
+        if (dayOfMonth < 1 || dayOfMonth > daysInMonth(year, month)) {
+            return -1;
+        }
+        return daysFromCivil(year, month, dayOfMonth) * MILLIS_PER_DAY + (secondOfDay - offsetInMinutes * 60L) * 1000;
+    }
+
+    /**
+     * Return the month (1..12) whose case insensitive 3 letters abbreviation starts at <code>offset</code> or <code>-1</code>.
+     */
+    private static int readMonth(String value, int offset, int end) {
+        if (offset + 3 > end) {
+            return -1;
+        }
+        char c0 = value.charAt(offset);
+        char c1 = value.charAt(offset + 1);
+        char c2 = value.charAt(offset + 2);
+        for (int month = 0; month < MONTH_NAMES.length; month++) {
+            char[] name = MONTH_NAMES[month];
+            if (sameLetterIgnoreCase(name[0], c0) && sameLetterIgnoreCase(name[1], c1) && sameLetterIgnoreCase(name[2], c2)) {
+                return month + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the second of the day of the "<code>HH:mm:ss</code>" time starting at <code>offset</code> or <code>-1</code>. Leap seconds
+     * are accepted.
+     */
+    private static int readTime(String value, int offset, int end) {
+        if (offset + 8 > end) {
+            return -1;
+        }
+        for (int i = 0; i < 8; i++) {
+            char c = value.charAt(offset + i);
+            if (i == 2 || i == 5 ? c != ':' : !isDigit(c)) {
+                return -1;
+            }
+        }
+        int hours = readTwoDigits(value, offset);
+        int minutes = readTwoDigits(value, offset + 3);
+        int seconds = readTwoDigits(value, offset + 6);
+        if (hours > 23 || minutes > 59 || seconds > 60) {
+            return -1;
+        }
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    private static int readTwoDigits(String value, int offset) {
+        return (value.charAt(offset) - '0') * 10 + (value.charAt(offset + 1) - '0');
+    }
+
+    /**
+     * Return the offset from UTC in minutes of the time zone that goes from <code>offset</code> to <code>end</code> or
+     * {@link Integer#MIN_VALUE} if it is not supported. <code>GMT</code>, <code>UTC</code>, <code>UT</code> and numeric
+     * <code>+hhmm</code>/<code>-hhmm</code> zones are supported.
+     */
+    private static int readZone(String value, int offset, int end) {
+        int length = end - offset;
+        if (length == 3 && (value.regionMatches(true, offset, "GMT", 0, 3) || value.regionMatches(true, offset, "UTC", 0, 3))) {
+            return 0;
+        }
+        if (length == 2 && value.regionMatches(true, offset, "UT", 0, 2)) {
+            return 0;
+        }
+        if (length == 5) {
+            char sign = value.charAt(offset);
+            if ((sign == '+' || sign == '-') && isDigit(value.charAt(offset + 1)) && isDigit(value.charAt(offset + 2))
+                    && isDigit(value.charAt(offset + 3)) && isDigit(value.charAt(offset + 4))) {
+                int hours = readTwoDigits(value, offset + 1);
+                int minutes = readTwoDigits(value, offset + 3);
+                if (minutes > 59) {
+                    return Integer.MIN_VALUE;
+                }
+                return (sign == '+' ? 1 : -1) * (hours * 60 + minutes);
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static boolean sameLetterIgnoreCase(char expected, char c) {
+        return expected == c || (expected ^ 0x20) == c;
+    }
+
+    /**
+     * Interpret a two digits year of the RFC 850 format: "a timestamp that appears to be more than 50 years in the future is in fact
+     * in the past".
+     */
+    private static long twoDigitYear(int twoDigitYear) {
+        long currentYear = 1970 + floorDiv(System.currentTimeMillis(), MILLIS_PER_DAY) * 400 / 146097;
+        long year = currentYear - floorMod(currentYear, 100) + twoDigitYear;
+        if (year > currentYear + 50) {
+            year -= 100;
+        }
+        return year;
+    }
+
+    private static int writeTwoDigits(int value, char[] buffer, int offset) {
+        buffer[offset] = (char) ('0' + value / 10);
+        buffer[offset + 1] = (char) ('0' + value % 10);
+        return offset + 2;
+    }
+
+    private HttpDateFormat() {
+    }
+}
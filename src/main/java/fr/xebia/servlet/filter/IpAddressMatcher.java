@@ -0,0 +1,576 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>
+ * Compiled matcher of remote addresses used by {@link XForwardedFilter} and {@link SecuredRemoteAddressFilter}.
+ * </p>
+ * <p>
+ * Each element of the configuration is compiled as follows:
+ * <ul>
+ * <li>address blocks in CIDR notation (e.g. <code>10.0.0.0/8</code>, <code>2001:db8::/32</code>) and plain IPv4 or IPv6 addresses
+ * are stored in a binary radix trie; the remote address is parsed once into an <code>int</code> (IPv4) or a pair of <code>long</code>
+ * (IPv6) and lookup cost only depends on the prefix length, not on the number of configured blocks,</li>
+ * <li>regular expressions that only describe a literal value (e.g. <code>192\.168\.0\.10</code> or <code>proxy1</code>) are stored in a
+ * {@link Set},</li>
+ * <li>the regular expressions of the private network address blocks that were historically used as default values (e.g.
+ * <code>10\.\d{1,3}\.\d{1,3}\.\d{1,3}</code>) are translated into their CIDR equivalent,</li>
+ * <li>any other value is kept as a {@link Pattern} for backward compatibility and is evaluated last.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Instances are immutable and thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class IpAddressMatcher {
+
+    /**
+     * Binary radix trie of address prefixes. Bits are consumed from the most significant bit of <code>high</code> then from the most
+     * significant bit of <code>low</code>.
+     */
+    static class PrefixTrie {
+
+        private int[] children = new int[32];
+
+        private boolean[] terminal = new boolean[16];
+
+        private int size = 1;
+
+        private boolean empty = true;
+
+        void add(long high, long low, int prefixLength) {
+            int node = 0;
+            for (int bit = 0; bit < prefixLength; bit++) {
+                if (terminal[node]) {
+                    // a shorter prefix already covers this block
+                    return;
+                }
+                int branch = (node << 1) | bitAt(high, low, bit);
+                if (children[branch] == 0) {
+                    // newNode() may reallocate the children array
+                    int child = newNode();
+                    children[branch] = child;
+                }
+                node = children[branch];
+            }
+            terminal[node] = true;
+            empty = false;
+        }
+
+        boolean contains(long high, long low, int addressLength) {
+            int node = 0;
+            for (int bit = 0; bit < addressLength; bit++) {
+                if (terminal[node]) {
+                    return true;
+                }
+                node = children[(node << 1) | bitAt(high, low, bit)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+            return terminal[node];
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        private int newNode() {
+            if (size == terminal.length) {
+                int[] newChildren = new int[children.length * 2];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                children = newChildren;
+                boolean[] newTerminal = new boolean[terminal.length * 2];
+                System.arraycopy(terminal, 0, newTerminal, 0, terminal.length);
+                terminal = newTerminal;
+            }
+            return size++;
+        }
+
+        private static int bitAt(long high, long low, int bit) {
+            return bit < 64 ? (int) ((high >>> (63 - bit)) & 1L) : (int) ((low >>> (127 - bit)) & 1L);
+        }
+    }
+
+    /**
+     * Regular expressions of the private network address blocks historically used as default configuration, and their CIDR equivalent.
+     */
+    private static final Map<String, String> cidrByLegacyPattern = new HashMap<String, String>();
+
+    /**
+     * Reverse of {@link #cidrByLegacyPattern}, used to return the historical regular expressions of the private network address blocks.
+     */
+    private static final Map<String, String> legacyPatternByCidr = new HashMap<String, String>();
+
+    /**
+     * Buffer of {@link #matches(String, int, int)} to parse IPv6 addresses without allocation.
+     */
+    private static final ThreadLocal<long[]> ipv6Buffer = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /**
+     * Class A, B and C <a href="http://en.wikipedia.org/wiki/Private_network">private network IP address blocks</a>, link local
+     * addresses and loopback addresses.
+     */
+    public static final String PRIVATE_NETWORKS = "10.0.0.0/8, 192.168.0.0/16, 172.16.0.0/12, 169.254.0.0/16, 127.0.0.0/8";
+
+    static {
+        cidrByLegacyPattern.put("10\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}", "10.0.0.0/8");
+        cidrByLegacyPattern.put("192\\.168\\.\\d{1,3}\\.\\d{1,3}", "192.168.0.0/16");
+        cidrByLegacyPattern.put("172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}", "172.16.0.0/12");
+        cidrByLegacyPattern.put("172\\.(?:1[6-9]|2\\d|3[0-1])\\.\\d{1,3}\\.\\d{1,3}", "172.16.0.0/12");
+        cidrByLegacyPattern.put("169\\.254\\.\\d{1,3}\\.\\d{1,3}", "169.254.0.0/16");
+        cidrByLegacyPattern.put("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}", "127.0.0.0/8");
+        for (Map.Entry<String, String> entry : cidrByLegacyPattern.entrySet()) {
+            // the unescaped dots of one of the 172.16.0.0/12 patterns are a historical mistake
+            if (!legacyPatternByCidr.containsKey(entry.getValue()) || entry.getKey().indexOf("\\d{1,3}.") == -1) {
+                legacyPatternByCidr.put(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Compile the given comma delimited list of CIDR blocks, addresses and regular expressions.
+     *
+     * @param commaDelimitedExpressions
+     *            can be <code>null</code>
+     * @throws IllegalArgumentException
+     *             if one of the expressions is neither a valid CIDR block nor a valid regular expression
+     */
+    public static IpAddressMatcher compile(String commaDelimitedExpressions) {
+        return new IpAddressMatcher(XForwardedFilter.commaDelimitedListToStringArray(commaDelimitedExpressions));
+    }
+
+    /**
+     * Return <code>true</code> if the given expression is a plain IPv4 or IPv6 address.
+     */
+    private static boolean isAddress(String expression) {
+        return parseIPv4(expression, 0, expression.length()) != -1 || expression.indexOf(':') >= 0
+                && parseIPv6(expression, 0, expression.length(), new long[2]);
+    }
+
+    /**
+     * Return <code>true</code> if the given regular expression only matches itself once <code>\.</code> sequences are unescaped.
+     */
+    private static boolean isLiteralPattern(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '.') {
+                    i++;
+                } else {
+                    return false;
+                }
+            } else if (!(Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':' || c == '%')) {
+                return false;
+            }
+        }
+        return regex.length() > 0;
+    }
+
+    /**
+     * Parse the given IPv4 address (e.g. <code>192.168.0.10</code>) without any allocation.
+     *
+     * @return the address as an unsigned 32 bits value or <code>-1</code> if the given <code>str</code> is not an IPv4 address.
+     */
+    static long parseIPv4(String str, int start, int end) {
+        long address = 0;
+        int octets = 0;
+        int octet = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 3) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || octets == 3) {
+                    return -1;
+                }
+                address = (address << 8) | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || octets != 3) {
+            return -1;
+        }
+        return (address << 8) | octet;
+    }
+
+    /**
+     * Parse the given IPv6 address (e.g. <code>2001:db8::1</code>, <code>::ffff:10.0.0.1</code>) into the given 2 elements array.
+     *
+     * @return <code>false</code> if the given <code>str</code> is not an IPv6 address.
+     */
+    static boolean parseIPv6(String str, int start, int end, long[] result) {
+        int zoneIdx = str.indexOf('%', start);
+        if (zoneIdx >= 0 && zoneIdx < end) {
+            end = zoneIdx;
+        }
+        if (end - start >= 2 && str.charAt(start) == '[' && str.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        // the groups of 16 bits are pushed in a 128 bits shift register
+        long high = 0;
+        long low = 0;
+        int groups = 0;
+        int compressionIdx = -1;
+        int i = start;
+        if (end - start >= 2 && str.charAt(i) == ':' && str.charAt(i + 1) == ':') {
+            compressionIdx = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            while (i < end && str.charAt(i) != ':' && str.charAt(i) != '.') {
+                int digit = Character.digit(str.charAt(i), 16);
+                if (digit < 0 || i - groupStart >= 4) {
+                    return false;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+            if (i < end && str.charAt(i) == '.') {
+                // embedded IPv4 address as the last 32 bits
+                long ipv4 = parseIPv4(str, groupStart, end);
+                if (ipv4 == -1 || groups > 6) {
+                    return false;
+                }
+                high = (high << 32) | (low >>> 32);
+                low = (low << 32) | ipv4;
+                groups += 2;
+                break;
+            }
+            if (i == groupStart || groups == 8) {
+                return false;
+            }
+            high = (high << 16) | (low >>> 48);
+            low = (low << 16) | group;
+            groups++;
+            if (i < end) {
+                // skip ':'
+                i++;
+                if (i == end) {
+                    return false;
+                } else if (str.charAt(i) == ':') {
+                    if (compressionIdx >= 0) {
+                        return false;
+                    }
+                    compressionIdx = groups;
+                    i++;
+                }
+            }
+        }
+        if (compressionIdx == -1) {
+            if (groups != 8) {
+                return false;
+            }
+        } else if (groups == 8) {
+            return false;
+        } else {
+            // move the groups preceding the "::" to the most significant bits
+            int tailBits = 16 * (groups - compressionIdx);
+            int headShift = 16 * (8 - compressionIdx);
+            long headHigh = shiftRightHigh(high, tailBits);
+            long headLow = shiftRightLow(high, low, tailBits);
+            long tailHigh = tailBits > 64 ? high & ((1L << (tailBits - 64)) - 1) : 0;
+            long tailLow = tailBits >= 64 ? low : low & ((1L << tailBits) - 1);
+            high = shiftLeftHigh(headHigh, headLow, headShift) | tailHigh;
+            low = shiftLeftLow(headLow, headShift) | tailLow;
+        }
+        result[0] = high;
+        result[1] = low;
+        return true;
+    }
+
+    private static long shiftLeftHigh(long high, long low, int n) {
+        if (n == 0) {
+            return high;
+        }
+        return n >= 64 ? (n >= 128 ? 0 : low << (n - 64)) : (high << n) | (low >>> (64 - n));
+    }
+
+    private static long shiftLeftLow(long low, int n) {
+        return n >= 64 ? 0 : low << n;
+    }
+
+    private static long shiftRightHigh(long high, int n) {
+        return n >= 64 ? 0 : high >>> n;
+    }
+
+    private static long shiftRightLow(long high, long low, int n) {
+        if (n == 0) {
+            return low;
+        }
+        return n >= 64 ? (n >= 128 ? 0 : high >>> (n - 64)) : (low >>> n) | (high << (64 - n));
+    }
+
+    /**
+     * IPv4 prefixes, stored in the 32 most significant bits.
+     */
+    private final PrefixTrie ipv4Trie = new PrefixTrie();
+
+    /**
+     * IPv6 prefixes
+     */
+    private final PrefixTrie ipv6Trie = new PrefixTrie();
+
+    /**
+     * Literal values (host names, addresses that are not expressed in CIDR notation).
+     */
+    private final Set<String> literals = new HashSet<String>();
+
+    /**
+     * Regular expressions that could not be compiled to the trie or to the literals.
+     */
+    private final Pattern[] patterns;
+
+    /**
+     * Original configuration
+     */
+    private final String[] expressions;
+
+    public IpAddressMatcher(String... expressions) {
+        this.expressions = expressions;
+        List<Pattern> patternsList = new ArrayList<Pattern>();
+        for (String expression : expressions) {
+            String cidr = cidrByLegacyPattern.get(expression);
+            if (cidr != null) {
+                addCidr(cidr);
+            } else if (isCidr(expression) || isAddress(expression)) {
+                addCidr(expression);
+            } else if (isLiteralPattern(expression)) {
+                String literal = expression.replace("\\.", ".");
+                if (isAddress(literal)) {
+                    addCidr(literal);
+                } else {
+                    literals.add(literal);
+                }
+            } else {
+                try {
+                    patternsList.add(Pattern.compile(expression));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Illegal pattern syntax '" + expression + "'", e);
+                }
+            }
+        }
+        this.patterns = patternsList.toArray(new Pattern[0]);
+    }
+
+    private void addCidr(String cidr) {
+        int slashIdx = cidr.indexOf('/');
+        int addressEnd = slashIdx == -1 ? cidr.length() : slashIdx;
+        int prefixLength;
+        long ipv4 = parseIPv4(cidr, 0, addressEnd);
+        long[] ipv6 = new long[2];
+        boolean isIPv6 = ipv4 == -1 && parseIPv6(cidr, 0, addressEnd, ipv6);
+        if (ipv4 == -1 && !isIPv6) {
+            throw new IllegalArgumentException("Illegal address block '" + cidr + "'");
+        }
+        int maxPrefixLength = isIPv6 ? 128 : 32;
+        if (slashIdx == -1) {
+            prefixLength = maxPrefixLength;
+        } else {
+            try {
+                prefixLength = Integer.parseInt(cidr.substring(slashIdx + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal prefix length in address block '" + cidr + "'");
+            }
+            if (prefixLength < 0 || prefixLength > maxPrefixLength) {
+                throw new IllegalArgumentException("Illegal prefix length in address block '" + cidr + "'");
+            }
+        }
+        if (isIPv6) {
+            ipv6Trie.add(ipv6[0], ipv6[1], prefixLength);
+        } else {
+            ipv4Trie.add(ipv4 << 32, 0, prefixLength);
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the given expression looks like <code>address/prefixLength</code>.
+     */
+    private boolean isCidr(String expression) {
+        int slashIdx = expression.indexOf('/');
+        if (slashIdx <= 0 || slashIdx == expression.length() - 1) {
+            return false;
+        }
+        for (int i = slashIdx + 1; i < expression.length(); i++) {
+            if (!Character.isDigit(expression.charAt(i))) {
+                return false;
+            }
+        }
+        return parseIPv4(expression, 0, slashIdx) != -1 || parseIPv6(expression, 0, slashIdx, new long[2]);
+    }
+
+    /**
+     * Return the configuration this matcher has been compiled from.
+     */
+    public String[] getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * Return <code>true</code> if the given address or host name matches one of the configured address blocks, literals or regular
+     * expressions.
+     *
+     * @param address
+     *            can be <code>null</code>
+     */
+    public boolean matches(String address) {
+        if (address == null) {
+            return false;
+        }
+        return matches(address, 0, address.length());
+    }
+
+    /**
+     * Return <code>true</code> if the substring of the given <code>str</code> between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive) matches one of the configured address blocks, literals or regular expressions.
+     */
+    public boolean matches(String str, int start, int end) {
+        if (!ipv4Trie.isEmpty()) {
+            long ipv4 = parseIPv4(str, start, end);
+            if (ipv4 != -1 && ipv4Trie.contains(ipv4 << 32, 0, 32)) {
+                return true;
+            }
+        }
+        if (!ipv6Trie.isEmpty() && str.indexOf(':', start) >= 0) {
+            long[] ipv6 = ipv6Buffer.get();
+            if (parseIPv6(str, start, end, ipv6)) {
+                if (ipv6Trie.contains(ipv6[0], ipv6[1], 128)) {
+                    return true;
+                }
+            }
+        }
+        if (literals.isEmpty() && patterns.length == 0) {
+            return false;
+        }
+        String value = (start == 0 && end == str.length()) ? str : str.substring(start, end);
+        if (literals.contains(value)) {
+            return true;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the configuration as an array of {@link Pattern}. The private network address blocks are returned as their historical
+     * regular expression, the other address blocks and addresses as an equivalent regular expression; IPv6 blocks only match the fully
+     * expanded notation (e.g. <code>2001:0db8:0000:0000:0000:0000:0000:0001</code>).
+     */
+    public Pattern[] toPatterns() {
+        Pattern[] result = new Pattern[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            String expression = expressions[i];
+            if (isCidr(expression) || isAddress(expression)) {
+                String legacyPattern = legacyPatternByCidr.get(expression);
+                result[i] = legacyPattern == null ? toPattern(expression) : Pattern.compile(legacyPattern);
+            } else {
+                result[i] = Pattern.compile(expression);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a regular expression matching the addresses of the given address block or address.
+     */
+    private static Pattern toPattern(String cidr) {
+        int slashIdx = cidr.indexOf('/');
+        int addressEnd = slashIdx == -1 ? cidr.length() : slashIdx;
+        StringBuilder regex = new StringBuilder();
+        long ipv4 = parseIPv4(cidr, 0, addressEnd);
+        if (ipv4 != -1) {
+            int prefixLength = slashIdx == -1 ? 32 : Integer.parseInt(cidr.substring(slashIdx + 1));
+            for (int octet = 0; octet < 4; octet++) {
+                if (octet > 0) {
+                    regex.append("\\.");
+                }
+                int value = (int) (ipv4 >>> (24 - 8 * octet)) & 0xFF;
+                int fixedBits = Math.max(0, Math.min(8, prefixLength - 8 * octet));
+                if (fixedBits == 8) {
+                    regex.append(value);
+                } else if (fixedBits == 0) {
+                    regex.append("\\d{1,3}");
+                } else {
+                    int first = value & (0xFF << (8 - fixedBits));
+                    int last = first + (1 << (8 - fixedBits)) - 1;
+                    regex.append("(?:");
+                    for (int i = first; i <= last; i++) {
+                        regex.append(i == first ? "" : "|").append(i);
+                    }
+                    regex.append(")");
+                }
+            }
+            return Pattern.compile(regex.toString());
+        }
+        long[] ipv6 = new long[2];
+        parseIPv6(cidr, 0, addressEnd, ipv6);
+        int prefixLength = slashIdx == -1 ? 128 : Integer.parseInt(cidr.substring(slashIdx + 1));
+        for (int nibble = 0; nibble < 32; nibble++) {
+            if (nibble > 0 && nibble % 4 == 0) {
+                regex.append(':');
+            }
+            int value = (int) ((nibble < 16 ? ipv6[0] >>> (60 - 4 * nibble) : ipv6[1] >>> (124 - 4 * nibble)) & 0xF);
+            int fixedBits = Math.max(0, Math.min(4, prefixLength - 4 * nibble));
+            int first = value & (0xF << (4 - fixedBits));
+            int last = first + (1 << (4 - fixedBits)) - 1;
+            regex.append('[');
+            for (int i = first; i <= last; i++) {
+                regex.append(Character.forDigit(i, 16));
+            }
+            regex.append(']');
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    @Override
+    public String toString() {
+        return "IpAddressMatcher" + java.util.Arrays.asList(expressions);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Append-only log of records stored in memory-mapped segment files of a directory.
+ * </p>
+ * <p>
+ * Each record is made of a header (magic number, payload length and CRC32 checksum of the payload) followed by the payload. Records
+ * are appended to the active segment; once it is full, the segment is sealed and a new one is created. The records of the existing
+ * segments are reloaded by {@link #load()}, the scan of a segment stops at the first record whose header or checksum is invalid (e.g.
+ * a record partially written when the JVM crashed).
+ * </p>
+ * <p>
+ * The store does not know which records are still in use: the owner of the records declares the freed records with
+ * {@link #free(Location)}, which replaces the magic number of the record by a tombstone so that it is skipped by the next
+ * {@link #load()}, and a sealed segment is deleted once all its records have been freed. Records of sparse segments can be
+ * moved to the active segment with {@link #copy(Location)} before freeing them (compaction, see {@link #getSparseSegments()}).
+ * </p>
+ * <p>
+ * Mapped segments are never explicitly unmapped, the buffers returned by {@link #getPayload(Location)} remain readable after the
+ * deletion of their segment file.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class MappedSegmentStore {
+
+    /**
+     * Location of a record in a segment.
+     */
+    public static final class Location {
+
+        private final int length;
+
+        private final int offset;
+
+        private final Segment segment;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Length of the record, header included.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        public Segment getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * Segment file.
+     */
+    public static final class Segment {
+
+        private final MappedByteBuffer buffer;
+
+        private final File file;
+
+        private final int id;
+
+        /**
+         * Bytes of the records that have not been freed, guarded by the store.
+         */
+        private long liveBytes;
+
+        private boolean sealed;
+
+        /**
+         * Guarded by the store.
+         */
+        private int writePosition;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    private static final int HEADER_LENGTH = 12;
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSegmentStore.class);
+
+    private static final int MAGIC = 0x58524331;
+
+    /**
+     * Magic number of the freed records, their payload length is kept to skip them.
+     */
+    private static final int MAGIC_FREED = 0x58524330;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+
+    private Segment activeSegment;
+
+    private final File directory;
+
+    private int nextSegmentId;
+
+    private final int segmentSize;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    public MappedSegmentStore(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Append the given payload to the active segment.
+     *
+     * @throws IllegalArgumentException
+     *             if the record does not fit in a segment
+     */
+    public synchronized Location append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        Segment segment = getActiveSegment(HEADER_LENGTH + payload.length);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.writePosition + HEADER_LENGTH);
+        buffer.put(payload);
+        buffer.position(segment.writePosition);
+        buffer.putInt(MAGIC).putInt(payload.length).putInt((int) crc.getValue());
+        return allocate(segment, HEADER_LENGTH + payload.length);
+    }
+
+    private Location allocate(Segment segment, int length) {
+        Location location = new Location(segment, segment.writePosition, length);
+        segment.writePosition += length;
+        segment.liveBytes += length;
+        return location;
+    }
+
+    /**
+     * Flush the segments to the disk.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        activeSegment = null;
+    }
+
+    /**
+     * Copy the given record to the active segment, the given location still has to be freed.
+     */
+    public synchronized Location copy(Location location) throws IOException {
+        Segment segment = getActiveSegment(location.length);
+        ByteBuffer source = location.segment.buffer.duplicate();
+        source.limit(location.offset + location.length);
+        source.position(location.offset);
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(segment.writePosition);
+        target.put(source);
+        return allocate(segment, location.length);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%08d", id) + SEGMENT_FILE_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long length = Math.max(segmentSize, randomAccessFile.length());
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new Segment(id, file, buffer);
+        } finally {
+            // the mapping remains valid after closing the channel
+            randomAccessFile.close();
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        if (!segment.file.delete()) {
+            logger.warn("Can not delete segment file " + segment.file);
+            segment.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Free the given record, its segment is deleted if it is sealed and all its records have been freed.
+     */
+    public synchronized void free(Location location) {
+        Segment segment = location.segment;
+        segment.buffer.putInt(location.offset, MAGIC_FREED);
+        segment.liveBytes -= location.length;
+        if (segment.sealed && segment.liveBytes <= 0 && segments.contains(segment)) {
+            delete(segment);
+        }
+    }
+
+    private Segment getActiveSegment(int length) throws IOException {
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment of " + segmentSize + " bytes");
+        }
+        if (activeSegment != null && activeSegment.writePosition + length > activeSegment.buffer.capacity()) {
+            seal(activeSegment);
+            activeSegment = null;
+        }
+        if (activeSegment == null) {
+            activeSegment = createSegment(nextSegmentId++);
+            segments.add(activeSegment);
+        }
+        return activeSegment;
+    }
+
+    /**
+     * Return a read only view of the payload of the given record.
+     */
+    public ByteBuffer getPayload(Location location) {
+        ByteBuffer payload = location.segment.buffer.asReadOnlyBuffer();
+        payload.limit(location.offset + location.length);
+        payload.position(location.offset + HEADER_LENGTH);
+        return payload.slice();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Return the sealed segments of which less than the half is still in use.
+     */
+    public synchronized List<Segment> getSparseSegments() {
+        List<Segment> sparseSegments = new ArrayList<Segment>();
+        for (Segment segment : segments) {
+            if (segment.sealed && segment.liveBytes < segment.writePosition / 2) {
+                sparseSegments.add(segment);
+            }
+        }
+        return sparseSegments;
+    }
+
+    /**
+     * Reload the records of the segment files of the directory in the order they have been appended. All the segments are sealed and
+     * the next records will be appended to a new segment.
+     */
+    public synchronized List<Location> load() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        List<Location> locations = new ArrayList<Location>();
+        byte[] transferBuffer = new byte[8192];
+        for (File file : files) {
+            int id;
+            try {
+                id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignore unexpected file " + file);
+                continue;
+            }
+            Segment segment = createSegment(id);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset + HEADER_LENGTH <= buffer.capacity()) {
+                buffer.position(offset);
+                int magic = buffer.getInt();
+                int payloadLength = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (magic == MAGIC_FREED && payloadLength >= 0 && payloadLength <= buffer.capacity() - offset - HEADER_LENGTH) {
+                    offset += HEADER_LENGTH + payloadLength;
+                    continue;
+                }
+                if (magic != MAGIC || payloadLength < 0 || payloadLength > buffer.capacity() - offset - HEADER_LENGTH) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                for (int remaining = payloadLength; remaining > 0;) {
+                    int count = Math.min(remaining, transferBuffer.length);
+                    buffer.get(transferBuffer, 0, count);
+                    crc.update(transferBuffer, 0, count);
+                    remaining -= count;
+                }
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Invalid checksum of the record at offset " + offset + " of " + file + ", ignore the end of the segment");
+                    break;
+                }
+                segment.writePosition = offset;
+                locations.add(allocate(segment, HEADER_LENGTH + payloadLength));
+                offset += HEADER_LENGTH + payloadLength;
+            }
+            segment.writePosition = offset;
+            segments.add(segment);
+            seal(segment);
+        }
+        return locations;
+    }
+
+    private void seal(Segment segment) {
+        segment.sealed = true;
+        segment.buffer.force();
+        if (segment.liveBytes <= 0) {
+            delete(segment);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedSegmentStore[directory=" + directory + ", segmentSize=" + segmentSize + ", segments=" + segments + "]";
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+/**
+ * <p>
+ * Associates values to path patterns and selects the value of the pattern matching a given request path with the precedence of the
+ * servlet mappings:
+ * <ol>
+ * <li>exact path (e.g. <code>/favicon.ico</code>),</li>
+ * <li>longest path prefix (e.g. <code>/static/**</code> matches <code>/static</code> and everything below <code>/static/</code>,
+ * <code>/**</code> matches everything),</li>
+ * <li>longest suffix (e.g. <code>*.woff2</code> or <code>*.min.js</code>).</li>
+ * </ol>
+ * </p>
+ * <p>
+ * Exact paths and prefixes are held by a character trie and suffixes by a character trie of the reversed suffixes: a lookup walks the
+ * path at most once in each direction, whatever the number of patterns, and does not instantiate any object.
+ * </p>
+ * <p>
+ * This class is not thread safe for modifications, it must be fully built before being published to the threads calling
+ * {@link #get(String, int, int)}.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class PathPatternTrie<V> {
+
+    private static final class Node<V> {
+
+        private char[] chars = new char[0];
+
+        private Node<V>[] children;
+
+        /**
+         * Value of the exact path ending at this node
+         */
+        private V exactValue;
+
+        /**
+         * Value of the prefix (or of the reversed suffix) ending at this node
+         */
+        private V value;
+
+        Node<V> child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<V> getOrCreateChild(char c) {
+            Node<V> child = child(c);
+            if (child == null) {
+                child = new Node<V>();
+                char[] newChars = new char[chars.length + 1];
+                System.arraycopy(chars, 0, newChars, 0, chars.length);
+                newChars[chars.length] = c;
+                Node<V>[] newChildren = (Node<V>[]) new Node<?>[chars.length + 1];
+                if (children != null) {
+                    System.arraycopy(children, 0, newChildren, 0, children.length);
+                }
+                newChildren[chars.length] = child;
+                chars = newChars;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+
+    private final Node<V> prefixes = new Node<V>();
+
+    private int size;
+
+    private final Node<V> suffixes = new Node<V>();
+
+    /**
+     * Return the value associated to the pattern matching the path held by <code>path</code> between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive) or <code>null</code> if no pattern matches.
+     */
+    public V get(String path, int start, int end) {
+        // exact path and longest prefix
+        V value = prefixes.value;
+        Node<V> node = prefixes;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(path.charAt(i));
+            if (node != null && node.value != null) {
+                value = node.value;
+            }
+        }
+        if (node != null) {
+            if (node.exactValue != null) {
+                return node.exactValue;
+            }
+            // "/static/**" also matches "/static"
+            Node<V> slash = node.child('/');
+            if (slash != null && slash.value != null) {
+                return slash.value;
+            }
+        }
+        if (value != null) {
+            return value;
+        }
+
+        // longest suffix
+        node = suffixes;
+        for (int i = end - 1; i >= start && node != null; i--) {
+            node = node.child(path.charAt(i));
+            if (node != null && node.value != null) {
+                value = node.value;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Return the value associated to the pattern matching the given path or <code>null</code> if no pattern matches.
+     */
+    public V get(String path) {
+        return path == null ? null : get(path, 0, path.length());
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add the given pattern: an exact path (<code>/favicon.ico</code>), a path prefix (<code>/static/**</code>) or a suffix (
+     * <code>*.woff2</code>).
+     *
+     * @return <code>false</code> if the pattern had already been added, the given value is then ignored
+     * @throws IllegalArgumentException
+     *             if the pattern is not supported
+     */
+    public boolean put(String pattern, V value) {
+        if (pattern == null || value == null) {
+            throw new IllegalArgumentException("pattern and value can not be null");
+        }
+        pattern = pattern.trim();
+        if (pattern.startsWith("*") && pattern.length() > 1 && pattern.indexOf('*', 1) == -1) {
+            Node<V> node = suffixes;
+            for (int i = pattern.length() - 1; i > 0; i--) {
+                node = node.getOrCreateChild(pattern.charAt(i));
+            }
+            if (node.value != null) {
+                return false;
+            }
+            node.value = value;
+        } else if (pattern.startsWith("/") && pattern.endsWith("/**") && pattern.indexOf('*') == pattern.length() - 2) {
+            // "/static/**" matches "/static" and "/static/..."
+            String prefix = pattern.substring(0, pattern.length() - 2);
+            Node<V> node = prefixes;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrCreateChild(prefix.charAt(i));
+            }
+            if (node.value != null) {
+                return false;
+            }
+            node.value = value;
+        } else if (pattern.startsWith("/") && pattern.indexOf('*') == -1) {
+            Node<V> node = prefixes;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.getOrCreateChild(pattern.charAt(i));
+            }
+            if (node.exactValue != null) {
+                return false;
+            }
+            node.exactValue = value;
+        } else {
+            throw new IllegalArgumentException("Unsupported path pattern '" + pattern + "', expected '/exact/path', '/prefix/**' or '*.suffix'");
+        }
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Locates the precompressed siblings (e.g. <code>/js/app.js.gz</code>) of the static resources of a web application (e.g.
+ * <code>/js/app.js</code>) whose path matches the given path patterns (see {@link PathPatternTrie}).
+ * </p>
+ * <p>
+ * The existence, the size and the modification date of the siblings are held by an in-memory stat cache: the file system is only
+ * checked again once the refresh interval of an entry has elapsed, so that serving a precompressed resource costs no file system call
+ * besides opening it. A sibling older than its uncompressed resource is ignored. Paths containing <code>..</code> segments or located
+ * under <code>/WEB-INF</code> or <code>/META-INF</code> are never matched.
+ * </p>
+ * <p>
+ * The number of cached paths is bounded, the least recently used ones are evicted first.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class PrecompressedResources {
+
+    /**
+     * Precompressed sibling of a resource.
+     */
+    public static final class Resource {
+
+        private final File file;
+
+        private final long lastModified;
+
+        private final long length;
+
+        Resource(File file, long length, long lastModified) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "Resource[file=" + file + ", length=" + length + ", lastModified=" + lastModified + "]";
+        }
+    }
+
+    /**
+     * Sibling found by the last check of a path, <code>null</code> if none, and date of the next check.
+     */
+    private static final class Stat {
+
+        private final long expirationTime;
+
+        private final Resource resource;
+
+        Stat(Resource resource, long expirationTime) {
+            this.resource = resource;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private static final String SUFFIX = ".gz";
+
+    private final int maxSize;
+
+    private final PathPatternTrie<Boolean> pathPatterns = new PathPatternTrie<Boolean>();
+
+    private final long refreshIntervalInMillis;
+
+    private final File rootDirectory;
+
+    /**
+     * Stats by path, in access order.
+     */
+    private final LinkedHashMap<String, Stat> stats;
+
+    /**
+     * @param rootDirectory
+     *            root directory of the web application
+     * @param pathPatterns
+     *            patterns of the paths of the resources that may have a precompressed sibling
+     * @param refreshIntervalInMillis
+     *            time after which the file system is checked again for a given path
+     * @param maxSize
+     *            maximum number of cached paths
+     * @throws IllegalArgumentException
+     *             if a path pattern is not supported
+     */
+    public PrecompressedResources(File rootDirectory, String[] pathPatterns, long refreshIntervalInMillis, final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize (" + maxSize + ") must be positive");
+        }
+        this.rootDirectory = rootDirectory;
+        for (String pathPattern : pathPatterns) {
+            this.pathPatterns.put(pathPattern, Boolean.TRUE);
+        }
+        this.refreshIntervalInMillis = refreshIntervalInMillis;
+        this.maxSize = maxSize;
+        this.stats = new LinkedHashMap<String, Stat>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stat> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the precompressed sibling of the resource of the given path if the path matches the patterns and the sibling exists,
+     * <code>null</code> otherwise.
+     *
+     * @param path
+     *            path of the resource in the web application, starting with a '<code>/</code>'
+     */
+    public Resource get(String path, long now) {
+        if (path == null || pathPatterns.get(path) == null || !isSafe(path)) {
+            return null;
+        }
+        Stat stat;
+        synchronized (this) {
+            stat = stats.get(path);
+        }
+        if (stat == null || stat.expirationTime <= now) {
+            stat = new Stat(stat(path), now + refreshIntervalInMillis);
+            synchronized (this) {
+                stats.put(path, stat);
+            }
+        }
+        return stat.resource;
+    }
+
+    public synchronized int getEntryCount() {
+        return stats.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getRefreshIntervalInMillis() {
+        return refreshIntervalInMillis;
+    }
+
+    public File getRootDirectory() {
+        return rootDirectory;
+    }
+
+    /**
+     * Forget the stat of the given path, e.g. after a failure to open its sibling.
+     */
+    public synchronized void invalidate(String path) {
+        stats.remove(path);
+    }
+
+    /**
+     * Return <code>true</code> if the given path starts with a '<code>/</code>', contains no <code>..</code> segment and is not located
+     * under <code>/WEB-INF</code> or <code>/META-INF</code>.
+     */
+    static boolean isSafe(String path) {
+        return path.startsWith("/") && path.indexOf("/../") == -1 && !path.endsWith("/..") && path.indexOf('\\') == -1
+                && !ExpiresFilter.startsWithIgnoreCase(path, "/WEB-INF") && !ExpiresFilter.startsWithIgnoreCase(path, "/META-INF");
+    }
+
+    /**
+     * Check the file system for the sibling of the resource of the given path.
+     */
+    private Resource stat(String path) {
+        File file = new File(rootDirectory, path.substring(1) + SUFFIX);
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || !file.isFile()) {
+            return null;
+        }
+        File resource = new File(rootDirectory, path.substring(1));
+        if (resource.lastModified() > lastModified) {
+            // stale sibling
+            return null;
+        }
+        return new Resource(file, file.length(), lastModified);
+    }
+
+    @Override
+    public String toString() {
+        return "PrecompressedResources[rootDirectory=" + rootDirectory + ", pathPatterns=" + pathPatterns.size()
+                + ", refreshIntervalInMillis=" + refreshIntervalInMillis + ", entryCount=" + getEntryCount() + "]";
+    }
+}
@@ -0,0 +1,1374 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * In-memory cache of complete http responses (status, headers and body) shared by the threads of a JVM.
+ * </p>
+ * <p>
+ * Only <tt>GET</tt> requests without <tt>Authorization</tt> header are cached. A response is stored if its status is <tt>200</tt>, it
+ * holds an <tt>Expires</tt> header in the future, no <tt>Set-Cookie</tt> header, no <tt>Cache-Control</tt> <tt>private</tt>,
+ * <tt>no-cache</tt> or <tt>no-store</tt> directive, no <tt>Vary: *</tt> header and its body does not exceed the maximum entry size. It
+ * is served until its <tt>Expires</tt> date with an <tt>Age</tt> header so that the <tt>max-age</tt> directive remains accurate for the
+ * clients.
+ * </p>
+ * <p>
+ * Entries are keyed by the method, the request URI, the query string and the values of the request headers listed in the
+ * <tt>Vary</tt> header of the cached response. The total size of the entries is bounded by a byte budget, the approximately least
+ * recently used entries are evicted first: each entry records the time of its last access and the eviction picks the eldest of a
+ * sample of entries, so that the hits are served without locking the cache.
+ * </p>
+ * <p>
+ * The bodies are stored on the java heap, in off-heap slabs (see {@link SlabAllocator}) or, for a persistent cache, in the memory-mapped
+ * segment files of a directory (see {@link MappedSegmentStore}). An off-heap cache keeps on the heap the bodies of a size class for which
+ * no slab is available. A persistent cache reloads the entries that have not expired when it
+ * is created, so that a restarted server is immediately warm, and a background thread periodically discards the expired entries and
+ * compacts the sparse segments.
+ * </p>
+ * <p>
+ * Concurrent misses on the same entry can be coalesced with {@link #join(HttpServletRequest)}: the first request renders the response
+ * while the identical requests wait for it to {@link #land(Flight)} and are then served from the cache.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class ResponseCache {
+
+    /**
+     * Growable buffer that gives up (and releases its bytes) once its limit is exceeded.
+     */
+    private static final class BoundedBuffer extends OutputStream {
+
+        private byte[] buf = new byte[512];
+
+        private int count;
+
+        private final int limit;
+
+        private boolean overflow;
+
+        BoundedBuffer(int limit) {
+            this.limit = limit;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[count];
+            System.arraycopy(buf, 0, bytes, 0, count);
+            return bytes;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (overflow) {
+                return;
+            }
+            if (count + len > limit) {
+                overflow = true;
+                buf = null;
+                return;
+            }
+            if (count + len > buf.length) {
+                byte[] newBuf = new byte[Math.min(limit, Math.max(buf.length << 1, count + len))];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
+
+    /**
+     * <p>
+     * Immutable cached response.
+     * </p>
+     * <p>
+     * The body is held by a <code>byte[]</code> or, outside of the java heap, by a {@link SlabAllocator.Chunk} or by a record of a
+     * {@link MappedSegmentStore}. Off-heap storage is reference counted: it is returned to the cache once the response has been evicted
+     * and the responses being written have been released (see {@link ResponseCache#get(HttpServletRequest, long)}).
+     * </p>
+     * <p>
+     * The <tt>Range</tt> requests are answered with slices of the stored body (see {@link ByteRanges}).
+     * </p>
+     */
+    public static final class CachedResponse implements ByteRanges.Body {
+
+        private final byte[] body;
+
+        /**
+         * Off-heap body, read through duplicates as it is shared by the threads.
+         */
+        private final ByteBuffer bodyBuffer;
+
+        private final ResponseCache cache;
+
+        private final SlabAllocator.Chunk chunk;
+
+        private final int contentLength;
+
+        private final String contentType;
+
+        private final long expirationTime;
+
+        private final String[] headerNames;
+
+        private final String[] headerValues;
+
+        /**
+         * {@link System#nanoTime()} of the last hit, written without lock by the readers.
+         */
+        private volatile long lastAccessTime = System.nanoTime();
+
+        private final MappedSegmentStore.Location location;
+
+        /**
+         * One reference held by the cache plus one per response being written.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private final int status;
+
+        private final long storedTime;
+
+        private final int weight;
+
+        CachedResponse(int status, String contentType, String[] headerNames, String[] headerValues, long storedTime, long expirationTime,
+                byte[] body, ByteBuffer bodyBuffer, int contentLength, ResponseCache cache, SlabAllocator.Chunk chunk,
+                MappedSegmentStore.Location location) {
+            this.status = status;
+            this.contentType = contentType;
+            this.headerNames = headerNames;
+            this.headerValues = headerValues;
+            this.storedTime = storedTime;
+            this.expirationTime = expirationTime;
+            this.body = body;
+            this.bodyBuffer = bodyBuffer;
+            this.contentLength = contentLength;
+            this.cache = cache;
+            this.chunk = chunk;
+            this.location = location;
+            int headersLength = contentType == null ? 0 : contentType.length();
+            for (int i = 0; i < headerNames.length; i++) {
+                headersLength += headerNames[i].length() + headerValues[i].length();
+            }
+            int storageLength = chunk != null ? chunk.getCapacity() : location != null ? location.getLength() : contentLength;
+            // rough estimate of the footprint, chars are two bytes
+            this.weight = storageLength + 2 * headersLength + 128;
+        }
+
+        /**
+         * Return the body, copied from the off-heap storage if needed.
+         */
+        public byte[] getBody() {
+            if (body != null) {
+                return body;
+            }
+            byte[] bytes = new byte[contentLength];
+            ByteBuffer view = bodyBuffer.duplicate();
+            view.get(bytes);
+            return bytes;
+        }
+
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        /**
+         * Return the first value of the given cached header, <code>null</code> if none.
+         */
+        private String getHeader(String name) {
+            for (int i = 0; i < headerNames.length; i++) {
+                if (headerNames[i].equalsIgnoreCase(name)) {
+                    return headerValues[i];
+                }
+            }
+            return null;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getStoredTime() {
+            return storedTime;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public boolean isOffHeap() {
+            return body == null;
+        }
+
+        /**
+         * Return a copy of this response whose body is held by the given record.
+         */
+        CachedResponse relocate(MappedSegmentStore.Location newLocation, ByteBuffer newBodyBuffer) {
+            CachedResponse relocated = new CachedResponse(status, contentType, headerNames, headerValues, storedTime, expirationTime, null,
+                    newBodyBuffer, contentLength, cache, null, newLocation);
+            relocated.lastAccessTime = lastAccessTime;
+            return relocated;
+        }
+
+        /**
+         * Release a reference to this response, the off-heap body is freed with the last reference.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                if (chunk != null) {
+                    cache.allocator.free(chunk);
+                } else if (location != null) {
+                    cache.store.free(location);
+                }
+            }
+        }
+
+        /**
+         * Acquire a reference to this response unless its body has already been freed.
+         *
+         * @return <code>false</code> if the last reference has been released, e.g. by a concurrent eviction
+         */
+        boolean tryRetain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * Write the given slice of the body in the given stream, without copying the whole body.
+         */
+        public void write(OutputStream out, long offset, long length) throws IOException {
+            if (body != null) {
+                out.write(body, (int) offset, (int) length);
+                return;
+            }
+            byte[] buffer = transferBuffer.get();
+            ByteBuffer view = bodyBuffer.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + length));
+            while (view.hasRemaining()) {
+                int count = Math.min(view.remaining(), buffer.length);
+                view.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+
+        /**
+         * Write the status and the headers of this cached response in the given response.
+         */
+        private void writeHeaders(HttpServletResponse response, long now) {
+            response.setStatus(status);
+            if (contentType != null) {
+                response.setContentType(contentType);
+            }
+            for (int i = 0; i < headerNames.length; i++) {
+                response.addHeader(headerNames[i], headerValues[i]);
+            }
+            response.setHeader(HEADER_AGE, Long.toString(Math.max(0, (now - storedTime) / 1000)));
+        }
+
+        /**
+         * Write this cached response in the given response, or the byte ranges of its body requested by the given <tt>GET</tt>
+         * request if its <tt>If-Range</tt> header, if any, matches the <tt>ETag</tt> or the <tt>Last-Modified</tt> header of this
+         * response.
+         */
+        public void writeTo(HttpServletRequest request, HttpServletResponse response, long now) throws IOException {
+            long[] ranges = null;
+            if (status == HttpServletResponse.SC_OK && "GET".equals(request.getMethod())) {
+                ranges = ByteRanges.parse(request.getHeader(HEADER_RANGE), contentLength);
+                if (ranges != null) {
+                    String lastModified = getHeader(HEADER_LAST_MODIFIED);
+                    if (!ByteRanges.matchesIfRange(request.getHeader(HEADER_IF_RANGE), getHeader(HEADER_ETAG),
+                            lastModified == null ? -1 : HttpDateFormat.parse(lastModified))) {
+                        ranges = null;
+                    }
+                }
+            }
+            if (ranges == null) {
+                writeTo(response, now);
+                return;
+            }
+            writeHeaders(response, now);
+            response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+            if (ranges.length == 0) {
+                ByteRanges.writeNotSatisfiable(response, contentLength);
+            } else {
+                ByteRanges.writePartialContent(response, ranges, contentLength, contentType, this);
+            }
+        }
+
+        /**
+         * Write this cached response in the given response.
+         */
+        public void writeTo(HttpServletResponse response, long now) throws IOException {
+            writeHeaders(response, now);
+            if (status == HttpServletResponse.SC_OK) {
+                response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+            }
+            response.setContentLength(contentLength);
+            write(response.getOutputStream(), 0, contentLength);
+        }
+    }
+
+    /**
+     * <p>
+     * Wrapping extension of the {@link HttpServletResponse} that records the status and the headers of the response and copies the
+     * bytes of the body as they are written to the wrapped response.
+     * </p>
+     * <p>
+     * The body is copied until it exceeds the maximum entry size of the cache, the response is then no longer cacheable.
+     * </p>
+     */
+    public static class CapturingResponse extends HttpServletResponseWrapper {
+
+        private final BoundedBuffer body;
+
+        private Writer bodyWriter;
+
+        private final CaseInsensitiveMap<List<String>> headers = new CaseInsensitiveMap<List<String>>();
+
+        private ServletOutputStream outputStream;
+
+        private int status = HttpServletResponse.SC_OK;
+
+        private boolean uncacheable;
+
+        private PrintWriter writer;
+
+        public CapturingResponse(HttpServletResponse response, int maxBodySize) {
+            super(response);
+            this.body = new BoundedBuffer(maxBodySize);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            super.addDateHeader(name, date);
+            addCapturedHeader(name, HttpDateFormat.format(date));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            super.addHeader(name, value);
+            addCapturedHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            super.addIntHeader(name, value);
+            addCapturedHeader(name, Integer.toString(value));
+        }
+
+        private void addCapturedHeader(String name, String value) {
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+
+        /**
+         * Return the captured body or <code>null</code> if it exceeded the maximum entry size.
+         */
+        byte[] getCapturedBody() throws IOException {
+            if (bodyWriter != null) {
+                bodyWriter.flush();
+            }
+            return body.overflow ? null : body.toByteArray();
+        }
+
+        /**
+         * Return the value of the given header or <code>null</code> if it has not been set. Values of multi-valued headers are comma
+         * separated.
+         */
+        public String getCapturedHeader(String name) {
+            List<String> values = headers.get(name);
+            if (values == null || values.isEmpty()) {
+                return null;
+            }
+            if (values.size() == 1) {
+                return values.get(0);
+            }
+            StringBuilder result = new StringBuilder();
+            for (String value : values) {
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                result.append(value);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                final ServletOutputStream out = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void close() throws IOException {
+                        out.close();
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        body.write(b, off, len);
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        body.write(b);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                final PrintWriter out = super.getWriter();
+                String characterEncoding = getCharacterEncoding();
+                try {
+                    bodyWriter = new OutputStreamWriter(body, characterEncoding == null ? "ISO-8859-1" : characterEncoding);
+                } catch (UnsupportedEncodingException e) {
+                    // the container accepted the encoding, can not happen
+                    bodyWriter = new OutputStreamWriter(body, "ISO-8859-1");
+                    uncacheable = true;
+                }
+                writer = new PrintWriter(new Writer() {
+                    @Override
+                    public void close() throws IOException {
+                        out.close();
+                        bodyWriter.flush();
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void write(char[] cbuf, int off, int len) throws IOException {
+                        out.write(cbuf, off, len);
+                        bodyWriter.write(cbuf, off, len);
+                    }
+
+                    @Override
+                    public void write(int c) throws IOException {
+                        out.write(c);
+                        bodyWriter.write(c);
+                    }
+
+                    @Override
+                    public void write(String str, int off, int len) throws IOException {
+                        out.write(str, off, len);
+                        bodyWriter.write(str, off, len);
+                    }
+                });
+            }
+            return writer;
+        }
+
+        /**
+         * <code>true</code> if the response has been redirected, has been sent as an error or could not be captured.
+         */
+        public boolean isUncacheable() {
+            return uncacheable;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            headers.clear();
+            status = HttpServletResponse.SC_OK;
+            resetCapturedBody();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            resetCapturedBody();
+        }
+
+        private void resetCapturedBody() {
+            if (bodyWriter != null) {
+                try {
+                    bodyWriter.flush();
+                } catch (IOException e) {
+                    uncacheable = true;
+                }
+            }
+            body.reset();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            uncacheable = true;
+            this.status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            uncacheable = true;
+            this.status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            uncacheable = true;
+            this.status = HttpServletResponse.SC_FOUND;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            super.setDateHeader(name, date);
+            headers.remove(name);
+            addCapturedHeader(name, HttpDateFormat.format(date));
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            headers.remove(name);
+            if (value != null) {
+                addCapturedHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            super.setIntHeader(name, value);
+            headers.remove(name);
+            addCapturedHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            this.status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        public void setStatus(int sc, String sm) {
+            this.status = sc;
+            super.setStatus(sc, sm);
+        }
+    }
+
+    /**
+     * Rendering of a response by a leader request on which the concurrent identical requests can wait.
+     *
+     * @see ResponseCache#join(HttpServletRequest)
+     */
+    public static final class Flight {
+
+        private final String key;
+
+        private final CountDownLatch landing;
+
+        private final boolean leader;
+
+        Flight(String key, CountDownLatch landing, boolean leader) {
+            this.key = key;
+            this.landing = landing;
+            this.leader = leader;
+        }
+
+        /**
+         * Wait for the leader to land.
+         *
+         * @return <code>true</code> if the leader has landed, <code>false</code> if the timeout elapsed
+         */
+        public boolean await(long timeoutInMillis) throws InterruptedException {
+            return landing.await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * <code>true</code> if the caller of {@link ResponseCache#join(HttpServletRequest)} has to render the response and then call
+         * {@link ResponseCache#land(Flight)}.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        @Override
+        public String toString() {
+            return "Flight[key=" + key + ", leader=" + leader + "]";
+        }
+    }
+
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String HEADER_AGE = "Age";
+
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_EXPIRES = "Expires";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final String HEADER_SET_COOKIE = "Set-Cookie";
+
+    private static final String HEADER_VARY = "Vary";
+
+    /**
+     * Number of entries among which the eldest is evicted.
+     */
+    private static final int EVICTION_SAMPLE_SIZE = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * Maximum size of the segment files of a persistent cache: 64 MB.
+     */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String[] NO_HEADER_NAMES = new String[0];
+
+    /**
+     * Buffer used to copy off-heap bodies to the servlet output streams, which only accept byte arrays.
+     */
+    private static final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * Recorded headers that are not replayed, they are computed again for each response.
+     */
+    private static final String[] NOT_CACHED_HEADERS = { HEADER_AGE, "Connection", "Content-Length", "Date", "Transfer-Encoding" };
+
+    /**
+     * Entries by key, read without lock and modified while holding the lock on <code>this</code>.
+     */
+    private final ConcurrentMap<String, CachedResponse> entries = new ConcurrentHashMap<String, CachedResponse>(64);
+
+    /**
+     * Allocator of the off-heap bodies, <code>null</code> if bodies are stored on the heap.
+     */
+    private final SlabAllocator allocator;
+
+    /**
+     * Compaction thread of a persistent cache.
+     */
+    private ScheduledExecutorService compactionExecutor;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Position of the eviction in the entries, resumed by each eviction so that the successive samples cover all the entries. Guarded by
+     * <code>this</code>.
+     */
+    private Iterator<Map.Entry<String, CachedResponse>> evictionCursor;
+
+    /**
+     * Latches of the responses being rendered by a leader, by cache key.
+     */
+    private final ConcurrentMap<String, CountDownLatch> flights = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final int maxEntrySizeInBytes;
+
+    private final long maxSizeInBytes;
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Guarded by <code>this</code>.
+     */
+    private long sizeInBytes;
+
+    /**
+     * Store of the bodies of a persistent cache, <code>null</code> otherwise.
+     */
+    private final MappedSegmentStore store;
+
+    /**
+     * Names of the <tt>Vary</tt> request headers of the last response cached for each method, URI and query string.
+     */
+    private final ConcurrentMap<String, String[]> varyHeaderNamesByBaseKey = new ConcurrentHashMap<String, String[]>();
+
+    public ResponseCache(long maxSizeInBytes, int maxEntrySizeInBytes) {
+        this(maxSizeInBytes, maxEntrySizeInBytes, false);
+    }
+
+    /**
+     * @param offHeap
+     *            <code>true</code> to store the bodies in direct {@link java.nio.ByteBuffer} slabs (see {@link SlabAllocator}), outside of
+     *            the java heap which then only holds the keys, the headers and the expiration dates
+     */
+    public ResponseCache(long maxSizeInBytes, int maxEntrySizeInBytes, boolean offHeap) {
+        if (maxSizeInBytes <= 0 || maxEntrySizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeInBytes (" + maxSizeInBytes + ") and maxEntrySizeInBytes (" + maxEntrySizeInBytes
+                    + ") must be positive");
+        }
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.maxEntrySizeInBytes = (int) Math.min(maxEntrySizeInBytes, maxSizeInBytes);
+        this.allocator = offHeap ? new SlabAllocator(maxSizeInBytes, this.maxEntrySizeInBytes) : null;
+        this.store = null;
+    }
+
+    /**
+     * Create a persistent cache whose bodies are stored in the segment files of the given directory, reload the entries of the
+     * directory that have not expired and start the compaction thread. The cache must be closed with {@link #close()}.
+     *
+     * @param compactionIntervalInSeconds
+     *            delay between two compactions
+     */
+    public ResponseCache(long maxSizeInBytes, int maxEntrySizeInBytes, File directory, int compactionIntervalInSeconds)
+            throws IOException {
+        if (maxSizeInBytes <= 0 || maxEntrySizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeInBytes (" + maxSizeInBytes + ") and maxEntrySizeInBytes (" + maxEntrySizeInBytes
+                    + ") must be positive");
+        }
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.maxEntrySizeInBytes = (int) Math.min(maxEntrySizeInBytes, maxSizeInBytes);
+        this.allocator = null;
+        // room for the largest body and its headers
+        int segmentSize = (int) Math.max(this.maxEntrySizeInBytes + 64 * 1024, Math.min(MAX_SEGMENT_SIZE, maxSizeInBytes / 4));
+        this.store = new MappedSegmentStore(directory, segmentSize);
+        load(System.currentTimeMillis());
+
+        this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ResponseCache-compaction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    compact(System.currentTimeMillis());
+                } catch (Exception e) {
+                    logger.warn("Exception compacting " + store, e);
+                }
+            }
+        }, compactionIntervalInSeconds, compactionIntervalInSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Return a {@link CapturingResponse} wrapping the given response to be passed to
+     * {@link #put(HttpServletRequest, CapturingResponse, long)} once the response has been generated.
+     */
+    public CapturingResponse capture(HttpServletResponse response) {
+        return new CapturingResponse(response, maxEntrySizeInBytes);
+    }
+
+    /**
+     * Stop the compaction thread and flush the segment files of a persistent cache.
+     */
+    public void close() {
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdown();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Discard the expired entries and, for a persistent cache, move the entries of the sparse segments to the active segment so that
+     * the sparse segments can be deleted. The records are copied without holding the lock on the cache, an entry is only replaced by its
+     * copy if it has not been replaced or removed in the meantime.
+     */
+    public void compact(long now) throws IOException {
+        synchronized (this) {
+            for (Map.Entry<String, CachedResponse> entry : entries.entrySet()) {
+                if (entry.getValue().expirationTime <= now) {
+                    remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (store == null) {
+            return;
+        }
+        List<MappedSegmentStore.Segment> sparseSegments = store.getSparseSegments();
+        if (sparseSegments.isEmpty()) {
+            return;
+        }
+        // retained so that their records are not freed while being copied
+        Map<String, CachedResponse> candidates = new LinkedHashMap<String, CachedResponse>();
+        synchronized (this) {
+            for (Map.Entry<String, CachedResponse> entry : entries.entrySet()) {
+                CachedResponse cachedResponse = entry.getValue();
+                if (sparseSegments.contains(cachedResponse.location.getSegment()) && cachedResponse.tryRetain()) {
+                    candidates.put(entry.getKey(), cachedResponse);
+                }
+            }
+        }
+        int relocatedCount = 0;
+        try {
+            for (Map.Entry<String, CachedResponse> candidate : candidates.entrySet()) {
+                CachedResponse cachedResponse = candidate.getValue();
+                MappedSegmentStore.Location location = store.copy(cachedResponse.location);
+                CachedResponse relocated = cachedResponse.relocate(location, getBodyBuffer(location, cachedResponse.contentLength));
+                boolean replaced;
+                synchronized (this) {
+                    replaced = entries.replace(candidate.getKey(), cachedResponse, relocated);
+                    if (replaced) {
+                        sizeInBytes += relocated.weight - cachedResponse.weight;
+                    }
+                }
+                if (replaced) {
+                    // reference of the cache
+                    cachedResponse.release();
+                    relocatedCount++;
+                } else {
+                    // frees the copy
+                    relocated.release();
+                }
+            }
+        } finally {
+            for (CachedResponse cachedResponse : candidates.values()) {
+                cachedResponse.release();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compacted segments " + sparseSegments + ", " + relocatedCount + " entries relocated");
+        }
+    }
+
+    public synchronized void clear() {
+        for (CachedResponse cachedResponse : entries.values()) {
+            cachedResponse.release();
+        }
+        entries.clear();
+        varyHeaderNamesByBaseKey.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * Return the cached response of the given request or <code>null</code> if there is none or if it has expired. The returned response
+     * must be released with {@link CachedResponse#release()} once it has been written.
+     */
+    public CachedResponse get(HttpServletRequest request, long now) {
+        String baseKey = getBaseKey(request);
+        String[] varyHeaderNames = varyHeaderNamesByBaseKey.get(baseKey);
+        CachedResponse cachedResponse = null;
+        if (varyHeaderNames != null) {
+            String key = getKey(baseKey, varyHeaderNames, request);
+            cachedResponse = entries.get(key);
+            if (cachedResponse != null && cachedResponse.expirationTime <= now) {
+                synchronized (this) {
+                    remove(key, cachedResponse);
+                }
+                cachedResponse = null;
+            } else if (cachedResponse != null) {
+                if (cachedResponse.tryRetain()) {
+                    cachedResponse.lastAccessTime = System.nanoTime();
+                } else {
+                    // evicted since the lookup
+                    cachedResponse = null;
+                }
+            }
+        }
+        (cachedResponse == null ? missCount : hitCount).incrementAndGet();
+        return cachedResponse;
+    }
+
+    private String getBaseKey(HttpServletRequest request) {
+        String queryString = request.getQueryString();
+        String requestUri = request.getRequestURI();
+        return queryString == null ? request.getMethod() + " " + requestUri : request.getMethod() + " " + requestUri + "?" + queryString;
+    }
+
+    /**
+     * Number of requests that have waited for the response of a leader.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    private String getKey(String baseKey, String[] varyHeaderNames, HttpServletRequest request) {
+        if (varyHeaderNames.length == 0) {
+            return baseKey;
+        }
+        StringBuilder key = new StringBuilder(baseKey);
+        for (String varyHeaderName : varyHeaderNames) {
+            key.append('\n').append(varyHeaderName).append(':');
+            for (Enumeration<?> values = request.getHeaders(varyHeaderName); values != null && values.hasMoreElements();) {
+                key.append(values.nextElement()).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    public int getMaxEntrySizeInBytes() {
+        return maxEntrySizeInBytes;
+    }
+
+    /**
+     * Allocator of the off-heap bodies, <code>null</code> if bodies are stored on the heap.
+     */
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    private ByteBuffer getBodyBuffer(MappedSegmentStore.Location location, int contentLength) {
+        ByteBuffer payload = store.getPayload(location);
+        // the body is at the end of the payload
+        payload.position(payload.limit() - contentLength);
+        return payload.slice();
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Store of the bodies of a persistent cache, <code>null</code> otherwise.
+     */
+    public MappedSegmentStore getStore() {
+        return store;
+    }
+
+    /**
+     * Must be called while holding the lock on <code>this</code>.
+     */
+    private void index(String baseKey, String key, String[] varyHeaderNames, CachedResponse cachedResponse) {
+        varyHeaderNamesByBaseKey.put(baseKey, varyHeaderNames);
+        entries.put(key, cachedResponse);
+        sizeInBytes += cachedResponse.weight;
+        while (sizeInBytes > maxSizeInBytes) {
+            evictEldest();
+        }
+    }
+
+    /**
+     * <code>true</code> if the response of the given request can be served from or stored in this cache.
+     */
+    public boolean isCacheable(HttpServletRequest request) {
+        return "GET".equals(request.getMethod()) && request.getHeader(HEADER_AUTHORIZATION) == null;
+    }
+
+    /**
+     * <p>
+     * Join the flight of the given request: the first caller for a cache key becomes the leader of the flight, renders the response,
+     * stores it with {@link #put(HttpServletRequest, CapturingResponse, long)} and must then call {@link #land(Flight)} in a
+     * <code>finally</code> block. The concurrent callers for the same key become followers and can {@link Flight#await(long)} the
+     * landing before looking up the cache again.
+     * </p>
+     * <p>
+     * Followers must fall back to rendering the response themselves if the leader does not land in time, fails or produces an
+     * uncacheable response. The <tt>Vary</tt> request headers of a response are only known once it has been cached, the first flight
+     * of an URI is thus keyed by the method, the URI and the query string only.
+     * </p>
+     */
+    public Flight join(HttpServletRequest request) {
+        String baseKey = getBaseKey(request);
+        String[] varyHeaderNames = varyHeaderNamesByBaseKey.get(baseKey);
+        String key = varyHeaderNames == null ? baseKey : getKey(baseKey, varyHeaderNames, request);
+        CountDownLatch landing = new CountDownLatch(1);
+        CountDownLatch leaderLanding = flights.putIfAbsent(key, landing);
+        if (leaderLanding == null) {
+            return new Flight(key, landing, true);
+        }
+        coalescedCount.incrementAndGet();
+        return new Flight(key, leaderLanding, false);
+    }
+
+    /**
+     * End the given flight and wake up its followers, no-op if the caller is not the leader.
+     */
+    public void land(Flight flight) {
+        if (flight.leader) {
+            flights.remove(flight.key, flight.landing);
+            flight.landing.countDown();
+        }
+    }
+
+    /**
+     * Store the response captured by the given {@link CapturingResponse} if it is cacheable.
+     *
+     * @return <code>true</code> if the response has been stored
+     */
+    public boolean put(HttpServletRequest request, CapturingResponse response, long now) throws IOException {
+        if (response.isUncacheable() || response.getStatus() != HttpServletResponse.SC_OK
+                || response.getCapturedHeader(HEADER_SET_COOKIE) != null) {
+            return false;
+        }
+        String cacheControl = response.getCapturedHeader(HEADER_CACHE_CONTROL);
+        if (cacheControl != null
+                && (ExpiresFilter.contains(cacheControl, "private") || ExpiresFilter.contains(cacheControl, "no-cache") || ExpiresFilter
+                        .contains(cacheControl, "no-store"))) {
+            return false;
+        }
+        String expires = response.getCapturedHeader(HEADER_EXPIRES);
+        long expirationTime = expires == null ? -1 : HttpDateFormat.parse(expires);
+        if (expirationTime <= now) {
+            return false;
+        }
+        String[] varyHeaderNames = NO_HEADER_NAMES;
+        String vary = response.getCapturedHeader(HEADER_VARY);
+        if (vary != null) {
+            if (vary.indexOf('*') != -1) {
+                return false;
+            }
+            varyHeaderNames = ExpiresFilter.commaDelimitedListToStringArray(vary.trim());
+        }
+        byte[] body = response.getCapturedBody();
+        if (body == null) {
+            return false;
+        }
+
+        List<String> headerNames = new ArrayList<String>();
+        List<String> headerValues = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> entry : response.headers.entrySet()) {
+            if (!isCachedHeader(entry.getKey())) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                headerNames.add(entry.getKey());
+                headerValues.add(value);
+            }
+        }
+        String[] headerNamesArray = headerNames.toArray(new String[headerNames.size()]);
+        String[] headerValuesArray = headerValues.toArray(new String[headerValues.size()]);
+
+        String baseKey = getBaseKey(request);
+        String key = getKey(baseKey, varyHeaderNames, request);
+        String contentType = response.getContentType();
+        int status = response.getStatus();
+        byte[] payload = null;
+        if (store != null) {
+            try {
+                payload = serialize(key, baseKey, varyHeaderNames, status, contentType, headerNamesArray, headerValuesArray, now,
+                        expirationTime, body);
+            } catch (IOException e) {
+                // e.g. a header longer than 64 kB
+                logger.debug("Can not serialize the response of '" + key + "'", e);
+                return false;
+            }
+            if (payload.length + 64 > store.getSegmentSize()) {
+                return false;
+            }
+        }
+        synchronized (this) {
+            remove(key);
+            CachedResponse cachedResponse;
+            if (store != null) {
+                MappedSegmentStore.Location location;
+                try {
+                    location = store.append(payload);
+                } catch (IOException e) {
+                    logger.warn("Exception storing the response of '" + key + "' in " + store, e);
+                    return false;
+                }
+                cachedResponse = new CachedResponse(status, contentType, headerNamesArray, headerValuesArray, now, expirationTime, null,
+                        getBodyBuffer(location, body.length), body.length, this, null, location);
+            } else if (allocator != null) {
+                int size = Math.max(1, body.length);
+                int sizeClass = allocator.getSizeClass(size);
+                SlabAllocator.Chunk chunk = allocator.allocate(size);
+                // only the entries of the same class can free a chunk; the
+                // chunks of the responses being written are freed later
+                while (chunk == null && evictEldest(sizeClass)) {
+                    chunk = allocator.allocate(size);
+                }
+                if (chunk == null) {
+                    // the slabs are held by the entries of other size classes
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("No free chunk for the " + body.length + " bytes of '" + key + "', body stored on the heap");
+                    }
+                    cachedResponse = new CachedResponse(status, contentType, headerNamesArray, headerValuesArray, now, expirationTime,
+                            body, null, body.length, this, null, null);
+                } else {
+                    chunk.put(body, 0, body.length);
+                    cachedResponse = new CachedResponse(status, contentType, headerNamesArray, headerValuesArray, now, expirationTime,
+                            null, chunk.asBuffer(body.length), body.length, this, chunk, null);
+                }
+            } else {
+                cachedResponse = new CachedResponse(status, contentType, headerNamesArray, headerValuesArray, now, expirationTime, body,
+                        null, body.length, this, null, null);
+            }
+            index(baseKey, key, varyHeaderNames, cachedResponse);
+            return entries.containsKey(key);
+        }
+    }
+
+    private boolean isCachedHeader(String name) {
+        for (String notCachedHeader : NOT_CACHED_HEADERS) {
+            if (notCachedHeader.equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evict the least recently accessed of a sample of the entries whose body is held by a chunk of the given size class, <code>-1</code>
+     * for any entry. Must be called while holding the lock on <code>this</code>.
+     *
+     * @return <code>false</code> if there is no such entry
+     */
+    private boolean evictEldest(int sizeClass) {
+        while (true) {
+            Map.Entry<String, CachedResponse> eldest = null;
+            int sampledCount = 0;
+            // at most one lap of the entries
+            for (int scannedCount = entries.size(); scannedCount > 0 && sampledCount < EVICTION_SAMPLE_SIZE; scannedCount--) {
+                if (evictionCursor == null || !evictionCursor.hasNext()) {
+                    evictionCursor = entries.entrySet().iterator();
+                    if (!evictionCursor.hasNext()) {
+                        break;
+                    }
+                }
+                Map.Entry<String, CachedResponse> entry = evictionCursor.next();
+                CachedResponse cachedResponse = entry.getValue();
+                if (sizeClass == -1 || cachedResponse.chunk != null && cachedResponse.chunk.getSizeClass() == sizeClass) {
+                    if (eldest == null || cachedResponse.lastAccessTime - eldest.getValue().lastAccessTime < 0) {
+                        eldest = entry;
+                    }
+                    sampledCount++;
+                }
+            }
+            if (eldest == null) {
+                return false;
+            }
+            // the cursor may return an entry that has been removed since
+            if (remove(eldest.getKey(), eldest.getValue())) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on <code>this</code>.
+     */
+    private void evictEldest() {
+        evictEldest(-1);
+    }
+
+    /**
+     * Reload the entries of the segment files that have not expired.
+     */
+    private void load(long now) throws IOException {
+        int loadedCount = 0;
+        for (MappedSegmentStore.Location location : store.load()) {
+            ByteBuffer payload = store.getPayload(location);
+            DataInputStream in = new DataInputStream(newInputStream(payload));
+            long storedTime = in.readLong();
+            long expirationTime = in.readLong();
+            if (expirationTime <= now) {
+                store.free(location);
+                continue;
+            }
+            String key = in.readUTF();
+            String baseKey = in.readUTF();
+            String[] varyHeaderNames = new String[in.readShort()];
+            for (int i = 0; i < varyHeaderNames.length; i++) {
+                varyHeaderNames[i] = in.readUTF();
+            }
+            int status = in.readInt();
+            String contentType = in.readBoolean() ? in.readUTF() : null;
+            String[] headerNames = new String[in.readShort()];
+            String[] headerValues = new String[headerNames.length];
+            for (int i = 0; i < headerNames.length; i++) {
+                headerNames[i] = in.readUTF();
+                headerValues[i] = in.readUTF();
+            }
+            int contentLength = in.readInt();
+            CachedResponse cachedResponse = new CachedResponse(status, contentType, headerNames, headerValues, storedTime, expirationTime,
+                    null, getBodyBuffer(location, contentLength), contentLength, this, null, location);
+            synchronized (this) {
+                remove(key);
+                index(baseKey, key, varyHeaderNames, cachedResponse);
+            }
+            loadedCount++;
+        }
+        logger.info("Loaded " + loadedCount + " cached responses from " + store);
+    }
+
+    private static InputStream newInputStream(final ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                length = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, length);
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Must be called while holding the lock on <code>this</code>.
+     */
+    private void remove(String key) {
+        CachedResponse removed = entries.remove(key);
+        if (removed != null) {
+            sizeInBytes -= removed.weight;
+            removed.release();
+        }
+    }
+
+    /**
+     * Remove the given entry if it is still the one of the given key. Must be called while holding the lock on <code>this</code>.
+     */
+    private boolean remove(String key, CachedResponse cachedResponse) {
+        if (!entries.remove(key, cachedResponse)) {
+            return false;
+        }
+        sizeInBytes -= cachedResponse.weight;
+        cachedResponse.release();
+        return true;
+    }
+
+    private static byte[] serialize(String key, String baseKey, String[] varyHeaderNames, int status, String contentType,
+            String[] headerNames, String[] headerValues, long storedTime, long expirationTime, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(storedTime);
+        out.writeLong(expirationTime);
+        out.writeUTF(key);
+        out.writeUTF(baseKey);
+        out.writeShort(varyHeaderNames.length);
+        for (String varyHeaderName : varyHeaderNames) {
+            out.writeUTF(varyHeaderName);
+        }
+        out.writeInt(status);
+        out.writeBoolean(contentType != null);
+        if (contentType != null) {
+            out.writeUTF(contentType);
+        }
+        out.writeShort(headerNames.length);
+        for (int i = 0; i < headerNames.length; i++) {
+            out.writeUTF(headerNames[i]);
+            out.writeUTF(headerValues[i]);
+        }
+        // the body must be the last field, see getBodyBuffer()
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache[maxSizeInBytes=" + maxSizeInBytes + ", maxEntrySizeInBytes=" + maxEntrySizeInBytes + ", sizeInBytes="
+                + getSizeInBytes() + ", entryCount=" + getEntryCount() + ", allocator=" + allocator + ", store=" + store + "]";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>
+ * Callback invoked by a {@link CommitInterceptingResponse} just before the response body starts being written (first write, flush or
+ * close of the writer or of the output stream, {@link CommitInterceptingResponse#flushBuffer()}) or, for empty responses, at the end of
+ * the filter chain. It is the last moment to modify the status and the headers of the response.
+ * </p>
+ * <p>
+ * Listeners are registered with {@link CommitInterceptingResponse#addResponseCommitListener(ResponseCommitListener)} and each of them is
+ * invoked exactly once per response, in registration order.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public interface ResponseCommitListener {
+
+    /**
+     * Invoked before the response is committed, the headers of the given response can still be modified.
+     */
+    void onBeforeCommit(HttpServletRequest request, CommitInterceptingResponse response);
+}
@@ -17,10 +17,14 @@ package fr.xebia.servlet.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -58,13 +62,13 @@ import org.slf4j.LoggerFactory;
  * <td>securedRemoteAddresses</td>
  * <td>IP addresses for which {@link ServletRequest#isSecure()} must return
  * <code>true</code></td>
- * <td>Comma delimited list of regular expressions (in the syntax supported by
- * the {@link java.util.regex.Pattern} library)</td>
+ * <td>Comma delimited list of address blocks in CIDR notation (e.g.
+ * <code>10.0.0.0/8</code>), IP addresses or regular expressions (in the syntax
+ * supported by the {@link java.util.regex.Pattern} library)</td>
  * <td>Class A, B and C <a
  * href="http://en.wikipedia.org/wiki/Private_network">private network IP
- * address blocks</a> : 10\.\d{1,3}\.\d{1,3}\.\d{1,3},
- * 192\.168\.\d{1,3}\.\d{1,3}, 172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3},
- * 169\.254\.\d{1,3}\.\d{1,3}, 127\.\d{1,3}\.\d{1,3}\.\d{1,3}</td>
+ * address blocks</a> : 10.0.0.0/8, 192.168.0.0/16, 172.16.0.0/12,
+ * 169.254.0.0/16, 127.0.0.0/8</td>
  * </tr>
  * </table>
  * Note : the default configuration is can usually be used as internal servers
@@ -98,10 +102,31 @@ import org.slf4j.LoggerFactory;
  * will be seen as <code>{@link ServletRequest#isSecure()} == true</code> even if
  * <code>{@link HttpServletRequest#getScheme()} == "http"</code>.
  * </p>
+ * <p>
+ * <strong>JMX:</strong> each filter instance is registered in the platform
+ * <code>MBeanServer</code> as
+ * <code>fr.xebia.servlet.filter:type=SecuredRemoteAddressFilter,context=&lt;context path&gt;,name=&lt;filter name&gt;</code>
+ * (see {@link SecuredRemoteAddressFilterMBean}). It exposes the number of
+ * requests and of requests upgraded to secure, counted with
+ * {@link StripedCounter}s, and the <code>securedRemoteAddresses</code> can be
+ * replaced atomically with the <code>reconfigure</code> operation which, like
+ * the <code>configurationFile</code>, defaults to the init parameters.
+ * </p>
+ * <p>
+ * <strong>Configuration file:</strong> the <code>configurationFile</code>
+ * init parameter (absolute path of a file in the
+ * <code>java.util.Properties</code> format, e.g.
+ * <code>securedRemoteAddresses = 192.0.2.0/24</code>) overrides the
+ * <code>securedRemoteAddresses</code> init parameter. As for the
+ * {@link XForwardedFilter}, the file is checked by a background thread every
+ * <code>configurationFileRefreshInterval</code> seconds (default
+ * <code>10</code>), a modified file is swapped in atomically and an invalid
+ * one is logged and ignored.
+ * </p>
  * 
  * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
  */
-public class SecuredRemoteAddressFilter implements Filter {
+public class SecuredRemoteAddressFilter implements Filter, SecuredRemoteAddressFilterMBean {
 
     protected final static String SECURED_REMOTE_ADDRESSES_PARAMETER = "securedRemoteAddresses";
 
@@ -145,7 +170,10 @@ public class SecuredRemoteAddressFilter implements Filter {
     /**
      * Return <code>true</code> if the given <code>str</code> matches at least
      * one of the given <code>patterns</code>.
+     * 
+     * @deprecated use {@link IpAddressMatcher#matches(String)}
      */
+    @Deprecated
     protected static boolean matchesOne(String str, Pattern... patterns) {
         for (Pattern pattern : patterns) {
             if (pattern.matcher(str).matches()) {
@@ -155,18 +183,49 @@ public class SecuredRemoteAddressFilter implements Filter {
         return false;
     }
 
+    /**
+     * Optional watcher of the <code>configurationFile</code>,
+     * <code>null</code> if disabled.
+     */
+    private ConfigurationFileWatcher configurationFileWatcher;
+
+    /**
+     * Secured remote addresses of the init parameters, default value of the
+     * <code>configurationFile</code> and of {@link #reconfigure(String)}.
+     */
+    private volatile String initSecuredRemoteAddresses = IpAddressMatcher.PRIVATE_NETWORKS;
+
+    /**
+     * <code>false</code> if the filter must not register its MBean, e.g.
+     * when it is embedded in another component.
+     */
+    private boolean manageable = true;
+
+    /**
+     * Name of the MBean of this filter, <code>null</code> if not registered.
+     */
+    private ObjectName objectName;
+
+    private final StripedCounter requestCount = new StripedCounter();
+
     /**
      * @see #setSecuredRemoteAddresses(String)
      */
-    private Pattern[] securedRemoteAddresses = new Pattern[] { Pattern.compile("10\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}"),
-            Pattern.compile("192\\.168\\.\\d{1,3}\\.\\d{1,3}"), Pattern.compile("172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}"),
-            Pattern.compile("169\\.254\\.\\d{1,3}\\.\\d{1,3}"), Pattern.compile("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}") };
+    private volatile IpAddressMatcher securedRemoteAddresses = IpAddressMatcher.compile(IpAddressMatcher.PRIVATE_NETWORKS);
+
+    private final StripedCounter securedUpgradeCount = new StripedCounter();
 
     /**
-     * Nothing to do. No resource to release.
+     * Unregister the MBean of this filter and stop watching the configuration
+     * file.
      */
     public void destroy() {
-
+        FilterManagement.unregister(objectName);
+        objectName = null;
+        if (configurationFileWatcher != null) {
+            configurationFileWatcher.stop();
+            configurationFileWatcher = null;
+        }
     }
 
     /**
@@ -177,7 +236,9 @@ public class SecuredRemoteAddressFilter implements Filter {
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         ServletRequest xRequest;
         if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
-            if (!request.isSecure() && matchesOne(request.getRemoteAddr(), securedRemoteAddresses)) {
+            requestCount.increment();
+            if (!request.isSecure() && securedRemoteAddresses.matches(request.getRemoteAddr())) {
+                securedUpgradeCount.increment();
                 xRequest = new HttpServletRequestWrapper((HttpServletRequest) request) {
                     @Override
                     public boolean isSecure() {
@@ -199,30 +260,92 @@ public class SecuredRemoteAddressFilter implements Filter {
         chain.doFilter(xRequest, response);
     }
 
+    public String getParameters() {
+        String securedRemoteAddresses = XForwardedFilter.listToCommaDelimitedString(Arrays.asList(this.securedRemoteAddresses
+                .getExpressions()));
+        return FilterManagement.toParameters(Collections.singletonMap(SECURED_REMOTE_ADDRESSES_PARAMETER, securedRemoteAddresses));
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getSecuredUpgradeCount() {
+        return securedUpgradeCount.get();
+    }
+
     /**
-     * Compile the secured remote addresses patterns.
+     * Compile the secured remote addresses patterns and load the
+     * configuration file, if any.
      */
     public void init(FilterConfig filterConfig) throws ServletException {
         String comaDelimitedSecuredRemoteAddresses = filterConfig.getInitParameter(SECURED_REMOTE_ADDRESSES_PARAMETER);
         if (comaDelimitedSecuredRemoteAddresses != null) {
             setSecuredRemoteAdresses(comaDelimitedSecuredRemoteAddresses);
+            this.initSecuredRemoteAddresses = comaDelimitedSecuredRemoteAddresses;
+        }
+        String configurationFile = filterConfig.getInitParameter(XForwardedFilter.CONFIGURATION_FILE_PARAMETER);
+        if (configurationFile != null) {
+            // the parameters of the file override the init parameters
+            this.configurationFileWatcher = FilterManagement.loadConfigurationFile(configurationFile, filterConfig
+                    .getInitParameter(XForwardedFilter.CONFIGURATION_FILE_REFRESH_INTERVAL_PARAMETER),
+                    new ConfigurationFileWatcher.Listener() {
+                        public void configurationFileChanged(String content) {
+                            reconfigure(content);
+                        }
+                    });
+            this.configurationFileWatcher.start();
+        }
+        if (manageable) {
+            this.objectName = FilterManagement.register(this, SecuredRemoteAddressFilterMBean.class, filterConfig);
+        }
+    }
+
+    /**
+     * Parse the given init parameters, in the {@link java.util.Properties}
+     * format, and atomically replace the secured remote addresses, by default
+     * the ones of the init parameters as for the <code>configurationFile</code>.
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is unknown or invalid, the current secured
+     *             remote addresses are then kept
+     */
+    public void reconfigure(String parameters) {
+        String securedRemoteAddresses = initSecuredRemoteAddresses;
+        for (Map.Entry<String, String> parameter : FilterManagement.parseParameters(parameters).entrySet()) {
+            if (!SECURED_REMOTE_ADDRESSES_PARAMETER.equals(parameter.getKey())) {
+                throw new IllegalArgumentException("Unknown parameter '" + parameter.getKey() + "'");
+            }
+            securedRemoteAddresses = parameter.getValue();
         }
+        setSecuredRemoteAdresses(securedRemoteAddresses);
+        logger.info("Configuration replaced by " + this.securedRemoteAddresses);
+    }
+
+    public void resetStatistics() {
+        requestCount.reset();
+        securedUpgradeCount.reset();
+    }
+
+    /**
+     * Must be called before {@link #init(FilterConfig)}.
+     */
+    void setManageable(boolean manageable) {
+        this.manageable = manageable;
     }
 
     /**
      * <p>
-     * Comma delimited list of secured remote addresses. Expressed with regular
-     * expressions.
+     * Comma delimited list of secured remote addresses. Expressed with
+     * address blocks in CIDR notation, IP addresses or regular expressions.
      * </p>
      * <p>
-     * Default value : 10\.\d{1,3}\.\d{1,3}\.\d{1,3},
-     * 192\.168\.\d{1,3}\.\d{1,3},
-     * 172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3},
-     * 169\.254\.\d{1,3}\.\d{1,3}, 127\.\d{1,3}\.\d{1,3}\.\d{1,3}
+     * Default value : 10.0.0.0/8, 192.168.0.0/16, 172.16.0.0/12,
+     * 169.254.0.0/16, 127.0.0.0/8
      * </p>
      */
     public void setSecuredRemoteAdresses(String comaDelimitedSecuredRemoteAddresses) {
-        this.securedRemoteAddresses = commaDelimitedListToPatternArray(comaDelimitedSecuredRemoteAddresses);
+        this.securedRemoteAddresses = IpAddressMatcher.compile(comaDelimitedSecuredRemoteAddresses);
 
     }
 }
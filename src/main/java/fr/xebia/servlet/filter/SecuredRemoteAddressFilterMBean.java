@@ -0,0 +1,54 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+/**
+ * JMX management interface of the {@link SecuredRemoteAddressFilter}.
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public interface SecuredRemoteAddressFilterMBean {
+
+    /**
+     * Current configuration as init parameters in the {@link java.util.Properties} format, see {@link #reconfigure(String)}.
+     */
+    String getParameters();
+
+    /**
+     * Number of http requests seen by the filter.
+     */
+    long getRequestCount();
+
+    /**
+     * Number of non secure requests seen as secure because they come from a secured remote address.
+     */
+    long getSecuredUpgradeCount();
+
+    /**
+     * Atomically replace the configuration of the filter by the given init parameters, in the {@link java.util.Properties} format (e.g.
+     * <code>securedRemoteAddresses = 10.0.0.0/8, 192.0.2.0/24</code>). As for the <code>configurationFile</code>, the parameters
+     * are applied on top of the init parameters of the filter: the parameters that are not given keep their init value.
+     *
+     * @throws IllegalArgumentException
+     *             if a parameter is unknown or invalid, the current configuration is then kept
+     */
+    void reconfigure(String parameters);
+
+    /**
+     * Reset the counters to zero.
+     */
+    void resetStatistics();
+}
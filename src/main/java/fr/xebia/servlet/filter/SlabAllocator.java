@@ -0,0 +1,282 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>
+ * Allocator of byte chunks carved in large direct {@link ByteBuffer} slabs, outside of the java heap.
+ * </p>
+ * <p>
+ * As in memcached, chunks are grouped by size classes growing by a factor of 1.25 from {@link #MIN_CHUNK_SIZE} to the slab size. A slab
+ * is allocated on demand, while the total size of the slabs does not exceed the capacity of the allocator, and is entirely carved in
+ * chunks of a single size class. Freed chunks are pushed on the free list of their size class and are reused by the next allocations
+ * of this class. Once the capacity is reserved, an allocation that finds no free chunk of its size class reassigns a slab whose chunks
+ * are all free, e.g. after the cache has been cleared, and carves it again in chunks of the requested size class.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class SlabAllocator {
+
+    /**
+     * Chunk of a slab holding up to {@link #getCapacity()} bytes.
+     */
+    public static final class Chunk {
+
+        private final ByteBuffer buffer;
+
+        private final int sizeClass;
+
+        private final Slab slab;
+
+        Chunk(ByteBuffer buffer, int sizeClass, Slab slab) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.slab = slab;
+        }
+
+        /**
+         * Return a view of the <code>length</code> first bytes of this chunk.
+         */
+        ByteBuffer asBuffer(int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.limit(length);
+            return view.slice();
+        }
+
+        public int getCapacity() {
+            return buffer.capacity();
+        }
+
+        int getSizeClass() {
+            return sizeClass;
+        }
+
+        /**
+         * Copy the given bytes at the beginning of this chunk.
+         */
+        public void put(byte[] bytes, int offset, int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.put(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Slab carved in chunks of a single size class. Guarded by the lock on the allocator.
+     */
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+
+        private int chunkCount;
+
+        private int freeChunkCount;
+
+        private int sizeClass;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Size of the smallest chunks: 1 kB.
+     */
+    public static final int MIN_CHUNK_SIZE = 1024;
+
+    /**
+     * Minimum size of the slabs: 1 MB.
+     */
+    public static final int MIN_SLAB_SIZE = 1024 * 1024;
+
+    private final long capacity;
+
+    private final int[] chunkSizes;
+
+    /**
+     * Free chunks of each size class.
+     */
+    private final List<List<Chunk>> freeChunks;
+
+    private long reclaimedSlabCount;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    private final int slabSize;
+
+    private long usedBytes;
+
+    /**
+     * @param capacity
+     *            maximum total size of the slabs in bytes
+     * @param maxChunkSize
+     *            size of the largest chunk that can be allocated
+     */
+    public SlabAllocator(long capacity, int maxChunkSize) {
+        this.slabSize = Math.max(MIN_SLAB_SIZE, maxChunkSize);
+        if (capacity < slabSize) {
+            throw new IllegalArgumentException("capacity (" + capacity + ") must be greater than the slab size (" + slabSize + ")");
+        }
+        this.capacity = capacity;
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int size = MIN_CHUNK_SIZE; size < slabSize; size = Math.min(slabSize, ((int) (size * 1.25) + 63) / 64 * 64)) {
+            sizes.add(size);
+        }
+        sizes.add(slabSize);
+        this.chunkSizes = new int[sizes.size()];
+        this.freeChunks = new ArrayList<List<Chunk>>(sizes.size());
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+            freeChunks.add(new ArrayList<Chunk>());
+        }
+    }
+
+    /**
+     * Return a chunk of at least <code>size</code> bytes or <code>null</code> if there is no free chunk of the matching size class, the
+     * capacity of the allocator does not allow to allocate a new slab and no slab is entirely free.
+     *
+     * @throws IllegalArgumentException
+     *             if <code>size</code> is greater than the slab size
+     */
+    public synchronized Chunk allocate(int size) {
+        int sizeClass = getSizeClass(size);
+        List<Chunk> free = freeChunks.get(sizeClass);
+        if (free.isEmpty()) {
+            Slab slab;
+            if ((long) (slabs.size() + 1) * slabSize <= capacity) {
+                slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+                slabs.add(slab);
+            } else {
+                slab = reclaimFreeSlab();
+                if (slab == null) {
+                    return null;
+                }
+            }
+            carve(slab, sizeClass);
+        }
+        Chunk chunk = free.remove(free.size() - 1);
+        chunk.slab.freeChunkCount--;
+        usedBytes += chunk.getCapacity();
+        return chunk;
+    }
+
+    /**
+     * Carve the given slab in chunks of the given size class and push them on the free list of this class.
+     */
+    private void carve(Slab slab, int sizeClass) {
+        List<Chunk> free = freeChunks.get(sizeClass);
+        int chunkSize = chunkSizes[sizeClass];
+        ByteBuffer buffer = slab.buffer.duplicate();
+        slab.sizeClass = sizeClass;
+        slab.chunkCount = 0;
+        for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+            buffer.limit(offset + chunkSize);
+            buffer.position(offset);
+            free.add(new Chunk(buffer.slice(), sizeClass, slab));
+            slab.chunkCount++;
+        }
+        slab.freeChunkCount = slab.chunkCount;
+    }
+
+    /**
+     * Return the given chunk to the free list of its size class.
+     */
+    public synchronized void free(Chunk chunk) {
+        freeChunks.get(chunk.sizeClass).add(chunk);
+        chunk.slab.freeChunkCount++;
+        usedBytes -= chunk.getCapacity();
+    }
+
+    /**
+     * Remove the chunks of a slab whose chunks are all free from the free list of their size class, <code>null</code> if no slab is
+     * entirely free.
+     */
+    private Slab reclaimFreeSlab() {
+        for (Slab slab : slabs) {
+            if (slab.freeChunkCount == slab.chunkCount) {
+                for (Iterator<Chunk> it = freeChunks.get(slab.sizeClass).iterator(); it.hasNext();) {
+                    if (it.next().slab == slab) {
+                        it.remove();
+                    }
+                }
+                reclaimedSlabCount++;
+                return slab;
+            }
+        }
+        return null;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Total size of the allocated slabs.
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * Number of free slabs reassigned to another size class.
+     */
+    public synchronized long getReclaimedSlabCount() {
+        return reclaimedSlabCount;
+    }
+
+    /**
+     * Return the size class of the chunks allocated for <code>size</code> bytes.
+     *
+     * @throws IllegalArgumentException
+     *             if <code>size</code> is greater than the slab size
+     */
+    int getSizeClass(int size) {
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (size <= chunkSizes[i]) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("size (" + size + ") is greater than the slab size (" + slabSize + ")");
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Total size of the chunks in use.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SlabAllocator[capacity=" + capacity + ", slabSize=" + slabSize + ", reservedBytes=" + getReservedBytes() + ", usedBytes="
+                + getUsedBytes() + "]";
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Servlet serving the static files of a web application deployed in a directory with the expiration headers of an {@link ExpiresFilter}
+ * configuration, without wrapping the response.
+ * </p>
+ * <p>
+ * The <tt>Expires*</tt> init parameters of the servlet configure an embedded {@link ExpiresFilter} (see its documentation) which is only
+ * asked for the headers of each file: the body is written by the servlet directly in the stream of the container, either copied through
+ * a small heap buffer or, for files of at least <tt>sendfileMinSize</tt> bytes (default <tt>49152</tt>, <tt>-1</tt> to disable), handed
+ * to the <tt>sendfile</tt> support of the container if it advertises it with the <tt>org.apache.tomcat.sendfile.support</tt> request
+ * attribute and the request and response are not wrapped. Only the <tt>sendfile</tt> path avoids copying the file in the java heap. The files served by this
+ * servlet should therefore be excluded from the {@link ExpiresFilter} mapped in front of it, if any (see <tt>ExpiresExcludedPaths</tt>).
+ * </p>
+ * <p>
+ * <tt>GET</tt> and <tt>HEAD</tt> requests are supported, with <tt>If-Modified-Since</tt> conditional requests and <tt>Range</tt>
+ * requests (see {@link ByteRanges}) validated by <tt>If-Range</tt> against the <tt>Last-Modified</tt> date of the file. A single range is
+ * also eligible to <tt>sendfile</tt>. Files under <tt>/WEB-INF</tt> and <tt>/META-INF</tt> are never served.
+ * </p>
+ * <p>
+ * Configuration sample :
+ * </p>
+ *
+ * <code><pre>
+ * &lt;servlet&gt;
+ *    &lt;servlet-name&gt;StaticResourceServlet&lt;/servlet-name&gt;
+ *    &lt;servlet-class&gt;fr.xebia.servlet.filter.StaticResourceServlet&lt;/servlet-class&gt;
+ *    &lt;init-param&gt;
+ *       &lt;param-name&gt;ExpiresByType image&lt;/param-name&gt;&lt;param-value&gt;access plus 10 minutes&lt;/param-value&gt;
+ *    &lt;/init-param&gt;
+ *    &lt;init-param&gt;
+ *       &lt;param-name&gt;ExpiresByType text/css&lt;/param-name&gt;&lt;param-value&gt;access plus 10 minutes&lt;/param-value&gt;
+ *    &lt;/init-param&gt;
+ * &lt;/servlet&gt;
+ * &lt;servlet-mapping&gt;
+ *    &lt;servlet-name&gt;StaticResourceServlet&lt;/servlet-name&gt;
+ *    &lt;url-pattern&gt;/static/*&lt;/url-pattern&gt;
+ * &lt;/servlet-mapping&gt;
+ * </pre></code>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class StaticResourceServlet extends HttpServlet {
+
+    private static final String ATTRIBUTE_SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final String ATTRIBUTE_SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String ATTRIBUTE_SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String ATTRIBUTE_SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticResourceServlet.class);
+
+    private static final String PARAMETER_SENDFILE_MIN_SIZE = "sendfileMinSize";
+
+    private static final long serialVersionUID = 1L;
+
+    private transient ExpiresFilter expiresFilter;
+
+    private File rootDirectory;
+
+    /**
+     * Minimum size of the files served with the <tt>sendfile</tt> support of the container, <code>-1</code> to disable it.
+     */
+    private long sendfileMinSize = 48 * 1024;
+
+    @Override
+    public void destroy() {
+        if (expiresFilter != null) {
+            expiresFilter.destroy();
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        serveResource(request, response, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        serveResource(request, response, false);
+    }
+
+    public ExpiresFilter getExpiresFilter() {
+        return expiresFilter;
+    }
+
+    /**
+     * Return the path of the given request in the web application, decoded and without the context path.
+     */
+    private String getPath(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (servletPath == null) {
+            return pathInfo;
+        }
+        return pathInfo == null ? servletPath : servletPath + pathInfo;
+    }
+
+    public File getRootDirectory() {
+        return rootDirectory;
+    }
+
+    public long getSendfileMinSize() {
+        return sendfileMinSize;
+    }
+
+    @Override
+    public void init() throws ServletException {
+        String sendfileMinSize = getInitParameter(PARAMETER_SENDFILE_MIN_SIZE);
+        if (sendfileMinSize != null) {
+            this.sendfileMinSize = Long.parseLong(sendfileMinSize.trim());
+        }
+        String rootDirectory = getServletContext().getRealPath("/");
+        if (rootDirectory == null) {
+            throw new ServletException(getClass().getSimpleName() + " requires a web application deployed in a directory");
+        }
+        this.rootDirectory = new File(rootDirectory);
+
+        // the embedded filter only receives the Expires* parameters
+        final List<String> expiresParameterNames = new ArrayList<String>();
+        for (Enumeration<?> names = getInitParameterNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            if (name.startsWith("Expires")) {
+                expiresParameterNames.add(name);
+            }
+        }
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        // the embedded filter is not a filter of the web application
+        expiresFilter.setManageable(false);
+        expiresFilter.init(new FilterConfig() {
+            public String getFilterName() {
+                return getServletName();
+            }
+
+            public String getInitParameter(String name) {
+                return expiresParameterNames.contains(name) ? StaticResourceServlet.this.getInitParameter(name) : null;
+            }
+
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(expiresParameterNames);
+            }
+
+            public ServletContext getServletContext() {
+                return StaticResourceServlet.this.getServletContext();
+            }
+        });
+        this.expiresFilter = expiresFilter;
+        logger.info("Servlet initialized with rootDirectory=" + this.rootDirectory + ", sendfileMinSize=" + this.sendfileMinSize);
+    }
+
+    /**
+     * Return <code>true</code> if the given file can be served with the <tt>sendfile</tt> support of the container.
+     */
+    private boolean isSendfileSupported(HttpServletRequest request, HttpServletResponse response, long length) {
+        return sendfileMinSize != -1 && length >= sendfileMinSize && Boolean.TRUE.equals(request.getAttribute(ATTRIBUTE_SENDFILE_SUPPORT))
+                && !(request instanceof ServletRequestWrapper) && !(response instanceof ServletResponseWrapper);
+    }
+
+    /**
+     * Write the headers and, if <code>content</code> is <code>true</code>, the body of the file of the given request.
+     */
+    private void serveResource(HttpServletRequest request, HttpServletResponse response, boolean content) throws IOException {
+        String path = getPath(request);
+        File file = path == null || !PrecompressedResources.isSafe(path) ? null : new File(rootDirectory, path.substring(1));
+        if (file == null || !file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        // only used to expose the headers to the ExpiresFilter, the body is
+        // written in the stream of the container
+        CommitInterceptingResponse headers = new CommitInterceptingResponse(request, response);
+        String contentType = getServletContext().getMimeType(path);
+        if (contentType != null) {
+            headers.setContentType(contentType);
+        }
+        headers.setDateHeader(HEADER_LAST_MODIFIED, lastModified);
+        long ifModifiedSince = HttpDateFormat.parse(request.getHeader(HEADER_IF_MODIFIED_SINCE));
+        if (ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000) {
+            headers.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        expiresFilter.onBeforeWriteResponseBody(request, headers);
+        if (headers.getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+            return;
+        }
+        response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+        if (!content) {
+            response.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(length));
+            return;
+        }
+
+        long[] ranges = ByteRanges.parse(request.getHeader(HEADER_RANGE), length);
+        if (ranges != null
+                && !ByteRanges.matchesIfRange(request.getHeader(HEADER_IF_RANGE), headers.getETagHeader(), headers
+                        .isLastModifiedHeaderSet() ? headers.getLastModifiedHeader() : -1)) {
+            ranges = null;
+        }
+        if (ranges != null && ranges.length == 0) {
+            ByteRanges.writeNotSatisfiable(response, length);
+            return;
+        }
+        if (ranges != null && ranges.length > 2) {
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                ByteRanges.writePartialContent(response, ranges, length, contentType, new ByteRanges.Body() {
+                    public void write(OutputStream out, long offset, long length) throws IOException {
+                        copy(in.getChannel(), offset, length, out);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        // whole file or single range
+        long first = ranges == null ? 0 : ranges[0];
+        long count = ranges == null ? length : ranges[1] - first + 1;
+        if (ranges == null) {
+            response.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(length));
+        } else {
+            ByteRanges.writePartialContent(response, ranges, length, contentType, null);
+        }
+        if (isSendfileSupported(request, response, count)) {
+            request.setAttribute(ATTRIBUTE_SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(ATTRIBUTE_SENDFILE_START, Long.valueOf(first));
+            request.setAttribute(ATTRIBUTE_SENDFILE_END, Long.valueOf(first + count));
+            return;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            copy(in.getChannel(), first, count, response.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copy the given region of the given file in the given stream through a heap buffer.
+     */
+    private void copy(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(count, COPY_BUFFER_SIZE)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (long end = position + count; position < end;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(bytes.length, end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                // truncated since the stat
+                break;
+            }
+            out.write(bytes, 0, read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+/**
+ * <p>
+ * Fast non-cryptographic 64 bits hash computed incrementally over a stream of bytes or chars.
+ * </p>
+ * <p>
+ * The mixing functions are those of xxHash64: the input is consumed as little-endian 64 bits words spread over 4 independent
+ * accumulators, so that large arrays are hashed 32 bytes at a time with 4 multiplications. Chars are consumed as 16 bits units. The
+ * value only depends on the sequence of bytes and chars, not on how it is split in <code>update(...)</code> calls, but it is not
+ * compatible with the reference xxHash64 implementation.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public final class StreamingHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long word(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL) | (bytes[offset + 1] & 0xFFL) << 8 | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24 | (bytes[offset + 4] & 0xFFL) << 32 | (bytes[offset + 5] & 0xFFL) << 40
+                | (bytes[offset + 6] & 0xFFL) << 48 | (bytes[offset + 7] & 0xFFL) << 56;
+    }
+
+    private long accumulator1;
+
+    private long accumulator2;
+
+    private long accumulator3;
+
+    private long accumulator4;
+
+    /**
+     * Index of the accumulator of the next word.
+     */
+    private int lane;
+
+    /**
+     * Bits of the word being filled.
+     */
+    private long pending;
+
+    /**
+     * Number of bits of {@link #pending}.
+     */
+    private int pendingBits;
+
+    /**
+     * Number of consumed bytes, a char counting for 2 bytes.
+     */
+    private long length;
+
+    public StreamingHash() {
+        reset();
+    }
+
+    private void consume(long word) {
+        switch (lane) {
+        case 0:
+            accumulator1 = round(accumulator1, word);
+            break;
+        case 1:
+            accumulator2 = round(accumulator2, word);
+            break;
+        case 2:
+            accumulator3 = round(accumulator3, word);
+            break;
+        default:
+            accumulator4 = round(accumulator4, word);
+        }
+        lane = (lane + 1) & 3;
+    }
+
+    /**
+     * Return the hash of the bytes and chars consumed so far, this hash can still be updated afterwards.
+     */
+    public long getValue() {
+        long hash = Long.rotateLeft(accumulator1, 1) + Long.rotateLeft(accumulator2, 7) + Long.rotateLeft(accumulator3, 12)
+                + Long.rotateLeft(accumulator4, 18);
+        hash = merge(hash, accumulator1);
+        hash = merge(hash, accumulator2);
+        hash = merge(hash, accumulator3);
+        hash = merge(hash, accumulator4);
+        hash += length;
+        if (pendingBits > 0) {
+            hash ^= round(0, pending);
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    public void reset() {
+        accumulator1 = PRIME1 + PRIME2;
+        accumulator2 = PRIME2;
+        accumulator3 = 0;
+        accumulator4 = -PRIME1;
+        lane = 0;
+        pending = 0;
+        pendingBits = 0;
+        length = 0;
+    }
+
+    public void update(byte[] bytes, int offset, int len) {
+        int end = offset + len;
+        // complete the pending word and align on a stripe of 4 words
+        while (offset < end && (pendingBits != 0 || lane != 0)) {
+            update(bytes[offset++]);
+        }
+        int stripesEnd = end - 31;
+        if (offset < stripesEnd) {
+            long a1 = accumulator1;
+            long a2 = accumulator2;
+            long a3 = accumulator3;
+            long a4 = accumulator4;
+            int start = offset;
+            for (; offset < stripesEnd; offset += 32) {
+                a1 = round(a1, word(bytes, offset));
+                a2 = round(a2, word(bytes, offset + 8));
+                a3 = round(a3, word(bytes, offset + 16));
+                a4 = round(a4, word(bytes, offset + 24));
+            }
+            accumulator1 = a1;
+            accumulator2 = a2;
+            accumulator3 = a3;
+            accumulator4 = a4;
+            length += offset - start;
+        }
+        while (offset < end) {
+            update(bytes[offset++]);
+        }
+    }
+
+    public void update(char c) {
+        if (pendingBits <= 48) {
+            pending |= (long) c << pendingBits;
+            pendingBits += 16;
+            length += 2;
+            if (pendingBits == 64) {
+                consume(pending);
+                pending = 0;
+                pendingBits = 0;
+            }
+        } else {
+            update((byte) c);
+            update((byte) (c >>> 8));
+        }
+    }
+
+    public void update(char[] chars, int offset, int len) {
+        for (int end = offset + len; offset < end; offset++) {
+            update(chars[offset]);
+        }
+    }
+
+    /**
+     * Consume the 8 low-order bits of the given <code>int</code>, as {@link java.io.OutputStream#write(int)}.
+     */
+    public void update(int b) {
+        pending |= (b & 0xFFL) << pendingBits;
+        pendingBits += 8;
+        length++;
+        if (pendingBits == 64) {
+            consume(pending);
+            pending = 0;
+            pendingBits = 0;
+        }
+    }
+
+    public void update(String s, int offset, int len) {
+        for (int end = offset + len; offset < end; offset++) {
+            update(s.charAt(offset));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingHash[length=" + length + ", value=" + Long.toHexString(getValue()) + "]";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Counter incremented on the request path by many threads and read from time to time, e.g. by JMX.
+ * </p>
+ * <p>
+ * The count is spread over several cells, one per stripe, and each thread increments the cell of its stripe, chosen from the hash of its
+ * id: concurrent increments on a multi-core server do not contend on a single {@link java.util.concurrent.atomic.AtomicLong}. The cells
+ * are spaced by a cache line in an {@link AtomicLongArray} to avoid false sharing. {@link #get()} sums the cells and is only weakly
+ * consistent with the concurrent increments.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public final class StripedCounter {
+
+    /**
+     * Distance between two cells, in longs: 64 bytes.
+     */
+    private static final int CELL_SPACING = 8;
+
+    private static final int MAX_STRIPE_COUNT = 64;
+
+    /**
+     * Return the smallest power of two greater than or equal to the given number of processors, bounded to {@link #MAX_STRIPE_COUNT}.
+     */
+    static int stripeCount(int processorCount) {
+        int stripeCount = 1;
+        while (stripeCount < processorCount && stripeCount < MAX_STRIPE_COUNT) {
+            stripeCount <<= 1;
+        }
+        return stripeCount;
+    }
+
+    private final AtomicLongArray cells;
+
+    private final int stripeMask;
+
+    /**
+     * Create a counter with a stripe per available processor.
+     */
+    public StripedCounter() {
+        this(stripeCount(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param stripeCount
+     *            number of cells, must be a power of two
+     */
+    StripedCounter(int stripeCount) {
+        if (stripeCount <= 0 || (stripeCount & (stripeCount - 1)) != 0) {
+            throw new IllegalArgumentException("stripeCount (" + stripeCount + ") must be a positive power of two");
+        }
+        this.stripeMask = stripeCount - 1;
+        this.cells = new AtomicLongArray(stripeCount * CELL_SPACING);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    /**
+     * Return the sum of the cells.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += CELL_SPACING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Return the index of the cell of the current thread.
+     */
+    private int index() {
+        long id = Thread.currentThread().getId();
+        // spread the sequential thread ids over the stripes
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & stripeMask) * CELL_SPACING;
+    }
+
+    /**
+     * Reset the cells to zero. The increments concurrent to the reset may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += CELL_SPACING) {
+            cells.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
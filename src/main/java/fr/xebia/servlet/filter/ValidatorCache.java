@@ -0,0 +1,337 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.xebia.servlet.filter.ExpiresFilter.ExpiresConfiguration;
+
+/**
+ * <p>
+ * Cache of the validators (<tt>ETag</tt> and <tt>Last-Modified</tt> headers) of the recent responses of each URI, used to answer
+ * conditional requests (<tt>If-None-Match</tt> and <tt>If-Modified-Since</tt> headers) with a <tt>304 Not Modified</tt> status without
+ * generating the response.
+ * </p>
+ * <p>
+ * The validators of a response are trusted until its <tt>Expires</tt> date: the server has already declared that the response will not
+ * change before this date. As for the {@link ResponseCache}, only the <tt>GET</tt> and <tt>HEAD</tt> requests without
+ * <tt>Authorization</tt> header are handled and the responses with a status other than <tt>200</tt>, a <tt>Set-Cookie</tt> or a
+ * <tt>Vary</tt> header or a <tt>Cache-Control</tt> <tt>private</tt>, <tt>no-cache</tt> or <tt>no-store</tt> directive are ignored.
+ * </p>
+ * <p>
+ * An <tt>ETag</tt> computed from the body once the response has been generated can be learned afterwards with
+ * {@link #learnETag(HttpServletRequest, String)}.
+ * </p>
+ * <p>
+ * The number of URIs is bounded, the least recently used ones are evicted first.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
+ */
+public class ValidatorCache {
+
+    /**
+     * Validators of a response and the data needed to generate fresh expiration headers on a <tt>304 Not Modified</tt> response.
+     */
+    public static final class Validators {
+
+        private final String cacheControlDirectives;
+
+        private final ExpiresConfiguration configuration;
+
+        private final String etag;
+
+        private final long expirationTime;
+
+        private final long lastModified;
+
+        /**
+         * <code>true</code> if the {@link #etag} has been computed from the body of the response rather than set by the application.
+         */
+        private final boolean learnedETag;
+
+        Validators(String etag, boolean learnedETag, long lastModified, String cacheControlDirectives, ExpiresConfiguration configuration,
+                long expirationTime) {
+            this.etag = etag;
+            this.learnedETag = learnedETag;
+            this.lastModified = lastModified;
+            this.cacheControlDirectives = cacheControlDirectives;
+            this.configuration = configuration;
+            this.expirationTime = expirationTime;
+        }
+
+        /**
+         * Directives of the <tt>Cache-Control</tt> header of the response other than <tt>max-age</tt>, <code>null</code> if none.
+         */
+        public String getCacheControlDirectives() {
+            return cacheControlDirectives;
+        }
+
+        /**
+         * Configuration that defined the expiration of the response.
+         */
+        public ExpiresConfiguration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * Value of the <tt>ETag</tt> header, <code>null</code> if none.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        /**
+         * Value of the <tt>Last-Modified</tt> header, <code>-1</code> if none.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return "Validators[etag=" + etag + ", lastModified=" + lastModified + ", expirationTime=" + expirationTime + "]";
+        }
+    }
+
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_SET_COOKIE = "Set-Cookie";
+
+    private static final String HEADER_VARY = "Vary";
+
+    /**
+     * Return <code>true</code> if one of the entity tags of the given <tt>If-None-Match</tt> header matches the given entity tag
+     * according to the weak comparison function.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ExpiresFilter.commaDelimitedListToStringArray(ifNoneMatch.trim())) {
+            if ("*".equals(candidate)) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the given <tt>Cache-Control</tt> header without its <tt>max-age</tt> directive, <code>null</code> if no other directive
+     * remains.
+     */
+    static String removeMaxAgeDirective(String cacheControl) {
+        if (cacheControl == null) {
+            return null;
+        }
+        StringBuilder directives = new StringBuilder();
+        for (String directive : ExpiresFilter.commaDelimitedListToStringArray(cacheControl.trim())) {
+            if (directive.length() == 0 || ExpiresFilter.startsWithIgnoreCase(directive, "max-age")) {
+                continue;
+            }
+            if (directives.length() > 0) {
+                directives.append(", ");
+            }
+            directives.append(directive);
+        }
+        return directives.length() == 0 ? null : directives.toString();
+    }
+
+    /**
+     * Validators by URI and query string, in access order.
+     */
+    private final LinkedHashMap<String, Validators> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize
+     *            maximum number of URIs
+     */
+    public ValidatorCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize (" + maxSize + ") must be positive");
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Validators>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Return the <tt>ETag</tt> learned with {@link #learnETag(HttpServletRequest, String)} for the given request if its validators have
+     * not expired, <code>null</code> otherwise.
+     */
+    public String getLearnedETag(HttpServletRequest request, long now) {
+        String key = getKey(request);
+        Validators validators;
+        synchronized (this) {
+            validators = entries.get(key);
+        }
+        return validators == null || !validators.learnedETag || validators.expirationTime <= now ? null : validators.etag;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Number of requests answered with a <tt>304 Not Modified</tt> status.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    private String getKey(HttpServletRequest request) {
+        String queryString = request.getQueryString();
+        String requestUri = request.getRequestURI();
+        return queryString == null ? requestUri : requestUri + "?" + queryString;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the validators of the given request if it is a conditional request that can be answered with a <tt>304 Not Modified</tt>
+     * status, <code>null</code> otherwise.
+     */
+    public Validators getNotModifiedValidators(HttpServletRequest request, long now) {
+        String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+        String ifModifiedSince = ifNoneMatch == null ? request.getHeader(HEADER_IF_MODIFIED_SINCE) : null;
+        if ((ifNoneMatch == null && ifModifiedSince == null) || !isCacheable(request)) {
+            return null;
+        }
+        Validators validators;
+        String key = getKey(request);
+        synchronized (this) {
+            validators = entries.get(key);
+            if (validators != null && validators.expirationTime <= now) {
+                entries.remove(key);
+                validators = null;
+            }
+        }
+        if (validators == null) {
+            return null;
+        }
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            notModified = validators.etag != null && matches(ifNoneMatch, validators.etag);
+        } else {
+            long date = HttpDateFormat.parse(ifModifiedSince);
+            notModified = date != -1 && validators.lastModified != -1 && validators.lastModified / 1000 <= date / 1000;
+        }
+        if (!notModified) {
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return validators;
+    }
+
+    private boolean isCacheable(HttpServletRequest request) {
+        String method = request.getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method)) && request.getHeader(HEADER_AUTHORIZATION) == null;
+    }
+
+    /**
+     * Replace the <tt>ETag</tt> of the validators of the given request, if they have been stored, by the given <tt>ETag</tt> computed
+     * from the body of the response.
+     *
+     * @return <code>true</code> if the validators of the request have been found
+     */
+    public boolean learnETag(HttpServletRequest request, String etag) {
+        String key = getKey(request);
+        synchronized (this) {
+            Validators validators = entries.get(key);
+            if (validators == null) {
+                return false;
+            }
+            entries.put(key, new Validators(etag, true, validators.lastModified, validators.cacheControlDirectives,
+                    validators.configuration, validators.expirationTime));
+            return true;
+        }
+    }
+
+    /**
+     * Store the validators of the given response if any, or if the body of the response is hashed (see
+     * {@link CommitInterceptingResponse#enableBodyHash()}), and if it is cacheable.
+     *
+     * @param configuration
+     *            configuration that defined the expiration of the response
+     * @param expirationTime
+     *            value of the <tt>Expires</tt> header of the response
+     * @return <code>true</code> if the validators have been stored
+     */
+    public boolean put(HttpServletRequest request, CommitInterceptingResponse response, ExpiresConfiguration configuration,
+            long expirationTime, long now) {
+        String etag = response.getETagHeader();
+        long lastModified = response.isLastModifiedHeaderSet() ? response.getLastModifiedHeader() : -1;
+        if ((etag == null && lastModified == -1 && response.getBodyHash() == null) || expirationTime <= now || !isCacheable(request)
+                || response.getStatus() != HttpServletResponse.SC_OK || response.containsHeader(HEADER_SET_COOKIE)
+                || response.containsHeader(HEADER_VARY)) {
+            return false;
+        }
+        String cacheControl = response.getCacheControlHeader();
+        if (cacheControl != null
+                && (ExpiresFilter.contains(cacheControl, "private") || ExpiresFilter.contains(cacheControl, "no-cache") || ExpiresFilter
+                        .contains(cacheControl, "no-store"))) {
+            return false;
+        }
+        Validators validators = new Validators(etag, false, lastModified, removeMaxAgeDirective(cacheControl), configuration,
+                expirationTime);
+        synchronized (this) {
+            entries.put(getKey(request), validators);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ValidatorCache[maxSize=" + maxSize + ", entryCount=" + getEntryCount() + ", hitCount=" + getHitCount() + "]";
+    }
+}
@@ -16,22 +16,18 @@
 package fr.xebia.servlet.filter;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -104,9 +100,9 @@ import org.slf4j.LoggerFactory;
  * <td>List of internal proxies ip adress. If they appear in the <code>remoteIpHeader</code> value, they will be trusted and will not appear
  * in the <code>proxiesHeader</code> value</td>
  * <td>RemoteIPInternalProxy</td>
- * <td>Comma delimited list of regular expressions (in the syntax supported by the {@link java.util.regex.Pattern} library)</td>
- * <td>10\.\d{1,3}\.\d{1,3}\.\d{1,3}, 192\.168\.\d{1,3}\.\d{1,3}, 172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}, 
- * 169\.254\.\d{1,3}\.\d{1,3}, 127\.\d{1,3}\.\d{1,3}\.\d{1,3} <br/>
+ * <td>Comma delimited list of address blocks in CIDR notation (e.g. <code>10.0.0.0/8</code>, <code>2001:db8::/32</code>), IP addresses
+ * or regular expressions (in the syntax supported by the {@link java.util.regex.Pattern} library)</td>
+ * <td>10.0.0.0/8, 192.168.0.0/16, 172.16.0.0/12, 169.254.0.0/16, 127.0.0.0/8 <br/>
  * By default, 10/8, 192.168/16, 172.16/12, 169.254/16 and 127/8 are allowed</td>
  * </tr>
  * </tr>
@@ -123,7 +119,8 @@ import org.slf4j.LoggerFactory;
  * <td>List of trusted proxies ip adress. If they appear in the <code>remoteIpHeader</code> value, they will be trusted and will appear in
  * the <code>proxiesHeader</code> value</td>
  * <td>RemoteIPTrustedProxy</td>
- * <td>Comma delimited list of regular expressions (in the syntax supported by the {@link java.util.regex.Pattern} library)</td>
+ * <td>Comma delimited list of address blocks in CIDR notation, IP addresses or regular expressions (in the syntax supported by the
+ * {@link java.util.regex.Pattern} library)</td>
  * <td>&nbsp;</td>
  * </tr>
  * <tr>
@@ -159,10 +156,29 @@ import org.slf4j.LoggerFactory;
  * </p>
  * <p>
  * <p>
- * <strong>Regular expression vs. IP address blocks:</strong> <code>mod_remoteip</code> allows to use address blocks (e.g.
- * <code>192.168/16</code>) to configure <code>RemoteIPInternalProxy</code> and <code>RemoteIPTrustedProxy</code> ; as the JVM doesnt have a
- * library similar to <a
- * href="http://apr.apache.org/docs/apr/1.3/group__apr__network__io.html#gb74d21b8898b7c40bf7fd07ad3eb993d">apr_ipsubnet_test</a>.
+ * <strong>Regular expression vs. IP address blocks:</strong> like <code>mod_remoteip</code>, address blocks in CIDR notation (e.g.
+ * <code>192.168.0.0/16</code>) can be used to configure <code>allowedInternalProxies</code> and <code>trustedProxies</code>. They are
+ * compiled in a radix trie by {@link IpAddressMatcher} and are much cheaper to evaluate than regular expressions. Regular expressions are
+ * still supported for backward compatibility; the ones that only describe a literal address (e.g. <code>192\.168\.0\.10</code>) and
+ * the former default private network expressions are automatically converted to address blocks.
+ * </p>
+ * <p>
+ * <strong>JMX:</strong> each filter instance is registered in the platform <code>MBeanServer</code> as
+ * <code>fr.xebia.servlet.filter:type=XForwardedFilter,context=&lt;context path&gt;,name=&lt;filter name&gt;</code> (see
+ * {@link XForwardedFilterMBean}). It exposes the number of requests, of resolved proxy chains, of requests carrying untrusted hops and of
+ * requests upgraded to secure by the <code>protocolHeader</code>, counted with {@link StripedCounter}s. The configuration is read by the
+ * requests as a single immutable object and can be replaced atomically, e.g. to rotate the <code>trustedProxies</code>, with the
+ * <code>reconfigure</code> operation which takes the init parameters in the <code>java.util.Properties</code> format and, like the
+ * <code>configurationFile</code>, applies them on top of the init parameters of the filter.
+ * </p>
+ * <p>
+ * <strong>Configuration file:</strong> the <code>configurationFile</code> init parameter (absolute path of a file in the
+ * <code>java.util.Properties</code> format, e.g. <code>trustedProxies = 192.0.2.0/24, 198.51.100.0/24</code>) declares parameters that
+ * override the init parameters with the same name. The file is read when the filter is initialized, an invalid file then fails the
+ * initialization, and is checked by a background thread every <code>configurationFileRefreshInterval</code> seconds (default
+ * <code>10</code>, see {@link ConfigurationFileWatcher}). A modified file is parsed and validated off the request path and the new
+ * configuration is then swapped in atomically, e.g. to follow the weekly rotation of the address ranges of a CDN. If the file becomes
+ * invalid or is removed, a warning is logged and the last valid configuration stays active.
  * </p>
  * <hr/>
  * <p>
@@ -417,21 +433,23 @@ import org.slf4j.LoggerFactory;
  * </p>
  * <hr/>
  */
-public class XForwardedFilter implements Filter {
+public class XForwardedFilter implements Filter, XForwardedFilterMBean {
+    /**
+     * <p>
+     * Wrapping extension of the {@link HttpServletRequest} to override the remote address, the scheme and some headers.
+     * </p>
+     * <p>
+     * For performance optimization, headers are not copied from the wrapped request: {@link #headers} only holds the headers that have
+     * been overridden by {@link #setHeader(String, String)} or {@link #removeHeader(String)} and the other headers are read from the
+     * wrapped request.
+     * </p>
+     */
     public static class XForwardedRequest extends HttpServletRequestWrapper {
         
-        final static ThreadLocal<SimpleDateFormat[]> threadLocalDateFormats = new ThreadLocal<SimpleDateFormat[]>() {
-            protected SimpleDateFormat[] initialValue() {
-                return new SimpleDateFormat[] {
-                    new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US),
-                    new SimpleDateFormat("EEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US),
-                    new SimpleDateFormat("EEE MMMM d HH:mm:ss yyyy", Locale.US)
-                };
-                
-            };
-        };
-        
-        protected Map<String, List<String>> headers;
+        /**
+         * Overridden headers, indexed by case insensitive name. A <code>null</code> value indicates that the header has been removed.
+         */
+        protected CaseInsensitiveMap<List<String>> headers = new CaseInsensitiveMap<List<String>>(4);
         
         protected String remoteAddr;
         
@@ -443,7 +461,6 @@ public class XForwardedFilter implements Filter {
         
         protected int serverPort;
         
-        @SuppressWarnings("unchecked")
         public XForwardedRequest(HttpServletRequest request) {
             super(request);
             this.remoteAddr = request.getRemoteAddr();
@@ -451,12 +468,6 @@ public class XForwardedFilter implements Filter {
             this.scheme = request.getScheme();
             this.secure = request.isSecure();
             this.serverPort = request.getServerPort();
-            
-            headers = new HashMap<String, List<String>>();
-            for (Enumeration<String> headerNames = request.getHeaderNames(); headerNames.hasMoreElements();) {
-                String header = headerNames.nextElement();
-                headers.put(header, Collections.list(request.getHeaders(header)));
-            }
         }
         
         @Override
@@ -465,51 +476,62 @@ public class XForwardedFilter implements Filter {
             if (value == null) {
                 return -1;
             }
-            DateFormat[] dateFormats = threadLocalDateFormats.get();
-            Date date = null;
-            for (int i = 0; ((i < dateFormats.length) && (date == null)); i++) {
-                DateFormat dateFormat = dateFormats[i];
-                try {
-                    date = dateFormat.parse(value);
-                } catch (Exception ParseException) {
-                    ;
-                }
-            }
-            if (date == null) {
+            long date = HttpDateFormat.parse(value);
+            if (date == -1) {
                 throw new IllegalArgumentException(value);
-            } else {
-                return date.getTime();
             }
+            return date;
         }
         
         @Override
         public String getHeader(String name) {
             Map.Entry<String, List<String>> header = getHeaderEntry(name);
-            if (header == null || header.getValue() == null || header.getValue().isEmpty()) {
+            if (header == null) {
+                return super.getHeader(name);
+            } else if (header.getValue() == null || header.getValue().isEmpty()) {
                 return null;
             } else {
                 return header.getValue().get(0);
             }
         }
         
+        /**
+         * Return the overridden header with the given case insensitive <code>name</code> or <code>null</code> if this header has not been
+         * overridden.
+         */
         protected Map.Entry<String, List<String>> getHeaderEntry(String name) {
-            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(name)) {
-                    return entry;
-                }
-            }
-            return null;
+            return headers.getEntry(name);
         }
         
         @Override
         public Enumeration<?> getHeaderNames() {
-            return Collections.enumeration(headers.keySet());
+            if (headers.isEmpty()) {
+                return super.getHeaderNames();
+            }
+            List<String> headerNames = new ArrayList<String>();
+            Enumeration<?> wrappedHeaderNames = super.getHeaderNames();
+            if (wrappedHeaderNames != null) {
+                while (wrappedHeaderNames.hasMoreElements()) {
+                    String headerName = (String) wrappedHeaderNames.nextElement();
+                    if (getHeaderEntry(headerName) == null) {
+                        headerNames.add(headerName);
+                    }
+                }
+            }
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (header.getValue() != null) {
+                    headerNames.add(header.getKey());
+                }
+            }
+            return Collections.enumeration(headerNames);
         }
         
         @Override
         public Enumeration<?> getHeaders(String name) {
             Map.Entry<String, List<String>> header = getHeaderEntry(name);
-            if (header == null || header.getValue() == null) {
+            if (header == null) {
+                return super.getHeaders(name);
+            } else if (header.getValue() == null) {
                 return Collections.enumeration(Collections.emptyList());
             } else {
                 return Collections.enumeration(header.getValue());
@@ -549,21 +571,11 @@ public class XForwardedFilter implements Filter {
         }
         
         public void removeHeader(String name) {
-            Map.Entry<String, List<String>> header = getHeaderEntry(name);
-            if (header != null) {
-                headers.remove(header.getKey());
-            }
+            headers.put(name, null);
         }
         
         public void setHeader(String name, String value) {
-            List<String> values = Arrays.asList(value);
-            Map.Entry<String, List<String>> header = getHeaderEntry(name);
-            if (header == null) {
-                headers.put(name, values);
-            } else {
-                header.setValue(values);
-            }
-            
+            headers.put(name, Arrays.asList(value));
         }
         
         public void setRemoteAddr(String remoteAddr) {
@@ -689,11 +701,116 @@ public class XForwardedFilter implements Filter {
 
     }
 
+    /**
+     * <p>
+     * Configuration of the filter. The requests read it through a single volatile reference and always see a consistent configuration:
+     * a published configuration is never modified, the setters and {@link XForwardedFilter#reconfigure(String)} publish a modified copy.
+     * </p>
+     */
+    private static final class Configuration {
+
+        /**
+         * @see XForwardedFilter#setAllowedInternalProxies(String)
+         */
+        private IpAddressMatcher allowedInternalProxies = IpAddressMatcher.compile(IpAddressMatcher.PRIVATE_NETWORKS);
+
+        /**
+         * @see XForwardedFilter#setHttpServerPort(int)
+         */
+        private int httpServerPort = 80;
+
+        /**
+         * @see XForwardedFilter#setHttpsServerPort(int)
+         */
+        private int httpsServerPort = 443;
+
+        /**
+         * @see XForwardedFilter#setProtocolHeader(String)
+         */
+        private String protocolHeader = null;
+
+        /**
+         * @see XForwardedFilter#setProtocolHeaderHttpsValue(String)
+         */
+        private String protocolHeaderHttpsValue = "https";
+
+        /**
+         * @see XForwardedFilter#setProxiesHeader(String)
+         */
+        private String proxiesHeader = "X-Forwarded-By";
+
+        /**
+         * @see XForwardedFilter#setRemoteIPHeader(String)
+         */
+        private String remoteIPHeader = "X-Forwarded-For";
+
+        /**
+         * @see XForwardedFilter#setTrustedProxies(String)
+         */
+        private IpAddressMatcher trustedProxies = new IpAddressMatcher();
+
+        Configuration() {
+        }
+
+        Configuration(Configuration configuration) {
+            this.allowedInternalProxies = configuration.allowedInternalProxies;
+            this.httpServerPort = configuration.httpServerPort;
+            this.httpsServerPort = configuration.httpsServerPort;
+            this.protocolHeader = configuration.protocolHeader;
+            this.protocolHeaderHttpsValue = configuration.protocolHeaderHttpsValue;
+            this.proxiesHeader = configuration.proxiesHeader;
+            this.remoteIPHeader = configuration.remoteIPHeader;
+            this.trustedProxies = configuration.trustedProxies;
+        }
+
+        /**
+         * Set the given init parameter.
+         * 
+         * @return <code>false</code> if the parameter is unknown
+         * @throws IllegalArgumentException
+         *             if the value is invalid
+         */
+        boolean setParameter(String name, String value) {
+            if (INTERNAL_PROXIES_PARAMETER.equals(name)) {
+                this.allowedInternalProxies = IpAddressMatcher.compile(value);
+            } else if (PROTOCOL_HEADER_PARAMETER.equals(name)) {
+                this.protocolHeader = value;
+            } else if (PROTOCOL_HEADER_SSL_VALUE_PARAMETER.equals(name) || PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER.equals(name)) {
+                this.protocolHeaderHttpsValue = value;
+            } else if (PROXIES_HEADER_PARAMETER.equals(name)) {
+                this.proxiesHeader = value;
+            } else if (REMOTE_IP_HEADER_PARAMETER.equals(name)) {
+                this.remoteIPHeader = value;
+            } else if (TRUSTED_PROXIES_PARAMETER.equals(name)) {
+                this.trustedProxies = IpAddressMatcher.compile(value);
+            } else if (HTTP_SERVER_PORT_PARAMETER.equals(name) || HTTPS_SERVER_PORT_PARAMETER.equals(name)) {
+                int port;
+                try {
+                    port = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new NumberFormatException("Illegal " + name + " : " + e.getMessage());
+                }
+                if (HTTP_SERVER_PORT_PARAMETER.equals(name)) {
+                    this.httpServerPort = port;
+                } else {
+                    this.httpsServerPort = port;
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+    }
+
     /**
      * {@link Pattern} for a comma delimited string that support whitespace characters
      */
     private static final Pattern commaSeparatedValuesPattern = Pattern.compile("\\s*,\\s*");
     
+    protected static final String CONFIGURATION_FILE_PARAMETER = "configurationFile";
+
+    protected static final String CONFIGURATION_FILE_REFRESH_INTERVAL_PARAMETER = "configurationFileRefreshInterval";
+
     protected static final String HTTP_SERVER_PORT_PARAMETER = "httpServerPort";
 
     protected static final String HTTPS_SERVER_PORT_PARAMETER = "httpsServerPort";
@@ -720,6 +837,13 @@ public class XForwardedFilter implements Filter {
     protected static final String REMOTE_IP_HEADER_PARAMETER = "remoteIPHeader";
     
     protected static final String TRUSTED_PROXIES_PARAMETER = "trustedProxies";
+
+    /**
+     * Names of the init parameters, the deprecated ones first so that their replacements prevail.
+     */
+    private static final List<String> PARAMETERS = Arrays.asList(PROTOCOL_HEADER_SSL_VALUE_PARAMETER, INTERNAL_PROXIES_PARAMETER,
+            PROTOCOL_HEADER_PARAMETER, PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER, PROXIES_HEADER_PARAMETER, REMOTE_IP_HEADER_PARAMETER,
+            TRUSTED_PROXIES_PARAMETER, HTTP_SERVER_PORT_PARAMETER, HTTPS_SERVER_PORT_PARAMETER);
     
     /**
      * Convert a given comma delimited list of regular expressions into an array of compiled {@link Pattern}
@@ -769,9 +893,34 @@ public class XForwardedFilter implements Filter {
         return result.toString();
     }
     
+    /**
+     * Return the index of the first non whitespace character of <code>str</code> between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), or <code>end</code> if there is none.
+     */
+    protected static int skipWhitespacesForward(String str, int start, int end) {
+        while (start < end && Character.isWhitespace(str.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+    
+    /**
+     * Return the index following the last non whitespace character of <code>str</code> between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), or <code>start</code> if there is none.
+     */
+    protected static int skipWhitespacesBackward(String str, int start, int end) {
+        while (end > start && Character.isWhitespace(str.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+    
     /**
      * Return <code>true</code> if the given <code>str</code> matches at least one of the given <code>patterns</code>.
+     * 
+     * @deprecated use {@link IpAddressMatcher#matches(String)}
      */
+    @Deprecated
     protected static boolean matchesOne(String str, Pattern... patterns) {
         for (Pattern pattern : patterns) {
             if (pattern.matcher(str).matches()) {
@@ -780,111 +929,183 @@ public class XForwardedFilter implements Filter {
         }
         return false;
     }
-    
-    /**
-     * @see #setHttpServerPort(int)
-     */
-    private int httpServerPort = 80;
 
     /**
-     * @see #setHttpsServerPort(int)
+     * Return a copy of the given configuration modified by the given init parameters.
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is unknown or invalid
      */
-    private int httpsServerPort = 443;
+    private static Configuration parseConfiguration(Configuration base, Map<String, String> parameters) {
+        for (String name : parameters.keySet()) {
+            if (!PARAMETERS.contains(name)) {
+                throw new IllegalArgumentException("Unknown parameter '" + name + "'");
+            }
+        }
+        Configuration configuration = new Configuration(base);
+        for (String name : PARAMETERS) {
+            String value = parameters.get(name);
+            if (value != null) {
+                if (PROTOCOL_HEADER_SSL_VALUE_PARAMETER.equals(name)) {
+                    logger.info("Parameter '" + PROTOCOL_HEADER_SSL_VALUE_PARAMETER + "' is deprecated, use '"
+                            + PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER + "' instead.");
+                }
+                configuration.setParameter(name, value);
+            }
+        }
+        return configuration;
+    }
 
     /**
-     * @see #setAllowedInternalProxies(String)
+     * Return the init parameters of the given configuration.
      */
-    private Pattern[] allowedInternalProxies = new Pattern[] { Pattern.compile("10\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}"),
-            Pattern.compile("192\\.168\\.\\d{1,3}\\.\\d{1,3}"), Pattern.compile("172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}"), 
-            Pattern.compile("169\\.254\\.\\d{1,3}\\.\\d{1,3}"), Pattern.compile("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}") };
+    private static Map<String, String> toParameters(Configuration configuration) {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put(INTERNAL_PROXIES_PARAMETER, listToCommaDelimitedString(Arrays.asList(configuration.allowedInternalProxies
+                .getExpressions())));
+        if (configuration.protocolHeader != null) {
+            parameters.put(PROTOCOL_HEADER_PARAMETER, configuration.protocolHeader);
+        }
+        parameters.put(PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER, configuration.protocolHeaderHttpsValue);
+        parameters.put(PROXIES_HEADER_PARAMETER, configuration.proxiesHeader);
+        parameters.put(REMOTE_IP_HEADER_PARAMETER, configuration.remoteIPHeader);
+        parameters.put(TRUSTED_PROXIES_PARAMETER, listToCommaDelimitedString(Arrays.asList(configuration.trustedProxies.getExpressions())));
+        parameters.put(HTTP_SERVER_PORT_PARAMETER, String.valueOf(configuration.httpServerPort));
+        parameters.put(HTTPS_SERVER_PORT_PARAMETER, String.valueOf(configuration.httpsServerPort));
+        return parameters;
+    }
     
     /**
-     * @see #setProtocolHeader(String)
+     * @see Configuration
      */
-    private String protocolHeader = null;
-    
-    private String protocolHeaderHttpsValue = "https";
-    
+    private volatile Configuration configuration = new Configuration();
+
     /**
-     * @see #setProxiesHeader(String)
+     * Configuration of the init parameters, on top of which the <code>configurationFile</code> and {@link #reconfigure(String)} are
+     * applied, <code>null</code> before {@link #init(FilterConfig)}.
      */
-    private String proxiesHeader = "X-Forwarded-By";
-    
+    private volatile Configuration initConfiguration;
+
     /**
-     * @see #setRemoteIPHeader(String)
+     * Optional watcher of the <code>configurationFile</code>, <code>null</code> if disabled.
      */
-    private String remoteIPHeader = "X-Forwarded-For";
-    
+    private ConfigurationFileWatcher configurationFileWatcher;
+
     /**
-     * @see #setTrustedProxies(String)
+     * <code>false</code> if the filter must not register its MBean, e.g. when it is embedded in another component.
      */
-    private Pattern[] trustedProxies = new Pattern[0];
+    private boolean manageable = true;
+
+    /**
+     * Name of the MBean of this filter, <code>null</code> if not registered.
+     */
+    private ObjectName objectName;
+
+    private final StripedCounter proxyChainResolutionCount = new StripedCounter();
+
+    private final StripedCounter requestCount = new StripedCounter();
+
+    private final StripedCounter securedUpgradeCount = new StripedCounter();
+
+    private final StripedCounter untrustedHopCount = new StripedCounter();
     
     public void destroy() {
+        FilterManagement.unregister(objectName);
+        objectName = null;
+        if (configurationFileWatcher != null) {
+            configurationFileWatcher.stop();
+            configurationFileWatcher = null;
+        }
     }
     
     public void doFilter(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws IOException, ServletException {
+        Configuration configuration = this.configuration;
+        requestCount.increment();
         
-        if (matchesOne(request.getRemoteAddr(), allowedInternalProxies)) {
+        if (configuration.allowedInternalProxies.matches(request.getRemoteAddr())) {
+            String remoteIPHeaderValue = request.getHeader(configuration.remoteIPHeader);
             String remoteIp = null;
-            // In java 6, proxiesHeaderValue should be declared as a java.util.Deque
-            LinkedList<String> proxiesHeaderValue = new LinkedList<String>();
+            StringBuilder proxiesHeaderValue = null;
+            String newRemoteIpHeaderValue = null;
             
-            String[] remoteIPHeaderValue = commaDelimitedListToStringArray(request.getHeader(remoteIPHeader));
-            int idx;
-            // loop on remoteIPHeaderValue to find the first trusted remote ip and to build the proxies chain
-            for (idx = remoteIPHeaderValue.length - 1; idx >= 0; idx--) {
-                String currentRemoteIp = remoteIPHeaderValue[idx];
-                remoteIp = currentRemoteIp;
-                if (matchesOne(currentRemoteIp, allowedInternalProxies)) {
-                    // do nothing, allowedInternalProxies IPs are not appended to the
-                } else if (matchesOne(currentRemoteIp, trustedProxies)) {
-                    proxiesHeaderValue.addFirst(currentRemoteIp);
-                } else {
-                    idx--; // decrement idx because break statement doesn't do it
-                    break;
+            if (remoteIPHeaderValue != null && remoteIPHeaderValue.length() > 0) {
+                // scan remoteIPHeaderValue right-to-left to find the first trusted remote ip and to build the proxies chain.
+                // Substrings are only created for the values that are actually exposed by the XForwardedRequest
+                int remoteIpStart = -1;
+                int remoteIpEnd = -1;
+                int segmentEnd = remoteIPHeaderValue.length();
+                while (true) {
+                    int commaIdx = remoteIPHeaderValue.lastIndexOf(',', segmentEnd - 1);
+                    int hopStart = skipWhitespacesForward(remoteIPHeaderValue, commaIdx + 1, segmentEnd);
+                    int hopEnd = skipWhitespacesBackward(remoteIPHeaderValue, hopStart, segmentEnd);
+                    // skip the empty hops, e.g. "a, , b" or "a,"
+                    if (hopStart < hopEnd) {
+                        remoteIpStart = hopStart;
+                        remoteIpEnd = hopEnd;
+                        if (configuration.allowedInternalProxies.matches(remoteIPHeaderValue, remoteIpStart, remoteIpEnd)) {
+                            // do nothing, allowedInternalProxies IPs are not appended to the
+                        } else if (configuration.trustedProxies.matches(remoteIPHeaderValue, remoteIpStart, remoteIpEnd)) {
+                            if (proxiesHeaderValue == null) {
+                                proxiesHeaderValue = new StringBuilder(remoteIpEnd - remoteIpStart);
+                            } else {
+                                proxiesHeaderValue.insert(0, ", ");
+                            }
+                            proxiesHeaderValue.insert(0, remoteIPHeaderValue, remoteIpStart, remoteIpEnd);
+                        } else {
+                            if (commaIdx >= 0) {
+                                untrustedHopCount.increment();
+                                // the left part of remoteIPHeaderValue is the new value of the remoteIPHeader
+                                newRemoteIpHeaderValue = remoteIPHeaderValue.substring(skipWhitespacesForward(remoteIPHeaderValue, 0,
+                                    commaIdx), skipWhitespacesBackward(remoteIPHeaderValue, 0, commaIdx));
+                            }
+                            break;
+                        }
+                    }
+                    if (commaIdx < 0) {
+                        break;
+                    }
+                    segmentEnd = commaIdx;
+                }
+                if (remoteIpStart != -1) {
+                    remoteIp = remoteIPHeaderValue.substring(remoteIpStart, remoteIpEnd);
                 }
-            }
-            // continue to loop on remoteIPHeaderValue to build the new value of the remoteIPHeader
-            LinkedList<String> newRemoteIpHeaderValue = new LinkedList<String>();
-            for (; idx >= 0; idx--) {
-                String currentRemoteIp = remoteIPHeaderValue[idx];
-                newRemoteIpHeaderValue.addFirst(currentRemoteIp);
             }
             
             XForwardedRequest xRequest = new XForwardedRequest(request);
             XForwardedResponse xResponse = new XForwardedResponse(response, xRequest);
             if (remoteIp != null) {
+                proxyChainResolutionCount.increment();
                 
                 xRequest.setRemoteAddr(remoteIp);
                 xRequest.setRemoteHost(remoteIp);
                 
-                if (proxiesHeaderValue.size() == 0) {
-                    xRequest.removeHeader(proxiesHeader);
+                if (proxiesHeaderValue == null) {
+                    xRequest.removeHeader(configuration.proxiesHeader);
                 } else {
-                    String commaDelimitedListOfProxies = listToCommaDelimitedString(proxiesHeaderValue);
-                    xRequest.setHeader(proxiesHeader, commaDelimitedListOfProxies);
+                    xRequest.setHeader(configuration.proxiesHeader, proxiesHeaderValue.toString());
                 }
-                if (newRemoteIpHeaderValue.size() == 0) {
-                    xRequest.removeHeader(remoteIPHeader);
+                if (newRemoteIpHeaderValue == null || newRemoteIpHeaderValue.length() == 0) {
+                    xRequest.removeHeader(configuration.remoteIPHeader);
                 } else {
-                    String commaDelimitedRemoteIpHeaderValue = listToCommaDelimitedString(newRemoteIpHeaderValue);
-                    xRequest.setHeader(remoteIPHeader, commaDelimitedRemoteIpHeaderValue);
+                    xRequest.setHeader(configuration.remoteIPHeader, newRemoteIpHeaderValue);
                 }
             }
             
-            if (protocolHeader != null) {
-                String protocolHeaderValue = request.getHeader(protocolHeader);
+            if (configuration.protocolHeader != null) {
+                String protocolHeaderValue = request.getHeader(configuration.protocolHeader);
                 if (protocolHeaderValue == null) {
                     // don't modify the secure,scheme and serverPort attributes of the request
-                } else if (protocolHeaderHttpsValue.equalsIgnoreCase(protocolHeaderValue)) {
+                } else if (configuration.protocolHeaderHttpsValue.equalsIgnoreCase(protocolHeaderValue)) {
+                    if (!request.isSecure()) {
+                        securedUpgradeCount.increment();
+                    }
                     xRequest.setSecure(true);
                     xRequest.setScheme("https");
-                    xRequest.setServerPort(httpsServerPort);
+                    xRequest.setServerPort(configuration.httpsServerPort);
                 } else {
                     xRequest.setSecure(false);
                     xRequest.setScheme("http");
-                    xRequest.setServerPort(httpServerPort);
+                    xRequest.setServerPort(configuration.httpServerPort);
                 }
 
             }
@@ -894,14 +1115,14 @@ public class XForwardedFilter implements Filter {
                     + "' with originalRemoteAddr '" + request.getRemoteAddr()
                     + "', originalRemoteHost='" + request.getRemoteHost() + "', originalSecure='"
                     + request.isSecure() + "', originalScheme='" + request.getScheme()
-                    + "', original[" + remoteIPHeader + "]='" + request.getHeader(remoteIPHeader)
-                    + ", original[" + protocolHeader + "]='"
-                    + (protocolHeader == null ? null : request.getHeader(protocolHeader))
+                    + "', original[" + configuration.remoteIPHeader + "]='" + request.getHeader(configuration.remoteIPHeader)
+                    + ", original[" + configuration.protocolHeader + "]='"
+                    + (configuration.protocolHeader == null ? null : request.getHeader(configuration.protocolHeader))
                     + "' will be seen as newRemoteAddr='" + xRequest.getRemoteAddr()
                     + "', newRemoteHost='" + xRequest.getRemoteHost() + "', newScheme='"
                     + xRequest.getScheme() + "', newSecure='" + xRequest.isSecure() + "', new["
-                    + remoteIPHeader + "]='" + xRequest.getHeader(remoteIPHeader) + ", new["
-                    + proxiesHeader + "]='" + xRequest.getHeader(proxiesHeader) + "'");
+                    + configuration.remoteIPHeader + "]='" + xRequest.getHeader(configuration.remoteIPHeader) + ", new["
+                    + configuration.proxiesHeader + "]='" + xRequest.getHeader(configuration.proxiesHeader) + "'");
             }
             chain.doFilter(xRequest, xResponse);
         } else {
@@ -926,15 +1147,27 @@ public class XForwardedFilter implements Filter {
     }
     
     public int getHttpsServerPort() {
-        return httpsServerPort;
+        return configuration.httpsServerPort;
     }
     
+    /**
+     * @deprecated use {@link #getInternalProxiesMatcher()}
+     */
+    @Deprecated
     public Pattern[] getInternalProxies() {
-        return allowedInternalProxies;
+        return configuration.allowedInternalProxies.toPatterns();
+    }
+
+    public IpAddressMatcher getInternalProxiesMatcher() {
+        return configuration.allowedInternalProxies;
+    }
+    
+    public String getParameters() {
+        return FilterManagement.toParameters(toParameters(configuration));
     }
     
     public String getProtocolHeader() {
-        return protocolHeader;
+        return configuration.protocolHeader;
     }
 
     /**
@@ -946,104 +1179,143 @@ public class XForwardedFilter implements Filter {
     }
 
     public String getProtocolHeaderHttpsValue() {
-        return protocolHeaderHttpsValue;
+        return configuration.protocolHeaderHttpsValue;
     }
     
     public String getProxiesHeader() {
-        return proxiesHeader;
+        return configuration.proxiesHeader;
+    }
+    
+    public long getProxyChainResolutionCount() {
+        return proxyChainResolutionCount.get();
     }
     
     public String getRemoteIPHeader() {
-        return remoteIPHeader;
+        return configuration.remoteIPHeader;
+    }
+    
+    public long getRequestCount() {
+        return requestCount.get();
     }
     
+    public long getSecuredUpgradeCount() {
+        return securedUpgradeCount.get();
+    }
+    
+    /**
+     * @deprecated use {@link #getTrustedProxiesMatcher()}
+     */
+    @Deprecated
     public Pattern[] getTrustedProxies() {
-        return trustedProxies;
+        return configuration.trustedProxies.toPatterns();
+    }
+
+    public IpAddressMatcher getTrustedProxiesMatcher() {
+        return configuration.trustedProxies;
+    }
+    
+    public long getUntrustedHopCount() {
+        return untrustedHopCount.get();
     }
     
     public void init(FilterConfig filterConfig) throws ServletException {
-        if (filterConfig.getInitParameter(INTERNAL_PROXIES_PARAMETER) != null) {
-            setAllowedInternalProxies(filterConfig.getInitParameter(INTERNAL_PROXIES_PARAMETER));
-        }
-
-        if (filterConfig.getInitParameter(PROTOCOL_HEADER_PARAMETER) != null) {
-            setProtocolHeader(filterConfig.getInitParameter(PROTOCOL_HEADER_PARAMETER));
-        }
-
-        if (filterConfig.getInitParameter(PROTOCOL_HEADER_SSL_VALUE_PARAMETER) != null) {
-            logger.info("Parameter '" + PROTOCOL_HEADER_SSL_VALUE_PARAMETER + "' is deprecated, use '"
-                    + PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER + "' instead.");
-            setProtocolHeaderSslValue(filterConfig.getInitParameter(PROTOCOL_HEADER_SSL_VALUE_PARAMETER));
-        }
-
-        if(filterConfig.getInitParameter(PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER) != null) {
-            setProtocolHeaderHttpsValue(filterConfig.getInitParameter(PROTOCOL_HEADER_HTTPS_VALUE_PARAMETER));
-        }
-
-        if (filterConfig.getInitParameter(PROXIES_HEADER_PARAMETER) != null) {
-            setProxiesHeader(filterConfig.getInitParameter(PROXIES_HEADER_PARAMETER));
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        for (String name : PARAMETERS) {
+            if (filterConfig.getInitParameter(name) != null) {
+                parameters.put(name, filterConfig.getInitParameter(name));
+            }
         }
-
-        if (filterConfig.getInitParameter(REMOTE_IP_HEADER_PARAMETER) != null) {
-            setRemoteIPHeader(filterConfig.getInitParameter(REMOTE_IP_HEADER_PARAMETER));
+        synchronized (this) {
+            this.initConfiguration = parseConfiguration(this.configuration, parameters);
+            this.configuration = initConfiguration;
         }
-
-        if (filterConfig.getInitParameter(TRUSTED_PROXIES_PARAMETER) != null) {
-            setTrustedProxies(filterConfig.getInitParameter(TRUSTED_PROXIES_PARAMETER));
+        String configurationFile = filterConfig.getInitParameter(CONFIGURATION_FILE_PARAMETER);
+        if (configurationFile != null) {
+            // the parameters of the file override the init parameters
+            this.configurationFileWatcher = FilterManagement.loadConfigurationFile(configurationFile, filterConfig
+                    .getInitParameter(CONFIGURATION_FILE_REFRESH_INTERVAL_PARAMETER), new ConfigurationFileWatcher.Listener() {
+                public void configurationFileChanged(String content) {
+                    reconfigure(content);
+                }
+            });
+            this.configurationFileWatcher.start();
         }
-
-        if (filterConfig.getInitParameter(HTTP_SERVER_PORT_PARAMETER) != null) {
-            try {
-                setHttpServerPort(Integer.parseInt(filterConfig.getInitParameter(HTTP_SERVER_PORT_PARAMETER)));
-            } catch (NumberFormatException e) {
-                throw new NumberFormatException("Illegal " + HTTP_SERVER_PORT_PARAMETER + " : " + e.getMessage());
-            }
+        if (manageable) {
+            this.objectName = FilterManagement.register(this, XForwardedFilterMBean.class, filterConfig);
         }
-
-        if (filterConfig.getInitParameter(HTTPS_SERVER_PORT_PARAMETER) != null) {
-            try {
-                setHttpsServerPort(Integer.parseInt(filterConfig.getInitParameter(HTTPS_SERVER_PORT_PARAMETER)));
-            } catch (NumberFormatException e) {
-                throw new NumberFormatException("Illegal " + HTTPS_SERVER_PORT_PARAMETER + " : " + e.getMessage());
-            }
+    }
+    
+    /**
+     * Parse the given init parameters, in the {@link java.util.Properties} format, and atomically replace the configuration of the filter.
+     * As for the <code>configurationFile</code>, the parameters that are not given keep the value of the init parameters.
+     * 
+     * @throws IllegalArgumentException
+     *             if a parameter is unknown or invalid, the current configuration is then kept
+     */
+    public void reconfigure(String parameters) {
+        Configuration initConfiguration = this.initConfiguration;
+        Configuration configuration = parseConfiguration(initConfiguration == null ? new Configuration() : initConfiguration,
+                FilterManagement.parseParameters(parameters));
+        synchronized (this) {
+            this.configuration = configuration;
         }
+        logger.info("Configuration replaced by " + toParameters(configuration));
+    }
+    
+    public void resetStatistics() {
+        proxyChainResolutionCount.reset();
+        requestCount.reset();
+        securedUpgradeCount.reset();
+        untrustedHopCount.reset();
     }
     
     /**
      * <p>
-     * Comma delimited list of internal proxies. Expressed with regular expressions.
+     * Comma delimited list of internal proxies. Expressed with address blocks in CIDR notation, IP addresses or regular expressions.
      * </p>
      * <p>
-     * Default value : 10\.\d{1,3}\.\d{1,3}\.\d{1,3}, 192\.168\.\d{1,3}\.\d{1,3}, 172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}, 
-     * 169\.254\.\d{1,3}\.\d{1,3}, 127\.\d{1,3}\.\d{1,3}\.\d{1,3}
+     * Default value : 10.0.0.0/8, 192.168.0.0/16, 172.16.0.0/12, 169.254.0.0/16, 127.0.0.0/8
      * </p>
      */
-    public void setAllowedInternalProxies(String allowedInternalProxies) {
-        this.allowedInternalProxies = commaDelimitedListToPatternArray(allowedInternalProxies);
+    public synchronized void setAllowedInternalProxies(String allowedInternalProxies) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.allowedInternalProxies = IpAddressMatcher.compile(allowedInternalProxies);
+        this.configuration = configuration;
     }
     
     /**
      * <p>
-     * Server Port value if the {@link #protocolHeader} does not indicate HTTPS
+     * Server Port value if the {@link #setProtocolHeader(String) protocolHeader} does not indicate HTTPS
      * </p>
      * <p>
      * Default value : 80
      * </p>
      */
-    public void setHttpServerPort(int httpServerPort) {
-        this.httpServerPort = httpServerPort;
+    public synchronized void setHttpServerPort(int httpServerPort) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.httpServerPort = httpServerPort;
+        this.configuration = configuration;
     }
 
     /**
      * <p>
-     * Server Port value if the {@link #protocolHeader} indicates HTTPS
+     * Server Port value if the {@link #setProtocolHeader(String) protocolHeader} indicates HTTPS
      * </p>
      * <p>
      * Default value : 443
      * </p>
      */
-    public void setHttpsServerPort(int httpsServerPort) {
-        this.httpsServerPort = httpsServerPort;
+    public synchronized void setHttpsServerPort(int httpsServerPort) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.httpsServerPort = httpsServerPort;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Must be called before {@link #init(FilterConfig)}.
+     */
+    void setManageable(boolean manageable) {
+        this.manageable = manageable;
     }
 
     /**
@@ -1055,8 +1327,10 @@ public class XForwardedFilter implements Filter {
      * Default value : <code>null</code>
      * </p>
      */
-    public void setProtocolHeader(String protocolHeader) {
-        this.protocolHeader = protocolHeader;
+    public synchronized void setProtocolHeader(String protocolHeader) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.protocolHeader = protocolHeader;
+        this.configuration = configuration;
     }
     
     /**
@@ -1082,8 +1356,10 @@ public class XForwardedFilter implements Filter {
      * Default value : <code>HTTPS</code>
      * </p>
      */
-    public void setProtocolHeaderHttpsValue(String protocolHeaderHttpsValue) {
-        this.protocolHeaderHttpsValue = protocolHeaderHttpsValue;
+    public synchronized void setProtocolHeaderHttpsValue(String protocolHeaderHttpsValue) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.protocolHeaderHttpsValue = protocolHeaderHttpsValue;
+        this.configuration = configuration;
     }
     
     /**
@@ -1102,8 +1378,10 @@ public class XForwardedFilter implements Filter {
      * Default value : <code>X-Forwarded-By</code>
      * </p>
      */
-    public void setProxiesHeader(String proxiesHeader) {
-        this.proxiesHeader = proxiesHeader;
+    public synchronized void setProxiesHeader(String proxiesHeader) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.proxiesHeader = proxiesHeader;
+        this.configuration = configuration;
     }
     
     /**
@@ -1117,20 +1395,24 @@ public class XForwardedFilter implements Filter {
      * Default value : <code>X-Forwarded-For</code>
      * </p>
      */
-    public void setRemoteIPHeader(String remoteIPHeader) {
-        this.remoteIPHeader = remoteIPHeader;
+    public synchronized void setRemoteIPHeader(String remoteIPHeader) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.remoteIPHeader = remoteIPHeader;
+        this.configuration = configuration;
     }
     
     /**
      * <p>
-     * Comma delimited list of proxies that are trusted when they appear in the {@link #remoteIPHeader} header. Can be expressed as a
-     * regular expression.
+     * Comma delimited list of proxies that are trusted when they appear in the {@link #setRemoteIPHeader(String) remoteIPHeader} header.
+     * Can be expressed as address blocks in CIDR notation, IP addresses or regular expressions.
      * </p>
      * <p>
      * Default value : empty list, no external proxy is trusted.
      * </p>
      */
-    public void setTrustedProxies(String trustedProxies) {
-        this.trustedProxies = commaDelimitedListToPatternArray(trustedProxies);
+    public synchronized void setTrustedProxies(String trustedProxies) {
+        Configuration configuration = new Configuration(this.configuration);
+        configuration.trustedProxies = IpAddressMatcher.compile(trustedProxies);
+        this.configuration = configuration;
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ByteRangesTest {
+
+    @Test
+    public void testMatchesIfRange() {
+        long lastModified = 1000000000000L;
+        assertTrue(ByteRanges.matchesIfRange(null, null, -1));
+        assertTrue(ByteRanges.matchesIfRange("\"abc\"", "\"abc\"", lastModified));
+        assertFalse(ByteRanges.matchesIfRange("\"abc\"", "\"def\"", lastModified));
+        // weak entity tags never match
+        assertFalse(ByteRanges.matchesIfRange("W/\"abc\"", "W/\"abc\"", lastModified));
+        assertFalse(ByteRanges.matchesIfRange("\"abc\"", "W/\"abc\"", lastModified));
+        assertTrue(ByteRanges.matchesIfRange(HttpDateFormat.format(lastModified), "\"abc\"", lastModified + 500));
+        assertFalse(ByteRanges.matchesIfRange(HttpDateFormat.format(lastModified + 5000), "\"abc\"", lastModified));
+        assertFalse(ByteRanges.matchesIfRange(HttpDateFormat.format(lastModified), null, -1));
+    }
+
+    @Test
+    public void testParse() {
+        assertArrayEquals(new long[] { 0, 4 }, ByteRanges.parse("bytes=0-4", 20));
+        assertArrayEquals(new long[] { 15, 19 }, ByteRanges.parse("bytes=15-", 20));
+        assertArrayEquals(new long[] { 17, 19 }, ByteRanges.parse("bytes=-3", 20));
+        assertArrayEquals(new long[] { 0, 19 }, ByteRanges.parse("bytes=-30", 20));
+        assertArrayEquals(new long[] { 10, 19 }, ByteRanges.parse("bytes=10-100", 20));
+        assertArrayEquals(new long[] { 0, 1, 5, 8 }, ByteRanges.parse("Bytes = 5-6, 0-1, 6-8", 20));
+        // adjacent ranges are merged
+        assertArrayEquals(new long[] { 0, 3 }, ByteRanges.parse("bytes=2-3,0-1", 20));
+        // unsatisfiable ranges are skipped
+        assertArrayEquals(new long[] { 0, 1 }, ByteRanges.parse("bytes=0-1,50-60", 20));
+
+        // not satisfiable
+        assertEquals(0, ByteRanges.parse("bytes=50-", 20).length);
+        assertEquals(0, ByteRanges.parse("bytes=-0", 20).length);
+        assertEquals(0, ByteRanges.parse("bytes=0-", 0).length);
+
+        // ignored
+        assertNull(ByteRanges.parse(null, 20));
+        assertNull(ByteRanges.parse("items=0-4", 20));
+        assertNull(ByteRanges.parse("bytes=", 20));
+        assertNull(ByteRanges.parse("bytes=4-0", 20));
+        assertNull(ByteRanges.parse("bytes=a-b", 20));
+        StringBuilder tooManyRanges = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGE_COUNT; i++) {
+            tooManyRanges.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        assertNull(ByteRanges.parse(tooManyRanges.toString(), 1000));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Micro benchmark of the case insensitive header lookup of {@link CaseInsensitiveMap} compared to the linear
+ * {@link String#equalsIgnoreCase(String)} scan previously done by {@link XForwardedFilter.XForwardedRequest}.
+ * </p>
+ * <p>
+ * Not a unit test, run it with <code>java fr.xebia.servlet.filter.CaseInsensitiveMapBenchmark</code>. The cost of a
+ * {@link CaseInsensitiveMap} lookup must remain flat when the number of headers grows.
+ * </p>
+ */
+public class CaseInsensitiveMapBenchmark {
+
+    private static final int ITERATIONS = 2000000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int[] headerCounts = { 5, 10, 20, 50, 100 };
+        // warm up
+        for (int headerCount : headerCounts) {
+            benchmark(headerCount, ITERATIONS / 10);
+        }
+        System.out.println("headers\tlinear scan (ns/lookup)\tcase insensitive map (ns/lookup)");
+        for (int headerCount : headerCounts) {
+            long[] result = benchmark(headerCount, ITERATIONS);
+            System.out.println(headerCount + "\t" + result[0] + "\t" + result[1]);
+        }
+    }
+
+    private static long[] benchmark(int headerCount, int iterations) {
+        Map<String, String> linkedHashMap = new LinkedHashMap<String, String>();
+        CaseInsensitiveMap<String> caseInsensitiveMap = new CaseInsensitiveMap<String>();
+        String[] lookups = new String[headerCount];
+        for (int i = 0; i < headerCount; i++) {
+            String name = "X-Custom-Header-" + i;
+            linkedHashMap.put(name, "value-" + i);
+            caseInsensitiveMap.put(name, "value-" + i);
+            lookups[i] = name.toLowerCase();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String name = lookups[i % headerCount];
+            for (Map.Entry<String, String> entry : linkedHashMap.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    sink = entry;
+                    break;
+                }
+            }
+        }
+        long linearScan = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = caseInsensitiveMap.getEntry(lookups[i % headerCount]);
+        }
+        long hashed = (System.nanoTime() - start) / iterations;
+
+        return new long[] { linearScan, hashed };
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CaseInsensitiveMapTest {
+
+    @Test
+    public void testCaseInsensitiveLookup() {
+        CaseInsensitiveMap<String> map = new CaseInsensitiveMap<String>();
+        map.put("Content-Type", "text/html");
+
+        assertEquals("text/html", map.get("content-type"));
+        assertEquals("text/html", map.get("CONTENT-TYPE"));
+        assertTrue(map.containsKey("Content-type"));
+        assertNull(map.get("Content-Length"));
+        assertNull(map.get(null));
+    }
+
+    @Test
+    public void testOriginalCasingIsPreserved() {
+        CaseInsensitiveMap<String> map = new CaseInsensitiveMap<String>();
+        map.put("X-Forwarded-For", "140.211.11.130");
+        map.put("x-forwarded-for", "10.0.0.1");
+
+        assertEquals(1, map.size());
+        assertEquals(Arrays.asList("X-Forwarded-For"), new ArrayList<String>(map.keySet()));
+        assertEquals("10.0.0.1", map.get("X-FORWARDED-FOR"));
+    }
+
+    @Test
+    public void testInsertionOrderAndResize() {
+        CaseInsensitiveMap<Integer> map = new CaseInsensitiveMap<Integer>(4);
+        for (int i = 0; i < 100; i++) {
+            map.put("Header-" + i, i);
+        }
+        assertEquals(100, map.size());
+        int expected = 0;
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            assertEquals("Header-" + expected, entry.getKey());
+            assertEquals(Integer.valueOf(expected), entry.getValue());
+            expected++;
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), map.get("HEADER-" + i));
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        CaseInsensitiveMap<String> map = new CaseInsensitiveMap<String>();
+        map.put("Accept", "*/*");
+        map.put("Cookie", "JSESSIONID=123");
+        map.put("Host", "localhost");
+
+        assertEquals("JSESSIONID=123", map.remove("COOKIE"));
+        assertFalse(map.containsKey("cookie"));
+        assertEquals(Arrays.asList("Accept", "Host"), new ArrayList<String>(map.keySet()));
+
+        for (Iterator<String> it = map.keySet().iterator(); it.hasNext();) {
+            if (it.next().equals("Accept")) {
+                it.remove();
+            }
+        }
+        assertEquals(Arrays.asList("Host"), new ArrayList<String>(map.keySet()));
+        assertNull(map.get("accept"));
+    }
+
+    @Test
+    public void testGetEntrySetValue() {
+        CaseInsensitiveMap<String> map = new CaseInsensitiveMap<String>();
+        map.put("Cache-Control", "private");
+        map.getEntry("cache-control").setValue("no-cache");
+        assertEquals("no-cache", map.get("Cache-Control"));
+        assertNull(map.getEntry("Expires"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class CommitInterceptingResponseTest {
+
+    private static class RecordingListener implements ResponseCommitListener {
+
+        private final List<String> events;
+
+        private final String name;
+
+        RecordingListener(String name, List<String> events) {
+            this.name = name;
+            this.events = events;
+        }
+
+        public void onBeforeCommit(HttpServletRequest request, CommitInterceptingResponse response) {
+            events.add(name);
+            response.setHeader("X-" + name, "true");
+        }
+    }
+
+    @Test
+    public void testWrapReusesSharedWrapper() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        List<String> events = new ArrayList<String>();
+
+        CommitInterceptingResponse outer = CommitInterceptingResponse.wrap(request, response);
+        assertNotSame(response, outer);
+        outer.addResponseCommitListener(new RecordingListener("outer", events));
+
+        CommitInterceptingResponse inner = CommitInterceptingResponse.wrap(request, outer);
+        assertSame(outer, inner);
+        inner.addResponseCommitListener(new RecordingListener("inner", events));
+
+        inner.getOutputStream().write(new byte[] { 'a', 'b' });
+        inner.getOutputStream().write('c');
+        outer.fireBeforeCommit();
+
+        assertEquals("[outer, inner]", events.toString());
+        assertEquals("true", response.getHeader("X-outer"));
+        assertEquals("true", response.getHeader("X-inner"));
+        assertEquals("abc", response.getContentAsString());
+    }
+
+    @Test
+    public void testEmptyResponseFiresOnce() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        List<String> events = new ArrayList<String>();
+
+        CommitInterceptingResponse xResponse = CommitInterceptingResponse.wrap(request, response);
+        xResponse.addResponseCommitListener(new RecordingListener("listener", events));
+        xResponse.setStatus(204);
+
+        xResponse.fireBeforeCommit();
+        xResponse.fireBeforeCommit();
+        assertEquals("[listener]", events.toString());
+        assertEquals(204, xResponse.getStatus());
+        assertTrue(xResponse.isWriteResponseBodyStarted());
+    }
+
+    @Test
+    public void testFlushBufferFiresEvent() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        List<String> events = new ArrayList<String>();
+
+        CommitInterceptingResponse xResponse = CommitInterceptingResponse.wrap(request, response);
+        xResponse.addResponseCommitListener(new RecordingListener("listener", events));
+        xResponse.flushBuffer();
+        assertEquals("[listener]", events.toString());
+        assertEquals("true", response.getHeader("X-listener"));
+
+        // listeners registered after the event are immediately notified
+        xResponse.addResponseCommitListener(new RecordingListener("late", events));
+        assertEquals("[listener, late]", events.toString());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ConfigurationFileWatcherTest {
+
+    /**
+     * Record the accepted contents, reject the contents starting with <code>invalid</code>.
+     */
+    private static class RecordingListener implements ConfigurationFileWatcher.Listener {
+
+        final List<String> contents = Collections.synchronizedList(new ArrayList<String>());
+
+        public void configurationFileChanged(String content) {
+            if (content.startsWith("invalid")) {
+                throw new IllegalArgumentException(content);
+            }
+            contents.add(content);
+        }
+    }
+
+    private static void write(File file, String content, long lastModified) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("ISO-8859-1"));
+        out.close();
+        file.setLastModified(lastModified);
+    }
+
+    @Test
+    public void testCheckReloadsSettledChanges() throws Exception {
+        File file = File.createTempFile("configuration", ".properties");
+        try {
+            write(file, "trustedProxies = 192.0.2.0/24", 1000000);
+            RecordingListener listener = new RecordingListener();
+            ConfigurationFileWatcher watcher = new ConfigurationFileWatcher(file, 1000, listener);
+            watcher.load();
+            assertEquals(1, listener.contents.size());
+            assertFalse(watcher.check());
+
+            write(file, "trustedProxies = 198.51.100.0/24", 2000000);
+            // the change must be stable during a whole interval
+            assertFalse(watcher.check());
+            write(file, "trustedProxies = 198.51.100.0/24, 203.0.113.0/24", 3000000);
+            assertFalse(watcher.check());
+            assertTrue(watcher.check());
+            assertEquals("trustedProxies = 198.51.100.0/24, 203.0.113.0/24", listener.contents.get(1));
+            assertFalse(watcher.check());
+            assertEquals(2, listener.contents.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCheckKeepsConfigurationOfInvalidOrMissingFile() throws Exception {
+        File file = File.createTempFile("configuration", ".properties");
+        try {
+            write(file, "trustedProxies = 192.0.2.0/24", 1000000);
+            RecordingListener listener = new RecordingListener();
+            ConfigurationFileWatcher watcher = new ConfigurationFileWatcher(file, 1000, listener);
+            watcher.load();
+
+            write(file, "invalid", 2000000);
+            assertFalse(watcher.check());
+            assertFalse(watcher.check());
+            // a rejected version is not read again
+            assertFalse(watcher.check());
+            assertEquals(1, listener.contents.size());
+
+            file.delete();
+            assertFalse(watcher.check());
+            assertFalse(watcher.check());
+
+            write(file, "trustedProxies = 198.51.100.0/24", 3000000);
+            assertFalse(watcher.check());
+            assertTrue(watcher.check());
+            assertEquals(2, listener.contents.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLoadRejectsInvalidFile() throws Exception {
+        File file = File.createTempFile("configuration", ".properties");
+        try {
+            write(file, "invalid", 1000000);
+            new ConfigurationFileWatcher(file, 1000, new RecordingListener()).load();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStartAndStop() throws Exception {
+        File file = File.createTempFile("configuration", ".properties");
+        try {
+            write(file, "trustedProxies = 192.0.2.0/24", 1000000);
+            RecordingListener listener = new RecordingListener();
+            ConfigurationFileWatcher watcher = new ConfigurationFileWatcher(file, 10, listener);
+            watcher.load();
+            watcher.start();
+            write(file, "trustedProxies = 198.51.100.0/24", 2000000);
+            for (int i = 0; i < 500 && listener.contents.size() < 2; i++) {
+                Thread.sleep(10);
+            }
+            watcher.stop();
+            assertEquals(2, listener.contents.size());
+        } finally {
+            file.delete();
+        }
+    }
+}
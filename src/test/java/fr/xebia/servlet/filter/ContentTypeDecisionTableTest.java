@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ContentTypeDecisionTableTest {
+
+    @Test
+    public void testNormalize() {
+        assertEquals("text/html", ContentTypeDecisionTable.normalize(" Text/HTML "));
+        assertEquals("text/html;charset=utf-8", ContentTypeDecisionTable.normalize("text/html; charset=\"UTF-8\""));
+        assertEquals("image/*", ContentTypeDecisionTable.normalize("image"));
+        assertEquals("image/*", ContentTypeDecisionTable.normalize("image/*"));
+        assertEquals("application/*+json", ContentTypeDecisionTable.normalize("application/*+json"));
+        assertEquals("*/*;charset=utf-8", ContentTypeDecisionTable.normalize("*/*; charset=utf-8"));
+        assertNull(ContentTypeDecisionTable.normalize("multipart/form-data; boundary=xyz"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNormalizeWildcardType() {
+        ContentTypeDecisionTable.normalize("*/html");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNormalizeCharsetWithWildcardSubtype() {
+        ContentTypeDecisionTable.normalize("text/*; charset=utf-8");
+    }
+
+    @Test
+    public void testPrecedence() {
+        ContentTypeDecisionTable<String> table = new ContentTypeDecisionTable<String>();
+        table.put("*/*", "any");
+        table.put("*/*; charset=utf-8", "any-utf-8");
+        table.put("image", "image");
+        table.put("application/*+json", "application-json-suffix");
+        table.put("*/*+xml", "xml-suffix");
+        table.put("application/json", "json");
+        table.put("text/html; charset=utf-8", "html-utf-8");
+        table.put("text/html", "html");
+        table.put("text/plain; charset=ISO-8859-1", "plain-exact");
+
+        assertEquals("plain-exact", table.get("text/plain; charset=ISO-8859-1"));
+        assertEquals("html-utf-8", table.get("text/html;charset=UTF-8"));
+        assertEquals("html", table.get("TEXT/HTML; charset=iso-8859-1"));
+        assertEquals("json", table.get("application/json; charset=utf-8"));
+        assertEquals("application-json-suffix", table.get("application/ld+json"));
+        assertEquals("xml-suffix", table.get("application/atom+xml"));
+        assertEquals("image", table.get("image/png"));
+        assertEquals("any-utf-8", table.get("text/css;charset=\"utf-8\""));
+        assertEquals("any", table.get("text/css"));
+        assertNull(table.get(null));
+    }
+
+    @Test
+    public void testFirstEquivalentRuleWins() {
+        ContentTypeDecisionTable<String> table = new ContentTypeDecisionTable<String>();
+        table.put("image", "first");
+        assertFalse(table.put("image/*", "second"));
+        assertEquals("first", table.get("image/gif"));
+        assertNull(table.get("text/html"));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class DeflaterPoolTest {
+
+    @Test
+    public void testBorrowReusesReleasedDeflaterOfSameLevel() {
+        DeflaterPool pool = new DeflaterPool(1);
+        Deflater deflater = pool.borrow(6);
+        deflater.setInput("abc".getBytes());
+        pool.release(deflater, 6);
+
+        assertNotSame(deflater, pool.borrow(1));
+        Deflater reused = pool.borrow(6);
+        assertSame(deflater, reused);
+        // reset when released
+        assertEquals(0, reused.getBytesRead());
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testReleaseBeyondMaxIdle() {
+        DeflaterPool pool = new DeflaterPool(1);
+        Deflater first = pool.borrow(6);
+        Deflater second = pool.borrow(6);
+        pool.release(first, 6);
+        pool.release(second, 6);
+        assertEquals(1, pool.getIdleCount());
+        assertSame(first, pool.borrow(6));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new DeflaterPool(1).borrow(10);
+    }
+}
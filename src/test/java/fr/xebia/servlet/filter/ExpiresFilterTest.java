@@ -15,20 +15,41 @@
  */
 package fr.xebia.servlet.filter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mortbay.jetty.Handler;
@@ -36,7 +57,10 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.servlet.Context;
 import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.springframework.mock.web.MockFilterChain;
 import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.util.StringUtils;
 
 import fr.xebia.servlet.filter.ExpiresFilter.Duration;
@@ -46,6 +70,23 @@ import fr.xebia.servlet.filter.ExpiresFilter.StartingPoint;
 
 public class ExpiresFilterTest {
 
+    /**
+     * Filters initialized by the test, destroyed after the test to unregister their MBean.
+     */
+    private final List<Filter> filters = new ArrayList<Filter>();
+
+    @After
+    public void destroyFilters() {
+        for (Filter filter : filters) {
+            filter.destroy();
+        }
+    }
+
+    private void init(Filter filter, FilterConfig filterConfig) throws ServletException {
+        filter.init(filterConfig);
+        filters.add(filter);
+    }
+
     @Test
     public void testConfiguration() throws ServletException {
         MockFilterConfig filterConfig = new MockFilterConfig();
@@ -59,7 +100,7 @@ public class ExpiresFilterTest {
         filterConfig.addInitParameter("ExpiresExcludedResponseStatusCodes", "304, 503");
 
         ExpiresFilter expiresFilter = new ExpiresFilter();
-        expiresFilter.init(filterConfig);
+        init(expiresFilter, filterConfig);
 
         Assert.assertEquals(false, expiresFilter.isActive());
 
@@ -365,7 +406,7 @@ public class ExpiresFilterTest {
         filterConfig.addInitParameter("ExpiresExcludedResponseStatusCodes", "304, 503");
 
         ExpiresFilter expiresFilter = new ExpiresFilter();
-        expiresFilter.init(filterConfig);
+        init(expiresFilter, filterConfig);
 
         context.addFilter(new FilterHolder(expiresFilter), "/*", Handler.REQUEST);
 
@@ -430,6 +471,796 @@ public class ExpiresFilterTest {
         }
     }
 
+    @Test
+    public void testAccessTimeExpirationHeadersAreFormattedOncePerSecond() throws Exception {
+        final long[] now = new long[] { 784111777000L };
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        expiresFilter.setClock(new HttpDateClock() {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        });
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 hour");
+        init(expiresFilter, filterConfig);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response1 = new MockHttpServletResponse();
+        response1.setContentType("text/html");
+        expiresFilter.onBeforeWriteResponseBody(request, expiresFilter.new XHttpServletResponse(request, response1));
+
+        now[0] += 999;
+        MockHttpServletResponse response2 = new MockHttpServletResponse();
+        response2.setContentType("text/html");
+        expiresFilter.onBeforeWriteResponseBody(request, expiresFilter.new XHttpServletResponse(request, response2));
+
+        Assert.assertEquals("Sun, 06 Nov 1994 09:49:37 GMT", response1.getHeader("Expires"));
+        Assert.assertEquals("max-age=3600", response1.getHeader("Cache-Control"));
+        Assert.assertSame(response1.getHeader("Expires"), response2.getHeader("Expires"));
+        Assert.assertSame(response1.getHeader("Cache-Control"), response2.getHeader("Cache-Control"));
+
+        now[0] += 1;
+        MockHttpServletResponse response3 = new MockHttpServletResponse();
+        response3.setContentType("text/html");
+        expiresFilter.onBeforeWriteResponseBody(request, expiresFilter.new XHttpServletResponse(request, response3));
+
+        Assert.assertEquals("Sun, 06 Nov 1994 09:49:38 GMT", response3.getHeader("Expires"));
+        Assert.assertEquals("max-age=3600", response3.getHeader("Cache-Control"));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeprecatedXHttpServletResponseMethods() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 hour");
+        init(expiresFilter, filterConfig);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ExpiresFilter.XHttpServletResponse xResponse = expiresFilter.new XHttpServletResponse(request, response);
+        xResponse.setContentType("text/html");
+        long timeBeforeInMillis = System.currentTimeMillis();
+        Date expirationDate = expiresFilter.getExpirationDate(request, xResponse);
+        Assert.assertTrue(expirationDate.getTime() >= timeBeforeInMillis + 3600 * 1000L - 1000);
+        Assert.assertTrue(expiresFilter.isEligibleToExpirationHeaderGeneration(request, xResponse));
+
+        expiresFilter.onBeforeWriteResponseBody(request, xResponse);
+        Assert.assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+        Assert.assertFalse(expiresFilter.isEligibleToExpirationHeaderGeneration(request, xResponse));
+
+        xResponse = expiresFilter.new XHttpServletResponse(request, new MockHttpServletResponse());
+        xResponse.setContentType("text/plain");
+        Assert.assertNull(expiresFilter.getExpirationDate(request, xResponse));
+    }
+
+    @Test
+    public void testGetExpirationTime() {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        ExpiresFilter.XHttpServletResponse response = expiresFilter.new XHttpServletResponse(request, new MockHttpServletResponse());
+        long now = 784111777000L;
+
+        ExpiresConfiguration fixedConfiguration = expiresFilter.parseExpiresConfiguration("access plus 1 week 2 hours 5 minutes 3 seconds");
+        Assert.assertTrue(fixedConfiguration.isFixedDuration());
+        long expectedDuration = ((7 * 24 + 2) * 3600 + 5 * 60 + 3) * 1000L;
+        Assert.assertEquals(expectedDuration, fixedConfiguration.getDurationInMillis());
+        Assert.assertEquals(now + expectedDuration, expiresFilter.getExpirationTime(fixedConfiguration, response, now));
+
+        ExpiresConfiguration calendarConfiguration = expiresFilter.parseExpiresConfiguration("access plus 1 month 15 days 2 hours");
+        Assert.assertFalse(calendarConfiguration.isFixedDuration());
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.add(Calendar.MONTH, 1);
+        calendar.add(Calendar.DAY_OF_YEAR, 15);
+        calendar.add(Calendar.HOUR, 2);
+        Assert.assertEquals(calendar.getTimeInMillis(), expiresFilter.getExpirationTime(calendarConfiguration, response, now));
+
+        ExpiresConfiguration modificationConfiguration = expiresFilter.parseExpiresConfiguration("modification plus 1 day");
+        response.setDateHeader("Last-Modified", now - 3600000L);
+        Assert.assertEquals(now - 3600000L + 24 * 3600000L, expiresFilter.getExpirationTime(modificationConfiguration, response, now));
+    }
+
+    @Test
+    public void testContentTypeResolutionIsInvalidatedOnConfigurationChange() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 hour");
+        init(expiresFilter, filterConfig);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse htmlResponse = new MockHttpServletResponse();
+        htmlResponse.setContentType("text/html; charset=utf-8");
+        MockHttpServletResponse plainResponse = new MockHttpServletResponse();
+        plainResponse.setContentType("text/plain");
+
+        ExpiresConfiguration htmlConfiguration = expiresFilter.getExpiresConfigurationByContentType().get("text/html");
+        for (int i = 0; i < 2; i++) {
+            Assert.assertSame(htmlConfiguration, expiresFilter.getExpiresConfiguration(request, expiresFilter.new XHttpServletResponse(
+                    request, htmlResponse)));
+            Assert.assertNull(expiresFilter.getExpiresConfiguration(request, expiresFilter.new XHttpServletResponse(request, plainResponse)));
+        }
+
+        ExpiresConfiguration defaultConfiguration = expiresFilter.parseExpiresConfiguration("access plus 1 minute");
+        expiresFilter.setDefaultExpiresConfiguration(defaultConfiguration);
+
+        Assert.assertSame(htmlConfiguration, expiresFilter.getExpiresConfiguration(request, expiresFilter.new XHttpServletResponse(request,
+                htmlResponse)));
+        Assert.assertSame(defaultConfiguration, expiresFilter.getExpiresConfiguration(request, expiresFilter.new XHttpServletResponse(
+                request, plainResponse)));
+    }
+
+    @Test
+    public void testConfigurationSnapshotSwap() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 hour");
+        filterConfig.addInitParameter("ExpiresResponseCacheMaxSize", "100000");
+        init(expiresFilter, filterConfig);
+
+        FilterChain htmlServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                response.setContentType("text/html");
+                response.getWriter().print("Hello world");
+            }
+        };
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/index.html"), response, htmlServlet);
+        Assert.assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+        Assert.assertEquals(1, expiresFilter.getResponseCache().getEntryCount());
+
+        ExpiresFilter.ConfigurationSnapshot previous = expiresFilter.getConfigurationSnapshot();
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("ExpiresByType text/html", "access plus 5 minutes");
+        parameters.put("ExpiresExcludedPaths", "/api/**");
+        // initialization only, ignored
+        parameters.put("ExpiresResponseCacheMaxSize", "0");
+        expiresFilter.setConfigurationSnapshot(expiresFilter.parseConfigurationSnapshot(parameters));
+
+        // the previous snapshot is unchanged
+        Assert.assertEquals(1, previous.getExpiresConfigurationByContentType().get("text/html").getDurations().get(0).getAmount());
+        Assert.assertEquals(0, previous.getExcludedPaths().length);
+
+        // cached responses are discarded
+        Assert.assertEquals(0, expiresFilter.getResponseCache().getEntryCount());
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/index.html"), response, htmlServlet);
+        Assert.assertEquals("max-age=300", response.getHeader("Cache-Control"));
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/api/users"), response, htmlServlet);
+        Assert.assertNull(response.getHeader("Cache-Control"));
+
+        // the setters publish a new snapshot
+        expiresFilter.setActive(false);
+        Assert.assertFalse(expiresFilter.getConfigurationSnapshot().isActive());
+        Assert.assertEquals(1, expiresFilter.getConfigurationSnapshot().getExcludedPaths().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConfigurationSnapshot() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        expiresFilter.parseConfigurationSnapshot(Collections.singletonMap("ExpiresByType */html", "access plus 1 month"));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig("testMBean");
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 hour");
+        filterConfig.addInitParameter("ExpiresByPath /static/**", "access plus 1 day");
+        init(expiresFilter, filterConfig);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("fr.xebia.servlet.filter:type=ExpiresFilter,context=\"/\",name=\"testMBean\"");
+        try {
+            for (final String contentType : new String[] { "text/html; charset=utf-8", "image/png", "text/html" }) {
+                expiresFilter.doFilter(new MockHttpServletRequest("GET", "/index"), new MockHttpServletResponse(), new FilterChain() {
+                    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                        response.setContentType(contentType);
+                        response.getWriter().print("Hello world");
+                    }
+                });
+            }
+            expiresFilter.doFilter(new MockHttpServletRequest("GET", "/static/app.js"), new MockHttpServletResponse(),
+                    new MockFilterChain());
+            expiresFilter.doFilter(new MockHttpServletRequest("GET", "/index"), new MockHttpServletResponse(), new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                }
+            });
+
+            Assert.assertEquals(5L, mbeanServer.getAttribute(objectName, "RequestCount"));
+            Assert.assertEquals(3L, mbeanServer.getAttribute(objectName, "ExpirationHeadersCount"));
+            Map<String, Long> expected = new LinkedHashMap<String, Long>();
+            expected.put("text/html", 2L);
+            expected.put("unknown", 1L);
+            Assert.assertEquals(expected, mbeanServer.getAttribute(objectName, "ExpirationHeadersCountByContentType"));
+            Assert.assertEquals(1L, mbeanServer.getAttribute(objectName, "SkippedNoConfigurationCount"));
+            Assert.assertEquals(1L, mbeanServer.getAttribute(objectName, "SkippedByStatusCount"));
+
+            mbeanServer.invoke(objectName, "reconfigure", new Object[] { "ExpiresByType\\ image/png = access plus 1 month" },
+                    new String[] { String.class.getName() });
+            // applied on top of the init parameters
+            Assert.assertNotNull(expiresFilter.getConfigurationSnapshot().getExpiresConfigurationByContentType().get("text/html"));
+            Assert.assertNotNull(expiresFilter.getConfigurationSnapshot().getExpiresConfigurationByContentType().get("image/png"));
+            Assert.assertNotNull(expiresFilter.getConfigurationSnapshot().getExpiresConfigurationByPath().get("/static/**"));
+
+            mbeanServer.invoke(objectName, "resetStatistics", null, null);
+            Assert.assertEquals(0L, mbeanServer.getAttribute(objectName, "RequestCount"));
+        } finally {
+            expiresFilter.destroy();
+        }
+        Assert.assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testWildcardContentTypeConfiguration() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType image/*", "access plus 1 month");
+        filterConfig.addInitParameter("ExpiresByType application/*+json", "access plus 2 minutes");
+        filterConfig.addInitParameter("ExpiresByType */*; charset=utf-8", "access plus 3 minutes");
+        init(expiresFilter, filterConfig);
+
+        Assert.assertEquals(DurationUnit.MONTH, expiresFilter.resolveExpiresConfiguration("image/png").getDurations().get(0).getUnit());
+        Assert.assertEquals(2, expiresFilter.resolveExpiresConfiguration("application/ld+json").getDurations().get(0).getAmount());
+        Assert.assertEquals(3, expiresFilter.resolveExpiresConfiguration("text/html; charset=UTF-8").getDurations().get(0).getAmount());
+        Assert.assertNull(expiresFilter.resolveExpiresConfiguration("text/html"));
+    }
+
+    @Test(expected = ServletException.class)
+    public void testUnsupportedWildcardContentTypeConfiguration() throws Exception {
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType */html", "access plus 1 month");
+        new ExpiresFilter().init(filterConfig);
+    }
+
+    @Test
+    public void testExpiresByPath() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresDefault", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresByPath /static/**", "access plus 1 hour");
+        filterConfig.addInitParameter("ExpiresByPath *.png", "modification plus 2 hours");
+        filterConfig.addInitParameter("ExpiresExcludedPaths", "/api/**, *.jsp");
+        init(expiresFilter, filterConfig);
+
+        FilterChain htmlServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                response.setContentType("text/html");
+                response.getWriter().print("Hello world");
+            }
+        };
+
+        // access time path rule: headers are set on request entry, the response is not wrapped
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/context/static/app.js;jsessionid=123");
+        request.setContextPath("/context");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        expiresFilter.doFilter(request, response, chain);
+        Assert.assertSame(response, chain.getResponse());
+        Assert.assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+        Assert.assertNotNull(response.getHeader("Expires"));
+
+        // modification time path rule wins over ExpiresDefault
+        request = new MockHttpServletRequest("GET", "/context/images/logo.png");
+        request.setContextPath("/context");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, htmlServlet);
+        Assert.assertTrue(((String) response.getHeader("Cache-Control")).startsWith("max-age=72"));
+
+        // excluded path
+        request = new MockHttpServletRequest("GET", "/context/api/users");
+        request.setContextPath("/context");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, htmlServlet);
+        Assert.assertNull(response.getHeader("Cache-Control"));
+        Assert.assertNull(response.getHeader("Expires"));
+
+        // no path rule, content type based
+        request = new MockHttpServletRequest("GET", "/context/index.html");
+        request.setContextPath("/context");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, htmlServlet);
+        Assert.assertEquals("max-age=60", response.getHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testExpiresByPathWithExcludedResponseStatusCodes() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByPath /static/**", "access plus 1 year");
+        filterConfig.addInitParameter("ExpiresExcludedResponseStatusCodes", "304, 503");
+        init(expiresFilter, filterConfig);
+
+        // the status is only known once the servlet has been invoked
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/context/static/app.js");
+        request.setContextPath("/context");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        });
+        Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+        Assert.assertNull(response.getHeader("Cache-Control"));
+        Assert.assertNull(response.getHeader("Expires"));
+
+        // Cache-Control added by the servlet is merged with max-age
+        request = new MockHttpServletRequest("GET", "/context/static/app.js");
+        request.setContextPath("/context");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                ((HttpServletResponse) response).addHeader("Cache-Control", "public");
+                response.setContentType("text/javascript");
+                response.getWriter().print("var a;");
+            }
+        });
+        Assert.assertEquals(Arrays.asList("public, max-age=31536000"), response.getHeaders("Cache-Control"));
+        Assert.assertNotNull(response.getHeader("Expires"));
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresDefault", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresResponseCacheMaxSize", "65536");
+        init(expiresFilter, filterConfig);
+
+        final int[] invocations = new int[1];
+        FilterChain catalogServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                invocations[0]++;
+                response.setContentType("text/html");
+                ((HttpServletResponse) response).setHeader("Vary", "Accept-Language");
+                if (((HttpServletRequest) request).getParameter("login") != null) {
+                    ((HttpServletResponse) response).addHeader("Set-Cookie", "user=john");
+                }
+                response.getWriter().print("catalog " + invocations[0]);
+            }
+        };
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/catalog");
+        request.addHeader("Accept-Language", "en");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, catalogServlet);
+        Assert.assertEquals("catalog 1", response.getContentAsString());
+
+        // served from the cache
+        request = new MockHttpServletRequest("GET", "/catalog");
+        request.addHeader("Accept-Language", "en");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, catalogServlet);
+        Assert.assertEquals(1, invocations[0]);
+        Assert.assertEquals("catalog 1", response.getContentAsString());
+        Assert.assertEquals("max-age=60", response.getHeader("Cache-Control"));
+        Assert.assertNotNull(response.getHeader("Expires"));
+        Assert.assertEquals("0", response.getHeader("Age"));
+
+        // other variant
+        request = new MockHttpServletRequest("GET", "/catalog");
+        request.addHeader("Accept-Language", "fr");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, catalogServlet);
+        Assert.assertEquals("catalog 2", response.getContentAsString());
+
+        // responses with cookies are not cached
+        for (int i = 0; i < 2; i++) {
+            request = new MockHttpServletRequest("GET", "/catalog");
+            request.setQueryString("login=john");
+            request.addParameter("login", "john");
+            response = new MockHttpServletResponse();
+            expiresFilter.doFilter(request, response, catalogServlet);
+        }
+        Assert.assertEquals(4, invocations[0]);
+        Assert.assertEquals(2, expiresFilter.getResponseCache().getEntryCount());
+    }
+
+    @Test
+    public void testResponseCacheCoalescing() throws Exception {
+        // concurrent misses wait for the first request
+        String[] bodies = doFilterConcurrently("/catalog", 5);
+        for (String body : bodies) {
+            Assert.assertEquals("catalog 1", body);
+        }
+
+        // uncacheable responses are rendered by each request
+        bodies = doFilterConcurrently("/cart", 5);
+        Assert.assertEquals(5, new HashSet<String>(Arrays.asList(bodies)).size());
+    }
+
+    /**
+     * Send <code>count</code> concurrent requests for the given URI to an
+     * {@link ExpiresFilter} coalescing the cache misses and return the
+     * response bodies.
+     */
+    private String[] doFilterConcurrently(final String uri, final int count) throws Exception {
+        final ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresDefault", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresResponseCacheMaxSize", "65536");
+        filterConfig.addInitParameter("ExpiresResponseCacheCoalescingTimeout", "10000");
+        init(expiresFilter, filterConfig);
+
+        final AtomicInteger invocations = new AtomicInteger();
+        final FilterChain slowServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                int invocation = invocations.incrementAndGet();
+                // give the other requests the time to join the first one
+                for (int i = 0; i < 200 && expiresFilter.getResponseCache().getCoalescedCount() < count - 1; i++) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        throw new ServletException(e);
+                    }
+                }
+                response.setContentType("text/html");
+                if (uri.startsWith("/cart")) {
+                    ((HttpServletResponse) response).addHeader("Set-Cookie", "cart=1");
+                }
+                response.getWriter().print(uri.substring(1) + " " + invocation);
+            }
+        };
+
+        final String[] bodies = new String[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        MockHttpServletResponse response = new MockHttpServletResponse();
+                        expiresFilter.doFilter(new MockHttpServletRequest("GET", uri), response, slowServlet);
+                        bodies[index] = response.getContentAsString();
+                    } catch (Exception e) {
+                        bodies[index] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                // let the first request lead
+                while (invocations.get() == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testOffHeapResponseCache() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType image", "access plus 1 hour");
+        filterConfig.addInitParameter("ExpiresResponseCacheMaxSize", "2097152");
+        filterConfig.addInitParameter("ExpiresResponseCacheOffHeap", "On");
+        init(expiresFilter, filterConfig);
+
+        final byte[] image = new byte[30000];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        final int[] invocations = new int[1];
+        FilterChain imageServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                invocations[0]++;
+                response.setContentType("image/png");
+                response.getOutputStream().write(image);
+            }
+        };
+
+        for (int i = 0; i < 3; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/logo.png");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            expiresFilter.doFilter(request, response, imageServlet);
+            Assert.assertEquals("image/png", response.getContentType());
+            Assert.assertEquals(image.length, response.getContentAsByteArray().length);
+            Assert.assertEquals(image[29999], response.getContentAsByteArray()[29999]);
+        }
+        Assert.assertEquals(1, invocations[0]);
+        Assert.assertTrue(expiresFilter.getResponseCache().getAllocator().getUsedBytes() >= image.length);
+
+        expiresFilter.getResponseCache().clear();
+        Assert.assertEquals(0, expiresFilter.getResponseCache().getAllocator().getUsedBytes());
+    }
+
+    @Test
+    public void testOffHeapResponseCacheDoesNotEvictOtherSizeClasses() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType image", "access plus 1 hour");
+        filterConfig.addInitParameter("ExpiresResponseCacheMaxSize", "1048576");
+        filterConfig.addInitParameter("ExpiresResponseCacheOffHeap", "On");
+        init(expiresFilter, filterConfig);
+        try {
+            final int[] invocations = new int[1];
+            FilterChain imageServlet = new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    invocations[0]++;
+                    response.setContentType("image/png");
+                    String uri = ((HttpServletRequest) request).getRequestURI();
+                    response.getOutputStream().write(new byte[uri.startsWith("/large") ? 30000 : 1000]);
+                }
+            };
+
+            // the only slab is carved in chunks of the small size class
+            for (int i = 0; i < 3; i++) {
+                expiresFilter.doFilter(new MockHttpServletRequest("GET", "/small-" + i + ".png"), new MockHttpServletResponse(),
+                        imageServlet);
+            }
+            Assert.assertEquals(3, expiresFilter.getResponseCache().getEntryCount());
+
+            for (int i = 0; i < 2; i++) {
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                expiresFilter.doFilter(new MockHttpServletRequest("GET", "/large.png"), response, imageServlet);
+                Assert.assertEquals(30000, response.getContentAsByteArray().length);
+            }
+            // cached on the heap and the small entries are kept
+            Assert.assertEquals(4, invocations[0]);
+            Assert.assertEquals(4, expiresFilter.getResponseCache().getEntryCount());
+            Assert.assertEquals(0, expiresFilter.getResponseCache().getEvictionCount());
+        } finally {
+            expiresFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testValidatorCache() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresDefault", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresValidatorCacheMaxSize", "100");
+        init(expiresFilter, filterConfig);
+
+        final int[] invocations = new int[1];
+        FilterChain documentServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                invocations[0]++;
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setHeader("ETag", "\"v1\"");
+                httpResponse.setDateHeader("Last-Modified", 1000000000000L);
+                httpResponse.setHeader("Cache-Control", "public");
+                response.setContentType("text/html");
+                response.getWriter().print("document");
+            }
+        };
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/document");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals(200, response.getStatus());
+
+        // answered by the filter
+        request = new MockHttpServletRequest("GET", "/document");
+        request.addHeader("If-None-Match", "\"v0\", \"v1\"");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals(1, invocations[0]);
+        Assert.assertEquals(304, response.getStatus());
+        Assert.assertEquals("\"v1\"", response.getHeader("ETag"));
+        Assert.assertEquals("public, max-age=60", response.getHeader("Cache-Control"));
+        Assert.assertNotNull(response.getHeader("Expires"));
+        Assert.assertEquals(0, response.getContentLength());
+
+        request = new MockHttpServletRequest("GET", "/document");
+        request.addHeader("If-Modified-Since", "Sun, 09 Sep 2001 01:46:40 GMT");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals(1, invocations[0]);
+        Assert.assertEquals(304, response.getStatus());
+
+        // other version, served by the servlet
+        request = new MockHttpServletRequest("GET", "/document");
+        request.addHeader("If-None-Match", "\"v0\"");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals(2, invocations[0]);
+        Assert.assertEquals("document", response.getContentAsString());
+    }
+
+    @Test
+    public void testETagGeneration() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresDefault", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresETag", "Strong");
+        init(expiresFilter, filterConfig);
+
+        final String[] body = { "version 1" };
+        FilterChain documentServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                if (((HttpServletRequest) request).getParameter("etag") != null) {
+                    ((HttpServletResponse) response).setHeader("ETag", "\"application\"");
+                }
+                response.setContentType("text/html");
+                response.getWriter().print(body[0]);
+            }
+        };
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/document"), response, documentServlet);
+        String etag = (String) response.getHeader("ETag");
+        Assert.assertNotNull(etag);
+        Assert.assertTrue(etag.startsWith("\""));
+
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/document"), response, documentServlet);
+        Assert.assertEquals(etag, response.getHeader("ETag"));
+
+        body[0] = "version 2";
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(new MockHttpServletRequest("GET", "/document"), response, documentServlet);
+        Assert.assertFalse(etag.equals(response.getHeader("ETag")));
+
+        // ETag of the application
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/document");
+        request.addParameter("etag", "true");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals("\"application\"", response.getHeader("ETag"));
+    }
+
+    @Test
+    public void testWriterIsPassThroughOnceBodyWriteStarted() throws Exception {
+        final int[] events = new int[1];
+        ExpiresFilter expiresFilter = new ExpiresFilter() {
+            @Override
+            public void onBeforeWriteResponseBody(HttpServletRequest request, CommitInterceptingResponse response) {
+                events[0]++;
+            }
+        };
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ExpiresFilter.XHttpServletResponse xResponse = expiresFilter.new XHttpServletResponse(request, response);
+
+        PrintWriter writer = xResponse.getWriter();
+        Assert.assertTrue(writer instanceof CommitInterceptingResponse.XPrintWriter);
+        writer.write('a');
+        writer.print("bc");
+        Assert.assertEquals(1, events[0]);
+        Assert.assertSame(response.getWriter(), xResponse.getWriter());
+        writer.flush();
+        Assert.assertEquals(1, events[0]);
+        Assert.assertEquals("abc", response.getContentAsString());
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        Assert.assertTrue(ExpiresFilter.acceptsGzip("gzip, deflate"));
+        Assert.assertTrue(ExpiresFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+        Assert.assertTrue(ExpiresFilter.acceptsGzip("*"));
+        Assert.assertFalse(ExpiresFilter.acceptsGzip(null));
+        Assert.assertFalse(ExpiresFilter.acceptsGzip("deflate"));
+        Assert.assertFalse(ExpiresFilter.acceptsGzip("gzip;q=0"));
+        Assert.assertFalse(ExpiresFilter.acceptsGzip("*, gzip;q=0.0"));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresCompressionByType text/html", "6");
+        filterConfig.addInitParameter("ExpiresCompressionMinSize", "100");
+        init(expiresFilter, filterConfig);
+
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            html.append("<p>paragraph ").append(i).append("</p>");
+        }
+        final String body = html.toString();
+        final int[] contentLength = new int[] { -1 };
+        FilterChain documentServlet = new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                response.setContentType("text/html");
+                if (contentLength[0] != -1) {
+                    response.setContentLength(contentLength[0]);
+                }
+                response.getWriter().print(body);
+            }
+        };
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/document");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        Assert.assertNotNull(response.getHeader("Expires"));
+        Assert.assertTrue(response.getContentAsByteArray().length < body.length());
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        for (int count; (count = in.read(buffer)) != -1;) {
+            decompressed.write(buffer, 0, count);
+        }
+        Assert.assertEquals(body, decompressed.toString("ISO-8859-1"));
+
+        // client not accepting gzip
+        request = new MockHttpServletRequest("GET", "/document");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        Assert.assertEquals(body, response.getContentAsString());
+
+        // content length below the minimum size
+        contentLength[0] = 50;
+        request = new MockHttpServletRequest("GET", "/document");
+        request.addHeader("Accept-Encoding", "gzip");
+        response = new MockHttpServletResponse();
+        expiresFilter.doFilter(request, response, documentServlet);
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertEquals(50, response.getContentLength());
+    }
+
+    @Test
+    public void testCompressionReleasesDeflaterWhenChainFails() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByType text/html", "access plus 1 minute");
+        filterConfig.addInitParameter("ExpiresCompressionByType text/html", "6");
+        init(expiresFilter, filterConfig);
+        try {
+            FilterChain failingServlet = new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    response.setContentType("text/html");
+                    response.getOutputStream().write(new byte[10000]);
+                    throw new ServletException("failure");
+                }
+            };
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/document");
+            request.addHeader("Accept-Encoding", "gzip");
+            try {
+                expiresFilter.doFilter(request, new MockHttpServletResponse(), failingServlet);
+                Assert.fail();
+            } catch (ServletException e) {
+                Assert.assertEquals("failure", e.getMessage());
+            }
+            Assert.assertEquals(1, expiresFilter.getDeflaterPool().getCreatedCount());
+            Assert.assertEquals(1, expiresFilter.getDeflaterPool().getIdleCount());
+        } finally {
+            expiresFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testCompressionOfAccessTimePath() throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter("ExpiresByPath /static/**", "access plus 1 day");
+        filterConfig.addInitParameter("ExpiresCompressionByType text/css", "6");
+        init(expiresFilter, filterConfig);
+        try {
+            FilterChain cssServlet = new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    response.setContentType("text/css");
+                    response.getOutputStream().write(new byte[10000]);
+                }
+            };
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/static/style.css");
+            request.addHeader("Accept-Encoding", "gzip");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            expiresFilter.doFilter(request, response, cssServlet);
+            Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+            Assert.assertEquals("max-age=86400", response.getHeader("Cache-Control"));
+            // the expiration headers set on request entry are not evaluated
+            // again when the body is written
+            Assert.assertEquals(1, expiresFilter.getExpirationHeadersCount());
+            Assert.assertEquals(0, expiresFilter.getSkippedAlreadySetCount());
+            Assert.assertEquals(0, expiresFilter.getSkippedNoConfigurationCount());
+        } finally {
+            expiresFilter.destroy();
+        }
+    }
+
     @Test
     public void testIntsToCommaDelimitedString() {
         String actual = ExpiresFilter.intsToCommaDelimitedString(new int[] { 500, 503 });
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * <p>
+ * Micro benchmark of the byte-at-a-time and char-at-a-time write paths of
+ * {@link CommitInterceptingResponse.XServletOutputStream} and
+ * {@link CommitInterceptingResponse.XPrintWriter} compared to the raw stream and writer
+ * they wrap.
+ * </p>
+ * <p>
+ * Not a unit test, run it with
+ * <code>java fr.xebia.servlet.filter.ExpiresFilterWriteBenchmark</code>. Once
+ * the first write has fired the "Start Write Response Body" event, the
+ * wrapped paths should cost the same as the raw ones.
+ * </p>
+ */
+public class ExpiresFilterWriteBenchmark {
+
+    private static final int WRITES = 20000000;
+
+    /**
+     * Raw response whose body is discarded to only measure the write path.
+     */
+    private static class NullHttpServletResponse extends MockHttpServletResponse {
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        };
+
+        private final PrintWriter writer = new PrintWriter(new Writer() {
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+            }
+
+            @Override
+            public void write(int c) {
+            }
+        });
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return writer;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExpiresFilter expiresFilter = new ExpiresFilter();
+        expiresFilter.setDefaultExpiresConfiguration(expiresFilter.parseExpiresConfiguration("access plus 1 minute"));
+
+        for (int round = 0; round < 5; round++) {
+            NullHttpServletResponse rawResponse = new NullHttpServletResponse();
+            rawResponse.setContentType("text/html");
+            MockHttpServletRequest request = new MockHttpServletRequest();
+
+            long rawStream = writeBytes(rawResponse.getOutputStream());
+            long wrappedStream = writeBytes(expiresFilter.new XHttpServletResponse(request, rawResponse).getOutputStream());
+            long rawWriter = writeChars(rawResponse.getWriter());
+            long wrappedWriter = writeChars(expiresFilter.new XHttpServletResponse(request, rawResponse).getWriter());
+
+            System.out.println("round " + round + ", " + WRITES + " x write(int) in ms: raw stream " + rawStream
+                    + ", XServletOutputStream " + wrappedStream + ", raw writer " + rawWriter + ", XPrintWriter " + wrappedWriter);
+        }
+    }
+
+    private static long writeBytes(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            out.write(i);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static long writeChars(PrintWriter out) {
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            out.write(i);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
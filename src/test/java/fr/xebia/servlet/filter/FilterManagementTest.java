@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterConfig;
+
+public class FilterManagementTest {
+
+    @Test
+    public void testDuplicateName() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("fr.xebia.servlet.filter:type=XForwardedFilter,context=\"/\",name=\"testDuplicateName\"");
+        XForwardedFilter first = new XForwardedFilter();
+        XForwardedFilter second = new XForwardedFilter();
+        try {
+            first.init(new MockFilterConfig("testDuplicateName"));
+            // the registration fails but the filter works
+            second.init(new MockFilterConfig("testDuplicateName"));
+            assertTrue(mbeanServer.isRegistered(objectName));
+            assertEquals(0L, mbeanServer.getAttribute(objectName, "RequestCount"));
+
+            // the destruction of the second filter does not unregister the first one
+            second.destroy();
+            assertTrue(mbeanServer.isRegistered(objectName));
+        } finally {
+            second.destroy();
+            first.destroy();
+        }
+        assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testNotManageable() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        XForwardedFilter xforwardedFilter = new XForwardedFilter();
+        SecuredRemoteAddressFilter securedRemoteAddressFilter = new SecuredRemoteAddressFilter();
+        xforwardedFilter.setManageable(false);
+        securedRemoteAddressFilter.setManageable(false);
+        try {
+            xforwardedFilter.init(new MockFilterConfig("testNotManageable"));
+            securedRemoteAddressFilter.init(new MockFilterConfig("testNotManageable"));
+            assertFalse(mbeanServer.isRegistered(new ObjectName(
+                    "fr.xebia.servlet.filter:type=XForwardedFilter,context=\"/\",name=\"testNotManageable\"")));
+            assertFalse(mbeanServer.isRegistered(new ObjectName(
+                    "fr.xebia.servlet.filter:type=SecuredRemoteAddressFilter,context=\"/\",name=\"testNotManageable\"")));
+        } finally {
+            securedRemoteAddressFilter.destroy();
+            xforwardedFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testParseParameters() {
+        Map<String, String> parameters = FilterManagement.parseParameters("# rotated weekly\n"
+                + "trustedProxies = 192.0.2.0/24, 198.51.100.0/24\n" + "ExpiresByType\\ text/html = access plus 1 hour\n"
+                + "allowedInternalProxies: 10\\\\.0\\\\.0\\\\.1\n");
+        assertEquals(Arrays.asList("trustedProxies", "ExpiresByType text/html", "allowedInternalProxies"), Arrays.asList(parameters
+                .keySet().toArray()));
+        assertEquals("192.0.2.0/24, 198.51.100.0/24", parameters.get("trustedProxies"));
+        assertEquals("access plus 1 hour", parameters.get("ExpiresByType text/html"));
+        assertEquals("10\\.0\\.0\\.1", parameters.get("allowedInternalProxies"));
+    }
+
+    @Test
+    public void testToParameters() {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("ExpiresByType text/html; charset=utf-8", "access plus 1 hour");
+        parameters.put("allowedInternalProxies", "10\\.0\\.0\\.1");
+        parameters.put("protocolHeaderHttpsValue", " on");
+        String text = FilterManagement.toParameters(parameters);
+        assertEquals("ExpiresByType\\ text/html;\\ charset\\=utf-8 = access plus 1 hour\n"
+                + "allowedInternalProxies = 10\\\\.0\\\\.0\\\\.1\n" + "protocolHeaderHttpsValue = \\ on\n", text);
+        assertEquals(parameters, FilterManagement.parseParameters(text));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class HttpDateClockTest {
+
+    static class ManualHttpDateClock extends HttpDateClock {
+        long now;
+
+        ManualHttpDateClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testTickIsSharedWithinASecond() {
+        ManualHttpDateClock clock = new ManualHttpDateClock(784111777000L);
+        HttpDateClock.Tick tick = clock.tick();
+        assertEquals(784111777L, tick.getSecond());
+        assertEquals(784111777000L, tick.getTimeInMillis());
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", tick.getHttpDate());
+
+        clock.now += 999;
+        assertSame(tick, clock.tick());
+
+        clock.now += 1;
+        HttpDateClock.Tick nextTick = clock.tick();
+        assertNotSame(tick, nextTick);
+        assertEquals("Sun, 06 Nov 1994 08:49:38 GMT", nextTick.getHttpDate());
+    }
+
+    @Test
+    public void testTickBeforeEpoch() {
+        ManualHttpDateClock clock = new ManualHttpDateClock(-1);
+        assertEquals(-1, clock.tick().getSecond());
+        assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", clock.tick().getHttpDate());
+    }
+}
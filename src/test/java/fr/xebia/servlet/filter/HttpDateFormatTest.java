@@ -0,0 +1,90 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class HttpDateFormatTest {
+
+    /**
+     * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+     */
+    private static final long RFC_EXAMPLE = 784111777000L;
+
+    @Test
+    public void testFormat() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateFormat.format(RFC_EXAMPLE));
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateFormat.format(RFC_EXAMPLE + 999));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDateFormat.format(0));
+        assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDateFormat.format(-1000));
+        assertEquals("Tue, 29 Feb 2000 12:00:00 GMT", HttpDateFormat.format(951825600000L));
+    }
+
+    @Test
+    public void testFormatLikeSimpleDateFormat() {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            // 1970 - 2100
+            long date = (long) (random.nextDouble() * 4102444800000L) / 1000 * 1000;
+            String expected = simpleDateFormat.format(date);
+            assertEquals(expected, HttpDateFormat.format(date));
+            assertEquals(date, HttpDateFormat.parse(expected));
+        }
+    }
+
+    @Test
+    public void testParseImfFixdate() {
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("  sun, 06 nov 1994 08:49:37 gmt "));
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("Sun, 06 Nov 1994 09:49:37 +0100"));
+    }
+
+    @Test
+    public void testParseRfc850() {
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+    }
+
+    @Test
+    public void testParseAsctime() {
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("Sun Nov  6 08:49:37 1994"));
+        assertEquals(RFC_EXAMPLE, HttpDateFormat.parse("Sun Nov 6 08:49:37 1994"));
+        assertEquals(RFC_EXAMPLE + 3 * 24 * 3600 * 1000L, HttpDateFormat.parse("Wed Nov 09 08:49:37 1994"));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        assertEquals(-1, HttpDateFormat.parse(null));
+        assertEquals(-1, HttpDateFormat.parse(""));
+        assertEquals(-1, HttpDateFormat.parse("not a date"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06 Nov 1994 08:49:37"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06 Nov 1994 08:49:37 PST"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 31 Nov 1994 08:49:37 GMT"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06-Nov 1994 08:49:37 GMT"));
+        assertEquals(-1, HttpDateFormat.parse("Sun Nov  6 08:49:37 94"));
+        assertEquals(-1, HttpDateFormat.parse("Sun, 06 Nov 1994 08:49:37 GMT garbage"));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class IpAddressMatcherTest {
+
+    @Test
+    public void testDefaultPrivateNetworks() {
+        IpAddressMatcher matcher = IpAddressMatcher.compile(IpAddressMatcher.PRIVATE_NETWORKS);
+        assertTrue(matcher.matches("10.0.0.1"));
+        assertTrue(matcher.matches("10.255.255.255"));
+        assertTrue(matcher.matches("172.16.0.1"));
+        assertTrue(matcher.matches("172.31.255.255"));
+        assertFalse(matcher.matches("172.32.0.1"));
+        assertTrue(matcher.matches("192.168.0.10"));
+        assertTrue(matcher.matches("169.254.1.1"));
+        assertTrue(matcher.matches("127.0.0.1"));
+        assertFalse(matcher.matches("140.211.11.130"));
+        assertFalse(matcher.matches("proxy1"));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void testIPv6AddressBlocks() {
+        IpAddressMatcher matcher = IpAddressMatcher.compile("2001:db8::/32, ::1");
+        assertTrue(matcher.matches("2001:db8::1"));
+        assertTrue(matcher.matches("2001:0db8:0000:0000:0000:0000:0000:0001"));
+        assertTrue(matcher.matches("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(matcher.matches("2001:db9::1"));
+        assertTrue(matcher.matches("::1"));
+        assertTrue(matcher.matches("0:0:0:0:0:0:0:1"));
+        assertFalse(matcher.matches("::2"));
+        assertFalse(matcher.matches("10.0.0.1"));
+    }
+
+    @Test
+    public void testLegacyPrivateNetworkPatternsAreTranslated() {
+        IpAddressMatcher matcher = new IpAddressMatcher("10\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}", "172\\.(?:1[6-9]|2\\d|3[0-1]).\\d{1,3}.\\d{1,3}");
+        assertTrue(matcher.matches("10.1.2.3"));
+        assertTrue(matcher.matches("172.20.0.1"));
+        assertFalse(matcher.matches("172.15.0.1"));
+    }
+
+    @Test
+    public void testLiteralsAndRegularExpressions() {
+        IpAddressMatcher matcher = IpAddressMatcher.compile("192\\.168\\.0\\.10, proxy1, another-.*");
+        assertTrue(matcher.matches("192.168.0.10"));
+        assertFalse(matcher.matches("192.168.0.11"));
+        assertTrue(matcher.matches("proxy1"));
+        assertFalse(matcher.matches("proxy2"));
+        assertTrue(matcher.matches("another-internal-proxy"));
+    }
+
+    @Test
+    public void testPlainAddresses() {
+        IpAddressMatcher matcher = IpAddressMatcher.compile("192.168.0.10, 2001:db8::1");
+        assertTrue(matcher.matches("192.168.0.10"));
+        assertFalse(matcher.matches("192x168x0x10"));
+        assertTrue(matcher.matches("2001:0db8:0:0:0:0:0:1"));
+        assertFalse(matcher.matches("2001:db8::2"));
+    }
+
+    @Test
+    public void testToPatterns() {
+        Pattern[] patterns = IpAddressMatcher.compile(IpAddressMatcher.PRIVATE_NETWORKS + ", 192.0.2.0/26, 198.51.100.7, 2001:db8::/33, "
+                + "192\\.0\\.2\\.200, proxy1").toPatterns();
+        assertEquals(10, patterns.length);
+        // historical regular expressions of the private networks
+        assertEquals("10\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}", patterns[0].pattern());
+        assertEquals("172\\.(?:1[6-9]|2\\d|3[0-1])\\.\\d{1,3}\\.\\d{1,3}", patterns[2].pattern());
+        assertTrue(patterns[2].matcher("172.31.0.1").matches());
+        assertFalse(patterns[2].matcher("172.32.0.1").matches());
+
+        assertTrue(patterns[5].matcher("192.0.2.0").matches());
+        assertTrue(patterns[5].matcher("192.0.2.63").matches());
+        assertFalse(patterns[5].matcher("192.0.2.64").matches());
+        assertFalse(patterns[5].matcher("192.0.3.1").matches());
+
+        assertTrue(patterns[6].matcher("198.51.100.7").matches());
+        assertFalse(patterns[6].matcher("198.51.100.70").matches());
+
+        assertTrue(patterns[7].matcher("2001:0DB8:7fff:0000:0000:0000:0000:0001").matches());
+        assertFalse(patterns[7].matcher("2001:0db8:8000:0000:0000:0000:0000:0001").matches());
+
+        assertTrue(patterns[8].matcher("192.0.2.200").matches());
+        assertTrue(patterns[9].matcher("proxy1").matches());
+    }
+
+    @Test
+    public void testMatchesSubstring() {
+        IpAddressMatcher matcher = IpAddressMatcher.compile("10.0.0.0/8, proxy1");
+        String header = "140.211.11.130, proxy1, 10.0.0.1";
+        assertFalse(matcher.matches(header, 0, 14));
+        assertTrue(matcher.matches(header, 16, 22));
+        assertTrue(matcher.matches(header, 24, header.length()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalPrefixLength() {
+        IpAddressMatcher.compile("10.0.0.0/33");
+    }
+
+    @Test
+    public void testParseIPv4() {
+        assertEquals(0x0A000001L, IpAddressMatcher.parseIPv4("10.0.0.1", 0, 8));
+        assertEquals(0xFFFFFFFFL, IpAddressMatcher.parseIPv4("255.255.255.255", 0, 15));
+        assertEquals(-1, IpAddressMatcher.parseIPv4("256.0.0.1", 0, 9));
+        assertEquals(-1, IpAddressMatcher.parseIPv4("10.0.0", 0, 6));
+        assertEquals(-1, IpAddressMatcher.parseIPv4("10.0.0.1.2", 0, 10));
+        assertEquals(-1, IpAddressMatcher.parseIPv4("proxy1", 0, 6));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MappedSegmentStoreTest {
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static File newDirectory() throws Exception {
+        File directory = File.createTempFile("segments", "");
+        directory.delete();
+        return directory;
+    }
+
+    private static String read(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes);
+    }
+
+    @Test
+    public void testAppendAndLoad() throws Exception {
+        File directory = newDirectory();
+        try {
+            MappedSegmentStore store = new MappedSegmentStore(directory, 64);
+            store.append("first record".getBytes());
+            store.append("second record".getBytes());
+            // does not fit in the first segment
+            MappedSegmentStore.Location third = store.append("third record, a bit longer".getBytes());
+            assertEquals("third record, a bit longer", read(store.getPayload(third)));
+            assertEquals(2, store.getSegmentCount());
+            store.close();
+
+            store = new MappedSegmentStore(directory, 64);
+            List<MappedSegmentStore.Location> locations = store.load();
+            assertEquals(3, locations.size());
+            assertEquals("first record", read(store.getPayload(locations.get(0))));
+            assertEquals("second record", read(store.getPayload(locations.get(1))));
+            assertEquals("third record, a bit longer", read(store.getPayload(locations.get(2))));
+
+            // new records are appended to a new segment
+            MappedSegmentStore.Location fourth = store.append("fourth".getBytes());
+            assertNotSame(locations.get(2).getSegment(), fourth.getSegment());
+            store.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testLoadStopsAtCorruptedRecord() throws Exception {
+        File directory = newDirectory();
+        try {
+            MappedSegmentStore store = new MappedSegmentStore(directory, 1024);
+            store.append("first record".getBytes());
+            store.append("second record".getBytes());
+            store.append("third record".getBytes());
+            store.close();
+
+            // corrupt the payload of the second record
+            RandomAccessFile file = new RandomAccessFile(new File(directory, "00000000.segment"), "rw");
+            file.seek(12 + "first record".length() + 12 + 3);
+            file.write('X');
+            file.close();
+
+            store = new MappedSegmentStore(directory, 1024);
+            List<MappedSegmentStore.Location> locations = store.load();
+            assertEquals(1, locations.size());
+            assertEquals("first record", read(store.getPayload(locations.get(0))));
+            store.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testLoadSkipsFreedRecords() throws Exception {
+        File directory = newDirectory();
+        try {
+            MappedSegmentStore store = new MappedSegmentStore(directory, 1024);
+            store.append("first record".getBytes());
+            MappedSegmentStore.Location second = store.append("second record".getBytes());
+            store.append("third record".getBytes());
+            store.free(second);
+            store.close();
+
+            store = new MappedSegmentStore(directory, 1024);
+            List<MappedSegmentStore.Location> locations = store.load();
+            assertEquals(2, locations.size());
+            assertEquals("first record", read(store.getPayload(locations.get(0))));
+            assertEquals("third record", read(store.getPayload(locations.get(1))));
+            store.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testFreeAndCopy() throws Exception {
+        File directory = newDirectory();
+        try {
+            MappedSegmentStore store = new MappedSegmentStore(directory, 64);
+            MappedSegmentStore.Location first = store.append("first record".getBytes());
+            MappedSegmentStore.Location second = store.append("second record, longer".getBytes());
+            store.append("third record, a bit longer".getBytes());
+            File firstSegmentFile = new File(directory, "00000000.segment");
+            assertTrue(firstSegmentFile.exists());
+
+            store.free(second);
+            assertEquals(1, store.getSparseSegments().size());
+
+            MappedSegmentStore.Location copy = store.copy(first);
+            assertEquals("first record", read(store.getPayload(copy)));
+            store.free(first);
+            assertFalse(firstSegmentFile.exists());
+            // the buffers of a deleted segment remain readable
+            assertEquals("first record", read(store.getPayload(first)));
+            store.close();
+        } finally {
+            delete(directory);
+        }
+    }
+}
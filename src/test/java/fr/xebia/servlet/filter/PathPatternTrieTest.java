@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class PathPatternTrieTest {
+
+    @Test
+    public void testPrecedence() {
+        PathPatternTrie<String> trie = new PathPatternTrie<String>();
+        trie.put("*.js", "js");
+        trie.put("*.min.js", "min-js");
+        trie.put("/static/**", "static");
+        trie.put("/static/fonts/**", "fonts");
+        trie.put("/static/index.html", "index");
+
+        assertEquals("index", trie.get("/static/index.html"));
+        assertEquals("fonts", trie.get("/static/fonts/a.woff2"));
+        assertEquals("fonts", trie.get("/static/fonts"));
+        assertEquals("static", trie.get("/static/app.js"));
+        assertEquals("static", trie.get("/static"));
+        assertEquals("js", trie.get("/app/app.js"));
+        assertEquals("min-js", trie.get("/app/app.min.js"));
+        assertNull(trie.get("/staticfoo/app.css"));
+        assertNull(trie.get("/app/app.css"));
+        assertNull(trie.get(null));
+    }
+
+    @Test
+    public void testRootPrefixAndRange() {
+        PathPatternTrie<String> trie = new PathPatternTrie<String>();
+        trie.put("/**", "root");
+        trie.put("/api/**", "api");
+
+        String uri = "/context/api/users;jsessionid=123";
+        assertEquals("api", trie.get(uri, "/context".length(), uri.indexOf(';')));
+        assertEquals("root", trie.get("/index.html"));
+        assertEquals("root", trie.get("/"));
+    }
+
+    @Test
+    public void testDuplicatePattern() {
+        PathPatternTrie<String> trie = new PathPatternTrie<String>();
+        trie.put("*.css", "first");
+        assertFalse(trie.put(" *.css ", "second"));
+        assertEquals("first", trie.get("/a.css"));
+        assertEquals(1, trie.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedPattern() {
+        new PathPatternTrie<String>().put("/static/*/images/**", "value");
+    }
+}
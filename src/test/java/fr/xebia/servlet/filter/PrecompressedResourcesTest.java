@@ -0,0 +1,96 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+public class PrecompressedResourcesTest {
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static File newDirectory() throws Exception {
+        File directory = File.createTempFile("webapp", "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static File write(File directory, String name, String content) throws Exception {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes());
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testGetUsesStatCacheUntilRefresh() throws Exception {
+        File directory = newDirectory();
+        try {
+            File resource = write(directory, "app.js", "uncompressed");
+            File sibling = write(directory, "app.js.gz", "compressed");
+            resource.setLastModified(sibling.lastModified() - 10000);
+            PrecompressedResources precompressedResources = new PrecompressedResources(directory, new String[] { "*.js" }, 1000, 10);
+
+            PrecompressedResources.Resource precompressed = precompressedResources.get("/app.js", 0);
+            assertNotNull(precompressed);
+            assertEquals(sibling, precompressed.getFile());
+            assertEquals("compressed".length(), precompressed.getLength());
+
+            sibling.delete();
+            // stat cached until the refresh interval elapses
+            assertNotNull(precompressedResources.get("/app.js", 999));
+            assertNull(precompressedResources.get("/app.js", 1000));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testGetIgnoresStaleUnsafeAndUnmatchedPaths() throws Exception {
+        File directory = newDirectory();
+        try {
+            File sibling = write(directory, "app.js.gz", "compressed");
+            File resource = write(directory, "app.js", "uncompressed");
+            resource.setLastModified(sibling.lastModified() + 10000);
+            write(directory, "app.css.gz", "compressed");
+            PrecompressedResources precompressedResources = new PrecompressedResources(directory, new String[] { "*.js" }, 1000, 10);
+
+            assertNull(precompressedResources.get("/app.js", 0));
+            assertNull(precompressedResources.get("/app.css", 0));
+            assertNull(precompressedResources.get("/../app.js", 0));
+            assertNull(precompressedResources.get("/WEB-INF/app.js", 0));
+            assertNull(precompressedResources.get(null, 0));
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class ResponseCacheTest {
+
+    private static final long NOW = 1262304000000L;
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] newBody(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (seed + i);
+        }
+        return body;
+    }
+
+    private static File newDirectory() throws Exception {
+        File directory = File.createTempFile("responses", "");
+        directory.delete();
+        return directory;
+    }
+
+    /**
+     * Return the body of the cached response of the given URI, <code>null</code> if none.
+     */
+    private static byte[] getBody(ResponseCache cache, String uri, long now) {
+        ResponseCache.CachedResponse cachedResponse = cache.get(new MockHttpServletRequest("GET", uri), now);
+        if (cachedResponse == null) {
+            return null;
+        }
+        try {
+            return cachedResponse.getBody();
+        } finally {
+            cachedResponse.release();
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the response of the given URI is cached, releasing it.
+     */
+    private static boolean isCached(ResponseCache cache, String uri, long now) {
+        ResponseCache.CachedResponse cachedResponse = cache.get(new MockHttpServletRequest("GET", uri), now);
+        if (cachedResponse == null) {
+            return false;
+        }
+        cachedResponse.release();
+        return true;
+    }
+
+    private static boolean put(ResponseCache cache, String uri, byte[] body, long now, long expirationTime) throws Exception {
+        ResponseCache.CapturingResponse response = cache.capture(new MockHttpServletResponse());
+        response.setContentType("image/png");
+        response.setDateHeader("Expires", expirationTime);
+        response.getOutputStream().write(body);
+        return cache.put(new MockHttpServletRequest("GET", uri), response, now);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyAccessedEntry() throws Exception {
+        // room for three entries of 1000 bytes and their headers
+        ResponseCache cache = new ResponseCache(4000, 2000);
+        for (String uri : new String[] { "/a.png", "/b.png", "/c.png" }) {
+            assertTrue(put(cache, uri, new byte[1000], NOW, NOW + 3600000));
+        }
+        assertEquals(3, cache.getEntryCount());
+
+        assertTrue(isCached(cache, "/a.png", NOW));
+        assertTrue(put(cache, "/d.png", new byte[1000], NOW, NOW + 3600000));
+
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(isCached(cache, "/a.png", NOW));
+        assertTrue(isCached(cache, "/c.png", NOW));
+        assertTrue(isCached(cache, "/d.png", NOW));
+        assertFalse(isCached(cache, "/b.png", NOW));
+    }
+
+    @Test
+    public void testPersistentCacheIsReloaded() throws Exception {
+        File directory = newDirectory();
+        try {
+            long now = System.currentTimeMillis();
+            ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 3600);
+            try {
+                assertTrue(put(cache, "/warm.png", newBody(1000, 1), now, now + 3600000));
+                // stored 10 seconds ago, expired before the restart
+                assertTrue(put(cache, "/expired.png", newBody(1000, 2), now - 10000, now - 5000));
+                assertEquals(2, cache.getEntryCount());
+            } finally {
+                cache.close();
+            }
+
+            cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 3600);
+            try {
+                assertEquals(1, cache.getEntryCount());
+                assertArrayEquals(newBody(1000, 1), getBody(cache, "/warm.png", now));
+                assertEquals(1, cache.getHitCount());
+                assertNull(getBody(cache, "/expired.png", now - 10000));
+            } finally {
+                cache.close();
+            }
+
+            // the record of the expired entry has been freed
+            cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 3600);
+            try {
+                assertEquals(1, cache.getEntryCount());
+                assertNull(getBody(cache, "/expired.png", now - 10000));
+            } finally {
+                cache.close();
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testCompactionRelocatesRecords() throws Exception {
+        File directory = newDirectory();
+        try {
+            long now = System.currentTimeMillis();
+            // segments of 256 kB, about 12 entries of 20 kB each
+            ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 3600);
+            try {
+                for (int i = 0; i < 30; i++) {
+                    assertTrue(put(cache, "/r-" + i + ".png", newBody(20000, i), now, now + 3600000));
+                }
+                // replacing the first entries frees their records in the first segment
+                for (int i = 0; i < 10; i++) {
+                    assertTrue(put(cache, "/r-" + i + ".png", newBody(20000, 100 + i), now, now + 3600000));
+                }
+                int segmentCount = cache.getStore().getSegmentCount();
+                assertEquals(1, cache.getStore().getSparseSegments().size());
+
+                cache.compact(now);
+                assertEquals(segmentCount - 1, cache.getStore().getSegmentCount());
+                assertTrue(cache.getStore().getSparseSegments().isEmpty());
+                assertEquals(30, cache.getEntryCount());
+                for (int i = 0; i < 30; i++) {
+                    assertArrayEquals(newBody(20000, i < 10 ? 100 + i : i), getBody(cache, "/r-" + i + ".png", now));
+                }
+            } finally {
+                cache.close();
+            }
+
+            // the relocated records are reloaded once
+            cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 3600);
+            try {
+                assertEquals(30, cache.getEntryCount());
+                for (int i = 0; i < 30; i++) {
+                    assertArrayEquals(newBody(20000, i < 10 ? 100 + i : i), getBody(cache, "/r-" + i + ".png", now));
+                }
+            } finally {
+                cache.close();
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testOffHeapCacheOfAnotherSizeClass() throws Exception {
+        ResponseCache cache = new ResponseCache(SlabAllocator.MIN_SLAB_SIZE, 64 * 1024, true);
+        // the only slab is carved in chunks of the small size class
+        for (int i = 0; i < 100; i++) {
+            assertTrue(put(cache, "/small-" + i + ".png", new byte[1000], NOW, NOW + 3600000));
+        }
+        assertEquals(SlabAllocator.MIN_SLAB_SIZE, cache.getAllocator().getReservedBytes());
+
+        // no slab available, the body is kept on the heap
+        assertTrue(put(cache, "/large.png", new byte[30000], NOW, NOW + 3600000));
+        ResponseCache.CachedResponse cachedResponse = cache.get(new MockHttpServletRequest("GET", "/large.png"), NOW);
+        assertFalse(cachedResponse.isOffHeap());
+        assertEquals(30000, cachedResponse.getBody().length);
+        cachedResponse.release();
+        assertEquals(101, cache.getEntryCount());
+        assertEquals(0, cache.getEvictionCount());
+
+        // the cleared slab is reassigned to the large size class
+        cache.clear();
+        assertTrue(put(cache, "/large.png", new byte[30000], NOW, NOW + 3600000));
+        cachedResponse = cache.get(new MockHttpServletRequest("GET", "/large.png"), NOW);
+        assertTrue(cachedResponse.isOffHeap());
+        assertEquals(30000, cachedResponse.getBody().length);
+        cachedResponse.release();
+        assertEquals(1, cache.getAllocator().getReclaimedSlabCount());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemovedOnHit() throws Exception {
+        ResponseCache cache = new ResponseCache(100000, 2000);
+        assertTrue(put(cache, "/a.png", new byte[1000], NOW, NOW + 1000));
+        assertTrue(cache.getSizeInBytes() > 0);
+
+        ResponseCache.CachedResponse cachedResponse = cache.get(new MockHttpServletRequest("GET", "/a.png"), NOW);
+        assertNotNull(cachedResponse);
+        cachedResponse.release();
+
+        assertNull(cache.get(new MockHttpServletRequest("GET", "/a.png"), NOW + 1000));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSizeInBytes());
+    }
+}
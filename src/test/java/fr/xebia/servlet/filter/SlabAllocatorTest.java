@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+    @Test
+    public void testChunkContent() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.MIN_SLAB_SIZE, 64 * 1024);
+        byte[] bytes = new byte[20000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        SlabAllocator.Chunk chunk = allocator.allocate(bytes.length);
+        assertTrue(chunk.getCapacity() >= bytes.length);
+        chunk.put(bytes, 0, bytes.length);
+
+        ByteBuffer view = chunk.asBuffer(bytes.length);
+        assertEquals(bytes.length, view.remaining());
+        byte[] copy = new byte[bytes.length];
+        view.get(copy);
+        assertEquals(bytes[12345], copy[12345]);
+        assertEquals(bytes[19999], copy[19999]);
+    }
+
+    @Test
+    public void testCapacityAndFreeList() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(2 * SlabAllocator.MIN_SLAB_SIZE, 64 * 1024);
+        List<SlabAllocator.Chunk> chunks = new ArrayList<SlabAllocator.Chunk>();
+        SlabAllocator.Chunk chunk;
+        while ((chunk = allocator.allocate(1000)) != null) {
+            chunks.add(chunk);
+        }
+        assertEquals(2 * SlabAllocator.MIN_SLAB_SIZE / SlabAllocator.MIN_CHUNK_SIZE, chunks.size());
+        assertEquals(2 * SlabAllocator.MIN_SLAB_SIZE, allocator.getReservedBytes());
+
+        // no slab left for another size class
+        assertNull(allocator.allocate(5000));
+        assertEquals(allocator.getSizeClass(900), allocator.getSizeClass(1000));
+        assertTrue(allocator.getSizeClass(5000) > allocator.getSizeClass(1000));
+
+        allocator.free(chunks.get(7));
+        assertSame(chunks.get(7), allocator.allocate(900));
+        assertEquals(2 * SlabAllocator.MIN_SLAB_SIZE, allocator.getUsedBytes());
+    }
+
+    @Test
+    public void testFreeSlabIsReassigned() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(2 * SlabAllocator.MIN_SLAB_SIZE, 64 * 1024);
+        List<SlabAllocator.Chunk> chunks = new ArrayList<SlabAllocator.Chunk>();
+        SlabAllocator.Chunk chunk;
+        while ((chunk = allocator.allocate(1000)) != null) {
+            chunks.add(chunk);
+        }
+        assertNull(allocator.allocate(5000));
+
+        // free the chunks of the first slab
+        int chunksPerSlab = SlabAllocator.MIN_SLAB_SIZE / SlabAllocator.MIN_CHUNK_SIZE;
+        for (SlabAllocator.Chunk freed : chunks.subList(0, chunksPerSlab)) {
+            allocator.free(freed);
+        }
+        SlabAllocator.Chunk largeChunk = allocator.allocate(5000);
+        assertNotNull(largeChunk);
+        assertTrue(largeChunk.getCapacity() >= 5000);
+        assertEquals(1, allocator.getReclaimedSlabCount());
+        assertEquals(2 * SlabAllocator.MIN_SLAB_SIZE, allocator.getReservedBytes());
+        assertEquals(SlabAllocator.MIN_SLAB_SIZE + largeChunk.getCapacity(), allocator.getUsedBytes());
+
+        // the chunks of the reassigned slab are no longer in the free list of the small size class
+        assertNull(allocator.allocate(1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkLargerThanSlab() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.MIN_SLAB_SIZE, 64 * 1024);
+        assertNotNull(allocator.allocate(SlabAllocator.MIN_SLAB_SIZE));
+        allocator.allocate(SlabAllocator.MIN_SLAB_SIZE + 1);
+    }
+}
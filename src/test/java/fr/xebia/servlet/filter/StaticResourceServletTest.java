@@ -0,0 +1,206 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+
+public class StaticResourceServletTest {
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static StaticResourceServlet newServlet(File directory) throws Exception {
+        MockServletConfig servletConfig = new MockServletConfig(new MockServletContext("file:" + directory.getAbsolutePath()));
+        servletConfig.addInitParameter("ExpiresDefault", "access plus 10 minutes");
+        servletConfig.addInitParameter("sendfileMinSize", "1024");
+        StaticResourceServlet servlet = new StaticResourceServlet();
+        servlet.init(servletConfig);
+        return servlet;
+    }
+
+    private static File newWebApplication() throws Exception {
+        File directory = File.createTempFile("webapp", "");
+        directory.delete();
+        directory.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(directory, "style.css"));
+        for (int i = 0; i < 200; i++) {
+            out.write(("p.line" + i + " { color: red; }\n").getBytes());
+        }
+        out.close();
+        return directory;
+    }
+
+    @Test
+    public void testServeFileWithExpirationHeaders() throws Exception {
+        File directory = newWebApplication();
+        try {
+            StaticResourceServlet servlet = newServlet(directory);
+            File file = new File(directory, "style.css");
+
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(200, response.getStatus());
+            assertEquals("max-age=600", response.getHeader("Cache-Control"));
+            assertNotNull(response.getHeader("Expires"));
+            assertEquals(String.valueOf(file.length()), response.getHeader("Content-Length"));
+            assertEquals(file.length(), response.getContentAsByteArray().length);
+
+            // not modified
+            request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.addHeader("If-Modified-Since", HttpDateFormat.format(file.lastModified() + 1000));
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(304, response.getStatus());
+            assertEquals(0, response.getContentAsByteArray().length);
+
+            // forbidden path
+            request = new MockHttpServletRequest("GET", "/WEB-INF/web.xml");
+            request.setServletPath("/WEB-INF/web.xml");
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(404, response.getStatus());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testEmbeddedFilterIsNotRegistered() throws Exception {
+        File directory = newWebApplication();
+        try {
+            MockServletConfig servletConfig = new MockServletConfig(new MockServletContext("file:" + directory.getAbsolutePath()),
+                    "StaticResourceServlet");
+            servletConfig.addInitParameter("ExpiresDefault", "access plus 10 minutes");
+            StaticResourceServlet servlet = new StaticResourceServlet();
+            servlet.init(servletConfig);
+            try {
+                ObjectName objectName = FilterManagement.getObjectName("ExpiresFilter", new MockFilterConfig(servletConfig
+                        .getServletContext(), "StaticResourceServlet"));
+                assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+            } finally {
+                servlet.destroy();
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testServeFileRanges() throws Exception {
+        File directory = newWebApplication();
+        try {
+            StaticResourceServlet servlet = newServlet(directory);
+            File file = new File(directory, "style.css");
+
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.addHeader("Range", "bytes=0-4");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(206, response.getStatus());
+            assertEquals("bytes 0-4/" + file.length(), response.getHeader("Content-Range"));
+            assertEquals("p.lin", response.getContentAsString());
+
+            // several ranges
+            request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.addHeader("Range", "bytes=0-4,-3");
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(206, response.getStatus());
+            assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+            assertEquals(response.getHeader("Content-Length"), String.valueOf(response.getContentAsByteArray().length));
+
+            // outdated If-Range
+            request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.addHeader("Range", "bytes=0-4");
+            request.addHeader("If-Range", HttpDateFormat.format(file.lastModified() - 10000));
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(200, response.getStatus());
+            assertEquals(file.length(), response.getContentAsByteArray().length);
+
+            // not satisfiable
+            request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.addHeader("Range", "bytes=" + file.length() + "-");
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(416, response.getStatus());
+            assertEquals("bytes */" + file.length(), response.getHeader("Content-Range"));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testServeFileWithSendfile() throws Exception {
+        File directory = newWebApplication();
+        try {
+            StaticResourceServlet servlet = newServlet(directory);
+            File file = new File(directory, "style.css");
+
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/style.css");
+            request.setServletPath("/style.css");
+            request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertEquals(file.getAbsolutePath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+            assertEquals(Long.valueOf(file.length()), request.getAttribute("org.apache.tomcat.sendfile.end"));
+            assertEquals(0, response.getContentAsByteArray().length);
+            assertNotNull(response.getHeader("Expires"));
+
+            // HEAD
+            request = new MockHttpServletRequest("HEAD", "/style.css");
+            request.setServletPath("/style.css");
+            request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+            response = new MockHttpServletResponse();
+            servlet.service(request, response);
+            assertNull(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+            assertEquals(String.valueOf(file.length()), response.getHeader("Content-Length"));
+        } finally {
+            delete(directory);
+        }
+    }
+}
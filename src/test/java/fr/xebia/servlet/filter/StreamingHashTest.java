@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StreamingHashTest {
+
+    private static long hash(byte[] bytes) {
+        StreamingHash hash = new StreamingHash();
+        hash.update(bytes, 0, bytes.length);
+        return hash.getValue();
+    }
+
+    @Test
+    public void testValueDoesNotDependOnChunks() {
+        byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        long expected = hash(bytes);
+
+        for (int chunkSize : new int[] { 1, 3, 7, 8, 31, 33, 100 }) {
+            StreamingHash hash = new StreamingHash();
+            for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                hash.update(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+            }
+            assertEquals("chunk size " + chunkSize, expected, hash.getValue());
+        }
+
+        StreamingHash hash = new StreamingHash();
+        for (byte b : bytes) {
+            hash.update(b);
+        }
+        assertEquals(expected, hash.getValue());
+    }
+
+    @Test
+    public void testCharsAreHashedAsLittleEndianUnits() {
+        // chars above 0xFF so that the high byte of each unit matters
+        String s = "h\u00e9llo w\u00f6rld, 16 bits units: 10 \u20ac, \u4e2d\u6587";
+        assertTrue(s.charAt(s.length() - 1) > 0xFF);
+        byte[] bytes = new byte[s.length() * 2];
+        for (int i = 0; i < s.length(); i++) {
+            bytes[2 * i] = (byte) s.charAt(i);
+            bytes[2 * i + 1] = (byte) (s.charAt(i) >>> 8);
+        }
+        StreamingHash hash = new StreamingHash();
+        hash.update(7);
+        hash.update(s, 0, s.length());
+        StreamingHash expected = new StreamingHash();
+        expected.update(7);
+        expected.update(bytes, 0, bytes.length);
+        assertEquals(expected.getValue(), hash.getValue());
+    }
+
+    @Test
+    public void testSensitivity() {
+        byte[] bytes = new byte[64];
+        long hash = hash(bytes);
+        bytes[40] = 1;
+        assertFalse(hash == hash(bytes));
+        // the length is part of the hash
+        assertFalse(hash(new byte[3]) == hash(new byte[4]));
+
+        StreamingHash reset = new StreamingHash();
+        reset.update(bytes, 0, bytes.length);
+        reset.reset();
+        assertEquals(hash(new byte[0]), reset.getValue());
+    }
+}
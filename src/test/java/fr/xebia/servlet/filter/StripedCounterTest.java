@@ -0,0 +1,65 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final StripedCounter counter = new StripedCounter(4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(5);
+        assertEquals(80005, counter.get());
+
+        counter.reset();
+        assertEquals(0, counter.get());
+    }
+
+    @Test
+    public void testStripeCount() {
+        assertEquals(1, StripedCounter.stripeCount(1));
+        assertEquals(8, StripedCounter.stripeCount(6));
+        assertEquals(64, StripedCounter.stripeCount(256));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripeCountNotPowerOfTwo() {
+        new StripedCounter(3);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.servlet.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ValidatorCacheTest {
+
+    @Test
+    public void testMatches() {
+        assertTrue(ValidatorCache.matches("\"v1\"", "\"v1\""));
+        assertTrue(ValidatorCache.matches("\"v0\", \"v1\"", "\"v1\""));
+        assertTrue(ValidatorCache.matches("*", "\"v1\""));
+        // weak comparison
+        assertTrue(ValidatorCache.matches("W/\"v1\"", "\"v1\""));
+        assertTrue(ValidatorCache.matches("\"v1\"", "W/\"v1\""));
+        assertFalse(ValidatorCache.matches("\"v0\"", "\"v1\""));
+        assertFalse(ValidatorCache.matches("v1", "\"v1\""));
+    }
+
+    @Test
+    public void testRemoveMaxAgeDirective() {
+        assertNull(ValidatorCache.removeMaxAgeDirective(null));
+        assertNull(ValidatorCache.removeMaxAgeDirective("max-age=60"));
+        assertEquals("public", ValidatorCache.removeMaxAgeDirective("public, max-age=60"));
+        assertEquals("public, must-revalidate", ValidatorCache.removeMaxAgeDirective("public,max-age=60, must-revalidate"));
+    }
+}
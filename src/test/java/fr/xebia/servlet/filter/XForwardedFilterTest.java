@@ -17,10 +17,13 @@ package fr.xebia.servlet.filter;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
@@ -30,6 +33,8 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -111,7 +116,109 @@ public class XForwardedFilterTest {
         assertEquals(1, request.headers.size());
         assertEquals("Camel Case", request.getHeader("myheader"));
     }
-    
+
+    @Test
+    public void testGetDateHeader() {
+        MockHttpServletRequest wrappedRequest = new MockHttpServletRequest();
+        wrappedRequest.addHeader("If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT");
+        wrappedRequest.addHeader("If-Unmodified-Since", "Sunday, 06-Nov-94 08:49:37 GMT");
+        wrappedRequest.addHeader("Date", "not a date");
+
+        XForwardedFilter.XForwardedRequest request = new XForwardedFilter.XForwardedRequest(wrappedRequest);
+        request.setHeader("X-Asctime", "Sun Nov  6 08:49:37 1994");
+
+        assertEquals(784111777000L, request.getDateHeader("if-modified-since"));
+        assertEquals(784111777000L, request.getDateHeader("If-Unmodified-Since"));
+        assertEquals(784111777000L, request.getDateHeader("X-Asctime"));
+        assertEquals(-1, request.getDateHeader("Expires"));
+        try {
+            request.getDateHeader("Date");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("not a date", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testHeadersOverlayWrappedRequestHeaders() {
+        MockHttpServletRequest wrappedRequest = new MockHttpServletRequest();
+        wrappedRequest.addHeader("Cookie", "JSESSIONID=123");
+        wrappedRequest.addHeader("X-Forwarded-For", "140.211.11.130, proxy1");
+        wrappedRequest.addHeader("Accept", "text/html");
+        wrappedRequest.addHeader("Accept", "*/*");
+
+        XForwardedFilter.XForwardedRequest request = new XForwardedFilter.XForwardedRequest(wrappedRequest);
+        request.removeHeader("x-forwarded-for");
+        request.setHeader("X-Forwarded-By", "proxy1");
+
+        assertEquals("only overridden headers are held by the wrapper", 2, request.headers.size());
+        assertEquals("JSESSIONID=123", request.getHeader("cookie"));
+        assertEquals(Arrays.asList("text/html", "*/*"), Collections.list(request.getHeaders("Accept")));
+        assertNull(request.getHeader("X-Forwarded-For"));
+        assertEquals(false, request.getHeaders("X-Forwarded-For").hasMoreElements());
+        assertEquals("proxy1", request.getHeader("x-forwarded-by"));
+
+        List<String> headerNames = new ArrayList<String>();
+        for (Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements();) {
+            headerNames.add(names.nextElement().toString());
+        }
+        Collections.sort(headerNames, String.CASE_INSENSITIVE_ORDER);
+        assertEquals(Arrays.asList("Accept", "Cookie", "X-Forwarded-By"), headerNames);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        XForwardedFilter xforwardedFilter = new XForwardedFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig("testMBean");
+        filterConfig.addInitParameter(XForwardedFilter.PROTOCOL_HEADER_PARAMETER, "x-forwarded-proto");
+        filterConfig.addInitParameter(XForwardedFilter.TRUSTED_PROXIES_PARAMETER, "proxy1");
+        xforwardedFilter.init(filterConfig);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("fr.xebia.servlet.filter:type=XForwardedFilter,context=\"/\",name=\"testMBean\"");
+        try {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setRemoteAddr("192.168.0.10");
+            request.addHeader("x-forwarded-for", "140.211.11.130, untrusted-proxy, proxy1");
+            request.addHeader("x-forwarded-proto", "https");
+            MockFilterChain filterChain = new MockFilterChain();
+            xforwardedFilter.doFilter(request, new MockHttpServletResponse(), filterChain);
+            assertEquals("untrusted-proxy", filterChain.getRequest().getRemoteAddr());
+
+            assertEquals(1L, mbeanServer.getAttribute(objectName, "RequestCount"));
+            assertEquals(1L, mbeanServer.getAttribute(objectName, "ProxyChainResolutionCount"));
+            assertEquals(1L, mbeanServer.getAttribute(objectName, "UntrustedHopCount"));
+            assertEquals(1L, mbeanServer.getAttribute(objectName, "SecuredUpgradeCount"));
+
+            // rotate the trusted proxies
+            mbeanServer.invoke(objectName, "reconfigure", new Object[] { "protocolHeader = x-forwarded-proto\n"
+                    + "trustedProxies = untrusted-proxy, proxy1" }, new String[] { String.class.getName() });
+            filterChain = new MockFilterChain();
+            xforwardedFilter.doFilter(request, new MockHttpServletResponse(), filterChain);
+            assertEquals("140.211.11.130", filterChain.getRequest().getRemoteAddr());
+            assertEquals(1L, mbeanServer.getAttribute(objectName, "UntrustedHopCount"));
+
+            try {
+                xforwardedFilter.reconfigure("trustedProxy = proxy1");
+                fail("unknown parameter");
+            } catch (IllegalArgumentException e) {
+                // the current configuration is kept
+                assertArrayEquals(new String[] { "untrusted-proxy", "proxy1" }, xforwardedFilter.getTrustedProxiesMatcher()
+                        .getExpressions());
+            }
+            xforwardedFilter.reconfigure(xforwardedFilter.getParameters());
+            assertArrayEquals(new String[] { "untrusted-proxy", "proxy1" }, xforwardedFilter.getTrustedProxiesMatcher().getExpressions());
+            assertEquals("x-forwarded-proto", xforwardedFilter.getProtocolHeader());
+
+            // the parameters that are not given keep their init value
+            xforwardedFilter.reconfigure("trustedProxies = proxy2");
+            assertArrayEquals(new String[] { "proxy2" }, xforwardedFilter.getTrustedProxiesMatcher().getExpressions());
+            assertEquals("x-forwarded-proto", xforwardedFilter.getProtocolHeader());
+        } finally {
+            xforwardedFilter.destroy();
+        }
+        assertFalse(mbeanServer.isRegistered(objectName));
+    }
+
     @Test
     public void testIncomingRequestIsSecuredButProtocolHeaderSaysItIsNotWithDefaultValues() throws Exception {
         // PREPARE
@@ -437,6 +544,99 @@ public class XForwardedFilterTest {
         assertEquals("remoteHost", "140.211.11.130", actualRemoteHost);
     }
     
+    @Test
+    public void testInvokeAllProxiesAreTrustedOrInternalWithAddressBlocks() throws Exception {
+
+        // PREPARE
+        XForwardedFilter xforwardedFilter = new XForwardedFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter(XForwardedFilter.INTERNAL_PROXIES_PARAMETER, "192.168.0.0/24");
+        filterConfig.addInitParameter(XForwardedFilter.TRUSTED_PROXIES_PARAMETER, "10.0.0.0/8, 2001:db8::/32");
+        filterConfig.addInitParameter(XForwardedFilter.REMOTE_IP_HEADER_PARAMETER, "x-forwarded-for");
+        filterConfig.addInitParameter(XForwardedFilter.PROXIES_HEADER_PARAMETER, "x-forwarded-by");
+
+        xforwardedFilter.init(filterConfig);
+        MockFilterChain filterChain = new MockFilterChain();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+
+        request.setRemoteAddr("192.168.0.10");
+        request.setRemoteHost("remote-host-original-value");
+        request.addHeader("x-forwarded-for", "140.211.11.130, 10.1.2.3, 2001:db8::1, 192.168.0.11");
+
+        // TEST
+        xforwardedFilter.doFilter(request, new MockHttpServletResponse(), filterChain);
+
+        // VERIFY
+        String actualXForwardedFor = ((HttpServletRequest)filterChain.getRequest()).getHeader("x-forwarded-for");
+        assertNull("all proxies are trusted, x-forwarded-for must be null", actualXForwardedFor);
+
+        String actualXForwardedBy = ((HttpServletRequest)filterChain.getRequest()).getHeader("x-forwarded-by");
+        assertEquals("all proxies are trusted, they must appear in x-forwarded-by", "10.1.2.3, 2001:db8::1", actualXForwardedBy);
+
+        String actualRemoteAddr = ((HttpServletRequest)filterChain.getRequest()).getRemoteAddr();
+        assertEquals("remoteAddr", "140.211.11.130", actualRemoteAddr);
+    }
+
+    /**
+     * Filter a request of the internal proxy 192.168.0.10 with the given <tt>x-forwarded-for</tt> header.
+     */
+    private HttpServletRequest doFilterXForwardedFor(String xForwardedFor) throws Exception {
+        XForwardedFilter xforwardedFilter = new XForwardedFilter();
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter(XForwardedFilter.INTERNAL_PROXIES_PARAMETER, "192.168.0.0/24");
+        filterConfig.addInitParameter(XForwardedFilter.TRUSTED_PROXIES_PARAMETER, "10.0.0.0/8");
+        filterConfig.addInitParameter(XForwardedFilter.REMOTE_IP_HEADER_PARAMETER, "x-forwarded-for");
+        filterConfig.addInitParameter(XForwardedFilter.PROXIES_HEADER_PARAMETER, "x-forwarded-by");
+
+        xforwardedFilter.init(filterConfig);
+        MockFilterChain filterChain = new MockFilterChain();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("192.168.0.10");
+        request.addHeader("x-forwarded-for", xForwardedFor);
+
+        xforwardedFilter.doFilter(request, new MockHttpServletResponse(), filterChain);
+        return (HttpServletRequest) filterChain.getRequest();
+    }
+
+    @Test
+    public void testInvokeEmptyHopsAreSkipped() throws Exception {
+        HttpServletRequest request = doFilterXForwardedFor("140.211.11.130, , 10.1.2.3,,10.1.2.4,");
+        assertEquals("remoteAddr", "140.211.11.130", request.getRemoteAddr());
+        assertEquals("x-forwarded-by", "10.1.2.3, 10.1.2.4", request.getHeader("x-forwarded-by"));
+        assertNull("x-forwarded-for", request.getHeader("x-forwarded-for"));
+
+        request = doFilterXForwardedFor("140.211.11.130, untrusted-proxy, , 10.1.2.3");
+        assertEquals("remoteAddr", "untrusted-proxy", request.getRemoteAddr());
+        assertEquals("x-forwarded-by", "10.1.2.3", request.getHeader("x-forwarded-by"));
+        assertEquals("x-forwarded-for", "140.211.11.130", request.getHeader("x-forwarded-for"));
+
+        // no hop at all
+        request = doFilterXForwardedFor(" , ,");
+        assertEquals("remoteAddr", "192.168.0.10", request.getRemoteAddr());
+    }
+
+    @Test
+    public void testInvokeHopsSurroundedByWhitespaces() throws Exception {
+        HttpServletRequest request = doFilterXForwardedFor("  140.211.11.130\t,10.1.2.3  ,\t192.168.0.11 ");
+        assertEquals("remoteAddr", "140.211.11.130", request.getRemoteAddr());
+        assertEquals("x-forwarded-by", "10.1.2.3", request.getHeader("x-forwarded-by"));
+        assertNull("x-forwarded-for", request.getHeader("x-forwarded-for"));
+    }
+
+    @Test
+    public void testInvokeOnlyTrustedOrInternalProxies() throws Exception {
+        // the leftmost proxy is the remote address
+        HttpServletRequest request = doFilterXForwardedFor("10.1.2.3, 10.1.2.4, 192.168.0.11");
+        assertEquals("remoteAddr", "10.1.2.3", request.getRemoteAddr());
+        assertEquals("x-forwarded-by", "10.1.2.3, 10.1.2.4", request.getHeader("x-forwarded-by"));
+        assertNull("x-forwarded-for", request.getHeader("x-forwarded-for"));
+
+        request = doFilterXForwardedFor("192.168.0.12, , 192.168.0.11");
+        assertEquals("remoteAddr", "192.168.0.12", request.getRemoteAddr());
+        assertNull("x-forwarded-by", request.getHeader("x-forwarded-by"));
+        assertNull("x-forwarded-for", request.getHeader("x-forwarded-for"));
+    }
+
     @Test
     public void testInvokeNotAllowedRemoteAddr() throws Exception {
         // PREPARE